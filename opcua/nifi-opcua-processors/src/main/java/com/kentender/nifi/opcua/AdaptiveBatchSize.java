@@ -0,0 +1,66 @@
+package com.kentender.nifi.opcua;
+
+/**
+ * Request size controlled by additive increase, multiplicative decrease.
+ *
+ * Every request answered within the latency target grows the size by one node.
+ * A slow request, BadTooManyOperations or BadTimeout halves it. The size never
+ * drops below one node or grows past the upper bound, which is usually the
+ * server's operation limit.
+ */
+public class AdaptiveBatchSize {
+
+	private final int minSize;
+	private final int configuredMaxSize;
+	private final long latencyTargetMillis;
+
+	private int maxSize;
+	private double size;
+
+	public AdaptiveBatchSize(int initialSize, int maxSize, long latencyTargetMillis) {
+		this.minSize = 1;
+		this.configuredMaxSize = Math.max(minSize, maxSize);
+		this.maxSize = configuredMaxSize;
+		this.latencyTargetMillis = latencyTargetMillis;
+		this.size = Math.max(minSize, Math.min(initialSize, this.maxSize));
+	}
+
+	/**
+	 * Returns the number of nodes to put in the next request.
+	 */
+	public synchronized int get() {
+		return (int) size;
+	}
+
+	/**
+	 * Applies the limit a server reported to the configured upper bound.
+	 */
+	public synchronized void limit(long limit) {
+		maxSize = OperationLimits.cap(configuredMaxSize, limit);
+		size = Math.min(size, maxSize);
+	}
+
+	/**
+	 * Records a completed request of the given size.
+	 */
+	public synchronized void completed(int requestSize, long latencyMillis) {
+		if (latencyMillis > latencyTargetMillis) {
+			decrease();
+		} else if (requestSize >= (int) size) {
+			// Only grow if the request actually used the whole window
+			size = Math.min(maxSize, size + 1);
+		}
+	}
+
+	/**
+	 * Records a request the server rejected as too large or too slow.
+	 */
+	public synchronized void rejected() {
+		decrease();
+	}
+
+	private void decrease() {
+		size = Math.max(minSize, size / 2);
+	}
+
+}
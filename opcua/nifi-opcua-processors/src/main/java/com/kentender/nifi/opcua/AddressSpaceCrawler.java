@@ -0,0 +1,291 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opcfoundation.ua.application.SessionChannel;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.ExpandedNodeId;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.BrowseDescription;
+import org.opcfoundation.ua.core.BrowseNextRequest;
+import org.opcfoundation.ua.core.BrowseRequest;
+import org.opcfoundation.ua.core.BrowseResult;
+import org.opcfoundation.ua.core.BrowseResultMask;
+import org.opcfoundation.ua.core.NodeClass;
+import org.opcfoundation.ua.core.ReadRequest;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.ReferenceDescription;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+
+/**
+ * Walks the hierarchy of an address space level by level and collects every node
+ * as an AddressSpaceIndex entry.
+ *
+ * A level is browsed with as few Browse requests as the server's MaxNodesPerBrowse
+ * allows, continuation points are followed with BrowseNext. Nodes reached over more
+ * than one path are kept with the first one. Afterwards the data types of all
+ * variables are read in batches and named by the browse names of the data type nodes.
+ *
+ * A BrowseFilter narrows what is browsed and kept. Only the node class, browse name
+ * and display name of references are asked for.
+ *
+ * Browse paths use the format of BrowsePathResolver and start below the starting node.
+ */
+public class AddressSpaceCrawler {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private final SessionChannel session;
+	private final OPCMetrics metrics;
+	private final int batchSize;
+	private final BrowseFilter filter;
+
+	public AddressSpaceCrawler(SessionChannel session, OPCMetrics metrics, OperationLimits limits) {
+		this(session, metrics, limits, BrowseFilter.ALL);
+	}
+
+	public AddressSpaceCrawler(SessionChannel session, OPCMetrics metrics, OperationLimits limits, BrowseFilter filter) {
+		this.session = session;
+		this.metrics = metrics;
+		this.filter = filter;
+		this.batchSize = OperationLimits.cap(DEFAULT_BATCH_SIZE, Math.min(nonZero(limits.getMaxNodesPerBrowse()), nonZero(limits.getMaxNodesPerRead())));
+	}
+
+	private static long nonZero(long limit) {
+		return limit == 0 ? Long.MAX_VALUE : limit;
+	}
+
+	/**
+	 * Collects the nodes below the starting node down to maxDepth levels, 0 meaning
+	 * only the children of the starting node.
+	 */
+	public List<AddressSpaceIndex.Entry> crawl(NodeId startingNode, int maxDepth) throws ServiceResultException {
+		Map<NodeId, Node> nodes = new LinkedHashMap<>();
+		Set<NodeId> visited = new HashSet<>();
+		visited.add(startingNode);
+
+		List<Node> level = new ArrayList<>();
+		level.add(new Node(startingNode, "", 0, null, 0, filter.start()));
+		for (int depth = 0; depth <= maxDepth && !level.isEmpty(); depth++) {
+			List<Node> next = new ArrayList<>();
+			for (int offset = 0; offset < level.size(); offset += batchSize) {
+				List<Node> parents = level.subList(offset, Math.min(level.size(), offset + batchSize));
+				ReferenceDescription[][] children = browse(parents);
+				for (int i = 0; i < parents.size(); i++) {
+					for (ReferenceDescription reference : children[i]) {
+						NodeId nodeId = toNodeId(reference.getNodeId());
+						if (nodeId == null || visited.contains(nodeId)) {
+							continue;
+						}
+						Node child = parents.get(i).child(nodeId, reference, filter);
+						if (child.state.isEmpty()) {
+							// Pruned on this path, it may still be reached on another
+							continue;
+						}
+						visited.add(nodeId);
+						if (filter.matches(child.state) && filter.accepts(child.nodeClass)) {
+							nodes.put(nodeId, child);
+						}
+						if (filter.canDescend(child.state)) {
+							next.add(child);
+						}
+					}
+				}
+			}
+			level = next;
+		}
+
+		readDataTypes(nodes);
+
+		List<AddressSpaceIndex.Entry> entries = new ArrayList<>(nodes.size());
+		for (Node node : nodes.values()) {
+			entries.add(new AddressSpaceIndex.Entry(node.nodeId.toString(), node.browsePath, node.displayName, node.dataType, node.nodeClass));
+		}
+		return entries;
+	}
+
+	/**
+	 * Browses the hierarchical references of the given nodes, following continuation points.
+	 */
+	private ReferenceDescription[][] browse(List<Node> parents) throws ServiceResultException {
+		BrowseDescription[] nodesToBrowse = new BrowseDescription[parents.size()];
+		for (int i = 0; i < nodesToBrowse.length; i++) {
+			nodesToBrowse[i] = filter.describe(parents.get(i).nodeId, BrowseResultMask.NodeClass, BrowseResultMask.BrowseName, BrowseResultMask.DisplayName);
+		}
+
+		BrowseResult[] results = call(() -> session.Browse(new BrowseRequest(null, null, UnsignedInteger.ZERO, nodesToBrowse)).getResults());
+
+		List<List<ReferenceDescription>> references = new ArrayList<>();
+		Map<Integer, byte[]> continuationPoints = new HashMap<>();
+		for (int i = 0; i < parents.size(); i++) {
+			references.add(new ArrayList<>());
+			collect(results[i], i, references, continuationPoints);
+		}
+
+		while (!continuationPoints.isEmpty()) {
+			final List<Integer> indexes = new ArrayList<>(continuationPoints.keySet());
+			final byte[][] points = new byte[indexes.size()][];
+			for (int i = 0; i < points.length; i++) {
+				points[i] = continuationPoints.get(indexes.get(i));
+			}
+			continuationPoints.clear();
+			BrowseResult[] nextResults = call(() -> session.BrowseNext(new BrowseNextRequest(null, false, points)).getResults());
+			for (int i = 0; i < indexes.size(); i++) {
+				collect(nextResults[i], indexes.get(i), references, continuationPoints);
+			}
+		}
+
+		ReferenceDescription[][] children = new ReferenceDescription[parents.size()][];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = references.get(i).toArray(new ReferenceDescription[0]);
+		}
+		return children;
+	}
+
+	private static void collect(BrowseResult result, int index, List<List<ReferenceDescription>> references, Map<Integer, byte[]> continuationPoints) {
+		if (result == null || !result.getStatusCode().isGood()) {
+			return;
+		}
+		if (result.getReferences() != null) {
+			references.get(index).addAll(Arrays.asList(result.getReferences()));
+		}
+		if (result.getContinuationPoint() != null && result.getContinuationPoint().length > 0) {
+			continuationPoints.put(index, result.getContinuationPoint());
+		}
+	}
+
+	/**
+	 * Reads the DataType attribute of all variables, then the browse names of those data types.
+	 */
+	private void readDataTypes(Map<NodeId, Node> nodes) throws ServiceResultException {
+		List<Node> variables = new ArrayList<>();
+		for (Node node : nodes.values()) {
+			if (node.nodeClass == NodeClass.Variable.getValue()) {
+				variables.add(node);
+			}
+		}
+
+		Map<NodeId, String> typeNames = new HashMap<>();
+		List<NodeId> dataTypes = new ArrayList<>(variables.size());
+		for (DataValue value : read(nodeIds(variables), Attributes.DataType)) {
+			Object dataType = value.getValue() == null ? null : value.getValue().getValue();
+			dataTypes.add(dataType instanceof NodeId ? (NodeId) dataType : null);
+			if (dataType instanceof NodeId) {
+				typeNames.put((NodeId) dataType, dataType.toString());
+			}
+		}
+
+		// Only a handful of distinct data types, so naming them is cheap
+		List<NodeId> distinct = new ArrayList<>(typeNames.keySet());
+		DataValue[] names = read(distinct, Attributes.BrowseName);
+		for (int i = 0; i < distinct.size(); i++) {
+			Object name = names[i].getValue() == null ? null : names[i].getValue().getValue();
+			if (name instanceof QualifiedName) {
+				typeNames.put(distinct.get(i), ((QualifiedName) name).getName());
+			}
+		}
+
+		for (int i = 0; i < variables.size(); i++) {
+			if (dataTypes.get(i) != null) {
+				variables.get(i).dataType = typeNames.get(dataTypes.get(i));
+			}
+		}
+	}
+
+	private DataValue[] read(List<NodeId> nodeIds, UnsignedInteger attributeId) throws ServiceResultException {
+		DataValue[] values = new DataValue[nodeIds.size()];
+		for (int offset = 0; offset < nodeIds.size(); offset += batchSize) {
+			int count = Math.min(batchSize, nodeIds.size() - offset);
+			ReadValueId[] nodesToRead = new ReadValueId[count];
+			for (int i = 0; i < count; i++) {
+				nodesToRead[i] = new ReadValueId(nodeIds.get(offset + i), attributeId, null, null);
+			}
+			final ReadRequest req = new ReadRequest(null, 0.0, TimestampsToReturn.Neither, nodesToRead);
+			DataValue[] results = call(() -> session.Read(req).getResults());
+			System.arraycopy(results, 0, values, offset, count);
+		}
+		return values;
+	}
+
+	private static List<NodeId> nodeIds(List<Node> nodes) {
+		List<NodeId> nodeIds = new ArrayList<>(nodes.size());
+		for (Node node : nodes) {
+			nodeIds.add(node.nodeId);
+		}
+		return nodeIds;
+	}
+
+	private interface Request<T> {
+		T call() throws ServiceResultException;
+	}
+
+	private <T> T call(Request<T> request) throws ServiceResultException {
+		metrics.requestStarted();
+		boolean failed = true;
+		try {
+			T result = request.call();
+			failed = false;
+			return result;
+		} finally {
+			metrics.requestCompleted(failed);
+		}
+	}
+
+	/**
+	 * Returns the local node id, or null for nodes on other servers.
+	 */
+	static NodeId toNodeId(ExpandedNodeId expandedNodeId) {
+		if (expandedNodeId == null || !expandedNodeId.isLocal()) {
+			return null;
+		}
+		return NodeId.get(expandedNodeId.getIdType(), expandedNodeId.getNamespaceIndex(), expandedNodeId.getValue());
+	}
+
+	private static class Node {
+		final NodeId nodeId;
+		final String browsePath;
+		final int namespaceIndex;
+		final String displayName;
+		final int nodeClass;
+		final BitSet state;
+		String dataType;
+
+		Node(NodeId nodeId, String browsePath, int namespaceIndex, String displayName, int nodeClass, BitSet state) {
+			this.nodeId = nodeId;
+			this.browsePath = browsePath;
+			this.namespaceIndex = namespaceIndex;
+			this.displayName = displayName;
+			this.nodeClass = nodeClass;
+			this.state = state;
+		}
+
+		/**
+		 * The namespace index is only written where it changes along the path.
+		 */
+		Node child(NodeId nodeId, ReferenceDescription reference, BrowseFilter filter) {
+			QualifiedName browseName = reference.getBrowseName();
+			int childNamespace = browseName == null ? namespaceIndex : browseName.getNamespaceIndex();
+			String name = browseName == null ? nodeId.toString() : browseName.getName();
+			String element = childNamespace == namespaceIndex ? name : childNamespace + ":" + name;
+			return new Node(nodeId,
+					browsePath.isEmpty() ? element : browsePath + "/" + element,
+					childNamespace,
+					reference.getDisplayName() == null ? null : reference.getDisplayName().getText(),
+					reference.getNodeClass() == null ? 0 : reference.getNodeClass().getValue(),
+					filter.advance(state, browseName == null ? null : browseName.getName()));
+		}
+	}
+
+}
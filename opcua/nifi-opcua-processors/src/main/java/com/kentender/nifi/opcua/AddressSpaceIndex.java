@@ -0,0 +1,232 @@
+package com.kentender.nifi.opcua;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A sorted index of the nodes of an address space, meant to be memory mapped.
+ *
+ * The file starts with a header (magic and entry count) followed by a table with the
+ * offset of every entry, sorted by the UTF-8 bytes of the node id. The entries follow
+ * the table, each one the node id, browse path, display name and data type as length
+ * prefixed UTF-8 and the node class as one int. Lookups binary search the table and
+ * compare bytes in place, so only the entry that was found is decoded.
+ *
+ * A mapped file is limited to 2 GB, enough for tens of millions of nodes.
+ */
+public class AddressSpaceIndex {
+
+	public static final String MIME_TYPE = "application/x-opcua-address-space-index";
+
+	private static final byte[] MAGIC = {'O', 'P', 'C', 'I', 'D', 'X', '0', '1'};
+	private static final int HEADER_SIZE = MAGIC.length + 4;
+	private static final int MAX_STRING = 0xffff;
+
+	/**
+	 * One node of the address space.
+	 */
+	public static class Entry {
+		private final String nodeId;
+		private final String browsePath;
+		private final String displayName;
+		private final String dataType;
+		private final int nodeClass;
+
+		public Entry(String nodeId, String browsePath, String displayName, String dataType, int nodeClass) {
+			this.nodeId = nodeId;
+			this.browsePath = browsePath;
+			this.displayName = displayName;
+			this.dataType = dataType;
+			this.nodeClass = nodeClass;
+		}
+
+		public String getNodeId() {
+			return nodeId;
+		}
+
+		public String getBrowsePath() {
+			return browsePath;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+
+		/**
+		 * The browse name of the data type for variables, null for other nodes.
+		 */
+		public String getDataType() {
+			return dataType;
+		}
+
+		/**
+		 * The NodeClass value, e.g. 2 for variables.
+		 */
+		public int getNodeClass() {
+			return nodeClass;
+		}
+	}
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final int count;
+
+	private AddressSpaceIndex(File file, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buffer.capacity() < HEADER_SIZE || buffer.get(i) != MAGIC[i]) {
+				throw new IOException(file + " is not an address space index");
+			}
+		}
+		this.count = buffer.getInt(MAGIC.length);
+	}
+
+	/**
+	 * Maps the given index file read only.
+	 */
+	public static AddressSpaceIndex open(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+				FileChannel channel = randomAccessFile.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			// The mapping stays valid after the channel is closed
+			return new AddressSpaceIndex(file, buffer);
+		}
+	}
+
+	/**
+	 * Writes the entries as an index. Entries with the same node id are written once.
+	 */
+	public static void write(Collection<Entry> entries, OutputStream out) throws IOException {
+		List<byte[][]> encoded = new ArrayList<>(entries.size());
+		for (Entry entry : entries) {
+			encoded.add(new byte[][] {
+					utf8(entry.nodeId), utf8(entry.browsePath), utf8(entry.displayName), utf8(entry.dataType),
+					{(byte) (entry.nodeClass >>> 24), (byte) (entry.nodeClass >>> 16), (byte) (entry.nodeClass >>> 8), (byte) entry.nodeClass}});
+		}
+		encoded.sort((a, b) -> compare(a[0], b[0]));
+
+		List<byte[][]> unique = new ArrayList<>(encoded.size());
+		for (byte[][] entry : encoded) {
+			if (unique.isEmpty() || compare(unique.get(unique.size() - 1)[0], entry[0]) != 0) {
+				unique.add(entry);
+			}
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(MAGIC);
+		data.writeInt(unique.size());
+		long offset = HEADER_SIZE + 4L * unique.size();
+		for (byte[][] entry : unique) {
+			if (offset > Integer.MAX_VALUE) {
+				throw new IOException("Index would be larger than 2 GB");
+			}
+			data.writeInt((int) offset);
+			offset += 8 + entry[0].length + entry[1].length + entry[2].length + entry[3].length + 4;
+		}
+		for (byte[][] entry : unique) {
+			for (int i = 0; i < 4; i++) {
+				data.writeShort(entry[i].length);
+				data.write(entry[i]);
+			}
+			data.write(entry[4]);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Returns the entry of the given node id, or null if it is not in the index.
+	 */
+	public Entry find(String nodeId) {
+		byte[] key = nodeId.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int offset = buffer.getInt(HEADER_SIZE + 4 * middle);
+			int comparison = compareKey(offset, key);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return decode(offset);
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private int compareKey(int offset, byte[] key) {
+		int length = buffer.getShort(offset) & 0xffff;
+		int start = offset + 2;
+		for (int i = 0; i < length && i < key.length; i++) {
+			int difference = (buffer.get(start + i) & 0xff) - (key[i] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length - key.length;
+	}
+
+	private Entry decode(int offset) {
+		String[] strings = new String[4];
+		int position = offset;
+		for (int i = 0; i < 4; i++) {
+			int length = buffer.getShort(position) & 0xffff;
+			byte[] bytes = new byte[length];
+			for (int j = 0; j < length; j++) {
+				bytes[j] = buffer.get(position + 2 + j);
+			}
+			strings[i] = length == 0 && i == 3 ? null : new String(bytes, StandardCharsets.UTF_8);
+			position += 2 + length;
+		}
+		return new Entry(strings[0], strings[1], strings[2], strings[3], buffer.getInt(position));
+	}
+
+	private static byte[] utf8(String value) {
+		if (value == null) {
+			return new byte[0];
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_STRING) {
+			// Cut on a character boundary
+			int length = MAX_STRING;
+			while (length > 0 && (bytes[length] & 0xc0) == 0x80) {
+				length--;
+			}
+			byte[] cut = new byte[length];
+			System.arraycopy(bytes, 0, cut, 0, length);
+			return cut;
+		}
+		return bytes;
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int difference = (a[i] & 0xff) - (b[i] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return a.length - b.length;
+	}
+
+}
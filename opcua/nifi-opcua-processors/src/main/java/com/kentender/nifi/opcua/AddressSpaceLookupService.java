@@ -0,0 +1,158 @@
+package com.kentender.nifi.opcua;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.lookup.RecordLookupService;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.opcfoundation.ua.core.NodeClass;
+
+@Tags({"OPC", "OPCUA", "UA", "lookup", "enrich"})
+@CapabilityDescription("Looks up the browse path, display name, data type and node class of a node id in an address space index "
+		+ "written by GetExpandedNodeIds. The index file is memory mapped, so lookups neither call the server nor keep the index "
+		+ "on the heap. The file is mapped again when it changes")
+@SeeAlso({GetExpandedNodeIds.class})
+public class AddressSpaceLookupService extends AbstractControllerService implements RecordLookupService {
+
+	public static final String KEY = "key";
+
+	private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("nodeId", RecordFieldType.STRING.getDataType()),
+			new RecordField("browsePath", RecordFieldType.STRING.getDataType()),
+			new RecordField("displayName", RecordFieldType.STRING.getDataType()),
+			new RecordField("dataType", RecordFieldType.STRING.getDataType()),
+			new RecordField("nodeClass", RecordFieldType.STRING.getDataType())));
+
+	public static final PropertyDescriptor INDEX_FILE = new PropertyDescriptor
+            .Builder().name("Index File")
+            .description("Address space index written by GetExpandedNodeIds with the Address Space Index output format")
+            .required(true)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor RELOAD_INTERVAL = new PropertyDescriptor
+            .Builder().name("Reload Check Interval")
+            .description("How often to check whether the index file was replaced")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+	private static final List<PropertyDescriptor> DESCRIPTORS = Collections.unmodifiableList(Arrays.asList(INDEX_FILE, RELOAD_INTERVAL));
+
+	private volatile AddressSpaceIndex index = null;
+	private volatile File file = null;
+	private volatile long lastModified = 0;
+	private volatile long length = 0;
+	private volatile long nextCheck = 0;
+	private volatile long reloadMillis = 0;
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return DESCRIPTORS;
+	}
+
+	@OnEnabled
+	public void onEnabled(final ConfigurationContext context) throws InitializationException {
+		file = new File(context.getProperty(INDEX_FILE).getValue());
+		reloadMillis = context.getProperty(RELOAD_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+		try {
+			load();
+		} catch (IOException e) {
+			throw new InitializationException(e);
+		}
+	}
+
+	@OnDisabled
+	public void onDisabled() {
+		index = null;
+	}
+
+	private synchronized void load() throws IOException {
+		lastModified = file.lastModified();
+		length = file.length();
+		index = AddressSpaceIndex.open(file);
+		nextCheck = System.currentTimeMillis() + reloadMillis;
+		getLogger().info("Mapped address space index " + file + " with " + index.size() + " nodes");
+	}
+
+	/**
+	 * Maps the file again if it was replaced, at most once per reload interval.
+	 */
+	private void reloadIfChanged() {
+		if (System.currentTimeMillis() < nextCheck) {
+			return;
+		}
+		synchronized (this) {
+			if (System.currentTimeMillis() < nextCheck) {
+				return;
+			}
+			nextCheck = System.currentTimeMillis() + reloadMillis;
+			if (file.lastModified() != lastModified || file.length() != length) {
+				try {
+					load();
+				} catch (IOException e) {
+					// Keep serving the previous mapping
+					getLogger().warn("Could not map address space index " + file + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	@Override
+	public Optional<Record> lookup(Map<String, Object> coordinates) throws LookupFailureException {
+		Object key = coordinates == null ? null : coordinates.get(KEY);
+		if (key == null) {
+			return Optional.empty();
+		}
+		reloadIfChanged();
+
+		AddressSpaceIndex current = index;
+		if (current == null) {
+			throw new LookupFailureException("The address space index is not loaded");
+		}
+		AddressSpaceIndex.Entry entry = current.find(key.toString());
+		if (entry == null) {
+			return Optional.empty();
+		}
+
+		Map<String, Object> values = new HashMap<>();
+		values.put("nodeId", entry.getNodeId());
+		values.put("browsePath", entry.getBrowsePath());
+		values.put("displayName", entry.getDisplayName());
+		values.put("dataType", entry.getDataType());
+		NodeClass nodeClass = NodeClass.valueOf(entry.getNodeClass());
+		values.put("nodeClass", nodeClass == null ? null : nodeClass.name());
+		return Optional.of(new MapRecord(SCHEMA, values));
+	}
+
+	@Override
+	public Set<String> getRequiredKeys() {
+		return Collections.singleton(KEY);
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.kentender.nifi.opcua;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.core.BrowseDescription;
+import org.opcfoundation.ua.core.BrowseDirection;
+import org.opcfoundation.ua.core.BrowseResultMask;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.NodeClass;
+
+/**
+ * What to browse of an address space and which of the browsed nodes to keep.
+ *
+ * The node classes and the reference type are sent to the server with every Browse,
+ * Objects are always asked for as well so the crawl can pass through folders. The
+ * path pattern and the excluded names are applied while crawling: a node whose path
+ * can no longer match the pattern, or whose browse name is excluded, is neither kept
+ * nor browsed, which prunes its whole subtree.
+ *
+ * A path pattern has the elements of a browse path relative to the starting node,
+ * each a glob on the browse name without namespace (* and ?), or ** for any number
+ * of levels. Objects/Plant* keeps the Plant objects, a further ** element everything
+ * below them as well.
+ */
+public class BrowseFilter {
+
+	public static final BrowseFilter ALL = new BrowseFilter(0, Identifiers.HierarchicalReferences, null, null);
+
+	private static final String ANY_LEVELS = "**";
+
+	private final int nodeClassMask;
+	private final NodeId referenceTypeId;
+	private final String[] elements;
+	private final Pattern[] globs;
+	private final Pattern exclude;
+
+	/**
+	 * @param nodeClassMask the NodeClass values to keep, 0 for all
+	 * @param referenceTypeId the references to follow, including subtypes
+	 * @param pathPattern the paths to keep, null for all
+	 * @param excludePattern regular expression of browse names to prune, null for none
+	 */
+	public BrowseFilter(int nodeClassMask, NodeId referenceTypeId, String pathPattern, String excludePattern) {
+		this.nodeClassMask = nodeClassMask;
+		this.referenceTypeId = referenceTypeId;
+		if (pathPattern == null || pathPattern.trim().isEmpty()) {
+			this.elements = null;
+			this.globs = null;
+		} else {
+			this.elements = pathPattern.trim().split("/");
+			this.globs = new Pattern[elements.length];
+			for (int i = 0; i < elements.length; i++) {
+				globs[i] = ANY_LEVELS.equals(elements[i]) ? null : toPattern(elements[i]);
+			}
+		}
+		this.exclude = excludePattern == null || excludePattern.isEmpty() ? null : Pattern.compile(excludePattern);
+	}
+
+	/**
+	 * Parses a comma separated list of node class names like "Object, Variable".
+	 *
+	 * @throws IllegalArgumentException for unknown names
+	 */
+	public static int parseNodeClasses(String names) {
+		int mask = 0;
+		if (names == null) {
+			return mask;
+		}
+		for (String name : names.split(",")) {
+			if (!name.trim().isEmpty()) {
+				mask |= NodeClass.valueOf(name.trim()).getValue();
+			}
+		}
+		return mask;
+	}
+
+	static Pattern toPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int literal = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (literal < i) {
+					regex.append(Pattern.quote(glob.substring(literal, i)));
+				}
+				regex.append(c == '*' ? ".*" : ".");
+				literal = i + 1;
+			}
+		}
+		if (literal < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(literal)));
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Describes the Browse of one node, asking only for the given ReferenceDescription fields.
+	 */
+	public BrowseDescription describe(NodeId nodeId, BrowseResultMask... fields) {
+		int resultMask = 0;
+		for (BrowseResultMask field : fields) {
+			resultMask |= field.getValue();
+		}
+		int serverMask = nodeClassMask == 0 ? 0 : nodeClassMask | NodeClass.Object.getValue();
+		return new BrowseDescription(nodeId, BrowseDirection.Forward, referenceTypeId, true,
+				UnsignedInteger.valueOf(serverMask), UnsignedInteger.valueOf(resultMask));
+	}
+
+	/**
+	 * Whether nodes of the given NodeClass value are kept.
+	 */
+	public boolean accepts(int nodeClass) {
+		return nodeClassMask == 0 || (nodeClassMask & nodeClass) != 0;
+	}
+
+	/**
+	 * The match state of the starting node.
+	 */
+	public BitSet start() {
+		BitSet state = new BitSet();
+		state.set(0);
+		return close(state);
+	}
+
+	/**
+	 * The match state of a child with the given browse name. An empty state means the
+	 * child and everything below it can be skipped.
+	 */
+	public BitSet advance(BitSet state, String browseName) {
+		BitSet next = new BitSet();
+		if (exclude != null && browseName != null && exclude.matcher(browseName).matches()) {
+			return next;
+		}
+		if (elements == null) {
+			next.set(0);
+			return next;
+		}
+		for (int i = state.nextSetBit(0); i >= 0 && i < elements.length; i = state.nextSetBit(i + 1)) {
+			if (globs[i] == null) {
+				next.set(i);
+			} else if (browseName != null && globs[i].matcher(browseName).matches()) {
+				next.set(i + 1);
+			}
+		}
+		return close(next);
+	}
+
+	/**
+	 * Whether the path that led to this state matches the whole pattern.
+	 */
+	public boolean matches(BitSet state) {
+		return elements == null ? !state.isEmpty() : state.get(elements.length);
+	}
+
+	/**
+	 * Whether any node below a node with this state can still match.
+	 */
+	public boolean canDescend(BitSet state) {
+		if (elements == null) {
+			return !state.isEmpty();
+		}
+		int first = state.nextSetBit(0);
+		return first >= 0 && first < elements.length;
+	}
+
+	/**
+	 * ** also matches no level at all.
+	 */
+	private BitSet close(BitSet state) {
+		if (elements != null) {
+			for (int i = state.nextSetBit(0); i >= 0 && i < elements.length; i = state.nextSetBit(i + 1)) {
+				if (globs[i] == null) {
+					state.set(i + 1);
+				}
+			}
+		}
+		return state;
+	}
+
+}
@@ -0,0 +1,256 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opcfoundation.ua.builtintypes.ExpandedNodeId;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.BrowseDescription;
+import org.opcfoundation.ua.core.BrowseDirection;
+import org.opcfoundation.ua.core.BrowseNextRequest;
+import org.opcfoundation.ua.core.BrowsePath;
+import org.opcfoundation.ua.core.BrowsePathResult;
+import org.opcfoundation.ua.core.BrowseRequest;
+import org.opcfoundation.ua.core.BrowseResult;
+import org.opcfoundation.ua.core.BrowseResultMask;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.ReferenceDescription;
+import org.opcfoundation.ua.core.RelativePath;
+import org.opcfoundation.ua.core.RelativePathElement;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.TranslateBrowsePathsToNodeIdsRequest;
+
+/**
+ * Resolves browse paths like Objects/2:Line3/Press/Temperature to NodeIds.
+ *
+ * A path starts at the Root folder and its elements are browse names separated by
+ * slashes. An element may be prefixed with a namespace index, elements without one
+ * use the namespace of the element before them (0 for the first). If a path leads
+ * nowhere that way, it is walked level by level with its unprefixed elements matching
+ * the browse name in any namespace, so Objects/Line3/Press/Temperature finds 2:Line3.
+ * A path that then matches more than one node fails with Bad_BrowseNameDuplicated.
+ *
+ * Paths that are not cached are resolved together in TranslateBrowsePathsToNodeIds
+ * requests of at most MaxNodesPerTranslateBrowsePathsToNodeIds paths. The cache evicts
+ * the least recently used paths and is cleared whenever a connection gets a new
+ * session, as the server may have restarted with a different address space.
+ */
+public class BrowsePathResolver {
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private final Map<String, NodeId> cache;
+	private final Map<OPCConnection, Long> generations = new LinkedHashMap<>();
+
+	public BrowsePathResolver(final int cacheSize) {
+		this.cache = new LinkedHashMap<String, NodeId>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NodeId> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the NodeIds of the given paths, in the same order.
+	 *
+	 * @throws ServiceResultException with Bad_NoMatch if a path does not lead to a node
+	 * or Bad_BrowseNameDuplicated if it leads to several
+	 */
+	public NodeId[] resolve(OPCConnection connection, List<String> paths) throws ServiceResultException {
+		// Make sure the session exists before comparing generations
+		connection.getSession();
+
+		NodeId[] nodeIds = new NodeId[paths.size()];
+		List<Integer> misses = new ArrayList<>();
+		synchronized (this) {
+			Long generation = connection.getSessionGeneration();
+			Long seen = generations.put(connection, generation);
+			if (seen != null && !seen.equals(generation)) {
+				cache.clear();
+			}
+			for (int i = 0; i < nodeIds.length; i++) {
+				nodeIds[i] = cache.get(paths.get(i));
+				if (nodeIds[i] == null) {
+					misses.add(i);
+				}
+			}
+		}
+		if (misses.isEmpty()) {
+			return nodeIds;
+		}
+
+		BrowsePath[] browsePaths = new BrowsePath[misses.size()];
+		for (int i = 0; i < browsePaths.length; i++) {
+			browsePaths[i] = toBrowsePath(paths.get(misses.get(i)));
+		}
+
+		List<Integer> unmatched = new ArrayList<>();
+		int offset = 0;
+		while (offset < browsePaths.length) {
+			int count = Math.min(browsePaths.length - offset,
+					OperationLimits.cap(DEFAULT_BATCH_SIZE, connection.getOperationLimits().getMaxNodesPerTranslateBrowsePathsToNodeIds()));
+			final TranslateBrowsePathsToNodeIdsRequest req = new TranslateBrowsePathsToNodeIdsRequest(null,
+					Arrays.copyOfRange(browsePaths, offset, offset + count));
+			BrowsePathResult[] results = connection.call(session -> session.TranslateBrowsePathsToNodeIds(req)).getResults();
+
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					int index = misses.get(offset + i);
+					BrowsePathResult result = results[i];
+					if (!result.getStatusCode().isGood() || result.getTargets() == null || result.getTargets().length == 0) {
+						if (!hasUnprefixedElement(paths.get(index))) {
+							throw new ServiceResultException(StatusCodes.Bad_NoMatch,
+									"Browse path " + paths.get(index) + " could not be resolved: " + result.getStatusCode());
+						}
+						unmatched.add(index);
+						continue;
+					}
+					ExpandedNodeId target = result.getTargets()[0].getTargetId();
+					nodeIds[index] = NodeId.get(target.getIdType(), target.getNamespaceIndex(), target.getValue());
+					cache.put(paths.get(index), nodeIds[index]);
+				}
+			}
+			offset += count;
+		}
+
+		for (int index : unmatched) {
+			NodeId nodeId = walk(connection, paths.get(index));
+			nodeIds[index] = nodeId;
+			synchronized (this) {
+				cache.put(paths.get(index), nodeId);
+			}
+		}
+		return nodeIds;
+	}
+
+	/**
+	 * Follows a path one level at a time, matching unprefixed elements in any namespace.
+	 */
+	private static NodeId walk(OPCConnection connection, String path) throws ServiceResultException {
+		List<NodeId> current = new ArrayList<>();
+		current.add(Identifiers.RootFolder);
+		for (String element : path.split("/")) {
+			if (element.isEmpty()) {
+				continue;
+			}
+			final int namespaceIndex = namespaceIndexOf(element);
+			final String name = namespaceIndex < 0 ? element : element.substring(element.indexOf(':') + 1);
+			List<NodeId> next = new ArrayList<>();
+			for (ReferenceDescription reference : browse(connection, current)) {
+				QualifiedName browseName = reference.getBrowseName();
+				if (browseName == null || !name.equals(browseName.getName())
+						|| namespaceIndex >= 0 && browseName.getNamespaceIndex() != namespaceIndex) {
+					continue;
+				}
+				ExpandedNodeId target = reference.getNodeId();
+				NodeId nodeId = NodeId.get(target.getIdType(), target.getNamespaceIndex(), target.getValue());
+				if (!next.contains(nodeId)) {
+					next.add(nodeId);
+				}
+			}
+			if (next.isEmpty()) {
+				throw new ServiceResultException(StatusCodes.Bad_NoMatch,
+						"Browse path " + path + " could not be resolved: no match for " + element);
+			}
+			current = next;
+		}
+		if (current.size() > 1) {
+			throw new ServiceResultException(StatusCodes.Bad_BrowseNameDuplicated,
+					"Browse path " + path + " matches " + current.size() + " nodes, prefix its names with namespace indexes");
+		}
+		return current.get(0);
+	}
+
+	/**
+	 * The hierarchical references of the given nodes, following continuation points.
+	 */
+	private static List<ReferenceDescription> browse(OPCConnection connection, List<NodeId> nodeIds) throws ServiceResultException {
+		final BrowseDescription[] nodesToBrowse = new BrowseDescription[nodeIds.size()];
+		for (int i = 0; i < nodesToBrowse.length; i++) {
+			nodesToBrowse[i] = new BrowseDescription(nodeIds.get(i), BrowseDirection.Forward, Identifiers.HierarchicalReferences, true,
+					UnsignedInteger.ZERO,
+					UnsignedInteger.valueOf(BrowseResultMask.BrowseName.getValue()));
+		}
+		List<ReferenceDescription> references = new ArrayList<>();
+		BrowseResult[] results = connection.call(session -> session.Browse(new BrowseRequest(null, null, UnsignedInteger.ZERO, nodesToBrowse))).getResults();
+		while (true) {
+			List<byte[]> continuationPoints = new ArrayList<>();
+			for (BrowseResult result : results) {
+				if (result == null || !result.getStatusCode().isGood()) {
+					continue;
+				}
+				if (result.getReferences() != null) {
+					references.addAll(Arrays.asList(result.getReferences()));
+				}
+				if (result.getContinuationPoint() != null && result.getContinuationPoint().length > 0) {
+					continuationPoints.add(result.getContinuationPoint());
+				}
+			}
+			if (continuationPoints.isEmpty()) {
+				return references;
+			}
+			final byte[][] points = continuationPoints.toArray(new byte[0][]);
+			results = connection.call(session -> session.BrowseNext(new BrowseNextRequest(null, false, points))).getResults();
+		}
+	}
+
+	/**
+	 * Forgets a path, e.g. because the node it resolved to is gone after a model change.
+	 */
+	public synchronized void evict(String path) {
+		cache.remove(path);
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+		generations.clear();
+	}
+
+	static BrowsePath toBrowsePath(String path) {
+		List<RelativePathElement> elements = new ArrayList<>();
+		int namespaceIndex = 0;
+		for (String element : path.split("/")) {
+			if (element.isEmpty()) {
+				continue;
+			}
+			String name = element;
+			if (namespaceIndexOf(element) >= 0) {
+				namespaceIndex = namespaceIndexOf(element);
+				name = element.substring(element.indexOf(':') + 1);
+			}
+			elements.add(new RelativePathElement(Identifiers.HierarchicalReferences, false, true, new QualifiedName(namespaceIndex, name)));
+		}
+		return new BrowsePath(Identifiers.RootFolder, new RelativePath(elements.toArray(new RelativePathElement[0])));
+	}
+
+	/**
+	 * The namespace index an element is prefixed with, or -1.
+	 */
+	static int namespaceIndexOf(String element) {
+		int colon = element.indexOf(':');
+		if (colon > 0 && element.substring(0, colon).chars().allMatch(Character::isDigit)) {
+			return Integer.parseInt(element.substring(0, colon));
+		}
+		return -1;
+	}
+
+	private static boolean hasUnprefixedElement(String path) {
+		for (String element : path.split("/")) {
+			if (!element.isEmpty() && namespaceIndexOf(element) < 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.kentender.nifi.opcua;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.encoding.EncoderContext;
+
+/**
+ * Reads large one-dimensional array values in IndexRange chunks and streams every
+ * chunk to the output before reading the next, so memory is bounded by one chunk
+ * however long the array is.
+ *
+ * Binary output is, per tag, the tag as modified UTF-8 (DataOutput.writeUTF), the
+ * status code of the first chunk as an int and its source timestamp in epoch millis
+ * as a long (-1 if none), then the chunks, each an int count followed by that many
+ * big-endian doubles, and an int 0 at the end. Booleans are written as 1 and 0,
+ * other non-numeric elements fail the read. CSV Column output is one tag,index,value
+ * line per element.
+ *
+ * Chunks are read one after the other, so an array the server updates meanwhile
+ * may mix old and new elements. A scalar value is written as an array of one.
+ *
+ * Unless given, the chunk size follows the MaxArrayLength of the server and of the
+ * client and the client's max message size. Elements of variable size, like strings,
+ * may still make a chunk too large for a message; the chunk is then halved and read
+ * again. Byte strings are chunked by the server's MaxByteStringLength.
+ */
+public class ChunkedArrayReader {
+
+	public static final String BINARY = "Binary";
+	public static final String CSV_COLUMN = "CSV Column";
+
+	public static final int DEFAULT_CHUNK_SIZE = 65536;
+
+	// Leave half of a message for the encoding overhead of wider element types
+	private static final int BYTES_PER_ELEMENT = 16;
+
+	private final OPCConnection connection;
+	private final boolean binary;
+	private final double maxAge;
+
+	// Halved when a chunk does not fit into a message
+	private int chunkSize;
+
+	/**
+	 * @param chunkSize elements per request, 0 to derive it from the server's limits and the client's max message size
+	 */
+	public ChunkedArrayReader(OPCConnection connection, int chunkSize, String format, double maxAge) {
+		this.connection = connection;
+		this.chunkSize = chunkSize > 0 ? chunkSize : chunkSize(connection.getClient().getEncoderContext(), connection.getOperationLimits());
+		this.binary = BINARY.equals(format);
+		this.maxAge = maxAge;
+	}
+
+	static int chunkSize(EncoderContext encoderContext, OperationLimits limits) {
+		long size = DEFAULT_CHUNK_SIZE;
+		if (encoderContext != null && encoderContext.getMaxMessageSize() > 0) {
+			size = encoderContext.getMaxMessageSize() / BYTES_PER_ELEMENT;
+		}
+		if (encoderContext != null && encoderContext.getMaxArrayLength() > 0) {
+			size = Math.min(size, encoderContext.getMaxArrayLength());
+		}
+		if (limits.getMaxArrayLength() > 0) {
+			size = Math.min(size, limits.getMaxArrayLength());
+		}
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, size));
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Reads the value of the node chunk by chunk and writes it to out.
+	 *
+	 * @return the number of elements written
+	 */
+	public long read(NodeId nodeId, String tag, OutputStream out) throws ServiceResultException, IOException {
+		final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		long count = 0;
+		boolean first = true;
+		while (true) {
+			DataValue chunk = readFittingChunk(nodeId, count);
+			StatusCode status = chunk.getStatusCode();
+
+			if (status != null && StatusCodes.Bad_IndexRangeNoData.equals(status.getValue())) {
+				// Past the end, or an empty array
+				if (first) {
+					writeHeader(data, tag, chunk);
+				}
+				break;
+			}
+			if (first && status != null && StatusCodes.Bad_IndexRangeInvalid.equals(status.getValue())) {
+				// Not an array, read it whole
+				chunk = readChunk(nodeId, -1, -1);
+				writeHeader(data, tag, chunk);
+				count += writeElements(data, tag, count, chunk.getValue() == null ? null : new Object[] {chunk.getValue().getValue()});
+				break;
+			}
+			if (status != null && status.isBad()) {
+				if (first) {
+					writeHeader(data, tag, chunk);
+					break;
+				}
+				throw new ServiceResultException(status, "Reading elements from " + count + " of " + tag + " failed");
+			}
+
+			if (first) {
+				writeHeader(data, tag, chunk);
+				first = false;
+			}
+			Object elements = chunk.getValue() == null ? null : chunk.getValue().getValue();
+			if (elements instanceof byte[] && connection.getOperationLimits().getMaxByteStringLength() > 0) {
+				// The index range of a byte string counts bytes
+				chunkSize = OperationLimits.cap(chunkSize, connection.getOperationLimits().getMaxByteStringLength());
+			}
+			int written = writeElements(data, tag, count, elements);
+			count += written;
+			if (written < chunkSize) {
+				break;
+			}
+		}
+		if (binary) {
+			data.writeInt(0);
+		}
+		data.flush();
+		return count;
+	}
+
+	/**
+	 * Reads the chunk starting at the given index, halving the chunk size until the
+	 * response fits into a message.
+	 */
+	private DataValue readFittingChunk(NodeId nodeId, long start) throws ServiceResultException {
+		while (true) {
+			try {
+				DataValue chunk = readChunk(nodeId, start, start + chunkSize - 1);
+				StatusCode status = chunk.getStatusCode();
+				if (chunkSize == 1 || status == null || !isTooLarge(status.getValue())) {
+					return chunk;
+				}
+			} catch (ServiceResultException e) {
+				if (chunkSize == 1 || e.getStatusCode() == null || !isTooLarge(e.getStatusCode().getValue())) {
+					throw e;
+				}
+			}
+			chunkSize = Math.max(1, chunkSize / 2);
+		}
+	}
+
+	private static boolean isTooLarge(UnsignedInteger status) {
+		return StatusCodes.Bad_EncodingLimitsExceeded.equals(status) || StatusCodes.Bad_ResponseTooLarge.equals(status);
+	}
+
+	private DataValue readChunk(NodeId nodeId, long start, long end) throws ServiceResultException {
+		String indexRange = start < 0 ? null : start == end ? String.valueOf(start) : start + ":" + end;
+		ReadValueId[] nodesToRead = {new ReadValueId(nodeId, Attributes.Value, indexRange, null)};
+		return connection.read(nodesToRead, maxAge)[0];
+	}
+
+	private void writeHeader(DataOutputStream data, String tag, DataValue value) throws IOException {
+		if (!binary) {
+			return;
+		}
+		data.writeUTF(tag);
+		data.writeInt(value.getStatusCode() == null ? 0 : value.getStatusCode().getValue().intValue());
+		data.writeLong(value.getSourceTimestamp() == null ? -1 : value.getSourceTimestamp().getTimeInMillis());
+	}
+
+	private int writeElements(DataOutputStream data, String tag, long offset, Object elements) throws IOException, ServiceResultException {
+		if (elements == null) {
+			return 0;
+		}
+		if (!elements.getClass().isArray()) {
+			elements = new Object[] {elements};
+		}
+		final int length = Array.getLength(elements);
+		if (binary) {
+			data.writeInt(length);
+		}
+		final byte[] prefix = (escape(tag) + ",").getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < length; i++) {
+			Object element = Array.get(elements, i);
+			if (binary) {
+				data.writeDouble(toDouble(element));
+			} else {
+				data.write(prefix);
+				data.write(Long.toString(offset + i).getBytes(StandardCharsets.US_ASCII));
+				data.write(',');
+				data.write(escape(String.valueOf(element)).getBytes(StandardCharsets.UTF_8));
+				data.write('\n');
+			}
+		}
+		return length;
+	}
+
+	private static double toDouble(Object element) throws ServiceResultException {
+		if (element instanceof Number) {
+			return ((Number) element).doubleValue();
+		}
+		if (element instanceof Boolean) {
+			return (Boolean) element ? 1 : 0;
+		}
+		if (element == null) {
+			return Double.NaN;
+		}
+		throw new ServiceResultException(StatusCodes.Bad_TypeMismatch, "Binary output needs numeric elements, not " + element.getClass().getSimpleName());
+	}
+
+	private static String escape(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+}
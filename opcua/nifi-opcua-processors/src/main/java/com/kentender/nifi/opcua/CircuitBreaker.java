@@ -0,0 +1,55 @@
+package com.kentender.nifi.opcua;
+
+/**
+ * Stops calls to an endpoint after a number of consecutive failures.
+ *
+ * Once open, the breaker lets a single trial call through after the open
+ * duration. A successful trial closes it again, a failed one reopens it.
+ */
+public class CircuitBreaker {
+
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private int consecutiveFailures = 0;
+	private long openedAt = -1;
+	private boolean trialRunning = false;
+
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Returns true if a call may be made now.
+	 */
+	public synchronized boolean allowRequest() {
+		if (openedAt < 0) {
+			return true;
+		}
+		if (!trialRunning && System.currentTimeMillis() - openedAt >= openMillis) {
+			trialRunning = true;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		openedAt = -1;
+		trialRunning = false;
+	}
+
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (trialRunning || consecutiveFailures >= failureThreshold) {
+			openedAt = System.currentTimeMillis();
+		}
+		trialRunning = false;
+	}
+
+	public synchronized boolean isOpen() {
+		return openedAt >= 0;
+	}
+
+}
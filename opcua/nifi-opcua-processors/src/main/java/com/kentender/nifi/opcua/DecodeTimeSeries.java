@@ -0,0 +1,124 @@
+package com.kentender.nifi.opcua;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.StreamCallback;
+
+@Tags({"OPC", "OPCUA", "UA", "time series", "decompress"})
+@CapabilityDescription("Turns the compressed Time Series output of GetEndpointValues and GetScanGroups back into tag,value,timestamp "
+		+ "lines or JSON lines. Flow files holding several concatenated batches are decoded as a whole")
+@SeeAlso({GetEndpointValues.class, GetScanGroups.class})
+@WritesAttributes({@WritesAttribute(attribute="opcua.values", description="The number of decoded values")})
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@SideEffectFree
+@SupportsBatching
+
+public class DecodeTimeSeries extends AbstractProcessor {
+
+	// Hand the lines to the content repository every so often instead of holding them all
+	private static final int FLUSH_SIZE = 1 << 20;
+
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Write one tag,value,timestamp line per value or one JSON object per value. Timestamps are ISO-8601 in UTC")
+            .required(true)
+            .allowableValues(ValueWriter.CSV, ValueWriter.JSON)
+            .defaultValue(ValueWriter.CSV)
+            .build();
+
+    public static final Relationship SUCCESS = new Relationship.Builder()
+            .name("Success")
+            .description("Decoded values")
+            .build();
+
+    public static final Relationship FAILURE = new Relationship.Builder()
+            .name("Failure")
+            .description("Content that is not a Time Series batch, unchanged")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(OUTPUT_FORMAT);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(SUCCESS);
+        relationships.add(FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+
+		FlowFile flowFile = session.get();
+		if (flowFile == null) {
+			return;
+		}
+
+		final String format = context.getProperty(OUTPUT_FORMAT).getValue();
+		final long[] values = new long[1];
+		final FlowFile original = flowFile;
+		try {
+			flowFile = session.write(flowFile, new StreamCallback() {
+				@Override
+				public void process(InputStream in, OutputStream out) throws IOException {
+					final ValueWriter writer = ValueWriter.get(format);
+					values[0] = TimeSeriesCodec.decode(in, (tag, time, value) -> {
+						writer.write(tag, value, time);
+						if (writer.size() >= FLUSH_SIZE) {
+							writer.flushTo(out);
+						}
+					});
+					writer.writeTo(out);
+				}
+			});
+		} catch (ProcessException e) {
+			getLogger().error("Failed to decode " + original + ": " + e.getMessage());
+			session.transfer(original, FAILURE);
+			return;
+		}
+
+		flowFile = session.putAttribute(flowFile, "opcua.values", String.valueOf(values[0]));
+		session.transfer(flowFile, SUCCESS);
+	}
+
+}
@@ -0,0 +1,556 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.ExtensionObject;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedByte;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ContentFilter;
+import org.opcfoundation.ua.core.ContentFilterElement;
+import org.opcfoundation.ua.core.ContentFilterElementResult;
+import org.opcfoundation.ua.core.ContentFilterResult;
+import org.opcfoundation.ua.core.CreateMonitoredItemsRequest;
+import org.opcfoundation.ua.core.CreateSubscriptionRequest;
+import org.opcfoundation.ua.core.CreateSubscriptionResponse;
+import org.opcfoundation.ua.core.DeleteSubscriptionsRequest;
+import org.opcfoundation.ua.core.ElementOperand;
+import org.opcfoundation.ua.core.EventFieldList;
+import org.opcfoundation.ua.core.EventFilter;
+import org.opcfoundation.ua.core.EventFilterResult;
+import org.opcfoundation.ua.core.EventNotificationList;
+import org.opcfoundation.ua.core.FilterOperator;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.LiteralOperand;
+import org.opcfoundation.ua.core.MonitoredItemCreateRequest;
+import org.opcfoundation.ua.core.MonitoredItemCreateResult;
+import org.opcfoundation.ua.core.MonitoringMode;
+import org.opcfoundation.ua.core.MonitoringParameters;
+import org.opcfoundation.ua.core.NotificationMessage;
+import org.opcfoundation.ua.core.PublishRequest;
+import org.opcfoundation.ua.core.PublishResponse;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.SimpleAttributeOperand;
+import org.opcfoundation.ua.core.StatusChangeNotification;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.SubscriptionAcknowledgement;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.encoding.DecodingException;
+import org.opcfoundation.ua.encoding.EncoderContext;
+import org.opcfoundation.ua.encoding.EncodingException;
+
+/**
+ * A subscription to the events of one or more event notifiers, filtered on the server.
+ *
+ * The EventFilter selects the configured fields of BaseEventType and its where clause
+ * keeps only events of at least the minimum severity, of one of the event types and
+ * from one of the source names, so events nobody wants never leave the server.
+ *
+ * One thread keeps a Publish request outstanding and puts every event into a
+ * NotificationBuffer as the array of its selected fields, with the index of its
+ * notifier as handle. Messages are acknowledged with the next Publish. When the
+ * connection gets a new session the subscription is transferred and messages sent in
+ * the meantime are republished; if that fails, or the server drops the subscription,
+ * it is created again.
+ *
+ * A drainer, if set, runs on the publish thread after every message with events,
+ * before the message is acknowledged, and before an event is offered to a full
+ * buffer, so it can move the events on, e.g. into a ValueSpool.
+ */
+public class EventSubscription {
+
+	private static final long RETRY_DELAY = 1000;
+	private static final int KEEP_ALIVE_COUNT = 10;
+	private static final int LIFETIME_COUNT = 60;
+
+	/**
+	 * What to subscribe to and how to filter it.
+	 */
+	public static class Settings {
+		NodeId[] notifiers = {Identifiers.Server};
+		QualifiedName[][] selectFields = {};
+		int minSeverity = 0;
+		NodeId[] eventTypes = {};
+		String[] sourceNames = {};
+		double publishingInterval = 1000;
+		int queueSize = 1000;
+
+		public Settings notifiers(NodeId... notifiers) {
+			this.notifiers = notifiers;
+			return this;
+		}
+
+		public Settings selectFields(QualifiedName[]... selectFields) {
+			this.selectFields = selectFields;
+			return this;
+		}
+
+		public Settings minSeverity(int minSeverity) {
+			this.minSeverity = minSeverity;
+			return this;
+		}
+
+		public Settings eventTypes(NodeId... eventTypes) {
+			this.eventTypes = eventTypes;
+			return this;
+		}
+
+		public Settings sourceNames(String... sourceNames) {
+			this.sourceNames = sourceNames;
+			return this;
+		}
+
+		public Settings publishingInterval(double publishingInterval) {
+			this.publishingInterval = publishingInterval;
+			return this;
+		}
+
+		public Settings queueSize(int queueSize) {
+			this.queueSize = queueSize;
+			return this;
+		}
+	}
+
+	private final OPCConnection connection;
+	private final Settings settings;
+	private final NotificationBuffer buffer;
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+	private volatile Runnable drainer = null;
+
+	// Only touched by the publish thread, except for the queues
+	private volatile UnsignedInteger subscriptionId = null;
+	private volatile boolean running = false;
+	private Thread publishThread = null;
+	private final List<SubscriptionAcknowledgement> acknowledgements = new ArrayList<>();
+	private final ConcurrentLinkedQueue<UnsignedInteger> missed = new ConcurrentLinkedQueue<>();
+	private UnsignedInteger lastSequenceNumber = null;
+
+	private final OPCConnection.SubscriptionListener listener = new OPCConnection.SubscriptionListener() {
+		@Override
+		public void transferred(UnsignedInteger id, UnsignedInteger[] availableSequenceNumbers) {
+			if (availableSequenceNumbers != null) {
+				for (UnsignedInteger sequenceNumber : availableSequenceNumbers) {
+					missed.add(sequenceNumber);
+				}
+			}
+		}
+
+		@Override
+		public void lost(UnsignedInteger id) {
+			if (id.equals(subscriptionId)) {
+				subscriptionId = null;
+			}
+		}
+	};
+
+	public EventSubscription(OPCConnection connection, Settings settings, NotificationBuffer buffer) {
+		this.connection = connection;
+		this.settings = settings;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Starts publishing on the shared executor.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		OPCExecutors.shared().execute(this::publishLoop);
+	}
+
+	/**
+	 * Returns why subscribing or publishing last failed and forgets it, so each failure
+	 * is reported once.
+	 */
+	public Exception takeFailure() {
+		return failure.getAndSet(null);
+	}
+
+	public boolean isSubscribed() {
+		return subscriptionId != null;
+	}
+
+	public NotificationBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Sets what takes the events out of the buffer on the publish thread, before start.
+	 */
+	public void setDrainer(Runnable drainer) {
+		this.drainer = drainer;
+	}
+
+	public OPCConnection getConnection() {
+		return connection;
+	}
+
+	private void publishLoop() {
+		synchronized (this) {
+			publishThread = Thread.currentThread();
+		}
+		try {
+			while (running) {
+				try {
+					if (subscriptionId == null) {
+						subscribe();
+					}
+					republishMissed();
+					publish();
+				} catch (ServiceResultException | EncodingException | DecodingException | RuntimeException e) {
+					if (!running) {
+						break;
+					}
+					failure.set(e);
+					if (e instanceof ServiceResultException && (OPCConnection.isStatus((ServiceResultException) e, StatusCodes.Bad_SubscriptionIdInvalid)
+							|| OPCConnection.isStatus((ServiceResultException) e, StatusCodes.Bad_NoSubscription))) {
+						subscriptionId = null;
+					}
+					try {
+						TimeUnit.MILLISECONDS.sleep(RETRY_DELAY);
+					} catch (InterruptedException interrupted) {
+						break;
+					}
+				}
+			}
+		} finally {
+			synchronized (this) {
+				publishThread = null;
+				notifyAll();
+			}
+		}
+	}
+
+	private void subscribe() throws ServiceResultException, EncodingException, DecodingException {
+		final EncoderContext encoderContext = connection.getClient().getEncoderContext();
+		final CreateSubscriptionRequest subscriptionRequest = new CreateSubscriptionRequest(null, settings.publishingInterval,
+				UnsignedInteger.valueOf(LIFETIME_COUNT), UnsignedInteger.valueOf(KEEP_ALIVE_COUNT), UnsignedInteger.ZERO, true, UnsignedByte.ZERO);
+		final CreateSubscriptionResponse subscription = connection.call(session -> session.CreateSubscription(subscriptionRequest));
+		final UnsignedInteger id = subscription.getSubscriptionId();
+
+		final ExtensionObject filter = ExtensionObject.binaryEncode(eventFilter(settings, encoderContext), encoderContext);
+		final MonitoredItemCreateRequest[] items = new MonitoredItemCreateRequest[settings.notifiers.length];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = new MonitoredItemCreateRequest(new ReadValueId(settings.notifiers[i], Attributes.EventNotifier, null, null),
+					MonitoringMode.Reporting,
+					new MonitoringParameters(UnsignedInteger.valueOf(i), 0.0, filter, UnsignedInteger.valueOf(settings.queueSize), true));
+		}
+		final CreateMonitoredItemsRequest itemsRequest = new CreateMonitoredItemsRequest(null, id, TimestampsToReturn.Neither, items);
+		final MonitoredItemCreateResult[] results = connection.call(session -> session.CreateMonitoredItems(itemsRequest)).getResults();
+
+		for (int i = 0; i < results.length; i++) {
+			StatusCode status = results[i].getStatusCode();
+			if (status == null || !status.isBad()) {
+				continue;
+			}
+			// Tell which part of the filter the server did not like
+			String reason = "Subscribing to the events of " + settings.notifiers[i] + " failed";
+			if (results[i].getFilterResult() != null) {
+				Object decoded = results[i].getFilterResult().decode(encoderContext);
+				if (decoded instanceof EventFilterResult) {
+					reason += describe((EventFilterResult) decoded);
+				}
+			}
+			deleteSubscription(id);
+			throw new ServiceResultException(status, reason);
+		}
+
+		acknowledgements.clear();
+		missed.clear();
+		lastSequenceNumber = null;
+		subscriptionId = id;
+		connection.addSubscription(id, listener);
+	}
+
+	private static String describe(EventFilterResult result) {
+		StringBuilder reason = new StringBuilder();
+		StatusCode[] selectResults = result.getSelectClauseResults();
+		if (selectResults != null) {
+			for (int i = 0; i < selectResults.length; i++) {
+				if (selectResults[i] != null && selectResults[i].isBad()) {
+					reason.append(", select clause ").append(i).append(": ").append(selectResults[i]);
+				}
+			}
+		}
+		ContentFilterResult whereResult = result.getWhereClauseResult();
+		if (whereResult != null && whereResult.getElementResults() != null) {
+			ContentFilterElementResult[] elementResults = whereResult.getElementResults();
+			for (int i = 0; i < elementResults.length; i++) {
+				if (elementResults[i].getStatusCode() != null && elementResults[i].getStatusCode().isBad()) {
+					reason.append(", where clause element ").append(i).append(": ").append(elementResults[i].getStatusCode());
+				}
+			}
+		}
+		return reason.toString();
+	}
+
+	private void publish() throws ServiceResultException, DecodingException {
+		final PublishRequest request = new PublishRequest(null, acknowledgements.toArray(new SubscriptionAcknowledgement[0]));
+		final PublishResponse response = connection.call(session -> session.Publish(request));
+		acknowledgements.clear();
+		handle(response.getSubscriptionId(), response.getNotificationMessage());
+	}
+
+	/**
+	 * Fetches the messages that were sent while the subscription moved to a new session.
+	 */
+	private void republishMissed() throws ServiceResultException, DecodingException {
+		UnsignedInteger sequenceNumber;
+		while ((sequenceNumber = missed.poll()) != null) {
+			if (lastSequenceNumber != null && sequenceNumber.compareTo(lastSequenceNumber) <= 0) {
+				acknowledgements.add(new SubscriptionAcknowledgement(subscriptionId, sequenceNumber));
+				continue;
+			}
+			try {
+				handle(subscriptionId, connection.republish(subscriptionId, sequenceNumber));
+			} catch (ServiceResultException e) {
+				if (!OPCConnection.isStatus(e, StatusCodes.Bad_MessageNotAvailable)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private void handle(UnsignedInteger id, NotificationMessage message) throws DecodingException {
+		if (message == null || message.getNotificationData() == null || message.getNotificationData().length == 0) {
+			// Keep alive
+			return;
+		}
+		if (!id.equals(subscriptionId)) {
+			// Left over from a subscription that was replaced
+			acknowledgements.add(new SubscriptionAcknowledgement(id, message.getSequenceNumber()));
+			return;
+		}
+
+		final EncoderContext encoderContext = connection.getClient().getEncoderContext();
+		final DateTime publishTime = message.getPublishTime();
+		final long serverTime = publishTime == null ? -1 : publishTime.getTimeInMillis();
+		for (ExtensionObject data : message.getNotificationData()) {
+			Object notification = data.decode(encoderContext);
+			if (notification instanceof EventNotificationList) {
+				EventFieldList[] events = ((EventNotificationList) notification).getEvents();
+				for (EventFieldList event : events == null ? new EventFieldList[0] : events) {
+					if (drainer != null && buffer.size() >= buffer.getCapacity()) {
+						// Nobody else drains the buffer, blocking would wait forever
+						drainer.run();
+					}
+					buffer.offer(event.getClientHandle().intValue(), 0, serverTime, serverTime, event.getEventFields());
+				}
+			} else if (notification instanceof StatusChangeNotification) {
+				StatusCode status = ((StatusChangeNotification) notification).getStatus();
+				if (status != null && status.isBad()) {
+					// The server closed the subscription
+					connection.removeSubscription(id);
+					subscriptionId = null;
+				}
+			}
+		}
+		if (drainer != null) {
+			drainer.run();
+		}
+		acknowledgements.add(new SubscriptionAcknowledgement(id, message.getSequenceNumber()));
+		lastSequenceNumber = message.getSequenceNumber();
+	}
+
+	/**
+	 * Stops publishing and deletes the subscription, the buffered events stay.
+	 */
+	public void stop() {
+		synchronized (this) {
+			running = false;
+		}
+		final UnsignedInteger id = subscriptionId;
+		subscriptionId = null;
+		if (id != null) {
+			connection.removeSubscription(id);
+			deleteSubscription(id);
+		}
+	}
+
+	/**
+	 * Waits until the Publish in flight after stop has been handled.
+	 *
+	 * @return false if publishing is still going on after the timeout
+	 */
+	public synchronized boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (publishThread != null) {
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops publishing, deletes the subscription and closes the connection.
+	 */
+	public void close() {
+		stop();
+		Thread thread;
+		synchronized (this) {
+			thread = publishThread;
+		}
+		buffer.close();
+		// Fails the outstanding Publish so the thread ends
+		connection.close();
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void deleteSubscription(final UnsignedInteger id) {
+		try {
+			connection.call(session -> session.DeleteSubscriptions(new DeleteSubscriptionsRequest(null, new UnsignedInteger[] {id})));
+		} catch (ServiceResultException e) {
+			// The server drops it when its lifetime ends
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of node ids like "i=2253, ns=2;s=Line1".
+	 *
+	 * @throws IllegalArgumentException for malformed node ids
+	 */
+	public static NodeId[] parseNodeIds(String nodeIds) {
+		List<NodeId> parsed = new ArrayList<>();
+		if (nodeIds != null) {
+			for (String nodeId : nodeIds.split(",")) {
+				if (!nodeId.trim().isEmpty()) {
+					parsed.add(NodeId.parseNodeId(nodeId.trim()));
+				}
+			}
+		}
+		return parsed.toArray(new NodeId[0]);
+	}
+
+	/**
+	 * Parses comma separated browse paths relative to BaseEventType, like
+	 * "Severity, 2:Counter, ActiveState/Id", where a namespace index prefixes a name.
+	 */
+	public static QualifiedName[][] parseSelectFields(String fields) {
+		List<QualifiedName[]> parsed = new ArrayList<>();
+		for (String field : fields == null ? new String[0] : fields.split(",")) {
+			if (field.trim().isEmpty()) {
+				continue;
+			}
+			String[] names = field.trim().split("/");
+			QualifiedName[] browsePath = new QualifiedName[names.length];
+			for (int i = 0; i < names.length; i++) {
+				String name = names[i].trim();
+				int colon = name.indexOf(':');
+				if (colon > 0 && name.substring(0, colon).chars().allMatch(Character::isDigit)) {
+					browsePath[i] = new QualifiedName(Integer.parseInt(name.substring(0, colon)), name.substring(colon + 1));
+				} else {
+					browsePath[i] = new QualifiedName(name);
+				}
+			}
+			parsed.add(browsePath);
+		}
+		return parsed.toArray(new QualifiedName[0][]);
+	}
+
+	/**
+	 * The record field name of a select field: its names joined, first letter lower case,
+	 * so ActiveState/Id becomes activeStateId.
+	 */
+	public static String fieldName(QualifiedName[] browsePath) {
+		StringBuilder name = new StringBuilder();
+		for (QualifiedName element : browsePath) {
+			name.append(element.getName());
+		}
+		if (name.length() > 0) {
+			name.setCharAt(0, Character.toLowerCase(name.charAt(0)));
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Builds the filter: the select clauses in order, and a where clause that is the AND of
+	 * the severity, event type and source name conditions that are set.
+	 */
+	static EventFilter eventFilter(Settings settings, EncoderContext encoderContext) throws EncodingException {
+		SimpleAttributeOperand[] selectClauses = new SimpleAttributeOperand[settings.selectFields.length];
+		for (int i = 0; i < selectClauses.length; i++) {
+			selectClauses[i] = field(settings.selectFields[i]);
+		}
+
+		List<ContentFilterElement> elements = new ArrayList<>();
+		List<Object[]> conditions = new ArrayList<>();
+		if (settings.minSeverity > 0) {
+			conditions.add(new Object[] {FilterOperator.GreaterThanOrEqual,
+					field(new QualifiedName[] {new QualifiedName("Severity")}),
+					new LiteralOperand(new Variant(UnsignedShort.valueOf(settings.minSeverity)))});
+		}
+		if (settings.eventTypes.length > 0) {
+			Object[][] ofTypes = new Object[settings.eventTypes.length][];
+			for (int i = 0; i < ofTypes.length; i++) {
+				ofTypes[i] = new Object[] {FilterOperator.OfType, new LiteralOperand(new Variant(settings.eventTypes[i]))};
+			}
+			conditions.add(join(FilterOperator.Or, ofTypes));
+		}
+		if (settings.sourceNames.length > 0) {
+			Object[] inList = new Object[settings.sourceNames.length + 2];
+			inList[0] = FilterOperator.InList;
+			inList[1] = field(new QualifiedName[] {new QualifiedName("SourceName")});
+			for (int i = 0; i < settings.sourceNames.length; i++) {
+				inList[i + 2] = new LiteralOperand(new Variant(settings.sourceNames[i]));
+			}
+			conditions.add(inList);
+		}
+		if (!conditions.isEmpty()) {
+			emit(join(FilterOperator.And, conditions.toArray(new Object[0][])), elements, encoderContext);
+		}
+		return new EventFilter(selectClauses, new ContentFilter(elements.toArray(new ContentFilterElement[0])));
+	}
+
+	private static SimpleAttributeOperand field(QualifiedName[] browsePath) {
+		return new SimpleAttributeOperand(Identifiers.BaseEventType, browsePath, Attributes.Value, null);
+	}
+
+	/**
+	 * Nests conditions into binary operators, a single condition stays as it is.
+	 */
+	private static Object[] join(FilterOperator operator, Object[][] conditions) {
+		Object[] joined = conditions[conditions.length - 1];
+		for (int i = conditions.length - 2; i >= 0; i--) {
+			joined = new Object[] {operator, conditions[i], joined};
+		}
+		return joined;
+	}
+
+	/**
+	 * Adds a condition and the conditions it refers to, the condition first, so the
+	 * root of the where clause is element 0. Returns the index of the condition.
+	 */
+	private static int emit(Object[] condition, List<ContentFilterElement> elements, EncoderContext encoderContext) throws EncodingException {
+		int index = elements.size();
+		elements.add(null);
+		ExtensionObject[] operands = new ExtensionObject[condition.length - 1];
+		for (int i = 1; i < condition.length; i++) {
+			Object operand = condition[i];
+			if (operand instanceof Object[]) {
+				operand = new ElementOperand(UnsignedInteger.valueOf(emit((Object[]) operand, elements, encoderContext)));
+			}
+			operands[i - 1] = ExtensionObject.binaryEncode((org.opcfoundation.ua.encoding.IEncodeable) operand, encoderContext);
+		}
+		elements.set(index, new ContentFilterElement((FilterOperator) condition[0], operands));
+		return index;
+	}
+
+}
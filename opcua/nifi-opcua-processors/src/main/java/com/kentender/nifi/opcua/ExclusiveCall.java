@@ -0,0 +1,50 @@
+package com.kentender.nifi.opcua;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A call that releases a running flag, set by the caller before submitting it, when
+ * it is over, so at most one call per flag is in flight.
+ *
+ * A call that has started releases the flag when it returns, also when it was
+ * cancelled meanwhile, as it may still be blocking. A call that never started,
+ * because it was cancelled while queued or the executor rejected it, releases the
+ * flag when it is cancelled. Exactly one of the two releases it.
+ */
+public class ExclusiveCall<V> extends FutureTask<V> {
+
+	private final AtomicBoolean running;
+	private final AtomicBoolean claimed;
+
+	public ExclusiveCall(AtomicBoolean running, Callable<V> callable) {
+		this(running, new AtomicBoolean(), callable);
+	}
+
+	private ExclusiveCall(AtomicBoolean running, AtomicBoolean claimed, Callable<V> callable) {
+		super(() -> {
+			if (!claimed.compareAndSet(false, true)) {
+				// Cancelled just before it started, done released the flag
+				throw new CancellationException();
+			}
+			try {
+				return callable.call();
+			} finally {
+				running.set(false);
+			}
+		});
+		this.running = running;
+		this.claimed = claimed;
+	}
+
+	@Override
+	protected void done() {
+		if (claimed.compareAndSet(false, true)) {
+			// Never started, nothing else releases the flag
+			running.set(false);
+		}
+	}
+
+}
@@ -0,0 +1,912 @@
+package com.kentender.nifi.opcua;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.opcfoundation.ua.application.Client;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ReadValueId;
+
+@Tags({"OPC", "OPCUA", "UA"})
+@CapabilityDescription("Polls a set of tags from each of several OPC UA servers. Every endpoint has its own session, "
+		+ "the reads run concurrently on a shared executor and an endpoint that keeps failing is skipped by a circuit breaker "
+		+ "so it cannot stall the others. One flow file is written per endpoint and trigger. With an aggregation window the "
+		+ "values are instead aggregated per tag and one count, min, max, avg and last line is written per tag and window. "
+		+ "With a spool directory the endpoints are polled in the background and the flow files are spooled to disk until "
+		+ "the processor runs, so backpressure does not hold up acquisition")
+@SeeAlso({GetValue.class})
+@WritesAttributes({@WritesAttribute(attribute="opcua.endpoint", description="The endpoint the values were read from"),
+		@WritesAttribute(attribute="opcua.error", description="Why the endpoint could not be read, on failure only"),
+		@WritesAttribute(attribute="opcua.aggregate.window", description="The window length in milliseconds, on aggregates only")})
+@DynamicProperty(name="OPC UA endpoint URL", value="Node ids to read, one per line",
+		description="Reads the listed node ids from the opc.tcp endpoint named by the property")
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
+@TriggerSerially
+@Stateful(scopes = Scope.CLUSTER, description = "With Partition Tags Across Cluster every node stores the time of its last heartbeat, "
+		+ "the live nodes form the hash ring the tags are spread over")
+
+public class GetEndpointValues extends AbstractProcessor {
+
+    private static final Validator TAGS_VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(String subject, String input, ValidationContext context) {
+            final List<String> tags = parseTags(input == null ? "" : input);
+            String explanation = tags.isEmpty() ? "at least one node id is required" : null;
+            for (String tag : tags) {
+                try {
+                    NodeId.parseNodeId(tag);
+                } catch (IllegalArgumentException e) {
+                    explanation = "not a node id: " + tag;
+                    break;
+                }
+            }
+            return new ValidationResult.Builder().subject(subject).input(input).valid(explanation == null)
+                    .explanation(explanation).build();
+        }
+    };
+
+    public static final PropertyDescriptor SECURITY_POLICY = new PropertyDescriptor
+            .Builder().name("Security Policy")
+            .description("How should Nifi authenticate with the UA servers")
+            .required(true)
+            .allowableValues("None", "Basic128Rsa15", "Basic256", "Basic256Rsa256")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor APPLICATION_NAME = new PropertyDescriptor
+    		.Builder().name("Application Name")
+            .description("The application name is used to label certificates identifying this application")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor REQUEST_TIMEOUT = new PropertyDescriptor
+            .Builder().name("Request Timeout")
+            .description("How long to wait for one endpoint, including connecting, before counting it as failed")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FAILURE_THRESHOLD = new PropertyDescriptor
+            .Builder().name("Failure Threshold")
+            .description("Consecutive failures after which an endpoint is skipped")
+            .required(true)
+            .defaultValue("3")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RETRY_INTERVAL = new PropertyDescriptor
+            .Builder().name("Retry Interval")
+            .description("How long a skipped endpoint waits before it is tried again")
+            .required(true)
+            .defaultValue("30 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PARTITION_ACROSS_CLUSTER = new PropertyDescriptor
+            .Builder().name("Partition Tags Across Cluster")
+            .description("Spread the tags over the nodes of the cluster with consistent hashing, so every node polls only its share. "
+            		+ "The processor must run on all nodes. Shares move automatically when nodes join or leave")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor MEMBERSHIP_TIMEOUT = new PropertyDescriptor
+            .Builder().name("Cluster Membership Timeout")
+            .description("A node that has not published a heartbeat for this long is considered gone and its tags are taken over. "
+            		+ "Heartbeats are published every third of this period")
+            .required(true)
+            .defaultValue("30 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Write one tag,value,timestamp line per tag or one JSON object per tag. Timestamps are ISO-8601 in UTC. "
+            		+ "Time Series is a compressed binary batch for numeric tags, DecodeTimeSeries turns it back into lines. It only "
+            		+ "compresses well with several Samples per FlowFile")
+            .required(true)
+            .allowableValues(ValueWriter.CSV, ValueWriter.JSON, ValueWriter.TIME_SERIES)
+            .defaultValue(ValueWriter.CSV)
+            .build();
+
+    public static final PropertyDescriptor SAMPLES_PER_FLOWFILE = new PropertyDescriptor
+            .Builder().name("Samples per FlowFile")
+            .description("How many polls of an endpoint are written to one flow file, e.g. 60 polls every second for one flow file "
+            		+ "a minute. Polls not written yet are kept when the processor is started again with the same output format")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor EXECUTION_MODE = new PropertyDescriptor
+            .Builder().name("Execution Mode")
+            .description("Run the blocking OPC calls on platform threads or on virtual threads. Virtual threads need Java 21 or later "
+            		+ "and make waiting on thousands of slow servers cheap, on older JVMs platform threads are used")
+            .required(true)
+            .allowableValues(OPCExecutors.PLATFORM_THREADS, OPCExecutors.VIRTUAL_THREADS)
+            .defaultValue(OPCExecutors.PLATFORM_THREADS)
+            .build();
+
+    public static final PropertyDescriptor MAX_CONCURRENT_REQUESTS = new PropertyDescriptor
+            .Builder().name("Max Concurrent Requests")
+            .description("How many OPC calls of this processor may be in progress at once, further calls wait for a free slot")
+            .required(true)
+            .defaultValue("64")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor AGGREGATION_WINDOW = new PropertyDescriptor
+            .Builder().name("Aggregation Window")
+            .description("Aggregate the values of every tag over windows of this length, e.g. 10 sec, and write one line per tag "
+            		+ "and window instead of every value. Windows are aligned to the clock. Open windows are kept when the tags are "
+            		+ "partitioned anew and when the processor is started again with the same tags. Leave blank to write every value")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor AGGREGATION_SLIDE = new PropertyDescriptor
+            .Builder().name("Aggregation Slide")
+            .description("How often a window is written. Shorter than the window gives sliding windows that overlap, the window "
+            		+ "is rounded up to a multiple of the slide. Leave blank for tumbling windows")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INCLUDE_RAW_VALUES = new PropertyDescriptor
+            .Builder().name("Include Raw Values")
+            .description("With an aggregation window, also write every value as without one")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor
+            .Builder().name("Spool Directory")
+            .description("Poll in the background at the Poll Interval and keep the flow files in memory-mapped files in this "
+            		+ "directory until the processor runs, so acquisition goes on at full rate while the downstream is backpressured. "
+            		+ "Spooled flow files survive a restart. Every processor needs its own directory. Leave blank to poll when triggered")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor POLL_INTERVAL = new PropertyDescriptor
+            .Builder().name("Poll Interval")
+            .description("How often to poll in the background when spooling")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_SPOOL_SIZE = new PropertyDescriptor
+            .Builder().name("Max Spool Size")
+            .description("Disk space the spool may take")
+            .required(true)
+            .defaultValue("1 GB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final String DROP_OLDEST = "Drop Oldest";
+    public static final String DROP_NEWEST = "Drop Newest";
+
+    public static final PropertyDescriptor SPOOL_FULL_STRATEGY = new PropertyDescriptor
+            .Builder().name("Spool Full Strategy")
+            .description("Whether a full spool makes room by dropping its oldest flow files, a segment of them at a time, or drops new ones")
+            .required(true)
+            .allowableValues(DROP_OLDEST, DROP_NEWEST)
+            .defaultValue(DROP_OLDEST)
+            .build();
+
+    public static final Relationship SUCCESS = new Relationship.Builder()
+            .name("Success")
+            .description("Successful OPC read")
+            .build();
+
+    public static final Relationship FAILURE = new Relationship.Builder()
+            .name("Failure")
+            .description("Failed OPC read, the flow file is empty")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private final Map<String, EndpointPoller> pollers = new LinkedHashMap<>();
+    private volatile ExecutorService executor = null;
+
+    // Background polling into the spool
+    private static final int MAX_SPOOL_SEGMENT = 16 * 1024 * 1024;
+    private static final int SPOOL_BATCH_SIZE = 1000;
+    private volatile ValueSpool spool = null;
+    private volatile boolean polling = false;
+    private Future<?> backgroundPolling = null;
+    private CountDownLatch backgroundPollingDone = null;
+    private long reportedDropped = 0;
+
+    // Cluster partitioning
+    private static final String MEMBER_PREFIX = "member.";
+    private String nodeId;
+    private TagPartitioner partitioner;
+    private long lastHeartbeat;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(SECURITY_POLICY);
+        descriptors.add(APPLICATION_NAME);
+        descriptors.add(REQUEST_TIMEOUT);
+        descriptors.add(FAILURE_THRESHOLD);
+        descriptors.add(RETRY_INTERVAL);
+        descriptors.add(PARTITION_ACROSS_CLUSTER);
+        descriptors.add(MEMBERSHIP_TIMEOUT);
+        descriptors.add(OUTPUT_FORMAT);
+        descriptors.add(SAMPLES_PER_FLOWFILE);
+        descriptors.add(EXECUTION_MODE);
+        descriptors.add(MAX_CONCURRENT_REQUESTS);
+        descriptors.add(AGGREGATION_WINDOW);
+        descriptors.add(AGGREGATION_SLIDE);
+        descriptors.add(INCLUDE_RAW_VALUES);
+        descriptors.add(SPOOL_DIRECTORY);
+        descriptors.add(POLL_INTERVAL);
+        descriptors.add(MAX_SPOOL_SIZE);
+        descriptors.add(SPOOL_FULL_STRATEGY);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(SUCCESS);
+        relationships.add(FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .description("Node ids to read from " + propertyDescriptorName + ", one per line")
+                .addValidator(TAGS_VALIDATOR)
+                .dynamic(true)
+                .build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+    	final List<ValidationResult> results = new ArrayList<>();
+    	if (context.getProperty(AGGREGATION_WINDOW).isSet() && ValueWriter.TIME_SERIES.equals(context.getProperty(OUTPUT_FORMAT).getValue())) {
+    		results.add(new ValidationResult.Builder()
+    				.subject(OUTPUT_FORMAT.getName())
+    				.valid(false)
+    				.explanation("aggregates are written as CSV or JSON Lines, not as " + ValueWriter.TIME_SERIES)
+    				.build());
+    	}
+    	return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+
+    	// One client for all endpoints, each endpoint gets its own session
+    	final Client myClient = Utils.createClient(context.getProperty(APPLICATION_NAME).getValue(), context.getProperty(SECURITY_POLICY).getValue());
+    	final int failureThreshold = context.getProperty(FAILURE_THRESHOLD).asInteger();
+    	final long retryMillis = context.getProperty(RETRY_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+    	final long windowMillis = context.getProperty(AGGREGATION_WINDOW).isSet()
+    			? context.getProperty(AGGREGATION_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+    	final long slideMillis = context.getProperty(AGGREGATION_SLIDE).isSet()
+    			? context.getProperty(AGGREGATION_SLIDE).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+    	final String format = context.getProperty(OUTPUT_FORMAT).getValue();
+    	final int samplesPerFlowFile = context.getProperty(SAMPLES_PER_FLOWFILE).asInteger();
+
+    	executor = OPCExecutors.budgeted(context.getProperty(EXECUTION_MODE).getValue(), context.getProperty(MAX_CONCURRENT_REQUESTS).asInteger());
+    	if (OPCExecutors.VIRTUAL_THREADS.equals(context.getProperty(EXECUTION_MODE).getValue()) && !OPCExecutors.isVirtualThreadsAvailable()) {
+    		getLogger().warn("Virtual threads are not available on this JVM, using platform threads");
+    	}
+
+    	// Open windows are carried over for endpoints whose tags and windows did not change
+    	final Map<String, EndpointPoller> previous = new HashMap<>(pollers);
+    	pollers.clear();
+    	partitioner = null;
+    	lastHeartbeat = 0;
+    	try {
+    		nodeId = InetAddress.getLocalHost().getHostName();
+    	} catch (UnknownHostException e) {
+    		nodeId = "localhost";
+    	}
+    	for (Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+    		if (!property.getKey().isDynamic()) {
+    			continue;
+    		}
+    		final String url = property.getKey().getName();
+    		final List<String> tags = parseTags(property.getValue());
+    		final EndpointPoller old = previous.remove(url);
+    		WindowAggregator aggregator = null;
+    		if (windowMillis > 0) {
+    			if (old != null && old.aggregator != null && old.allTags.equals(tags)
+    					&& old.windowMillis == windowMillis && old.slideMillis == slideMillis) {
+    				aggregator = old.aggregator;
+    			} else {
+    				warnDroppedWindows(old);
+    				aggregator = new WindowAggregator(tags.size(), windowMillis, slideMillis);
+    			}
+    		} else {
+    			warnDroppedWindows(old);
+    		}
+    		final OPCConnection connection = new OPCConnection(myClient, url, context.getProperty(SECURITY_POLICY).getValue(), null);
+    		final EndpointPoller poller = new EndpointPoller(connection, tags, new CircuitBreaker(failureThreshold, retryMillis),
+    				windowMillis, slideMillis, aggregator);
+    		if (old != null && old.samples > 0 && old.batchFormat.equals(format) && samplesPerFlowFile > 1) {
+    			poller.batch = old.batch;
+    			poller.batchFormat = old.batchFormat;
+    			poller.samples = old.samples;
+    		} else {
+    			warnDroppedSamples(old);
+    		}
+    		pollers.put(url, poller);
+    	}
+    	for (EndpointPoller old : previous.values()) {
+    		warnDroppedWindows(old);
+    		warnDroppedSamples(old);
+    	}
+
+    	spool = null;
+    	if (context.getProperty(SPOOL_DIRECTORY).isSet()) {
+    		final long maxBytes = context.getProperty(MAX_SPOOL_SIZE).asDataSize(DataUnit.B).longValue();
+    		final int segmentBytes = (int) Math.min(MAX_SPOOL_SEGMENT, Math.max(1024 * 1024, maxBytes / 4));
+    		try {
+    			spool = new ValueSpool(Paths.get(context.getProperty(SPOOL_DIRECTORY).getValue()), maxBytes, segmentBytes,
+    					DROP_OLDEST.equals(context.getProperty(SPOOL_FULL_STRATEGY).getValue()));
+    		} catch (IOException e) {
+    			throw new ProcessException("Failed to open the spool: " + e.getMessage(), e);
+    		}
+    		if (spool.getBacklog() > 0) {
+    			getLogger().info("Recovered " + spool.getBacklog() + " spooled flow files");
+    		}
+    		reportedDropped = 0;
+
+    		polling = true;
+    		final long intervalMillis = context.getProperty(POLL_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+    		final Output output = spoolOutput(spool);
+    		final CountDownLatch done = new CountDownLatch(1);
+    		backgroundPollingDone = done;
+    		backgroundPolling = OPCExecutors.shared().submit(() -> {
+    			try {
+    				pollInBackground(context, output, intervalMillis);
+    			} finally {
+    				done.countDown();
+    			}
+    		});
+    	}
+    }
+
+    private void warnDroppedWindows(final EndpointPoller old) {
+    	if (old != null && old.aggregator != null && !old.aggregator.isEmpty()) {
+    		getLogger().warn("Dropping the open aggregation windows of " + old.connection.getUrl() + ", its tags or windows changed");
+    	}
+    }
+
+    private void warnDroppedSamples(final EndpointPoller old) {
+    	if (old != null && old.samples > 0) {
+    		getLogger().warn("Dropping " + old.samples + " polls of " + old.connection.getUrl() + " not written yet, its output changed");
+    	}
+    }
+
+    @OnUnscheduled
+    public void onUnscheduled(final ProcessContext context) {
+    	polling = false;
+    	if (backgroundPolling != null) {
+    		backgroundPolling.cancel(true);
+    		backgroundPolling = null;
+    	}
+    }
+
+    @OnStopped
+    public void onStopped(final ProcessContext context) {
+    	// The background poll may still be writing to the sessions and the spool
+    	if (backgroundPollingDone != null) {
+    		try {
+    			if (!backgroundPollingDone.await(context.getProperty(REQUEST_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)) {
+    				getLogger().warn("Background poll did not stop in time, closing the sessions under it");
+    			}
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    		backgroundPollingDone = null;
+    	}
+    	for (EndpointPoller poller : pollers.values()) {
+    		if (poller.pending != null) {
+    			poller.pending.cancel(true);
+    		}
+    		poller.connection.close();
+    	}
+    	if (executor != null) {
+    		executor.shutdown();
+    		executor = null;
+    	}
+    	if (spool != null) {
+    		spool.close();
+    		spool = null;
+    	}
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+    	final ValueSpool spool = this.spool;
+    	if (spool != null) {
+    		drainSpool(context, session, spool);
+    	} else {
+    		poll(context, sessionOutput(session));
+    	}
+    }
+
+    /**
+     * Where polled values go: straight into the session, or into the spool.
+     */
+    private interface Output {
+    	void values(String url, ValueWriter writer, String window);
+    	void failure(String url, String error);
+    }
+
+    private Output sessionOutput(final ProcessSession session) {
+    	return new Output() {
+    		@Override
+    		public void values(String url, ValueWriter writer, String window) {
+    			transferValues(session, url, writer, window);
+    		}
+
+    		@Override
+    		public void failure(String url, String error) {
+    			transferFailure(session, url, error);
+    		}
+    	};
+    }
+
+    private Output spoolOutput(final ValueSpool spool) {
+    	final SpoolBuffer bytes = new SpoolBuffer();
+    	return new Output() {
+    		@Override
+    		public void values(String url, ValueWriter writer, String window) {
+    			final Map<String, String> attributes = new HashMap<>();
+    			attributes.put("opcua.endpoint", url);
+    			if (window != null) {
+    				attributes.put("opcua.aggregate.window", window);
+    			}
+    			bytes.reset();
+    			try {
+    				writer.writeTo(bytes);
+    			} catch (IOException e) {
+    				// Not thrown by a byte array
+    			}
+    			append(attributes, bytes);
+    		}
+
+    		@Override
+    		public void failure(String url, String error) {
+    			getLogger().error("Failed to read from " + url + ": " + error);
+    			final Map<String, String> attributes = new HashMap<>();
+    			attributes.put("opcua.endpoint", url);
+    			attributes.put("opcua.error", error);
+    			bytes.reset();
+    			append(attributes, bytes);
+    		}
+
+    		private void append(Map<String, String> attributes, SpoolBuffer content) {
+    			try {
+    				spool.append(attributes, content.array(), 0, content.size());
+    			} catch (IOException | IllegalArgumentException e) {
+    				if (polling) {
+    					getLogger().error("Failed to spool the values of " + attributes.get("opcua.endpoint") + ": " + e.getMessage());
+    				}
+    			}
+    		}
+    	};
+    }
+
+    private static class SpoolBuffer extends ByteArrayOutputStream {
+    	byte[] array() {
+    		return buf;
+    	}
+    }
+
+    /**
+     * Polls until unscheduled, each round starting one interval after the last one started.
+     */
+    private void pollInBackground(final ProcessContext context, final Output output, final long intervalMillis) {
+    	while (polling) {
+    		final long start = System.currentTimeMillis();
+    		try {
+    			poll(context, output);
+    		} catch (RuntimeException e) {
+    			getLogger().error("Background poll failed: " + e.getMessage());
+    		}
+    		try {
+    			TimeUnit.MILLISECONDS.sleep(Math.max(0, start + intervalMillis - System.currentTimeMillis()));
+    		} catch (InterruptedException e) {
+    			return;
+    		}
+    	}
+    }
+
+    /**
+     * Hands spooled flow files on in order, and forgets them once the session is committed.
+     */
+    private void drainSpool(final ProcessContext context, final ProcessSession session, final ValueSpool current) {
+    	final long dropped = current.getDropped();
+    	if (dropped > reportedDropped) {
+    		getLogger().warn("The spool is full, " + (dropped - reportedDropped) + " flow files were dropped");
+    		reportedDropped = dropped;
+    	}
+
+    	try {
+    		final int count = current.read(SPOOL_BATCH_SIZE, (attributes, content) -> {
+    			FlowFile flowFile = session.create();
+    			flowFile = session.putAllAttributes(flowFile, attributes);
+    			if (content.hasRemaining()) {
+    				flowFile = session.write(flowFile, new OutputStreamCallback() {
+    					@Override
+    					public void process(OutputStream out) throws IOException {
+    						final WritableByteChannel channel = Channels.newChannel(out);
+    						while (content.hasRemaining()) {
+    							channel.write(content);
+    						}
+    					}
+    				});
+    			}
+    			session.transfer(flowFile, attributes.containsKey("opcua.error") ? FAILURE : SUCCESS);
+    		});
+    		if (count == 0) {
+    			context.yield();
+    			return;
+    		}
+    		// A crash between the two commits hands the flow files on twice rather than never
+    		session.commit();
+    		current.commit();
+    	} catch (IOException | ProcessException e) {
+    		current.rollback();
+    		session.rollback();
+    		getLogger().error("Failed to hand on spooled flow files: " + e.getMessage());
+    		context.yield();
+    	}
+    }
+
+    /**
+     * Reads every due endpoint and hands the values to the output.
+     */
+    private void poll(final ProcessContext context, final Output output) {
+
+    	final ComponentLog logger = getLogger();
+    	final ExecutorService executor = this.executor;
+    	final long timeoutMillis = context.getProperty(REQUEST_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+
+    	if (context.getProperty(PARTITION_ACROSS_CLUSTER).asBoolean()) {
+    		rebalance(context);
+    	}
+
+    	// Hand every due endpoint to the shared executor
+    	final Map<EndpointPoller, Future<DataValue[]>> submitted = new HashMap<>();
+    	for (EndpointPoller poller : pollers.values()) {
+
+    		// A call that outlived its timeout may still be blocking, do not stack another one on top
+    		if (poller.running.get()) {
+    			logger.debug("Previous read of " + poller.connection.getUrl() + " is still running");
+    			continue;
+    		}
+    		if (!poller.breaker.allowRequest()) {
+    			continue;
+    		}
+    		if (poller.nodesToRead.length == 0) {
+    			continue;
+    		}
+    		final ReadValueId[] nodesToRead = poller.nodesToRead;
+    		poller.running.set(true);
+    		// Cancelled while queued or rejected, the call releases the flag all the same
+    		final ExclusiveCall<DataValue[]> call = new ExclusiveCall<>(poller.running, () -> poller.connection.read(nodesToRead, 0));
+    		poller.pending = call;
+    		try {
+    			executor.execute(call);
+    		} catch (RejectedExecutionException e) {
+    			call.cancel(false);
+    			logger.debug("Read of " + poller.connection.getUrl() + " was rejected: " + e.getMessage());
+    			continue;
+    		}
+    		submitted.put(poller, call);
+    	}
+
+    	// Collect the results against one common deadline, calls over the budget run in later waves
+    	final int maxConcurrent = context.getProperty(MAX_CONCURRENT_REQUESTS).asInteger();
+    	final long waves = (submitted.size() + maxConcurrent - 1) / maxConcurrent;
+    	final long deadline = System.currentTimeMillis() + timeoutMillis * Math.max(1, waves);
+    	final String format = context.getProperty(OUTPUT_FORMAT).getValue();
+    	final int samplesPerFlowFile = context.getProperty(SAMPLES_PER_FLOWFILE).asInteger();
+    	final boolean includeRaw = context.getProperty(INCLUDE_RAW_VALUES).asBoolean();
+    	for (Map.Entry<EndpointPoller, Future<DataValue[]>> entry : submitted.entrySet()) {
+    		final EndpointPoller poller = entry.getKey();
+    		final String url = poller.connection.getUrl();
+    		try {
+    			final DataValue[] values = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    			poller.breaker.recordSuccess();
+
+    			if (poller.aggregator != null) {
+    				aggregate(output, poller, values, format);
+    				if (!includeRaw) {
+    					continue;
+    				}
+    			}
+
+    			// Several polls go into a writer of the endpoint's own, so each tag makes a series
+    			final ValueWriter writer = samplesPerFlowFile > 1 ? poller.batch(format) : ValueWriter.get(format);
+    			for (int i = 0; i < values.length; i++) {
+    				writer.write(poller.tags.get(i), values[i]);
+    			}
+    			if (samplesPerFlowFile > 1 && ++poller.samples < samplesPerFlowFile) {
+    				continue;
+    			}
+    			output.values(url, writer, null);
+    			poller.samples = 0;
+
+    		} catch (TimeoutException e) {
+    			poller.breaker.recordFailure();
+    			entry.getValue().cancel(true);
+    			output.failure(url, "Timed out after " + timeoutMillis + " ms");
+
+    		} catch (ExecutionException e) {
+    			poller.breaker.recordFailure();
+    			output.failure(url, String.valueOf(e.getCause().getMessage()));
+
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			return;
+    		}
+    	}
+    }
+
+    /**
+     * Writes the windows that closed since the last poll, then adds the new values to
+     * the open window.
+     */
+    private void aggregate(final Output output, final EndpointPoller poller, final DataValue[] values, final String format) {
+    	final WindowAggregator aggregator = poller.aggregator;
+    	final List<String> tags = poller.allTags;
+    	final int[] tagIndexes = poller.tagIndexes;
+    	final ValueWriter writer = ValueWriter.get(format);
+    	final int closed = aggregator.advance(System.currentTimeMillis(),
+    			(tag, windowStart, windowEnd, count, min, max, average, last) ->
+    					writer.writeAggregate(tags.get(tag), windowStart, windowEnd, count, min, max, average, last));
+    	if (closed > 0 && writer.size() > 0) {
+    		output.values(poller.connection.getUrl(), writer, String.valueOf(aggregator.getWindowMillis()));
+    	}
+
+    	for (int i = 0; i < values.length && i < tagIndexes.length; i++) {
+    		final DataValue value = values[i];
+    		if (value != null && value.getValue() != null && (value.getStatusCode() == null || value.getStatusCode().isGood())) {
+    			aggregator.add(tagIndexes[i], value.getValue().getValue());
+    		}
+    	}
+    }
+
+    private void transferValues(final ProcessSession session, final String url, final ValueWriter writer, final String window) {
+    	FlowFile flowFile = session.create();
+    	flowFile = session.putAttribute(flowFile, "opcua.endpoint", url);
+    	if (window != null) {
+    		flowFile = session.putAttribute(flowFile, "opcua.aggregate.window", window);
+    	}
+    	flowFile = session.write(flowFile, new OutputStreamCallback() {
+    		@Override
+    		public void process(OutputStream out) throws IOException {
+    			writer.writeTo(out);
+    		}
+    	});
+    	session.transfer(flowFile, SUCCESS);
+    }
+
+    /**
+     * Publishes this node's heartbeat in the cluster state and, when the set of live
+     * nodes changed, hands every endpoint the share of its tags this node now owns.
+     */
+    private void rebalance(final ProcessContext context) {
+    	final long timeoutMillis = context.getProperty(MEMBERSHIP_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+    	final long now = System.currentTimeMillis();
+    	if (partitioner != null && now - lastHeartbeat < timeoutMillis / 3) {
+    		return;
+    	}
+    	lastHeartbeat = now;
+
+    	final StateManager stateManager = context.getStateManager();
+    	final Map<String, String> newState = new HashMap<>();
+    	try {
+    		// Another node may update the state at the same time, retry until our heartbeat is in
+    		while (true) {
+    			final StateMap stateMap = stateManager.getState(Scope.CLUSTER);
+    			newState.clear();
+    			for (Map.Entry<String, String> entry : stateMap.toMap().entrySet()) {
+    				// Forget nodes that left long ago
+    				if (!entry.getKey().startsWith(MEMBER_PREFIX) || TagPartitioner.isAlive(entry.getValue(), now, 10 * timeoutMillis)) {
+    					newState.put(entry.getKey(), entry.getValue());
+    				}
+    			}
+    			newState.put(MEMBER_PREFIX + nodeId, String.valueOf(now));
+
+    			if (stateMap.getVersion() == -1) {
+    				stateManager.setState(newState, Scope.CLUSTER);
+    				break;
+    			}
+    			if (stateManager.replace(stateMap, newState, Scope.CLUSTER)) {
+    				break;
+    			}
+    		}
+    	} catch (IOException e) {
+    		getLogger().warn("Failed to publish heartbeat to the cluster state, keeping the current partitioning: " + e.getMessage());
+    		return;
+    	}
+
+    	final Set<String> members = TagPartitioner.liveMembers(newState, MEMBER_PREFIX, now, timeoutMillis);
+    	if (partitioner != null && partitioner.getMembers().equals(members)) {
+    		return;
+    	}
+
+    	partitioner = new TagPartitioner(members);
+    	int assigned = 0;
+    	int total = 0;
+    	for (EndpointPoller poller : pollers.values()) {
+    		poller.assign(partitioner.select(poller.allTags, nodeId, poller.connection.getUrl() + "|"));
+    		assigned += poller.tags.size();
+    		total += poller.allTags.size();
+    	}
+    	getLogger().info("Cluster members are now " + members + ", this node polls " + assigned + " of " + total + " tags");
+    }
+
+    private void transferFailure(final ProcessSession session, final String url, final String error) {
+    	getLogger().error("Failed to read from " + url + ": " + error);
+    	FlowFile flowFile = session.create();
+    	flowFile = session.putAttribute(flowFile, "opcua.endpoint", url);
+    	flowFile = session.putAttribute(flowFile, "opcua.error", error);
+    	session.transfer(flowFile, FAILURE);
+    }
+
+    private static List<String> parseTags(String value) {
+    	final List<String> tags = new ArrayList<>();
+    	for (String line : value.split("\\r?\\n")) {
+    		if (!line.trim().isEmpty()) {
+    			tags.add(line.trim());
+    		}
+    	}
+    	return tags;
+    }
+
+    /**
+     * Per endpoint state: the session, the tags to read and the breaker guarding it.
+     */
+    private static class EndpointPoller {
+    	final OPCConnection connection;
+    	final List<String> allTags;
+    	final CircuitBreaker breaker;
+    	final AtomicBoolean running = new AtomicBoolean();
+    	final long windowMillis;
+    	final long slideMillis;
+    	volatile Future<DataValue[]> pending;
+
+    	// Over all tags by their position in allTags, so the open windows survive a new share
+    	final WindowAggregator aggregator;
+    	private final Map<String, Integer> positions = new HashMap<>();
+
+    	// The share of the tags this node polls, all of them unless partitioned
+    	List<String> tags;
+    	ReadValueId[] nodesToRead;
+    	int[] tagIndexes;
+
+    	// Polls collected for the next flow file
+    	ValueWriter batch;
+    	String batchFormat;
+    	int samples;
+
+    	EndpointPoller(OPCConnection connection, List<String> tags, CircuitBreaker breaker, long windowMillis, long slideMillis,
+    			WindowAggregator aggregator) {
+    		this.connection = connection;
+    		this.allTags = tags;
+    		this.breaker = breaker;
+    		this.windowMillis = windowMillis;
+    		this.slideMillis = slideMillis;
+    		this.aggregator = aggregator;
+    		for (int i = 0; i < tags.size(); i++) {
+    			positions.putIfAbsent(tags.get(i), i);
+    		}
+    		assign(tags);
+    	}
+
+    	/**
+    	 * Takes a new share of the tags. Tags given up keep their open windows, which are
+    	 * written as they close.
+    	 */
+    	void assign(List<String> tags) {
+    		ReadValueId[] nodesToRead = new ReadValueId[tags.size()];
+    		int[] tagIndexes = new int[tags.size()];
+    		for (int i = 0; i < tags.size(); i++) {
+    			nodesToRead[i] = new ReadValueId(NodeId.parseNodeId(tags.get(i)), Attributes.Value, null, null);
+    			tagIndexes[i] = positions.get(tags.get(i));
+    		}
+    		this.tags = tags;
+    		this.nodesToRead = nodesToRead;
+    		this.tagIndexes = tagIndexes;
+    	}
+
+    	/**
+    	 * The writer the next poll goes into, emptied when the last one was written out.
+    	 */
+    	ValueWriter batch(String format) {
+    		if (batch == null || !format.equals(batchFormat)) {
+    			batch = ValueWriter.create(format);
+    			batchFormat = format;
+    			samples = 0;
+    		} else if (samples == 0) {
+    			batch.reset(format);
+    		}
+    		return batch;
+    	}
+    }
+
+}
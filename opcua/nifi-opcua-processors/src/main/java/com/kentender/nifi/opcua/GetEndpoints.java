@@ -3,20 +3,37 @@ package com.kentender.nifi.opcua;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import org.apache.nifi.annotation.behavior.ReadsAttribute;
-import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.AbstractProcessor;
@@ -27,35 +44,77 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
 import org.opcfoundation.ua.application.Client;
-import org.opcfoundation.ua.application.SessionChannel;
-import org.opcfoundation.ua.builtintypes.LocalizedText;
-import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.ApplicationDescription;
 import org.opcfoundation.ua.core.EndpointDescription;
-import org.opcfoundation.ua.transport.security.KeyPair;
-import org.opcfoundation.ua.transport.security.SecurityPolicy;
 
 @Tags({"OPC", "OPCUA", "UA"})
-@CapabilityDescription("Fetches a response from an OPC UA server based on configured name space and input item names")
+@CapabilityDescription("Discovers the endpoints of many OPC UA servers at once. Servers are given as a list of discovery URLs, "
+		+ "which may contain numeric ranges, and can be looked up on Local Discovery Servers with FindServers. "
+		+ "All servers are queried concurrently and the result is one record per endpoint, or per server that could not be reached")
 @SeeAlso({})
-@ReadsAttributes({@ReadsAttribute(attribute="", description="")})
-@WritesAttributes({@WritesAttribute(attribute="", description="")})
+@WritesAttributes({
+	@WritesAttribute(attribute="record.count", description="Number of records written"),
+	@WritesAttribute(attribute="opcua.discovery.servers", description="Number of servers queried"),
+	@WritesAttribute(attribute="opcua.discovery.failed", description="Number of servers that could not be reached in time")})
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
 
 public class GetEndpoints extends AbstractProcessor{
 
-	public static final Locale ENGLISH = Locale.ENGLISH;
-	
-	static Client myClient = null;
-	static EndpointDescription[] endpointDescriptions = null;
-	static SessionChannel mySession = null;
-	
+	// Expansion of ranges like opc.tcp://10.0.0.[1-254]:4840 stops at this many URLs
+	static final int MAX_URLS = 65536;
+	private static final Pattern RANGE = Pattern.compile("\\[(\\d+)-(\\d+)\\]");
+
+	private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("discoveryUrl", RecordFieldType.STRING.getDataType()),
+			new RecordField("applicationUri", RecordFieldType.STRING.getDataType()),
+			new RecordField("applicationName", RecordFieldType.STRING.getDataType()),
+			new RecordField("endpointUrl", RecordFieldType.STRING.getDataType()),
+			new RecordField("securityPolicyUri", RecordFieldType.STRING.getDataType()),
+			new RecordField("securityMode", RecordFieldType.STRING.getDataType()),
+			new RecordField("securityLevel", RecordFieldType.INT.getDataType()),
+			new RecordField("transportProfileUri", RecordFieldType.STRING.getDataType()),
+			new RecordField("error", RecordFieldType.STRING.getDataType())));
+
+	private volatile Client myClient = null;
+	private volatile ExecutorService executor = null;
+
+	private static final Validator URL_LIST_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			try {
+				expandUrls(input);
+				return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+			} catch (IllegalArgumentException e) {
+				return new ValidationResult.Builder().subject(subject).input(input).valid(false).explanation(e.getMessage()).build();
+			}
+		}
+	};
+
 	public static final PropertyDescriptor ENDPOINT = new PropertyDescriptor
             .Builder().name("Endpoint URL")
-            .description("the opc.tcp address of the opc ua server")
-            .required(true)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .description("The opc.tcp discovery addresses of the servers, separated by commas or new lines. "
+            		+ "A numeric range in brackets queries every value in it, e.g. opc.tcp://10.0.0.[1-254]:4840")
+            .required(false)
+            .addValidator(URL_LIST_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DISCOVERY_SERVER = new PropertyDescriptor
+            .Builder().name("Local Discovery Server URL")
+            .description("Discovery servers asked with FindServers for the servers registered with them, "
+            		+ "whose endpoints are then queried as well. Same format as the endpoint URLs")
+            .required(false)
+            .addValidator(URL_LIST_VALIDATOR)
             .build();
-    
+
     public static final PropertyDescriptor SECURITY_POLICY = new PropertyDescriptor
             .Builder().name("Security Policy")
             .description("How should Nifi authenticate with the UA server")
@@ -63,22 +122,55 @@ public class GetEndpoints extends AbstractProcessor{
             .allowableValues("None", "Basic128Rsa15", "Basic256", "Basic256Rsa256")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
-    
+
     public static final PropertyDescriptor APPLICATION_NAME = new PropertyDescriptor
     		.Builder().name("Application Name")
             .description("The application name is used to label certificates identifying this application")
             .required(false)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
-        
+
+    public static final PropertyDescriptor REQUEST_TIMEOUT = new PropertyDescriptor
+            .Builder().name("Request Timeout")
+            .description("How long to wait for one server before it is reported as failed")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+            .Builder().name("Record Writer")
+            .description("Writes the endpoints as records. If not set every endpoint is written as a line of "
+            		+ "endpoint url - security policy - security mode")
+            .required(false)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+
+    public static final PropertyDescriptor EXECUTION_MODE = new PropertyDescriptor
+            .Builder().name("Execution Mode")
+            .description("Run the blocking OPC calls on platform threads or on virtual threads. Virtual threads need Java 21 or later "
+            		+ "and make waiting on thousands of slow servers cheap, on older JVMs platform threads are used")
+            .required(true)
+            .allowableValues(OPCExecutors.PLATFORM_THREADS, OPCExecutors.VIRTUAL_THREADS)
+            .defaultValue(OPCExecutors.PLATFORM_THREADS)
+            .build();
+
+    public static final PropertyDescriptor MAX_CONCURRENT_REQUESTS = new PropertyDescriptor
+            .Builder().name("Max Concurrent Requests")
+            .description("How many OPC calls of this processor may be in progress at once, further calls wait for a free slot")
+            .required(true)
+            .defaultValue("256")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final Relationship SUCCESS = new Relationship.Builder()
             .name("Success")
             .description("Successful OPC read")
             .build();
-    
+
     public static final Relationship FAILURE = new Relationship.Builder()
             .name("FAILURE")
-            .description("Failed OPC read")
+            .description("None of the servers could be reached, the flow file lists the errors")
             .build();
 
     private List<PropertyDescriptor> descriptors;
@@ -89,8 +181,13 @@ public class GetEndpoints extends AbstractProcessor{
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(ENDPOINT);
+        descriptors.add(DISCOVERY_SERVER);
         descriptors.add(SECURITY_POLICY);
         descriptors.add(APPLICATION_NAME);
+        descriptors.add(REQUEST_TIMEOUT);
+        descriptors.add(RECORD_WRITER);
+        descriptors.add(EXECUTION_MODE);
+        descriptors.add(MAX_CONCURRENT_REQUESTS);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -109,85 +206,232 @@ public class GetEndpoints extends AbstractProcessor{
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+    	final List<ValidationResult> results = new ArrayList<>();
+    	if (!context.getProperty(ENDPOINT).isSet() && !context.getProperty(DISCOVERY_SERVER).isSet()) {
+    		results.add(new ValidationResult.Builder()
+    				.subject(ENDPOINT.getName())
+    				.valid(false)
+    				.explanation("an endpoint URL or a local discovery server URL is required")
+    				.build());
+    	}
+    	return results;
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
-    	
-    	KeyPair myClientApplicationInstanceCertificate = null;
-    	KeyPair myHttpsCertificate = null;
-    	
-		// Load Client's certificates from file or create new certs
-		if (context.getProperty(SECURITY_POLICY).getValue() == "None"){
-			// Build OPC Client
-			myClientApplicationInstanceCertificate = null;
-						
-		} else {
-
-			myHttpsCertificate = Utils.getHttpsCert(context.getProperty(APPLICATION_NAME).getValue());
-			
-			// Load or create HTTP and Client's Application Instance Certificate and key
-			switch (context.getProperty(SECURITY_POLICY).getValue()) {
-				
-				case "Basic128Rsa15":{
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC128RSA15);
-					break;
-					
-				}case "Basic256": {
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC256);
-					break;
-					
-				}case "Basic256Rsa256": {
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC256SHA256);
-					break;
-				}
-			}
-		}
-		
+
 		// Create Client
-		myClient = Client.createClientApplication( myClientApplicationInstanceCertificate ); 
-		myClient.getApplication().getHttpsSettings().setKeyPair(myHttpsCertificate);
-		myClient.getApplication().addLocale( ENGLISH );
-		myClient.getApplication().setApplicationName( new LocalizedText(context.getProperty(APPLICATION_NAME).getValue(), Locale.ENGLISH) );
-		myClient.getApplication().setProductUri( "urn:" + context.getProperty(APPLICATION_NAME).getValue() );
-		
+		myClient = Utils.createClient(context.getProperty(APPLICATION_NAME).getValue(), context.getProperty(SECURITY_POLICY).getValue());
+
+		executor = OPCExecutors.budgeted(context.getProperty(EXECUTION_MODE).getValue(), context.getProperty(MAX_CONCURRENT_REQUESTS).asInteger());
+		if (OPCExecutors.VIRTUAL_THREADS.equals(context.getProperty(EXECUTION_MODE).getValue()) && !OPCExecutors.isVirtualThreadsAvailable()) {
+			getLogger().warn("Virtual threads are not available on this JVM, using platform threads");
+		}
+
 	}
 
+    @OnStopped
+    public void onStopped(final ProcessContext context) {
+    	if (executor != null) {
+    		executor.shutdown();
+    		executor = null;
+    	}
+    }
+
     /* (non-Javadoc)
      * @see org.apache.nifi.processor.AbstractProcessor#onTrigger(org.apache.nifi.processor.ProcessContext, org.apache.nifi.processor.ProcessSession)
      */
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-    	
+
     	final ComponentLog logger = getLogger();
-    	StringBuilder stringBuilder = new StringBuilder();
-        
-        // Retrieve end point list
- 		try {
- 			endpointDescriptions = null;
- 			endpointDescriptions = myClient.discoverEndpoints(context.getProperty(ENDPOINT).getValue());
- 		} catch (ServiceResultException e1) {
- 			
- 			logger.error(e1.getMessage());
- 		}
- 		
-        
-        for (int i = 0; i < endpointDescriptions.length; i++){
-        	stringBuilder.append(endpointDescriptions[i].getEndpointUrl() + " - " + endpointDescriptions[i].getSecurityPolicyUri()  + " - " + endpointDescriptions[i].getSecurityMode() + System.lineSeparator());
-        	
-        }
- 		
+    	final Client myClient = this.myClient;
+    	final ExecutorService executor = this.executor;
+    	final long timeoutMillis = context.getProperty(REQUEST_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+    	final int maxConcurrent = context.getProperty(MAX_CONCURRENT_REQUESTS).asInteger();
+    	final List<Map<String, Object>> rows = new ArrayList<>();
+
+    	final Set<String> urls = new LinkedHashSet<>();
+    	if (context.getProperty(ENDPOINT).isSet()) {
+    		urls.addAll(expandUrls(context.getProperty(ENDPOINT).getValue()));
+    	}
+
+    	// Ask the discovery servers for the servers registered with them
+    	if (context.getProperty(DISCOVERY_SERVER).isSet()) {
+    		final Map<String, Future<ApplicationDescription[]>> lookups = new LinkedHashMap<>();
+    		for (String url : expandUrls(context.getProperty(DISCOVERY_SERVER).getValue())) {
+    			lookups.put(url, executor.submit(() -> myClient.discoverApplications(url)));
+    		}
+    		final Map<String, Object> registered = collect(lookups, timeoutMillis, maxConcurrent, rows);
+    		for (Object result : registered.values()) {
+    			for (ApplicationDescription server : (ApplicationDescription[]) result) {
+    				if (server.getDiscoveryUrls() != null) {
+    					urls.addAll(Arrays.asList(server.getDiscoveryUrls()));
+    				}
+    			}
+    		}
+    	}
+
+    	// Query every server at once, each one gets the same time from now on
+    	final Map<String, Future<EndpointDescription[]>> queries = new LinkedHashMap<>();
+    	for (String url : urls) {
+    		queries.put(url, executor.submit(() -> myClient.discoverEndpoints(url)));
+    	}
+    	final Map<String, Object> results = collect(queries, timeoutMillis, maxConcurrent, rows);
+    	for (Map.Entry<String, Object> entry : results.entrySet()) {
+    		for (EndpointDescription endpoint : (EndpointDescription[]) entry.getValue()) {
+    			rows.add(toRow(entry.getKey(), endpoint));
+    		}
+    	}
+
+    	final int failed = queries.size() - results.size();
+    	if (failed > 0) {
+    		logger.warn(failed + " of " + queries.size() + " OPC UA servers could not be queried");
+    	}
+
         // Write the results back out to flow file
         FlowFile flowFile = session.create();
-        flowFile = session.write(flowFile, new OutputStreamCallback() {
-
-            @Override
-            public void process(OutputStream out) throws IOException {
-            	out.write(stringBuilder.toString().getBytes());
-            	
-            }
-            
-        });
-        
-        session.transfer(flowFile, SUCCESS);
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        final Map<String, String> attributes = new HashMap<>();
+        try {
+        	if (writerFactory == null) {
+        		flowFile = writeText(session, flowFile, rows);
+        	} else {
+        		final FlowFile original = flowFile;
+        		flowFile = session.write(flowFile, new OutputStreamCallback() {
+        			@Override
+        			public void process(OutputStream out) throws IOException {
+        				try (RecordSetWriter writer = writerFactory.createWriter(logger, writerFactory.getSchema(original.getAttributes(), SCHEMA), out, original)) {
+        					writer.beginRecordSet();
+        					for (Map<String, Object> row : rows) {
+        						writer.write(new MapRecord(SCHEMA, row));
+        					}
+        					WriteResult result = writer.finishRecordSet();
+        					attributes.putAll(result.getAttributes());
+        					attributes.put("mime.type", writer.getMimeType());
+        				} catch (Exception e) {
+        					throw new IOException(e);
+        				}
+        			}
+        		});
+        	}
+        } catch (ProcessException e) {
+        	logger.error(e.getMessage());
+        	session.remove(flowFile);
+        	context.yield();
+        	return;
+        }
+
+        attributes.put("record.count", String.valueOf(rows.size()));
+        attributes.put("opcua.discovery.servers", String.valueOf(queries.size()));
+        attributes.put("opcua.discovery.failed", String.valueOf(failed));
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.transfer(flowFile, failed > 0 && failed == queries.size() ? FAILURE : SUCCESS);
+    }
+
+    /**
+     * Waits for the given calls against one common deadline and returns the results of
+     * those that succeeded. The others are cancelled and added to rows as errors.
+     * Calls beyond the concurrency budget run in later waves and get the timeout again.
+     */
+    private <T> Map<String, Object> collect(Map<String, Future<T>> calls, long timeoutMillis, int maxConcurrent, List<Map<String, Object>> rows) {
+    	final Map<String, Object> results = new LinkedHashMap<>();
+    	final long waves = (calls.size() + maxConcurrent - 1) / maxConcurrent;
+    	final long deadline = System.currentTimeMillis() + timeoutMillis * Math.max(1, waves);
+    	for (Map.Entry<String, Future<T>> entry : calls.entrySet()) {
+    		String error;
+    		try {
+    			T result = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    			if (result != null) {
+    				results.put(entry.getKey(), result);
+    			}
+    			continue;
+    		} catch (TimeoutException e) {
+    			entry.getValue().cancel(true);
+    			error = "Timed out after " + timeoutMillis + " ms";
+    		} catch (ExecutionException e) {
+    			error = String.valueOf(e.getCause().getMessage());
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			entry.getValue().cancel(true);
+    			error = "Interrupted";
+    		}
+    		Map<String, Object> row = new HashMap<>();
+    		row.put("discoveryUrl", entry.getKey());
+    		row.put("error", error);
+    		rows.add(row);
+    	}
+    	return results;
+    }
+
+    private static Map<String, Object> toRow(String discoveryUrl, EndpointDescription endpoint) {
+    	Map<String, Object> row = new HashMap<>();
+    	row.put("discoveryUrl", discoveryUrl);
+    	ApplicationDescription server = endpoint.getServer();
+    	if (server != null) {
+    		row.put("applicationUri", server.getApplicationUri());
+    		row.put("applicationName", server.getApplicationName() == null ? null : server.getApplicationName().getText());
+    	}
+    	row.put("endpointUrl", endpoint.getEndpointUrl());
+    	row.put("securityPolicyUri", endpoint.getSecurityPolicyUri());
+    	row.put("securityMode", String.valueOf(endpoint.getSecurityMode()));
+    	row.put("securityLevel", endpoint.getSecurityLevel() == null ? null : endpoint.getSecurityLevel().intValue());
+    	row.put("transportProfileUri", endpoint.getTransportProfileUri());
+    	return row;
     }
-    
+
+    private static FlowFile writeText(ProcessSession session, FlowFile flowFile, List<Map<String, Object>> rows) {
+    	final StringBuilder stringBuilder = new StringBuilder();
+    	for (Map<String, Object> row : rows) {
+    		if (row.get("error") != null) {
+    			stringBuilder.append(row.get("discoveryUrl") + " - " + row.get("error") + System.lineSeparator());
+    		} else {
+    			stringBuilder.append(row.get("endpointUrl") + " - " + row.get("securityPolicyUri")  + " - " + row.get("securityMode") + System.lineSeparator());
+    		}
+    	}
+    	return session.write(flowFile, new OutputStreamCallback() {
+    		@Override
+    		public void process(OutputStream out) throws IOException {
+    			out.write(stringBuilder.toString().getBytes());
+    		}
+    	});
+    }
+
+    /**
+     * Splits a list of URLs separated by commas or white space and expands numeric
+     * ranges in brackets. A range whose start has leading zeros is zero padded.
+     */
+    static List<String> expandUrls(String value) {
+    	final List<String> urls = new ArrayList<>();
+    	for (String url : value.trim().split("[,\\s]+")) {
+    		if (!url.isEmpty()) {
+    			expand(url, urls);
+    		}
+    	}
+    	return urls;
+    }
+
+    private static void expand(String url, List<String> urls) {
+    	Matcher matcher = RANGE.matcher(url);
+    	if (!matcher.find()) {
+    		if (urls.size() >= MAX_URLS) {
+    			throw new IllegalArgumentException("expands to more than " + MAX_URLS + " URLs");
+    		}
+    		urls.add(url);
+    		return;
+    	}
+    	final String first = matcher.group(1);
+    	final long start = Long.parseLong(first);
+    	final long end = Long.parseLong(matcher.group(2));
+    	if (end < start) {
+    		throw new IllegalArgumentException("range " + matcher.group() + " is empty");
+    	}
+    	final String format = first.length() > 1 && first.startsWith("0") ? "%0" + first.length() + "d" : "%d";
+    	for (long i = start; i <= end; i++) {
+    		expand(url.substring(0, matcher.start()) + String.format(format, i) + url.substring(matcher.end()), urls);
+    	}
+    }
+
 }
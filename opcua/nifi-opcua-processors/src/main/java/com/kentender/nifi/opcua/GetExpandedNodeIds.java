@@ -1,16 +1,12 @@
 package com.kentender.nifi.opcua;
 
-import static org.opcfoundation.ua.utils.EndpointUtil.selectByProtocol;
-import static org.opcfoundation.ua.utils.EndpointUtil.selectBySecurityPolicy;
-
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
 import java.util.UUID;
 
@@ -22,8 +18,11 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
-import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.AbstractProcessor;
@@ -34,27 +33,21 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.opcfoundation.ua.application.Client;
 import org.opcfoundation.ua.application.SessionChannel;
 import org.opcfoundation.ua.builtintypes.ExpandedNodeId;
-import org.opcfoundation.ua.builtintypes.LocalizedText;
 import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.common.ServiceFaultException;
 import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.BrowseDescription;
-import org.opcfoundation.ua.core.BrowseDirection;
 import org.opcfoundation.ua.core.BrowseRequest;
 import org.opcfoundation.ua.core.BrowseResponse;
 import org.opcfoundation.ua.core.BrowseResult;
-import org.opcfoundation.ua.core.EndpointDescription;
+import org.opcfoundation.ua.core.BrowseResultMask;
 import org.opcfoundation.ua.core.IdType;
 import org.opcfoundation.ua.core.Identifiers;
-import org.opcfoundation.ua.core.MessageSecurityMode;
 import org.opcfoundation.ua.core.ReferenceDescription;
-import org.opcfoundation.ua.transport.security.Cert;
-import org.opcfoundation.ua.transport.security.KeyPair;
-import org.opcfoundation.ua.transport.security.SecurityPolicy;
 
 @Tags({"OPC", "OPCUA", "UA"})
 @CapabilityDescription("Retrieves the namespace from an OPC UA server")
@@ -64,9 +57,22 @@ import org.opcfoundation.ua.transport.security.SecurityPolicy;
 
 public class GetExpandedNodeIds extends AbstractProcessor {
 	
-	private static Client myClient = null;
-	private static SessionChannel mySession = null;
-	private static EndpointDescription endpointDescription = null;
+	// Built in the background when scheduled
+	private volatile WarmUp<OPCConnection> connection = null;
+	private volatile BrowseFilter filter = BrowseFilter.ALL;
+	
+	private static final Validator NODE_CLASSES_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			try {
+				BrowseFilter.parseNodeClasses(input);
+				return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+			} catch (IllegalArgumentException e) {
+				return new ValidationResult.Builder().subject(subject).input(input).valid(false)
+						.explanation("unknown node class, use Object, Variable, Method, ObjectType, VariableType, ReferenceType, DataType or View").build();
+			}
+		}
+	};
 	
 	public static final PropertyDescriptor ENDPOINT = new PropertyDescriptor
             .Builder().name("Endpoint URL")
@@ -118,6 +124,56 @@ public class GetExpandedNodeIds extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
     
+    public static final PropertyDescriptor NODE_CLASSES = new PropertyDescriptor
+            .Builder().name("Node Classes")
+            .description("Comma separated node classes to return, e.g. Variable. The server only sends these and Objects, "
+            		+ "which are browsed through. Leave blank for all node classes")
+            .required(false)
+            .addValidator(NODE_CLASSES_VALIDATOR)
+            .build();
+    
+    public static final String HIERARCHICAL_REFERENCES = "Hierarchical References";
+    public static final String ORGANIZES = "Organizes";
+    public static final String HAS_COMPONENT = "Has Component";
+    public static final String HAS_PROPERTY = "Has Property";
+    public static final String ALL_REFERENCES = "All References";
+    
+    public static final PropertyDescriptor REFERENCE_TYPE = new PropertyDescriptor
+            .Builder().name("Reference Type")
+            .description("The references to follow, including their subtypes. All References also follows type definitions")
+            .required(true)
+            .allowableValues(HIERARCHICAL_REFERENCES, ORGANIZES, HAS_COMPONENT, HAS_PROPERTY, ALL_REFERENCES)
+            .defaultValue(HIERARCHICAL_REFERENCES)
+            .build();
+    
+    public static final PropertyDescriptor BROWSE_PATH_FILTER = new PropertyDescriptor
+            .Builder().name("Browse Path Filter")
+            .description("Only return nodes whose browse path below the starting node matches this pattern. Elements are separated "
+            		+ "by slashes and match browse names with * and ?, ** matches any number of levels, e.g. Objects/Plant*/**. "
+            		+ "Subtrees that cannot match are not browsed")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor EXCLUDE_BROWSE_NAMES = new PropertyDescriptor
+            .Builder().name("Exclude Browse Names")
+            .description("Regular expression of browse names to skip together with everything below them, e.g. _Hints|_Statistics")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+    
+    public static final String TEXT = "Text";
+    public static final String INDEX = "Address Space Index";
+    
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Write the node ids as text, one per line, or write a sorted index of node id, browse path, display name, "
+            		+ "data type and node class that the AddressSpaceLookupService can memory map. Store the index with PutFile")
+            .required(true)
+            .allowableValues(TEXT, INDEX)
+            .defaultValue(TEXT)
+            .build();
+    
     public static final Relationship SUCCESS = new Relationship.Builder()
             .name("Success")
             .description("Successful OPC read")
@@ -142,6 +198,11 @@ public class GetExpandedNodeIds extends AbstractProcessor {
         descriptors.add(STARTING_NODE);
         descriptors.add(RECURSIVE_DEPTH);
         descriptors.add(PRINT_INDENTATION);
+        descriptors.add(NODE_CLASSES);
+        descriptors.add(REFERENCE_TYPE);
+        descriptors.add(BROWSE_PATH_FILTER);
+        descriptors.add(EXCLUDE_BROWSE_NAMES);
+        descriptors.add(OUTPUT_FORMAT);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -164,139 +225,49 @@ public class GetExpandedNodeIds extends AbstractProcessor {
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
     	
-    	final ComponentLog logger = getLogger();
-    	EndpointDescription[] endpointDescriptions = null;
+    	filter = new BrowseFilter(BrowseFilter.parseNodeClasses(context.getProperty(NODE_CLASSES).getValue()), 
+    			toReferenceTypeId(context.getProperty(REFERENCE_TYPE).getValue()), 
+    			context.getProperty(BROWSE_PATH_FILTER).getValue(), 
+    			context.getProperty(EXCLUDE_BROWSE_NAMES).getValue());
     	
-    	KeyPair myClientApplicationInstanceCertificate = null;
-    	KeyPair myHttpsCertificate = null;
+    	final String applicationName = context.getProperty(APPLICATION_NAME).getValue();
+    	final String url = context.getProperty(ENDPOINT).getValue();
+    	final String securityPolicy = context.getProperty(SECURITY_POLICY).getValue();
+    	final String serverCert = context.getProperty(SERVER_CERT).getValue();
     	
-    	// Load Client's certificates from file or create new certs
-		if (context.getProperty(SECURITY_POLICY).getValue() == "None"){
-			// Build OPC Client
-			myClientApplicationInstanceCertificate = null;
-						
-		} else {
-
-			myHttpsCertificate = Utils.getHttpsCert(context.getProperty(APPLICATION_NAME).getValue());
-			
-			// Load or create HTTP and Client's Application Instance Certificate and key
-			switch (context.getProperty(SECURITY_POLICY).getValue()) {
-				
-				case "Basic128Rsa15":{
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC128RSA15);
-					break;
-				
-				}case "Basic256": {
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC256);
-					break;
-					
-				}case "Basic256Rsa256": {
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC256SHA256);
-					break;
-				}
-			}
-		}
-		
-		// Create Client
-		myClient = Client.createClientApplication( myClientApplicationInstanceCertificate ); 
-		myClient.getApplication().getHttpsSettings().setKeyPair(myHttpsCertificate);
-		myClient.getApplication().addLocale( Locale.ENGLISH );
-		myClient.getApplication().setApplicationName( new LocalizedText(context.getProperty(APPLICATION_NAME).getValue(), Locale.ENGLISH) );
-		myClient.getApplication().setProductUri( "urn:" + context.getProperty(APPLICATION_NAME).getValue() );
-		
-		// if a certificate is provided
-		if (context.getProperty(SERVER_CERT).getValue() != null){
-			Cert myOwnCert = null;
-			
-			// if a certificate is provided
-			try {
-				File myCertFile = new File(context.getProperty(SERVER_CERT).getValue());
-				myOwnCert = Cert.load(myCertFile);
-				
-			} catch (Exception e1) {
-				logger.error(e1.getMessage());
-			}
-			
-			// Describe end point
-			endpointDescription = new EndpointDescription();
-			endpointDescription.setEndpointUrl(context.getProperty(ENDPOINT).getValue());
-			endpointDescription.setServerCertificate(myOwnCert.getEncoded());
-			endpointDescription.setSecurityMode(MessageSecurityMode.Sign);
-			switch (context.getProperty(SECURITY_POLICY).getValue()) {
-				case "Basic128Rsa15":{
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.BASIC128RSA15.getPolicyUri());
-					break;
-				}
-				case "Basic256": {
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.BASIC256.getPolicyUri());
-					break;
-				}	
-				case "Basic256Rsa256": {
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.BASIC256SHA256.getPolicyUri());
-					break;
-				}
-				default :{
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.NONE.getPolicyUri());
-					logger.error("No security mode specified");
-					break;
-				}
-			}
-			
-	 		
-			
-		} else {
-			try {
-				endpointDescriptions = myClient.discoverEndpoints(context.getProperty(ENDPOINT).getValue());
-			} catch (ServiceResultException e1) {
-				
-				logger.error(e1.getMessage());
-			}
-			switch (context.getProperty(SECURITY_POLICY).getValue()) {
-			
-				case "Basic128Rsa15":{
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.BASIC128RSA15);
-					break;
-				}
-				case "Basic256": {
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.BASIC256);
-					break;
-				}	
-				case "Basic256Rsa256": {
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.BASIC256SHA256);
-					break;
-				}
-				default :{
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.NONE);
-					logger.error("No security mode specified");
-					break;
-				}
-			}
-			
-			// For now only opc.tcp has been implemented
-			endpointDescriptions = selectByProtocol(endpointDescriptions, "opc.tcp");
-			
-			// set the provided end point url to match the given one ( for local host problem )
-			endpointDescription =  endpointDescriptions[0].clone();
-			// endpointDescription = EndpointUtil.selectByUrl(endpointDescriptions, url)[0];
-	 	}
-				
-		logger.debug("Using endpoint: " + endpointDescription.toString());
-		
-		try {
-			mySession = myClient.createSessionChannel(endpointDescription);
-		} catch (ServiceResultException e) {
-			// TODO Auto-generated catch block
-			logger.debug("Error while creating initial SessionChannel: ");
-			logger.error(e.getMessage());
-		}
+		// Certificates and the session are set up in the background, onTrigger yields until they are ready
+		connection = new WarmUp<OPCConnection>(() -> {
+			OPCConnection newConnection = new OPCConnection(Utils.createClient(applicationName, securityPolicy), url, securityPolicy, serverCert);
+			newConnection.warmUp();
+			return newConnection;
+		}, OPCConnection::close).start();
 		
     }
     
-    @OnUnscheduled
-	public void onUnscheduled(final ProcessContext context){
-    	final ComponentLog logger = getLogger();
-    	
+
+    private static NodeId toReferenceTypeId(String referenceType) {
+    	switch (referenceType) {
+    		case ORGANIZES:
+    			return Identifiers.Organizes;
+    		case HAS_COMPONENT:
+    			return Identifiers.HasComponent;
+    		case HAS_PROPERTY:
+    			return Identifiers.HasProperty;
+    		case ALL_REFERENCES:
+    			return Identifiers.References;
+    		default:
+    			return Identifiers.HierarchicalReferences;
+    	}
+    }
+    
+    @OnStopped
+	public void onStopped(final ProcessContext context){
     	
+    	// Close the session so it is no longer counted as open
+    	if (connection != null) {
+    		connection.cancel();
+    		connection = null;
+    	}
     }
     
 	@Override
@@ -305,39 +276,48 @@ public class GetExpandedNodeIds extends AbstractProcessor {
 		final ComponentLog logger = getLogger();
 		StringBuilder stringBuilder = new StringBuilder();
 		
-		// Test session and if closed create and activate new session 
-    	try {
-    		mySession.activate();
-  		} catch (ServiceResultException e1) {
-  			
-  			logger.debug("The session " + mySession.getSession().getAuthenticationToken() + " has timed out.");
-  			try {
-  				logger.debug("Creating new session");
-				mySession = myClient.createSessionChannel(endpointDescription);
-				mySession.activate();
-			} catch (ServiceResultException e) {
-				logger.debug("Error while creating new session: ");
-				logger.error(e.getMessage());
-			}
-  			
-  		}
+		// Yield until the session is open
+		final OPCConnection connection = this.connection.readyOrYield(context, logger);
+		if (connection == null) {
+			return;
+		}
+		final BrowseFilter filter = this.filter;
+		final SessionChannel mySession;
+		try {
+			mySession = connection.getSession();
+		} catch (ServiceResultException e) {
+			logger.error(e.getMessage());
+			context.yield();
+			return;
+		}
+		
+		if (INDEX.equals(context.getProperty(OUTPUT_FORMAT).getValue())) {
+			writeIndex(context, session, connection, mySession, filter);
+			return;
+		}
 		
 		// Set the starting node and parse the node tree
 		if ( context.getProperty(STARTING_NODE).getValue() == null) {
 			logger.debug("Parse the root node " + new ExpandedNodeId(Identifiers.RootFolder));
 			stringBuilder.append(parseNodeTree(mySession, 
+					connection.getMetrics(),
 					context.getProperty(PRINT_INDENTATION).getValue(), 
 					0, 
 					Integer.valueOf(context.getProperty(RECURSIVE_DEPTH).getValue()), 
-					new ExpandedNodeId(Identifiers.RootFolder)));
+					new ExpandedNodeId(Identifiers.RootFolder),
+					filter,
+					filter.start()));
 			
 		} else {
 			logger.debug("Parse the result list for node " + new ExpandedNodeId(NodeId.parseNodeId(context.getProperty(STARTING_NODE).getValue())));
 			stringBuilder.append(parseNodeTree(mySession, 
+					connection.getMetrics(),
 					context.getProperty(PRINT_INDENTATION).getValue(), 
 					0, 
 					Integer.valueOf(context.getProperty(RECURSIVE_DEPTH).getValue()), 
-					new ExpandedNodeId(NodeId.parseNodeId(context.getProperty(STARTING_NODE).getValue()))));
+					new ExpandedNodeId(NodeId.parseNodeId(context.getProperty(STARTING_NODE).getValue())),
+					filter,
+					filter.start()));
 		}
 		
 		// Write the results back out to a flow file
@@ -358,11 +338,46 @@ public class GetExpandedNodeIds extends AbstractProcessor {
         
     }
 	
+	/**
+	 * Crawls the address space in batched browse requests and writes it as an AddressSpaceIndex.
+	 */
+	private void writeIndex(ProcessContext context, ProcessSession session, OPCConnection connection, SessionChannel mySession,
+			BrowseFilter filter) {
+		
+		final ComponentLog logger = getLogger();
+		final NodeId startingNode = context.getProperty(STARTING_NODE).getValue() == null 
+				? Identifiers.RootFolder : NodeId.parseNodeId(context.getProperty(STARTING_NODE).getValue());
+		
+		final List<AddressSpaceIndex.Entry> entries;
+		try {
+			entries = new AddressSpaceCrawler(mySession, connection.getMetrics(), connection.getOperationLimits(), filter)
+					.crawl(startingNode, Integer.valueOf(context.getProperty(RECURSIVE_DEPTH).getValue()));
+		} catch (ServiceResultException e) {
+			logger.error(e.getMessage());
+			connection.invalidate(mySession);
+			context.yield();
+			return;
+		}
+		
+		FlowFile flowFile = session.create();
+		flowFile = session.write(flowFile, new OutputStreamCallback() {
+            public void process(OutputStream out) throws IOException {
+            	AddressSpaceIndex.write(entries, out);
+            }
+		});
+		flowFile = session.putAttribute(flowFile, "mime.type", AddressSpaceIndex.MIME_TYPE);
+		flowFile = session.putAttribute(flowFile, "opcua.index.count", String.valueOf(entries.size()));
+        session.transfer(flowFile, SUCCESS);
+	}
+	
 	private static String parseNodeTree(SessionChannel mySession,
+			OPCMetrics metrics,
 			String print_indentation, 
 			int recursiveDepth, 
 			int max_recursiveDepth, 
-			ExpandedNodeId expandedNodeId){
+			ExpandedNodeId expandedNodeId,
+			BrowseFilter filter,
+			BitSet state){
 		
 		
 		StringBuilder stringBuilder = new StringBuilder();
@@ -374,10 +389,10 @@ public class GetExpandedNodeIds extends AbstractProcessor {
 		// Have we already reached the max depth? Exit if so
 		if (recursiveDepth > max_recursiveDepth){ return null; }
 		
-		// Describe the request for given node
+		// Describe the request for given node, the server filters by node class and reference type
+		// and only sends what is needed to filter by browse path
 		BrowseDescription[] NodesToBrowse = new BrowseDescription[1];
-		NodesToBrowse[0] = new BrowseDescription();
-		NodesToBrowse[0].setBrowseDirection(BrowseDirection.Forward);
+		NodesToBrowse[0] = filter.describe(null, BrowseResultMask.NodeClass, BrowseResultMask.BrowseName);
 		
 		// Set node to browse to given Node
 		if(expandedNodeId.getIdType() == IdType.String){
@@ -402,10 +417,13 @@ public class GetExpandedNodeIds extends AbstractProcessor {
 		
 		// Form response, make request 
 		BrowseResponse browseResponse = new BrowseResponse();
+		metrics.requestStarted();
 		try {
 			browseResponse = mySession.Browse(browseRequest);
+			metrics.requestCompleted(false);
 		} catch (Exception e) {
 
+			metrics.requestCompleted(true);
 			e.printStackTrace();
 			
 		} 
@@ -424,22 +442,35 @@ public class GetExpandedNodeIds extends AbstractProcessor {
 		
 		// Situation 2: There are results descriptions and each node must be parsed
 		for(int k = 0; k < referenceDesc.length; k++){
-				
-			// Print indentation	
-			switch (print_indentation) {
 			
-				case "Yes":{
-					for(int j = 0; j < recursiveDepth; j++){
-						stringBuilder.append("- ");
+			// Skip the node and its subtree if its path can no longer match
+			QualifiedName browseName = referenceDesc[k].getBrowseName();
+			BitSet childState = filter.advance(state, browseName == null ? null : browseName.getName());
+			if (childState.isEmpty()) {
+				continue;
+			}
+			
+			int nodeClass = referenceDesc[k].getNodeClass() == null ? 0 : referenceDesc[k].getNodeClass().getValue();
+			if (filter.matches(childState) && filter.accepts(nodeClass)) {
+				// Print indentation	
+				switch (print_indentation) {
+				
+					case "Yes":{
+						for(int j = 0; j < recursiveDepth; j++){
+							stringBuilder.append("- ");
+						}
 					}
 				}
+				
+				// Print the current node
+				stringBuilder.append(referenceDesc[k].getNodeId() + System.lineSeparator());
 			}
 			
-			// Print the current node
-			stringBuilder.append(referenceDesc[k].getNodeId() + System.lineSeparator());
-			
 			// Print the child node(s)
-			String str = parseNodeTree(mySession, print_indentation, recursiveDepth + 1, max_recursiveDepth, referenceDesc[k].getNodeId());
+			if (!filter.canDescend(childState)) {
+				continue;
+			}
+			String str = parseNodeTree(mySession, metrics, print_indentation, recursiveDepth + 1, max_recursiveDepth, referenceDesc[k].getNodeId(), filter, childState);
 			if (str != null){
 				stringBuilder.append(str);
 			}
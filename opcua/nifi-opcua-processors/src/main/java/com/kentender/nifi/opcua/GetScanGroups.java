@@ -0,0 +1,575 @@
+package com.kentender.nifi.opcua;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.opcfoundation.ua.builtintypes.DataValue;
+
+@Tags({"OPC", "OPCUA", "UA", "scan", "polling"})
+@CapabilityDescription("Reads groups of tags from an OPC UA server, every group at its own scan rate, on one session. The groups are "
+		+ "driven by an internal timing wheel and the tags of all groups due at the same time are read in one request. "
+		+ "Values are buffered between runs and every run writes one flow file per group with the values scanned since the last run. "
+		+ "When the processor is stopped the values still buffered are written out. With a spool directory the values are written "
+		+ "to disk after every scan and the flow files are handed on when the processor runs, so a backpressured downstream "
+		+ "neither drops values nor holds the scans up")
+@SeeAlso({GetValue.class, GetEndpointValues.class})
+@WritesAttributes({
+	@WritesAttribute(attribute="opcua.endpoint", description="The endpoint the values were read from"),
+	@WritesAttribute(attribute="opcua.scan.group", description="The name of the scan group"),
+	@WritesAttribute(attribute="opcua.scan.rate", description="The scan rate of the group in milliseconds"),
+	@WritesAttribute(attribute="opcua.values.dropped", description="Values dropped by a full buffer since the processor was scheduled"),
+	@WritesAttribute(attribute="opcua.scans.missed", description="Scans skipped because the server was too slow, since the processor was scheduled")})
+@DynamicProperty(name="Scan group name", value="A scan rate like 1 sec on the first line, then one node id per line",
+		description="Reads the listed node ids at the given rate")
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
+
+public class GetScanGroups extends AbstractSessionFactoryProcessor {
+
+	private static final Validator SCAN_GROUP_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			try {
+				ScanScheduler.ScanGroup.parse(subject, input);
+				return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+			} catch (IllegalArgumentException e) {
+				return new ValidationResult.Builder().subject(subject).input(input).valid(false)
+						.explanation("not a scan rate followed by node ids, one per line: " + e.getMessage()).build();
+			}
+		}
+	};
+
+	// Built in the background when scheduled
+	private volatile WarmUp<ScanScheduler> scheduler = null;
+
+	// Kept from onTrigger to write out the buffer when stopped
+	private volatile ProcessSessionFactory sessionFactory = null;
+	private static final long STOP_TIMEOUT = 5000;
+
+	// Written by the scan thread, handed on by onTrigger
+	private static final int MAX_SPOOL_SEGMENT = 16 * 1024 * 1024;
+	private static final int SPOOL_BATCH_SIZE = 1000;
+	private volatile ValueSpool spool = null;
+	private long reportedDropped = 0;
+
+	public static final PropertyDescriptor ENDPOINT = new PropertyDescriptor
+            .Builder().name("Endpoint URL")
+            .description("the opc.tcp address of the opc ua server")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor SERVER_CERT = new PropertyDescriptor
+            .Builder().name("Certificate for Server application")
+            .description("Certificate in .der format for server Nifi will connect, if left blank Nifi will attempt to retreive the certificate from the server")
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SECURITY_POLICY = new PropertyDescriptor
+            .Builder().name("Security Policy")
+            .description("How should Nifi authenticate with the UA server")
+            .required(true)
+            .allowableValues("None", "Basic128Rsa15", "Basic256", "Basic256Rsa256")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor APPLICATION_NAME = new PropertyDescriptor
+    		.Builder().name("Application Name")
+            .description("The application name is used to label certificates identifying this application")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SCAN_TICK = new PropertyDescriptor
+            .Builder().name("Scan Tick")
+            .description("Resolution of the timing wheel. Scans are started on ticks, so groups due within one tick are read together. "
+            		+ "Scan rates must not be shorter than the tick and should be multiples of it")
+            .required(true)
+            .defaultValue(ScanScheduler.DEFAULT_TICK + " millis")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Write one tag,value,timestamp line per value or one JSON object per value. Timestamps are ISO-8601 in UTC. "
+            		+ "Time Series is a compressed binary batch for numeric tags, DecodeTimeSeries turns it back into lines")
+            .required(true)
+            .allowableValues(ValueWriter.CSV, ValueWriter.JSON, ValueWriter.TIME_SERIES)
+            .defaultValue(ValueWriter.CSV)
+            .build();
+
+    public static final PropertyDescriptor BUFFER_SIZE = new PropertyDescriptor
+            .Builder().name("Buffer Size")
+            .description("Number of values kept between runs, rounded up to a power of two")
+            .required(true)
+            .defaultValue("100000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final String BLOCK = "Block";
+    public static final String DROP_OLDEST = "Drop Oldest";
+    public static final String DROP_NEWEST = "Drop Newest";
+
+    public static final PropertyDescriptor BUFFER_FULL_STRATEGY = new PropertyDescriptor
+            .Builder().name("Buffer Full Strategy")
+            .description("What to do with values when the buffer is full. Block holds the scans up, so they are skipped until "
+            		+ "there is room again. With a spool directory the buffer is emptied into the spool before it fills up")
+            .required(true)
+            .allowableValues(BLOCK, DROP_OLDEST, DROP_NEWEST)
+            .defaultValue(DROP_OLDEST)
+            .build();
+
+    public static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor
+            .Builder().name("Spool Directory")
+            .description("Write the values of every scan as flow files to memory-mapped files in this directory and keep them "
+            		+ "until the processor runs. Spooled flow files survive a restart. Every processor needs its own directory. "
+            		+ "Leave blank to keep the values in the buffer")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_SPOOL_SIZE = new PropertyDescriptor
+            .Builder().name("Max Spool Size")
+            .description("Disk space the spool may take")
+            .required(true)
+            .defaultValue("1 GB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPOOL_FULL_STRATEGY = new PropertyDescriptor
+            .Builder().name("Spool Full Strategy")
+            .description("Whether a full spool makes room by dropping its oldest flow files, a segment of them at a time, or drops new ones")
+            .required(true)
+            .allowableValues(DROP_OLDEST, DROP_NEWEST)
+            .defaultValue(DROP_OLDEST)
+            .build();
+
+    public static final Relationship SUCCESS = new Relationship.Builder()
+            .name("Success")
+            .description("Scanned values, one flow file per scan group")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(ENDPOINT);
+        descriptors.add(SECURITY_POLICY);
+        descriptors.add(APPLICATION_NAME);
+        descriptors.add(SERVER_CERT);
+        descriptors.add(SCAN_TICK);
+        descriptors.add(OUTPUT_FORMAT);
+        descriptors.add(BUFFER_SIZE);
+        descriptors.add(BUFFER_FULL_STRATEGY);
+        descriptors.add(SPOOL_DIRECTORY);
+        descriptors.add(MAX_SPOOL_SIZE);
+        descriptors.add(SPOOL_FULL_STRATEGY);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .description("Scan rate and node ids of the scan group " + propertyDescriptorName)
+                .addValidator(SCAN_GROUP_VALIDATOR)
+                .dynamic(true)
+                .build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+    	final List<ValidationResult> results = new ArrayList<>();
+    	Long tickMillis;
+    	try {
+    		tickMillis = context.getProperty(SCAN_TICK).asTimePeriod(TimeUnit.MILLISECONDS);
+    	} catch (IllegalArgumentException e) {
+    		// Reported by the property's own validator
+    		tickMillis = null;
+    	}
+    	boolean groups = false;
+    	for (Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+    		if (!property.getKey().isDynamic()) {
+    			continue;
+    		}
+    		groups = true;
+    		final ScanScheduler.ScanGroup group;
+    		try {
+    			group = ScanScheduler.ScanGroup.parse(property.getKey().getName(), property.getValue());
+    		} catch (IllegalArgumentException e) {
+    			continue;
+    		}
+    		// A group scanned more often than the wheel ticks would miss scans all the time
+    		if (tickMillis != null && group.getRateMillis() < tickMillis) {
+    			results.add(new ValidationResult.Builder()
+    					.subject(group.getName())
+    					.input(property.getValue())
+    					.valid(false)
+    					.explanation("the scan rate of " + group.getRateMillis() + " millis is shorter than the Scan Tick of "
+    							+ tickMillis + " millis")
+    					.build());
+    		}
+    	}
+    	if (!groups) {
+    		results.add(new ValidationResult.Builder()
+    				.subject("Scan groups")
+    				.valid(false)
+    				.explanation("at least one scan group must be added as a dynamic property")
+    				.build());
+    	}
+    	return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+
+    	final String applicationName = context.getProperty(APPLICATION_NAME).getValue();
+    	final String url = context.getProperty(ENDPOINT).getValue();
+    	final String securityPolicy = context.getProperty(SECURITY_POLICY).getValue();
+    	final String serverCert = context.getProperty(SERVER_CERT).getValue();
+    	final long tickMillis = context.getProperty(SCAN_TICK).asTimePeriod(TimeUnit.MILLISECONDS);
+
+    	final List<ScanScheduler.ScanGroup> groups = new ArrayList<>();
+    	for (Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+    		if (property.getKey().isDynamic()) {
+    			ScanScheduler.ScanGroup group = ScanScheduler.ScanGroup.parse(property.getKey().getName(), property.getValue());
+    			if (group.getRateMillis() % tickMillis != 0) {
+    				getLogger().warn("The scan rate of " + group.getName() + " is not a multiple of the Scan Tick, its scans start up to "
+    						+ tickMillis + " millis late");
+    			}
+    			groups.add(group);
+    		}
+    	}
+
+    	final int bufferSize = context.getProperty(BUFFER_SIZE).asInteger();
+    	final NotificationBuffer.OverflowPolicy overflowPolicy = NotificationBuffer.OverflowPolicy.valueOf(
+    			context.getProperty(BUFFER_FULL_STRATEGY).getValue().toUpperCase().replace(' ', '_'));
+
+    	spool = null;
+    	if (context.getProperty(SPOOL_DIRECTORY).isSet()) {
+    		final long maxBytes = context.getProperty(MAX_SPOOL_SIZE).asDataSize(DataUnit.B).longValue();
+    		final int segmentBytes = (int) Math.min(MAX_SPOOL_SEGMENT, Math.max(1024 * 1024, maxBytes / 4));
+    		try {
+    			spool = new ValueSpool(Paths.get(context.getProperty(SPOOL_DIRECTORY).getValue()), maxBytes, segmentBytes,
+    					DROP_OLDEST.equals(context.getProperty(SPOOL_FULL_STRATEGY).getValue()));
+    		} catch (IOException e) {
+    			throw new ProcessException("Failed to open the spool: " + e.getMessage(), e);
+    		}
+    		if (spool.getBacklog() > 0) {
+    			getLogger().info("Recovered " + spool.getBacklog() + " spooled flow files");
+    		}
+    		reportedDropped = 0;
+    	}
+    	final ValueSpool currentSpool = spool;
+
+		// Certificates and session are set up in the background, onTrigger yields until they are ready
+		scheduler = new WarmUp<ScanScheduler>(() -> {
+			OPCConnection connection = new OPCConnection(Utils.createClient(applicationName, securityPolicy), url, securityPolicy, serverCert);
+			ScanScheduler newScheduler = new ScanScheduler(connection, groups, tickMillis,
+					new NotificationBuffer(bufferSize, overflowPolicy, connection.getMetrics()));
+			if (currentSpool != null) {
+				// Spooled on the scan thread after every scan
+				newScheduler.setDrainer(() -> spoolValues(context, newScheduler, currentSpool));
+			}
+			newScheduler.start();
+			return newScheduler;
+		}, ScanScheduler::close).start();
+	}
+
+    @OnUnscheduled
+	public void onUnscheduled(final ProcessContext context){
+    	final WarmUp<ScanScheduler> warmUp = scheduler;
+    	final ScanScheduler current = warmUp == null ? null : warmUp.get();
+    	if (current != null) {
+    		current.stop();
+    	}
+    }
+
+    @OnStopped
+	public void onStopped(final ProcessContext context){
+    	final WarmUp<ScanScheduler> warmUp = scheduler;
+    	final ScanScheduler current = warmUp == null ? null : warmUp.get();
+    	if (current != null) {
+    		if (spool != null) {
+    			spoolRemaining(context, current, spool);
+    		} else {
+    			flush(context, current);
+    		}
+    	}
+    	if (scheduler != null) {
+    		scheduler.cancel();
+    		scheduler = null;
+    	}
+    	if (spool != null) {
+    		spool.close();
+    		spool = null;
+    	}
+    }
+
+    /**
+     * Spools the values still buffered once scanning has stopped, they are handed on
+     * when the processor runs again.
+     */
+    private void spoolRemaining(final ProcessContext context, final ScanScheduler current, final ValueSpool spool) {
+    	try {
+    		if (!current.awaitStopped(STOP_TIMEOUT)) {
+    			getLogger().warn("Scanning did not stop in time, values scanned from now on are dropped");
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	spoolValues(context, current, spool);
+    }
+
+    private synchronized void spoolValues(final ProcessContext context, final ScanScheduler current, final ValueSpool spool) {
+    	transferValues(context, spoolOutput(spool), current);
+    }
+
+    /**
+     * Writes the values still buffered once scanning has stopped. A buffer that blocks
+     * when full is drained meanwhile so the last scan can be handed over.
+     */
+    private void flush(final ProcessContext context, final ScanScheduler current) {
+    	final ProcessSessionFactory factory = sessionFactory;
+    	if (factory == null) {
+    		if (current.getBuffer().size() > 0) {
+    			getLogger().warn("Dropping " + current.getBuffer().size() + " buffered values, the processor never ran");
+    		}
+    		return;
+    	}
+
+    	final ProcessSession session = factory.createSession();
+    	try {
+    		final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+    		boolean stopped;
+    		do {
+    			transferValues(context, sessionOutput(session), current);
+    			stopped = current.awaitStopped(Math.min(100, Math.max(0, deadline - System.currentTimeMillis())));
+    		} while (!stopped && System.currentTimeMillis() < deadline);
+    		if (!stopped) {
+    			getLogger().warn("Scanning did not stop in time, values scanned from now on are dropped");
+    		}
+    		while (transferValues(context, sessionOutput(session), current) > 0) {
+    			// Until the buffer is empty
+    		}
+    		session.commit();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		session.rollback();
+    	} catch (RuntimeException e) {
+    		getLogger().error("Failed to write the buffered values: " + e.getMessage());
+    		session.rollback();
+    	}
+    }
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+		this.sessionFactory = sessionFactory;
+		final ProcessSession session = sessionFactory.createSession();
+		try {
+			onTrigger(context, session);
+			session.commit();
+		} catch (final Throwable t) {
+			getLogger().error("{} failed to process due to {}; rolling back session", new Object[] {this, t});
+			session.rollback(true);
+			throw t;
+		}
+	}
+
+	private void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+
+		final ComponentLog logger = getLogger();
+		final ValueSpool spool = this.spool;
+		if (spool != null) {
+			// Also hands on what was recovered while the session is still set up
+			drainSpool(context, session, spool);
+		}
+		final ScanScheduler current = scheduler.readyOrYield(context, logger);
+		if (current == null) {
+			return;
+		}
+		Exception failure = current.takeFailure();
+		if (failure != null) {
+			// The scheduler keeps scanning by itself
+			logger.error(failure.getMessage());
+		}
+
+		if (spool == null && transferValues(context, sessionOutput(session), current) == 0) {
+			context.yield();
+		}
+	}
+
+	/**
+	 * Where the values of a group go: straight into the session, or into the spool.
+	 */
+	private interface Output {
+		void values(Map<String, String> attributes, ValueWriter writer);
+	}
+
+	private Output sessionOutput(final ProcessSession session) {
+		return (attributes, writer) -> {
+			FlowFile flowFile = session.create();
+			flowFile = session.write(flowFile, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					writer.writeTo(out);
+				}
+			});
+			flowFile = session.putAllAttributes(flowFile, attributes);
+			session.transfer(flowFile, SUCCESS);
+		};
+	}
+
+	private Output spoolOutput(final ValueSpool spool) {
+		final SpoolBuffer bytes = new SpoolBuffer();
+		return (attributes, writer) -> {
+			bytes.reset();
+			try {
+				writer.writeTo(bytes);
+				spool.append(attributes, bytes.array(), 0, bytes.size());
+			} catch (IOException | IllegalArgumentException e) {
+				getLogger().error("Failed to spool the values of " + attributes.get("opcua.scan.group") + ": " + e.getMessage());
+			}
+		};
+	}
+
+	private static class SpoolBuffer extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Hands spooled flow files on in order, and forgets them once the session is committed.
+	 */
+	private void drainSpool(final ProcessContext context, final ProcessSession session, final ValueSpool current) {
+		final long dropped = current.getDropped();
+		if (dropped > reportedDropped) {
+			getLogger().warn("The spool is full, " + (dropped - reportedDropped) + " flow files were dropped");
+			reportedDropped = dropped;
+		}
+
+		try {
+			final int count = current.read(SPOOL_BATCH_SIZE, (attributes, content) -> {
+				FlowFile flowFile = session.create();
+				flowFile = session.putAllAttributes(flowFile, attributes);
+				flowFile = session.write(flowFile, new OutputStreamCallback() {
+					@Override
+					public void process(OutputStream out) throws IOException {
+						final WritableByteChannel channel = Channels.newChannel(out);
+						while (content.hasRemaining()) {
+							channel.write(content);
+						}
+					}
+				});
+				session.transfer(flowFile, SUCCESS);
+			});
+			if (count == 0) {
+				context.yield();
+				return;
+			}
+			// A crash between the two commits hands the flow files on twice rather than never
+			session.commit();
+			current.commit();
+		} catch (IOException | ProcessException e) {
+			current.rollback();
+			session.rollback();
+			getLogger().error("Failed to hand on spooled flow files: " + e.getMessage());
+			context.yield();
+		}
+	}
+
+	/**
+	 * Drains the buffer into one flow file per group.
+	 *
+	 * @return the number of values drained
+	 */
+	private int transferValues(final ProcessContext context, final Output output, final ScanScheduler current) {
+
+		// Sort the values by group, in the order they were scanned
+		final Map<ScanScheduler.ScanGroup, List<Integer>> handles = new LinkedHashMap<>();
+		final Map<ScanScheduler.ScanGroup, List<DataValue>> values = new LinkedHashMap<>();
+		final NotificationBuffer buffer = current.getBuffer();
+		final int count = buffer.drain((handle, statusCode, sourceTime, serverTime, number, value) -> {
+			ScanScheduler.ScanGroup group = current.groupOf(handle);
+			handles.computeIfAbsent(group, key -> new ArrayList<>()).add(handle);
+			values.computeIfAbsent(group, key -> new ArrayList<>()).add((DataValue) value);
+		}, buffer.getCapacity());
+
+		// The writer is the thread's own, so every group is written out before the next one is serialized
+		final String format = context.getProperty(OUTPUT_FORMAT).getValue();
+		for (Map.Entry<ScanScheduler.ScanGroup, List<DataValue>> entry : values.entrySet()) {
+			final List<Integer> groupHandles = handles.get(entry.getKey());
+			final List<DataValue> groupValues = entry.getValue();
+			final ValueWriter writer = ValueWriter.get(format);
+			for (int i = 0; i < groupValues.size(); i++) {
+				writer.write(current.tagOf(groupHandles.get(i)), groupValues.get(i));
+			}
+			final Map<String, String> attributes = new LinkedHashMap<>();
+			attributes.put("opcua.endpoint", current.getConnection().getUrl());
+			attributes.put("opcua.scan.group", entry.getKey().getName());
+			attributes.put("opcua.scan.rate", String.valueOf(entry.getKey().getRateMillis()));
+			attributes.put("opcua.values.dropped", String.valueOf(buffer.getDropped()));
+			attributes.put("opcua.scans.missed", String.valueOf(current.getMissedScans()));
+			output.values(attributes, writer);
+		}
+		return count;
+	}
+
+}
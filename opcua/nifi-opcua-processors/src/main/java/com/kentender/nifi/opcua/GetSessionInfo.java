@@ -1,26 +1,457 @@
-/**
- * 
- */
 package com.kentender.nifi.opcua;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.ExtensionObject;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.ServerState;
+import org.opcfoundation.ua.core.ServiceCounterDataType;
+import org.opcfoundation.ua.core.SessionDiagnosticsDataType;
+import org.opcfoundation.ua.core.SubscriptionDiagnosticsDataType;
+import org.opcfoundation.ua.encoding.DecodingException;
+
+@Tags({"OPC", "OPCUA", "UA", "diagnostics"})
+@CapabilityDescription("Samples the load of an OPC UA server. Every run reads the server status, the diagnostics summary, "
+		+ "the service level and optionally the session and subscription diagnostics in a single read request "
+		+ "and writes them as one record. Servers only fill the diagnostics while diagnostics are enabled")
+@WritesAttributes({
+	@WritesAttribute(attribute="opcua.endpoint", description="The endpoint that was sampled"),
+	@WritesAttribute(attribute="record.count", description="Always 1")})
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
 
-/**
- * @author wades
- *
- */
 public class GetSessionInfo extends AbstractProcessor {
 
-	/* (non-Javadoc)
-	 * @see org.apache.nifi.processor.AbstractProcessor#onTrigger(org.apache.nifi.processor.ProcessContext, org.apache.nifi.processor.ProcessSession)
-	 */
+	private static final RecordSchema SESSION_SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("sessionId", RecordFieldType.STRING.getDataType()),
+			new RecordField("sessionName", RecordFieldType.STRING.getDataType()),
+			new RecordField("clientApplicationUri", RecordFieldType.STRING.getDataType()),
+			new RecordField("actualSessionTimeout", RecordFieldType.DOUBLE.getDataType()),
+			new RecordField("currentSubscriptionsCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("currentMonitoredItemsCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("currentPublishRequestsInQueue", RecordFieldType.LONG.getDataType()),
+			new RecordField("totalRequestCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("totalRequestErrors", RecordFieldType.LONG.getDataType()),
+			new RecordField("unauthorizedRequestCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("clientConnectionTime", RecordFieldType.TIMESTAMP.getDataType()),
+			new RecordField("clientLastContactTime", RecordFieldType.TIMESTAMP.getDataType())));
+
+	private static final RecordSchema SUBSCRIPTION_SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("sessionId", RecordFieldType.STRING.getDataType()),
+			new RecordField("subscriptionId", RecordFieldType.LONG.getDataType()),
+			new RecordField("priority", RecordFieldType.INT.getDataType()),
+			new RecordField("publishingInterval", RecordFieldType.DOUBLE.getDataType()),
+			new RecordField("publishingEnabled", RecordFieldType.BOOLEAN.getDataType()),
+			new RecordField("maxKeepAliveCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("maxLifetimeCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("maxNotificationsPerPublish", RecordFieldType.LONG.getDataType()),
+			new RecordField("monitoredItemCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("disabledMonitoredItemCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("notificationsCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("dataChangeNotificationsCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("eventNotificationsCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("latePublishRequestCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("unacknowledgedMessageCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("discardedMessageCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("monitoringQueueOverflowCount", RecordFieldType.LONG.getDataType())));
+
+	// Scalar nodes read every time, in the order of their record fields
+	private static final NodeId[] SUMMARY_NODES = {
+			Identifiers.Server_ServerStatus_State,
+			Identifiers.Server_ServerStatus_StartTime,
+			Identifiers.Server_ServerStatus_CurrentTime,
+			Identifiers.Server_ServiceLevel,
+			Identifiers.Server_ServerDiagnostics_EnabledFlag,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_ServerViewCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_CurrentSessionCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_CumulatedSessionCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_SecurityRejectedSessionCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_RejectedSessionCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_SessionTimeoutCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_SessionAbortCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_CurrentSubscriptionCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_CumulatedSubscriptionCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_PublishingIntervalCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_SecurityRejectedRequestsCount,
+			Identifiers.Server_ServerDiagnostics_ServerDiagnosticsSummary_RejectedRequestsCount
+	};
+
+	private static final List<RecordField> SUMMARY_FIELDS = Arrays.asList(
+			new RecordField("state", RecordFieldType.STRING.getDataType()),
+			new RecordField("startTime", RecordFieldType.TIMESTAMP.getDataType()),
+			new RecordField("currentTime", RecordFieldType.TIMESTAMP.getDataType()),
+			new RecordField("serviceLevel", RecordFieldType.INT.getDataType()),
+			new RecordField("diagnosticsEnabled", RecordFieldType.BOOLEAN.getDataType()),
+			new RecordField("serverViewCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("currentSessionCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("cumulatedSessionCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("securityRejectedSessionCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("rejectedSessionCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("sessionTimeoutCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("sessionAbortCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("currentSubscriptionCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("cumulatedSubscriptionCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("publishingIntervalCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("securityRejectedRequestsCount", RecordFieldType.LONG.getDataType()),
+			new RecordField("rejectedRequestsCount", RecordFieldType.LONG.getDataType()));
+
+	private static final RecordSchema SCHEMA;
+	static {
+		List<RecordField> fields = new ArrayList<>();
+		fields.add(new RecordField("endpoint", RecordFieldType.STRING.getDataType()));
+		fields.add(new RecordField("sampleTime", RecordFieldType.TIMESTAMP.getDataType()));
+		fields.addAll(SUMMARY_FIELDS);
+		fields.add(new RecordField("sessions", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.RECORD.getRecordDataType(SESSION_SCHEMA))));
+		fields.add(new RecordField("subscriptions", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.RECORD.getRecordDataType(SUBSCRIPTION_SCHEMA))));
+		SCHEMA = new SimpleRecordSchema(fields);
+	}
+
+	// Built in the background when scheduled
+	private volatile WarmUp<OPCConnection> connection = null;
+
+	public static final PropertyDescriptor ENDPOINT = new PropertyDescriptor
+            .Builder().name("Endpoint URL")
+            .description("the opc.tcp address of the opc ua server")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor SERVER_CERT = new PropertyDescriptor
+            .Builder().name("Certificate for Server application")
+            .description("Certificate in .der format for server Nifi will connect, if left blank Nifi will attempt to retreive the certificate from the server")
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SECURITY_POLICY = new PropertyDescriptor
+            .Builder().name("Security Policy")
+            .description("How should Nifi authenticate with the UA server")
+            .required(true)
+            .allowableValues("None", "Basic128Rsa15", "Basic256", "Basic256Rsa256")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor APPLICATION_NAME = new PropertyDescriptor
+    		.Builder().name("Application Name")
+            .description("The application name is used to label certificates identifying this application")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INCLUDE_SESSIONS = new PropertyDescriptor
+            .Builder().name("Include Session Diagnostics")
+            .description("Add the diagnostics of every session on the server")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+
+    public static final PropertyDescriptor INCLUDE_SUBSCRIPTIONS = new PropertyDescriptor
+            .Builder().name("Include Subscription Diagnostics")
+            .description("Add the diagnostics of every subscription on the server, including publishing intervals and queue overflows")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+            .Builder().name("Record Writer")
+            .description("Writes the sample as a record")
+            .required(true)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+
+    public static final Relationship SUCCESS = new Relationship.Builder()
+            .name("Success")
+            .description("Successful OPC read")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(ENDPOINT);
+        descriptors.add(SECURITY_POLICY);
+        descriptors.add(APPLICATION_NAME);
+        descriptors.add(SERVER_CERT);
+        descriptors.add(INCLUDE_SESSIONS);
+        descriptors.add(INCLUDE_SUBSCRIPTIONS);
+        descriptors.add(RECORD_WRITER);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+
+    	final String applicationName = context.getProperty(APPLICATION_NAME).getValue();
+    	final String url = context.getProperty(ENDPOINT).getValue();
+    	final String securityPolicy = context.getProperty(SECURITY_POLICY).getValue();
+    	final String serverCert = context.getProperty(SERVER_CERT).getValue();
+
+		// Certificates and the session are set up in the background, onTrigger yields until they are ready
+		connection = new WarmUp<OPCConnection>(() -> {
+			OPCConnection newConnection = new OPCConnection(Utils.createClient(applicationName, securityPolicy), url, securityPolicy, serverCert);
+			newConnection.warmUp();
+			return newConnection;
+		}, OPCConnection::close).start();
+	}
+
+    @OnStopped
+	public void onStopped(final ProcessContext context){
+    	if (connection != null) {
+    		connection.cancel();
+    		connection = null;
+    	}
+    }
+
 	@Override
-	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-		// TODO Auto-generated method stub
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+
+		final ComponentLog logger = getLogger();
+		final OPCConnection connection = this.connection.readyOrYield(context, logger);
+		if (connection == null) {
+			return;
+		}
+		final boolean includeSessions = context.getProperty(INCLUDE_SESSIONS).asBoolean();
+		final boolean includeSubscriptions = context.getProperty(INCLUDE_SUBSCRIPTIONS).asBoolean();
+
+		// Everything in one request so the values belong to the same moment
+		final List<ReadValueId> nodesToRead = new ArrayList<>();
+		for (NodeId nodeId : SUMMARY_NODES) {
+			nodesToRead.add(new ReadValueId(nodeId, Attributes.Value, null, null));
+		}
+		if (includeSessions) {
+			nodesToRead.add(new ReadValueId(Identifiers.Server_ServerDiagnostics_SessionsDiagnosticsSummary_SessionDiagnosticsArray, Attributes.Value, null, null));
+		}
+		if (includeSubscriptions) {
+			nodesToRead.add(new ReadValueId(Identifiers.Server_ServerDiagnostics_SubscriptionDiagnosticsArray, Attributes.Value, null, null));
+		}
+
+		final DataValue[] values;
+		try {
+			values = connection.read(nodesToRead.toArray(new ReadValueId[0]), 0);
+		} catch (ServiceResultException e) {
+			logger.error(e.getMessage());
+			context.yield();
+			return;
+		}
+
+		final Map<String, Object> sample = new HashMap<>();
+		sample.put("endpoint", connection.getUrl());
+		sample.put("sampleTime", new Timestamp(System.currentTimeMillis()));
+		for (int i = 0; i < SUMMARY_NODES.length; i++) {
+			Object value = valueOf(values[i]);
+			if (Identifiers.Server_ServerStatus_State.equals(SUMMARY_NODES[i])) {
+				value = stateName(value);
+			}
+			sample.put(SUMMARY_FIELDS.get(i).getFieldName(), toField(SUMMARY_FIELDS.get(i), value));
+		}
+
+		int index = SUMMARY_NODES.length;
+		try {
+			if (includeSessions) {
+				List<Record> sessions = new ArrayList<>();
+				for (ExtensionObject extensionObject : extensionObjects(values[index++])) {
+					sessions.add(toRecord((SessionDiagnosticsDataType) extensionObject.decode(connection.getClient().getEncoderContext())));
+				}
+				sample.put("sessions", sessions.toArray());
+			}
+			if (includeSubscriptions) {
+				List<Record> subscriptions = new ArrayList<>();
+				for (ExtensionObject extensionObject : extensionObjects(values[index++])) {
+					subscriptions.add(toRecord((SubscriptionDiagnosticsDataType) extensionObject.decode(connection.getClient().getEncoderContext())));
+				}
+				sample.put("subscriptions", subscriptions.toArray());
+			}
+		} catch (DecodingException e) {
+			logger.error("Could not decode diagnostics: " + e.getMessage());
+		}
+
+		// Write the sample out as one record
+		final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+		final Map<String, String> attributes = new HashMap<>();
+		FlowFile flowFile = session.create();
+		final FlowFile original = flowFile;
+		try {
+			flowFile = session.write(flowFile, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					try (RecordSetWriter writer = writerFactory.createWriter(logger, writerFactory.getSchema(original.getAttributes(), SCHEMA), out, original)) {
+						writer.beginRecordSet();
+						writer.write(new MapRecord(SCHEMA, sample));
+						WriteResult result = writer.finishRecordSet();
+						attributes.putAll(result.getAttributes());
+						attributes.put("mime.type", writer.getMimeType());
+					} catch (Exception e) {
+						throw new IOException(e);
+					}
+				}
+			});
+		} catch (ProcessException e) {
+			logger.error(e.getMessage());
+			session.remove(flowFile);
+			context.yield();
+			return;
+		}
+
+		attributes.put("opcua.endpoint", connection.getUrl());
+		attributes.put("record.count", "1");
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		session.transfer(flowFile, SUCCESS);
+	}
+
+	private static Object valueOf(DataValue value) {
+		if (value == null || value.getStatusCode() == null || !value.getStatusCode().isGood() || value.getValue() == null) {
+			return null;
+		}
+		return value.getValue().getValue();
+	}
+
+	private static ExtensionObject[] extensionObjects(DataValue value) {
+		Object object = valueOf(value);
+		return object instanceof ExtensionObject[] ? (ExtensionObject[]) object : new ExtensionObject[0];
+	}
+
+	private static Object toField(RecordField field, Object value) {
+		if (value == null) {
+			return null;
+		}
+		switch (field.getDataType().getFieldType()) {
+			case LONG:
+				return value instanceof Number ? ((Number) value).longValue() : null;
+			case INT:
+				return value instanceof Number ? ((Number) value).intValue() : null;
+			case TIMESTAMP:
+				return value instanceof DateTime ? new Timestamp(((DateTime) value).getTimeInMillis()) : null;
+			case BOOLEAN:
+				return value instanceof Boolean ? value : null;
+			case DOUBLE:
+				return value instanceof Number ? ((Number) value).doubleValue() : null;
+			default:
+				return value.toString();
+		}
+	}
+
+	/**
+	 * The ServerState arrives as its Int32 value, the record gets its name, e.g. Running.
+	 */
+	private static Object stateName(Object value) {
+		if (value instanceof Number) {
+			ServerState state = ServerState.valueOf(((Number) value).intValue());
+			return state == null ? value : state.name();
+		}
+		return value;
+	}
+
+	private static Long toLong(Number value) {
+		return value == null ? null : value.longValue();
+	}
+
+	private static Timestamp toTimestamp(DateTime value) {
+		return value == null ? null : new Timestamp(value.getTimeInMillis());
+	}
+
+	private static Record toRecord(SessionDiagnosticsDataType diagnostics) {
+		Map<String, Object> values = new HashMap<>();
+		values.put("sessionId", String.valueOf(diagnostics.getSessionId()));
+		values.put("sessionName", diagnostics.getSessionName());
+		if (diagnostics.getClientDescription() != null) {
+			values.put("clientApplicationUri", diagnostics.getClientDescription().getApplicationUri());
+		}
+		values.put("actualSessionTimeout", diagnostics.getActualSessionTimeout());
+		values.put("currentSubscriptionsCount", toLong(diagnostics.getCurrentSubscriptionsCount()));
+		values.put("currentMonitoredItemsCount", toLong(diagnostics.getCurrentMonitoredItemsCount()));
+		values.put("currentPublishRequestsInQueue", toLong(diagnostics.getCurrentPublishRequestsInQueue()));
+		ServiceCounterDataType totalRequests = diagnostics.getTotalRequestCount();
+		if (totalRequests != null) {
+			values.put("totalRequestCount", toLong(totalRequests.getTotalCount()));
+			values.put("totalRequestErrors", toLong(totalRequests.getErrorCount()));
+		}
+		values.put("unauthorizedRequestCount", toLong(diagnostics.getUnauthorizedRequestCount()));
+		values.put("clientConnectionTime", toTimestamp(diagnostics.getClientConnectionTime()));
+		values.put("clientLastContactTime", toTimestamp(diagnostics.getClientLastContactTime()));
+		return new MapRecord(SESSION_SCHEMA, values);
+	}
 
+	private static Record toRecord(SubscriptionDiagnosticsDataType diagnostics) {
+		Map<String, Object> values = new HashMap<>();
+		values.put("sessionId", String.valueOf(diagnostics.getSessionId()));
+		values.put("subscriptionId", toLong(diagnostics.getSubscriptionId()));
+		values.put("priority", diagnostics.getPriority() == null ? null : diagnostics.getPriority().intValue());
+		values.put("publishingInterval", diagnostics.getPublishingInterval());
+		values.put("publishingEnabled", diagnostics.getPublishingEnabled());
+		values.put("maxKeepAliveCount", toLong(diagnostics.getMaxKeepAliveCount()));
+		values.put("maxLifetimeCount", toLong(diagnostics.getMaxLifetimeCount()));
+		values.put("maxNotificationsPerPublish", toLong(diagnostics.getMaxNotificationsPerPublish()));
+		values.put("monitoredItemCount", toLong(diagnostics.getMonitoredItemCount()));
+		values.put("disabledMonitoredItemCount", toLong(diagnostics.getDisabledMonitoredItemCount()));
+		values.put("notificationsCount", toLong(diagnostics.getNotificationsCount()));
+		values.put("dataChangeNotificationsCount", toLong(diagnostics.getDataChangeNotificationsCount()));
+		values.put("eventNotificationsCount", toLong(diagnostics.getEventNotificationsCount()));
+		values.put("latePublishRequestCount", toLong(diagnostics.getLatePublishRequestCount()));
+		values.put("unacknowledgedMessageCount", toLong(diagnostics.getUnacknowledgedMessageCount()));
+		values.put("discardedMessageCount", toLong(diagnostics.getDiscardedMessageCount()));
+		values.put("monitoringQueueOverflowCount", toLong(diagnostics.getMonitoringQueueOverflowCount()));
+		return new MapRecord(SUBSCRIPTION_SCHEMA, values);
 	}
 
 }
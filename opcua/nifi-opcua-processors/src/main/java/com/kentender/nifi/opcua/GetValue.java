@@ -16,8 +16,6 @@
  */
 package com.kentender.nifi.opcua;
 
-import static org.opcfoundation.ua.utils.EndpointUtil.selectByProtocol;
-import static org.opcfoundation.ua.utils.EndpointUtil.selectBySecurityPolicy;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ComponentLog;
@@ -29,6 +27,7 @@ import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
@@ -40,37 +39,31 @@ import org.apache.nifi.processor.util.StandardValidators;
 import org.opcfoundation.ua.application.Client;
 import org.opcfoundation.ua.application.SessionChannel;
 import org.opcfoundation.ua.builtintypes.DataValue;
-import org.opcfoundation.ua.builtintypes.LocalizedText;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.ServiceRequest;
-import org.opcfoundation.ua.common.ServiceFaultException;
 import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.common.ServiceFaultException;
 import org.opcfoundation.ua.core.ActivateSessionRequest;
 import org.opcfoundation.ua.core.ActivateSessionResponse;
 import org.opcfoundation.ua.core.Attributes;
-import org.opcfoundation.ua.core.EndpointDescription;
-import org.opcfoundation.ua.core.MessageSecurityMode;
-import org.opcfoundation.ua.core.ReadRequest;
-import org.opcfoundation.ua.core.ReadResponse;
 import org.opcfoundation.ua.core.ReadValueId;
-import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.core.StatusCodes;
 import org.opcfoundation.ua.transport.SecureChannel;
-import org.opcfoundation.ua.transport.security.Cert;
-import org.opcfoundation.ua.transport.security.KeyPair;
-import org.opcfoundation.ua.transport.security.SecurityPolicy;
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.security.cert.CertificateException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 @Tags({"OPC", "OPCUA", "UA"})
-@CapabilityDescription("Fetches a response from an OPC UA server based on configured name space and input item names")
+@CapabilityDescription("Fetches a response from an OPC UA server based on configured name space and input item names. "
+		+ "The incoming flow file lists one node id or browse path per line and every line is answered with tag,value,timestamp. "
+		+ "Values read within the Max Age are shared between flow files, concurrent tasks and the GetValue processors reading "
+		+ "the same endpoint")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="", description="")})
 @WritesAttributes({@WritesAttribute(attribute="", description="")})
@@ -79,10 +72,14 @@ import java.util.stream.Collectors;
 
 public class GetValue extends AbstractProcessor {
 	
-	// Create Client
-	private static Client myClient = null;
-	private static SessionChannel mySession = null;
-	private static EndpointDescription endpointDescription = null;
+	// The sessions shared by the concurrent tasks of this processor, one pool per redundant server, built in the background
+	private volatile WarmUp<RedundantServerSet> servers = null;
+	private volatile BrowsePathResolver browsePathResolver = null;
+	private volatile ValueCache valueCache = null;
+	private ValueCache.Reader valueCacheReader = null;
+	
+	public static final String NODE_ID = "Node Id";
+	public static final String BROWSE_PATH = "Browse Path";
 
 	public static final PropertyDescriptor ENDPOINT = new PropertyDescriptor
             .Builder().name("Endpoint URL")
@@ -112,6 +109,152 @@ public class GetValue extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
     
+    public static final PropertyDescriptor REDUNDANT_ENDPOINTS = new PropertyDescriptor
+            .Builder().name("Redundant Endpoints")
+            .description("Comma separated endpoint URLs of the other servers of a redundant server set, for servers that do not "
+            		+ "list their partners or list them by URIs that cannot be looked up")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor DISCOVER_REDUNDANT_SERVERS = new PropertyDescriptor
+            .Builder().name("Discover Redundant Servers")
+            .description("Read the RedundancySupport and ServerUriArray of the server and keep sessions to all servers of its set. "
+            		+ "With Hot redundancy reads are spread over the healthy servers by ServiceLevel, otherwise they go to the server "
+            		+ "with the highest ServiceLevel. Either way reads fail over as soon as a server is lost or degrades")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+    
+    public static final PropertyDescriptor SERVICE_LEVEL_INTERVAL = new PropertyDescriptor
+            .Builder().name("Service Level Interval")
+            .description("How often the ServiceLevel of the servers of a redundant set is read")
+            .required(true)
+            .defaultValue(RedundantServerSet.DEFAULT_SERVICE_LEVEL_INTERVAL + " millis")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor MAX_AGE = new PropertyDescriptor
+            .Builder().name("Max Age")
+            .description("How old a value may be and still be returned instead of reading from the device. Without the Value Cache "
+            		+ "the server's cache answers, with it the Value Cache keeps values read from the device for this long")
+            .required(true)
+            .defaultValue("500 millis")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor VALUE_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("Value Cache Size")
+            .description("Number of values kept for the Max Age, so flow files asking for the same tags within that time share "
+            		+ "one read, and tags read at the same time by several tasks are read once for all of them. The cache is shared "
+            		+ "by all GetValue processors of the node with the same Endpoint URL, Security Policy and Max Age, and is as large "
+            		+ "as the largest of their sizes. 0 reads every flow file's tags from the server")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor VALUE_CACHE_TIMEOUT = new PropertyDescriptor
+            .Builder().name("Value Cache Timeout")
+            .description("How long a task waits for values another task is reading before the flow file fails")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Max Batch Size")
+            .description("Largest number of tags sent in one read request. The server's MaxNodesPerRead lowers it further, "
+            		+ "and within that bound the size adapts to the server's response times")
+            .required(true)
+            .defaultValue(String.valueOf(OPCConnection.MAX_BATCH_SIZE))
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor LATENCY_TARGET = new PropertyDescriptor
+            .Builder().name("Latency Target")
+            .description("Read requests slower than this halve the batch size, faster ones grow it by one tag")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor TAG_ADDRESSING = new PropertyDescriptor
+            .Builder().name("Tag Addressing")
+            .description("Whether the lines of the incoming flow file are node ids like ns=2;s=Temperature or browse paths "
+            		+ "from the Root folder like Objects/2:Line3/Press/Temperature. A browse name without a namespace index "
+            		+ "uses the index of the name before it, 0 for the first. If the path leads nowhere that way, names without "
+            		+ "an index match a browse name in any namespace, so Objects/Line3/Press/Temperature also works; a path that "
+            		+ "then matches more than one node fails")
+            .required(true)
+            .allowableValues(NODE_ID, BROWSE_PATH)
+            .defaultValue(NODE_ID)
+            .build();
+    
+    public static final PropertyDescriptor BROWSE_PATH_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("Browse Path Cache Size")
+            .description("How many resolved browse paths are kept. The cache is cleared when a session is replaced")
+            .required(true)
+            .defaultValue(String.valueOf(BrowsePathResolver.DEFAULT_CACHE_SIZE))
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor REGISTER_AFTER_READS = new PropertyDescriptor
+            .Builder().name("Register Nodes After Reads")
+            .description("Register a node with the server once it was read this many times and read it by the returned handle "
+            		+ "from then on, which many servers answer faster. Registrations are renewed after a reconnect. 0 turns this off")
+            .required(true)
+            .defaultValue("10")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor MAX_REGISTERED_NODES = new PropertyDescriptor
+            .Builder().name("Max Registered Nodes")
+            .description("How many nodes a session keeps registered, the least recently read ones are unregistered first")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Write one tag,value,timestamp line per tag or one JSON object per tag. Timestamps are ISO-8601 in UTC")
+            .required(true)
+            .allowableValues(ValueWriter.CSV, ValueWriter.JSON)
+            .defaultValue(ValueWriter.CSV)
+            .build();
+    
+    public static final String WHOLE_VALUE = "Whole Value";
+    public static final String CHUNKED = "Chunked";
+    
+    public static final PropertyDescriptor ARRAY_READS = new PropertyDescriptor
+            .Builder().name("Array Reads")
+            .description("Read every value in one request, or read large arrays such as waveforms in index range chunks that are "
+            		+ "written to the flow file one by one, so memory is bounded by a chunk. Chunked reads the tags one after the other")
+            .required(true)
+            .allowableValues(WHOLE_VALUE, CHUNKED)
+            .defaultValue(WHOLE_VALUE)
+            .build();
+    
+    public static final PropertyDescriptor ARRAY_CHUNK_SIZE = new PropertyDescriptor
+            .Builder().name("Array Chunk Size")
+            .description("Array elements read per request in chunked mode. 0 derives it from the MaxArrayLength of the server "
+            		+ "and the max message size of the client. A chunk too large for a message is halved and read again")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+    
+    public static final PropertyDescriptor CHUNKED_OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Chunked Output Format")
+            .description("Binary writes per tag its name, status and source time followed by the elements as doubles in "
+            		+ "length prefixed chunks. CSV Column writes one tag,index,value line per element")
+            .required(true)
+            .allowableValues(ChunkedArrayReader.BINARY, ChunkedArrayReader.CSV_COLUMN)
+            .defaultValue(ChunkedArrayReader.BINARY)
+            .build();
+    
     public static final Relationship SUCCESS = new Relationship.Builder()
             .name("Success")
             .description("Successful OPC read")
@@ -125,7 +268,6 @@ public class GetValue extends AbstractProcessor {
     private List<PropertyDescriptor> descriptors;
 
     private Set<Relationship> relationships;
-	private byte[] myNonce;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
@@ -134,6 +276,22 @@ public class GetValue extends AbstractProcessor {
         descriptors.add(SECURITY_POLICY);
         descriptors.add(APPLICATION_NAME);
         descriptors.add(SERVER_CERT);
+        descriptors.add(REDUNDANT_ENDPOINTS);
+        descriptors.add(DISCOVER_REDUNDANT_SERVERS);
+        descriptors.add(SERVICE_LEVEL_INTERVAL);
+        descriptors.add(MAX_AGE);
+        descriptors.add(VALUE_CACHE_SIZE);
+        descriptors.add(VALUE_CACHE_TIMEOUT);
+        descriptors.add(MAX_BATCH_SIZE);
+        descriptors.add(LATENCY_TARGET);
+        descriptors.add(TAG_ADDRESSING);
+        descriptors.add(BROWSE_PATH_CACHE_SIZE);
+        descriptors.add(REGISTER_AFTER_READS);
+        descriptors.add(MAX_REGISTERED_NODES);
+        descriptors.add(OUTPUT_FORMAT);
+        descriptors.add(ARRAY_READS);
+        descriptors.add(ARRAY_CHUNK_SIZE);
+        descriptors.add(CHUNKED_OUTPUT_FORMAT);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -155,141 +313,75 @@ public class GetValue extends AbstractProcessor {
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
     	
-    	final ComponentLog logger = getLogger();
-    	EndpointDescription[] endpointDescriptions = null;
-    	
-    	KeyPair myClientApplicationInstanceCertificate = null;
-    	KeyPair myHttpsCertificate = null;
-    	
-    	// Load Client's certificates from file or create new certs
-		if (context.getProperty(SECURITY_POLICY).getValue() == "None"){
-			// Build OPC Client
-			myClientApplicationInstanceCertificate = null;
-						
-		} else {
-
-			myHttpsCertificate = Utils.getHttpsCert(context.getProperty(APPLICATION_NAME).getValue());
-			
-			// Load or create HTTP and Client's Application Instance Certificate and key
-			switch (context.getProperty(SECURITY_POLICY).getValue()) {
-				
-				case "Basic128Rsa15":{
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC128RSA15);
-					break;
-					
-				}case "Basic256": {
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC256);
-					break;
-					
-				}case "Basic256Rsa256": {
-					myClientApplicationInstanceCertificate = Utils.getCert(context.getProperty(APPLICATION_NAME).getValue(), SecurityPolicy.BASIC256SHA256);
-					break;
-				}
-			}
-		}
+    	final String applicationName = context.getProperty(APPLICATION_NAME).getValue();
+    	final String url = context.getProperty(ENDPOINT).getValue();
+    	final String securityPolicy = context.getProperty(SECURITY_POLICY).getValue();
+    	final String serverCert = context.getProperty(SERVER_CERT).getValue();
+    	final int maxConcurrentTasks = context.getMaxConcurrentTasks();
+		final int maxBatchSize = context.getProperty(MAX_BATCH_SIZE).asInteger();
+		final long latencyTarget = context.getProperty(LATENCY_TARGET).asTimePeriod(TimeUnit.MILLISECONDS);
+		final int registerAfterReads = context.getProperty(REGISTER_AFTER_READS).asInteger();
+		final int maxRegisteredNodes = context.getProperty(MAX_REGISTERED_NODES).asInteger();
+		final List<String> partnerUrls = RedundantServerSet.parseUrls(context.getProperty(REDUNDANT_ENDPOINTS).getValue());
+		final boolean discover = context.getProperty(DISCOVER_REDUNDANT_SERVERS).asBoolean();
+		final long serviceLevelInterval = context.getProperty(SERVICE_LEVEL_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
 		
-		// Create Client
-		myClient = Client.createClientApplication( myClientApplicationInstanceCertificate ); 
-		myClient.getApplication().getHttpsSettings().setKeyPair(myHttpsCertificate);
-		myClient.getApplication().addLocale( Locale.ENGLISH );
-		myClient.getApplication().setApplicationName( new LocalizedText(context.getProperty(APPLICATION_NAME).getValue(), Locale.ENGLISH) );
-		myClient.getApplication().setProductUri( "urn:" + context.getProperty(APPLICATION_NAME).getValue() );
+		browsePathResolver = new BrowsePathResolver(context.getProperty(BROWSE_PATH_CACHE_SIZE).asInteger());
 		
-		// if a certificate is provided
-		if (context.getProperty(SERVER_CERT).getValue() != null){
-			Cert myOwnCert = null;
+		// Certificates and sessions are set up in the background, onTrigger yields until they are ready
+		final WarmUp<RedundantServerSet> warmUp = new WarmUp<RedundantServerSet>(() -> {
+			Client myClient = Utils.createClient(applicationName, securityPolicy);
 			
-			// if a certificate is provided
-			try {
-				File myCertFile = new File(context.getProperty(SERVER_CERT).getValue());
-				myOwnCert = Cert.load(myCertFile);
-				
-			} catch (CertificateException e1) {
-				logger.debug(e1.getMessage());
-			} catch (IOException e1) {
-				logger.debug(e1.getMessage());
-			}
+			// One session per concurrent task so tasks do not queue behind each other on a session
+			RedundantServerSet set = new RedundantServerSet(url, partnerUrls, discover, serviceLevelInterval, serverUrl -> {
+				SessionPool pool = new SessionPool(myClient, serverUrl, securityPolicy, serverCert, maxConcurrentTasks,
+						new AdaptiveBatchSize(Math.min(OPCConnection.DEFAULT_BATCH_SIZE, maxBatchSize), maxBatchSize, latencyTarget));
+				pool.setRegisterAfterReads(registerAfterReads, maxRegisteredNodes);
+				return pool;
+			});
 			
-			// Describe end point
-			endpointDescription = new EndpointDescription();
-			endpointDescription.setEndpointUrl(context.getProperty(ENDPOINT).getValue());
-			endpointDescription.setServerCertificate(myOwnCert.getEncoded());
-			endpointDescription.setSecurityMode(MessageSecurityMode.Sign);
-			switch (context.getProperty(SECURITY_POLICY).getValue()) {
-				case "Basic128Rsa15":{
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.BASIC128RSA15.getPolicyUri());
-					break;
-				}
-				case "Basic256": {
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.BASIC256.getPolicyUri());
-					break;
-				}	
-				case "Basic256Rsa256": {
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.BASIC256SHA256.getPolicyUri());
-					break;
-				}
-				default :{
-					endpointDescription.setSecurityPolicyUri(SecurityPolicy.NONE.getPolicyUri());
-					logger.error("No security mode specified");
-					break;
-				}
-			}
-			
-	 		
-			
-		} else {
-			try {
-				endpointDescriptions = myClient.discoverEndpoints(context.getProperty(ENDPOINT).getValue());
-			} catch (ServiceResultException e1) {
-
-				logger.error(e1.getMessage());
-			}
-			switch (context.getProperty(SECURITY_POLICY).getValue()) {
-			
-				case "Basic128Rsa15":{
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.BASIC128RSA15);
-					break;
-				}
-				case "Basic256": {
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.BASIC256);
-					break;
-				}	
-				case "Basic256Rsa256": {
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.BASIC256SHA256);
-					break;
-				}
-				default :{
-					endpointDescriptions = selectBySecurityPolicy(endpointDescriptions,SecurityPolicy.NONE);
-					logger.error("No security mode specified");
-					break;
-				}
-			}
-			
-			// For now only opc.tcp has been implemented
-			endpointDescriptions = selectByProtocol(endpointDescriptions, "opc.tcp");
-			
-			// set the provided end point url to match the given one ( for local host problem )
-	 		// endpoints[0].setEndpointUrl(url);
-			endpointDescription = endpointDescriptions[0].clone();
-	 	}
-	
+			// Connect now to report configuration problems early
+			set.warmUp();
+			set.start();
+			return set;
+		}, RedundantServerSet::close);
 		
-		try {
-			mySession = myClient.createSessionChannel(endpointDescription);
-		} catch (ServiceResultException e) {
-			// TODO Auto-generated catch block
-			logger.debug("Error while creating initial SessionChannel: ");
-			logger.error(e.getMessage());
+		// Shared with the other processors reading the endpoint, which read through their own sessions
+		final int valueCacheSize = context.getProperty(VALUE_CACHE_SIZE).asInteger();
+		if (valueCacheSize > 0) {
+			valueCacheReader = (nodesToRead, maxAge) -> readThroughPool(warmUp, nodesToRead, maxAge);
+			valueCache = ValueCache.acquire(url, securityPolicy, valueCacheReader,
+					context.getProperty(MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS), valueCacheSize, maxBatchSize);
 		}
+		servers = warmUp.start();
 		
 	}
 
     @OnUnscheduled
 	public void onUnscheduled(final ProcessContext context){
-    	final ComponentLog logger = getLogger();
-    	
     	
+    	// Tasks still running keep their sessions until the processor has stopped
+    	final WarmUp<RedundantServerSet> warmUp = servers;
+    	final RedundantServerSet set = warmUp == null ? null : warmUp.get();
+    	if (set != null) {
+    		set.stop();
+    	}
+
+    }
+
+    @OnStopped
+	public void onStopped(final ProcessContext context){
     	
+    	// Close the sessions so they are no longer counted as open
+    	if (servers != null) {
+    		servers.cancel();
+    		servers = null;
+    	}
+    	if (valueCache != null) {
+    		ValueCache.release(valueCache, valueCacheReader);
+    		valueCache = null;
+    		valueCacheReader = null;
+    	}
 
     }
     
@@ -298,43 +390,33 @@ public class GetValue extends AbstractProcessor {
     	
     	final ComponentLog logger = getLogger();
     	
-    	// Test session and if closed create and activate new session 
-    	try {
-    		mySession.activate();
-  		} catch (ServiceResultException e1) {
-  			
-  			logger.debug("The session " + mySession.getSession().getAuthenticationToken() + " has timed out.");
-  			try {
-  				logger.debug("Creating new session");
-				mySession = myClient.createSessionChannel(endpointDescription);
-				mySession.activate();
-			} catch (ServiceResultException e) {
-				logger.debug("Error while creating new session: ");
-				logger.error(e.getMessage());
-			}
-  			
-  		}
-    	
+    	// Leave the flow files queued until a session is open
+    	final RedundantServerSet servers = this.servers.readyOrYield(context, logger);
+    	if (servers == null) {
+    		return;
+    	}
+    	final BrowsePathResolver browsePathResolver = this.browsePathResolver;
+    	final ValueCache cache = valueCache;
     	    	
     	// Initialize  response variable
-        final AtomicReference<String> reqTagname = new AtomicReference<>();
-        final AtomicReference<String> serverResponse = new AtomicReference<>();
+        final AtomicReference<List<String>> reqTagnames = new AtomicReference<>();
+        final AtomicReference<ValueWriter> serverResponse = new AtomicReference<>();
         
         FlowFile flowFile = session.get();
         if ( flowFile == null ) {
             return;
         }
         
-        // Read tag name from flow file content
+        // Read tag names from flow file content, one per line
         session.read(flowFile, new InputStreamCallback() {
             @Override
             public void process(InputStream in) throws IOException {
             	
                 try{
-                	String tagname = new BufferedReader(new InputStreamReader(in))
-                	  .lines().collect(Collectors.joining("\n"));
+                	List<String> tagnames = new BufferedReader(new InputStreamReader(in))
+                	  .lines().map(String::trim).filter(line -> !line.isEmpty()).collect(Collectors.toList());
 
-                    reqTagname.set(tagname);
+                    reqTagnames.set(tagnames);
                     
                 }catch (Exception e) {
                 	logger.error(e.getMessage());
@@ -344,29 +426,57 @@ public class GetValue extends AbstractProcessor {
             
         });
         
-        // Build nodes to read string 
-
-        ReadValueId[] NodesToRead = { 
-				new ReadValueId(NodeId.parseNodeId(reqTagname.get()), Attributes.Value, null, null )
-		};
+        final List<String> tagnames = reqTagnames.get();
+        final boolean browsePaths = BROWSE_PATH.equals(context.getProperty(TAG_ADDRESSING).getValue());
         
-        // Form OPC request
-  		ReadRequest req = new ReadRequest();		
-  		req.setMaxAge(500.00);
-  		req.setTimestampsToReturn(TimestampsToReturn.Both);
-  		req.setRequestHeader(null);
-  		req.setNodesToRead(NodesToRead);
-
-  		// Submit OPC Read and handle response
+  		// Submit OPC Read on a session of our own and handle response
+        final OPCConnection connection = servers.acquire();
   		try{
-  			ReadResponse readResponse = mySession.Read(req);
-            DataValue[] values = readResponse.getResults();
+  			// Build nodes to read, browse paths are resolved in batches and cached
+  			ReadValueId[] NodesToRead = new ReadValueId[tagnames.size()];
+  			NodeId[] nodeIds = browsePaths ? servers.call(connection, member -> browsePathResolver.resolve(member, tagnames)) : null;
+  			for (int i = 0; i < NodesToRead.length; i++) {
+  				NodeId nodeId = browsePaths ? nodeIds[i] : NodeId.parseNodeId(tagnames.get(i));
+  				NodesToRead[i] = new ReadValueId(nodeId, Attributes.Value, null, null );
+  			}
+  			
+  			if (CHUNKED.equals(context.getProperty(ARRAY_READS).getValue())) {
+  				// A failed write leaves the content as it was, so the other server starts over
+  				final FlowFile original = flowFile;
+  				flowFile = servers.call(connection, member -> writeChunked(context, session, original, member, tagnames, NodesToRead));
+  				session.transfer(flowFile, SUCCESS);
+  				return;
+  			}
+  			
+            DataValue[] values = cache == null
+            		? servers.read(connection, NodesToRead, context.getProperty(MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS))
+            		: readCached(cache, NodesToRead, context.getProperty(VALUE_CACHE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS));
+            
+            // A node that disappeared after a model change is resolved again next time
+            if (browsePaths) {
+            	for (int i = 0; i < values.length; i++) {
+            		if (StatusCodes.Bad_NodeIdUnknown.equals(values[i].getStatusCode().getValue())) {
+            			browsePathResolver.evict(tagnames.get(i));
+            		}
+            	}
+            }
             // TODO need to check the result for errors and other quality issues
-            serverResponse.set(reqTagname.get() + "," + values[0].getValue().toString()  + ","+ values[0].getServerTimestamp().toString() );
+            final ValueWriter writer = ValueWriter.get(context.getProperty(OUTPUT_FORMAT).getValue());
+            for (int i = 0; i < values.length; i++) {
+            	writer.write(tagnames.get(i), values[i]);
+            }
+            serverResponse.set(writer);
               
           }catch (Exception e) {
         	logger.error(e.getMessage());
+        	// The next flow file goes to another server if this one is gone
+        	if (!connection.isReady()) {
+        		servers.failed(connection);
+        	}
   			session.transfer(flowFile, FAILURE);
+  			return;
+  		}finally {
+  			servers.release(connection);
   		}
   		
         // Write the results back out to flow file
@@ -374,7 +484,7 @@ public class GetValue extends AbstractProcessor {
 
             @Override
             public void process(OutputStream out) throws IOException {
-            	out.write(serverResponse.get().getBytes());
+            	serverResponse.get().writeTo(out);
             	
             }
             
@@ -384,4 +494,78 @@ public class GetValue extends AbstractProcessor {
         
     }
     
+    /**
+     * Takes the values from the cache, joining reads other tasks have in flight.
+     */
+    private static DataValue[] readCached(final ValueCache cache, final ReadValueId[] nodesToRead, final long timeoutMillis) throws ServiceResultException {
+    	final List<NodeId> nodeIds = new ArrayList<>(nodesToRead.length);
+    	for (ReadValueId nodeToRead : nodesToRead) {
+    		nodeIds.add(nodeToRead.getNodeId());
+    	}
+    	final Map<NodeId, DataValue> cached = cache.getAll(nodeIds, timeoutMillis);
+    	final DataValue[] values = new DataValue[nodesToRead.length];
+    	for (int i = 0; i < values.length; i++) {
+    		values[i] = cached.get(nodesToRead[i].getNodeId());
+    	}
+    	return values;
+    }
+    
+    /**
+     * Reads for the cache on whichever session is free.
+     */
+    private static DataValue[] readThroughPool(final WarmUp<RedundantServerSet> warmUp, final ReadValueId[] nodesToRead,
+    		final double maxAge) throws ServiceResultException {
+    	final RedundantServerSet set = warmUp.get();
+    	if (set == null) {
+    		throw new ServiceResultException(StatusCodes.Bad_ServerNotConnected, "The processor is not scheduled");
+    	}
+    	final OPCConnection connection = set.acquire();
+    	try {
+    		return set.read(connection, nodesToRead, maxAge);
+    	} finally {
+    		set.release(connection);
+    	}
+    }
+    
+    /**
+     * Streams the values chunk by chunk into the flow file, reading while writing.
+     * A failed read is thrown as it is, so the caller can tell a lost session.
+     */
+    private FlowFile writeChunked(final ProcessContext context, final ProcessSession session, final FlowFile flowFile,
+    		final OPCConnection connection, final List<String> tagnames, final ReadValueId[] nodesToRead) throws ServiceResultException {
+    	
+    	final ChunkedArrayReader reader = new ChunkedArrayReader(connection, 
+    			context.getProperty(ARRAY_CHUNK_SIZE).asInteger(), 
+    			context.getProperty(CHUNKED_OUTPUT_FORMAT).getValue(), 
+    			context.getProperty(MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS));
+    	final long[] elements = new long[1];
+    	FlowFile written;
+    	try {
+    		written = session.write(flowFile, new OutputStreamCallback() {
+
+    			@Override
+    			public void process(OutputStream out) throws IOException {
+    				try {
+    					for (int i = 0; i < nodesToRead.length; i++) {
+    						elements[0] += reader.read(nodesToRead[i].getNodeId(), tagnames.get(i), out);
+    					}
+    				} catch (ServiceResultException e) {
+    					throw new IOException(e.getMessage(), e);
+    				}
+    			}
+
+    		});
+    	} catch (ProcessException e) {
+    		if (e.getCause() instanceof IOException && e.getCause().getCause() instanceof ServiceResultException) {
+    			throw (ServiceResultException) e.getCause().getCause();
+    		}
+    		throw e;
+    	}
+    	written = session.putAttribute(written, "opcua.array.elements", String.valueOf(elements[0]));
+    	if (ChunkedArrayReader.BINARY.equals(context.getProperty(CHUNKED_OUTPUT_FORMAT).getValue())) {
+    		written = session.putAttribute(written, "mime.type", "application/octet-stream");
+    	}
+    	return written;
+    }
+    
 }
@@ -0,0 +1,199 @@
+package com.kentender.nifi.opcua;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.lookup.RecordLookupService;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.opcfoundation.ua.application.Client;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.StatusCodes;
+
+@Tags({"OPC", "OPCUA", "UA", "lookup", "enrich", "cache"})
+@CapabilityDescription("Looks up the current value of a node id on an OPC UA server. Values are cached for the max age, lookups of a "
+		+ "node that is already being read wait for that read, and the misses of concurrent lookups are read with one request")
+@SeeAlso({GetValue.class, AddressSpaceLookupService.class})
+public class LiveValueLookupService extends AbstractControllerService implements RecordLookupService {
+
+	public static final String KEY = "key";
+
+	private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("nodeId", RecordFieldType.STRING.getDataType()),
+			new RecordField("value", RecordFieldType.CHOICE.getChoiceDataType(
+					RecordFieldType.LONG.getDataType(),
+					RecordFieldType.DOUBLE.getDataType(),
+					RecordFieldType.BOOLEAN.getDataType(),
+					RecordFieldType.STRING.getDataType())),
+			new RecordField("statusCode", RecordFieldType.LONG.getDataType()),
+			new RecordField("sourceTimestamp", RecordFieldType.TIMESTAMP.getDataType()),
+			new RecordField("serverTimestamp", RecordFieldType.TIMESTAMP.getDataType())));
+
+	public static final PropertyDescriptor MAX_AGE = new PropertyDescriptor
+            .Builder().name("Max Age")
+            .description("How long a value is served from the cache before it is read again. The server is asked for values "
+            		+ "no older than this as well")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("Cache Size")
+            .description("Number of node values to keep. Values nobody looked up for a while are dropped first")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Max Batch Size")
+            .description("Largest number of cache misses read together. The server's MaxNodesPerRead splits them into smaller requests")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor REQUEST_TIMEOUT = new PropertyDescriptor
+            .Builder().name("Request Timeout")
+            .description("How long a lookup waits for its value before it fails")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+	private static final List<PropertyDescriptor> DESCRIPTORS = Collections.unmodifiableList(Arrays.asList(
+			GetValue.ENDPOINT, GetValue.SECURITY_POLICY, GetValue.APPLICATION_NAME, GetValue.SERVER_CERT,
+			MAX_AGE, CACHE_SIZE, MAX_BATCH_SIZE, REQUEST_TIMEOUT));
+
+	private volatile OPCConnection connection = null;
+	private volatile ValueCache cache = null;
+	private volatile long timeoutMillis = 0;
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return DESCRIPTORS;
+	}
+
+	@OnEnabled
+	public void onEnabled(final ConfigurationContext context) {
+		Client myClient = Utils.createClient(context.getProperty(GetValue.APPLICATION_NAME).getValue(), context.getProperty(GetValue.SECURITY_POLICY).getValue());
+		connection = new OPCConnection(myClient,
+				context.getProperty(GetValue.ENDPOINT).getValue(),
+				context.getProperty(GetValue.SECURITY_POLICY).getValue(),
+				context.getProperty(GetValue.SERVER_CERT).getValue());
+
+		cache = new ValueCache(this::read,
+				context.getProperty(MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS),
+				context.getProperty(CACHE_SIZE).asInteger(),
+				context.getProperty(MAX_BATCH_SIZE).asInteger());
+		timeoutMillis = context.getProperty(REQUEST_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+
+		// Connect in the background, lookups wait for the session up to the timeout
+		connection.warmUp();
+	}
+
+	@OnDisabled
+	public void onDisabled() {
+		if (connection != null) {
+			connection.close();
+			connection = null;
+		}
+		cache = null;
+	}
+
+	private DataValue[] read(ReadValueId[] nodesToRead, double maxAge) throws ServiceResultException {
+		final OPCConnection current = connection;
+		if (current == null) {
+			throw new ServiceResultException(StatusCodes.Bad_ServerNotConnected, "Service is disabled");
+		}
+		// Split further if the server allows fewer nodes per request
+		return current.read(nodesToRead, maxAge);
+	}
+
+	@Override
+	public Optional<Record> lookup(Map<String, Object> coordinates) throws LookupFailureException {
+		Object key = coordinates == null ? null : coordinates.get(KEY);
+		if (key == null) {
+			return Optional.empty();
+		}
+		final ValueCache current = cache;
+		if (current == null) {
+			throw new LookupFailureException("The service is disabled");
+		}
+
+		NodeId nodeId;
+		try {
+			nodeId = NodeId.parseNodeId(key.toString());
+		} catch (IllegalArgumentException e) {
+			return Optional.empty();
+		}
+
+		DataValue value;
+		try {
+			value = current.get(nodeId, timeoutMillis);
+		} catch (ServiceResultException e) {
+			throw new LookupFailureException(e.getMessage(), e);
+		}
+		if (value == null) {
+			return Optional.empty();
+		}
+
+		Map<String, Object> values = new HashMap<>();
+		values.put("nodeId", key.toString());
+		values.put("value", toFieldValue(value.getValue() == null ? null : value.getValue().getValue()));
+		values.put("statusCode", value.getStatusCode() == null ? null : value.getStatusCode().getValue().longValue());
+		values.put("sourceTimestamp", toTimestamp(value.getSourceTimestamp()));
+		values.put("serverTimestamp", toTimestamp(value.getServerTimestamp()));
+		return Optional.of(new MapRecord(SCHEMA, values));
+	}
+
+	private static Object toFieldValue(Object value) {
+		if (value == null || value instanceof Boolean) {
+			return value;
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return ((Number) value).doubleValue();
+		}
+		if (value instanceof Number) {
+			// Also the unsigned types of the stack
+			return ((Number) value).longValue();
+		}
+		return value.toString();
+	}
+
+	private static Timestamp toTimestamp(DateTime dateTime) {
+		return dateTime == null ? null : new Timestamp(dateTime.getTimeInMillis());
+	}
+
+	@Override
+	public Set<String> getRequiredKeys() {
+		return Collections.singleton(KEY);
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opcfoundation.ua.application.SessionChannel;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.RegisterNodesRequest;
+import org.opcfoundation.ua.core.UnregisterNodesRequest;
+
+/**
+ * Registers the nodes a connection reads often with RegisterNodes and hands out the
+ * returned handles in their place.
+ *
+ * A node is registered once it was read a given number of times. Of the read counts
+ * the least recently counted are forgotten first, at four times the capacity. The registered nodes
+ * are kept in least recently used order and the ones pushed out are unregistered.
+ * Handles are only valid in the session that registered them, so after a reconnect
+ * all registered nodes are registered again on the new session.
+ */
+public class NodeRegistrations {
+
+	private final OPCConnection connection;
+	private final int registerAfterReads;
+	private final int capacity;
+
+	private final Map<NodeId, Integer> readCounts;
+	private final LinkedHashMap<NodeId, NodeId> handles = new LinkedHashMap<>(16, 0.75f, true);
+	private long generation = -1;
+
+	public NodeRegistrations(OPCConnection connection, int registerAfterReads, int capacity) {
+		this.connection = connection;
+		this.registerAfterReads = registerAfterReads;
+		this.capacity = capacity;
+
+		// Do not let one-off reads of many different nodes pile up, nor push out the counts of nodes read all the time
+		this.readCounts = new LinkedHashMap<NodeId, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<NodeId, Integer> eldest) {
+				return size() > capacity * 4;
+			}
+		};
+	}
+
+	/**
+	 * Counts a read of the given nodes and returns the ids to send, the registered
+	 * handle where there is one and the node id itself otherwise.
+	 */
+	public synchronized NodeId[] translate(NodeId[] nodeIds) throws ServiceResultException {
+		List<NodeId> toRegister = new ArrayList<>();
+
+		// Make sure the session exists before comparing generations
+		connection.getSession();
+
+		// The handles died with the old session
+		if (generation != connection.getSessionGeneration()) {
+			generation = connection.getSessionGeneration();
+			toRegister.addAll(handles.keySet());
+			handles.clear();
+		}
+
+		for (NodeId nodeId : nodeIds) {
+			if (handles.containsKey(nodeId)) {
+				continue;
+			}
+			int count = readCounts.merge(nodeId, 1, Integer::sum);
+			if (count == registerAfterReads) {
+				readCounts.remove(nodeId);
+				toRegister.add(nodeId);
+			}
+		}
+		if (!toRegister.isEmpty()) {
+			register(toRegister);
+			// Registering may have needed a new session
+			generation = connection.getSessionGeneration();
+		}
+
+		NodeId[] translated = new NodeId[nodeIds.length];
+		for (int i = 0; i < nodeIds.length; i++) {
+			NodeId handle = handles.get(nodeIds[i]);
+			translated[i] = handle == null ? nodeIds[i] : handle;
+		}
+		return translated;
+	}
+
+	private void register(List<NodeId> nodeIds) {
+		int offset = 0;
+		while (offset < nodeIds.size()) {
+			int count = Math.min(nodeIds.size() - offset,
+					OperationLimits.cap(capacity, connection.getOperationLimits().getMaxNodesPerRegisterNodes()));
+			final NodeId[] batch = nodeIds.subList(offset, offset + count).toArray(new NodeId[0]);
+			NodeId[] registered;
+			try {
+				registered = connection.call(session -> session.RegisterNodes(new RegisterNodesRequest(null, batch))).getRegisteredNodeIds();
+			} catch (ServiceResultException e) {
+				// Reading by node id still works, try again after the next threshold
+				return;
+			}
+			for (int i = 0; i < batch.length && i < registered.length; i++) {
+				handles.put(batch[i], registered[i]);
+			}
+			offset += count;
+		}
+
+		if (handles.size() > capacity) {
+			List<NodeId> evicted = new ArrayList<>();
+			Iterator<NodeId> iterator = handles.values().iterator();
+			while (handles.size() > capacity) {
+				evicted.add(iterator.next());
+				iterator.remove();
+			}
+			unregister(evicted.toArray(new NodeId[0]));
+		}
+	}
+
+	private void unregister(final NodeId[] registered) {
+		try {
+			connection.call(session -> session.UnregisterNodes(new UnregisterNodesRequest(null, registered)));
+		} catch (ServiceResultException e) {
+			// The server drops them with the session anyway
+		}
+	}
+
+	/**
+	 * Unregisters everything on the given session, without reconnecting if it is gone.
+	 */
+	public synchronized void unregisterAll(SessionChannel session) {
+		if (!handles.isEmpty() && generation == connection.getSessionGeneration()) {
+			NodeId[] registered = handles.values().toArray(new NodeId[0]);
+			int step = OperationLimits.cap(registered.length, connection.getOperationLimits().getMaxNodesPerRegisterNodes());
+			for (int offset = 0; offset < registered.length; offset += step) {
+				try {
+					session.UnregisterNodes(new UnregisterNodesRequest(null,
+							Arrays.copyOfRange(registered, offset, Math.min(registered.length, offset + step))));
+				} catch (ServiceResultException e) {
+					break;
+				}
+			}
+		}
+		handles.clear();
+		readCounts.clear();
+	}
+
+	public synchronized int size() {
+		return handles.size();
+	}
+
+}
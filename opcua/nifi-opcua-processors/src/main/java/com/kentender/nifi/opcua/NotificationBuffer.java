@@ -0,0 +1,244 @@
+package com.kentender.nifi.opcua;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded buffer that hands notifications from the stack's I/O threads to onTrigger.
+ *
+ * It is a ring of fixed slots in the style of D. Vyukov's bounded queue: producers
+ * and the consumer claim positions with a compare and set and a per slot sequence
+ * number publishes the slot, so nobody takes a lock. The values are kept in parallel
+ * primitive arrays, numbers never get boxed and only other values are kept as objects.
+ *
+ * When the ring is full the overflow policy decides whether the newest value is
+ * dropped, the oldest value is dropped to make room, or the producer waits.
+ */
+public class NotificationBuffer {
+
+	public enum OverflowPolicy {
+		DROP_OLDEST, DROP_NEWEST, BLOCK
+	}
+
+	/**
+	 * Receives drained notifications. Exactly one of number and value is meaningful,
+	 * value is null for numeric notifications.
+	 */
+	public interface Sink {
+		void accept(int handle, int statusCode, long sourceTime, long serverTime, double number, Object value);
+	}
+
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final int capacity;
+	private final int mask;
+	private final OverflowPolicy overflowPolicy;
+	private final OPCMetrics metrics;
+
+	private final AtomicLongArray sequences;
+	private final int[] handles;
+	private final int[] statusCodes;
+	private final long[] sourceTimes;
+	private final long[] serverTimes;
+	private final double[] numbers;
+	private final Object[] values;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private volatile boolean closed = false;
+
+	// Only touched by the draining thread
+	private long reportedDepth = 0;
+	private long reportedDropped = 0;
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 * @param metrics the endpoint's metrics to report depth and drops to, or null
+	 */
+	public NotificationBuffer(int capacity, OverflowPolicy overflowPolicy, OPCMetrics metrics) {
+		int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.overflowPolicy = overflowPolicy;
+		this.metrics = metrics;
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.handles = new int[size];
+		this.statusCodes = new int[size];
+		this.sourceTimes = new long[size];
+		this.serverTimes = new long[size];
+		this.numbers = new double[size];
+		this.values = new Object[size];
+	}
+
+	/**
+	 * Adds a numeric value. Returns false if the value was dropped.
+	 */
+	public boolean offer(int handle, int statusCode, long sourceTime, long serverTime, double number) {
+		return offer(handle, statusCode, sourceTime, serverTime, number, null);
+	}
+
+	/**
+	 * Adds a value of any other type. Returns false if the value was dropped.
+	 */
+	public boolean offer(int handle, int statusCode, long sourceTime, long serverTime, Object value) {
+		return offer(handle, statusCode, sourceTime, serverTime, 0, value);
+	}
+
+	private boolean offer(int handle, int statusCode, long sourceTime, long serverTime, double number, Object value) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+
+			if (sequence == position) {
+				if (!tail.compareAndSet(position, position + 1)) {
+					continue;
+				}
+				handles[index] = handle;
+				statusCodes[index] = statusCode;
+				sourceTimes[index] = sourceTime;
+				serverTimes[index] = serverTime;
+				numbers[index] = number;
+				values[index] = value;
+				// Publishes the slot to the consumer
+				sequences.set(index, position + 1);
+				return true;
+			}
+
+			if (sequence < position) {
+				// Full
+				if (closed) {
+					dropped.increment();
+					return false;
+				}
+				switch (overflowPolicy) {
+					case DROP_NEWEST:
+						dropped.increment();
+						return false;
+					case DROP_OLDEST:
+						if (poll(null)) {
+							dropped.increment();
+						}
+						break;
+					case BLOCK:
+						LockSupport.parkNanos(BLOCK_PARK_NANOS);
+						if (Thread.currentThread().isInterrupted()) {
+							dropped.increment();
+							return false;
+						}
+						break;
+				}
+			}
+			// Otherwise another producer moved the tail, try again
+		}
+	}
+
+	/**
+	 * Takes the oldest notification and hands it to the sink if there is one.
+	 * Returns false if the buffer is empty.
+	 */
+	private boolean poll(Sink sink) {
+		while (true) {
+			long position = head.get();
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+
+			if (sequence == position + 1) {
+				if (!head.compareAndSet(position, position + 1)) {
+					continue;
+				}
+				Object value = values[index];
+				if (sink != null) {
+					sink.accept(handles[index], statusCodes[index], sourceTimes[index], serverTimes[index], numbers[index], value);
+				}
+				values[index] = null;
+				// Frees the slot for the producer one lap later
+				sequences.set(index, position + capacity);
+				return true;
+			}
+			if (sequence < position + 1) {
+				// Empty, or a producer has claimed the slot but not published it yet
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Hands up to max notifications to the sink, oldest first, and returns how many.
+	 * Meant to be called from onTrigger, which should drain in large batches.
+	 */
+	public int drain(Sink sink, int max) {
+		int count = 0;
+		while (count < max && poll(sink)) {
+			count++;
+		}
+		reportMetrics();
+		return count;
+	}
+
+	private void reportMetrics() {
+		if (metrics == null) {
+			return;
+		}
+		long depth = size();
+		if (depth > reportedDepth) {
+			metrics.queued(depth - reportedDepth);
+		} else if (depth < reportedDepth) {
+			metrics.dequeued(reportedDepth - depth);
+		}
+		reportedDepth = depth;
+
+		long droppedSoFar = dropped.sum();
+		if (droppedSoFar > reportedDropped) {
+			metrics.dropped(droppedSoFar - reportedDropped);
+			reportedDropped = droppedSoFar;
+		}
+	}
+
+	/**
+	 * Stops producers from blocking, values offered to a full buffer are dropped from now on.
+	 * Also takes the buffer's remaining depth out of the metrics.
+	 */
+	public void close() {
+		closed = true;
+		if (metrics != null && reportedDepth > 0) {
+			metrics.dequeued(reportedDepth);
+			reportedDepth = 0;
+		}
+	}
+
+	/**
+	 * Number of notifications waiting, may be slightly off while producers are active.
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(capacity, size));
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Share of the capacity in use, between 0 and 1.
+	 */
+	public double getOccupancy() {
+		return (double) size() / capacity;
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+}
@@ -0,0 +1,449 @@
+package com.kentender.nifi.opcua;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opcfoundation.ua.application.Client;
+import org.opcfoundation.ua.application.Session;
+import org.opcfoundation.ua.application.SessionChannel;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.CloseSessionRequest;
+import org.opcfoundation.ua.core.EndpointDescription;
+import org.opcfoundation.ua.core.NotificationMessage;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.core.ReadRequest;
+import org.opcfoundation.ua.core.ReadResponse;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.RepublishRequest;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.core.TransferResult;
+import org.opcfoundation.ua.core.TransferSubscriptionsRequest;
+import org.opcfoundation.ua.transport.SecureChannel;
+
+/**
+ * One session to one OPC UA endpoint.
+ *
+ * The endpoint is described and the session is created on first use. A failed
+ * service call drops the session so the next call connects again, reusing the
+ * secure channel and transferring subscriptions where possible. The operation
+ * limits of the server are read with every new session and bound the size of the
+ * requests, within those limits the size adapts to the observed latency.
+ */
+public class OPCConnection implements WarmUp.Connectable {
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final int MAX_BATCH_SIZE = 10000;
+	public static final long DEFAULT_LATENCY_TARGET = 1000;
+
+	private final Client myClient;
+	private final String url;
+	private final String securityPolicy;
+	private final String serverCert;
+	private final OPCMetrics metrics;
+	private final AdaptiveBatchSize batchSize;
+	private final ReconnectBackoff backoff;
+	private final Map<UnsignedInteger, SubscriptionListener> subscriptions = new ConcurrentHashMap<>();
+
+	private EndpointDescription endpointDescription = null;
+	private volatile SessionChannel mySession = null;
+	private SecureChannel lastChannel = null;
+	private boolean connectedBefore = false;
+	private volatile long sessionGeneration = 0;
+	private volatile OperationLimits operationLimits = OperationLimits.UNLIMITED;
+	private volatile NodeRegistrations registrations = null;
+	private final AtomicBoolean warmingUp = new AtomicBoolean();
+	private final AtomicReference<ServiceResultException> warmUpFailure = new AtomicReference<>();
+
+	public OPCConnection(Client myClient, String url, String securityPolicy, String serverCert) {
+		this(myClient, url, securityPolicy, serverCert, new AdaptiveBatchSize(DEFAULT_BATCH_SIZE, MAX_BATCH_SIZE, DEFAULT_LATENCY_TARGET));
+	}
+
+	public OPCConnection(Client myClient, String url, String securityPolicy, String serverCert, AdaptiveBatchSize batchSize) {
+		this.myClient = myClient;
+		this.url = url;
+		this.securityPolicy = securityPolicy;
+		this.serverCert = serverCert;
+		this.metrics = OPCMetrics.forEndpoint(url);
+		this.batchSize = batchSize;
+		this.backoff = ReconnectBackoff.forEndpoint(url);
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public Client getClient() {
+		return myClient;
+	}
+
+	public OPCMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Is told what became of a subscription when the session had to be replaced.
+	 */
+	public interface SubscriptionListener {
+
+		/**
+		 * The subscription was moved to the new session. Notifications sent in the meantime
+		 * can be fetched with republish.
+		 */
+		void transferred(UnsignedInteger subscriptionId, UnsignedInteger[] availableSequenceNumbers);
+
+		/**
+		 * The subscription could not be moved and has to be created again.
+		 */
+		void lost(UnsignedInteger subscriptionId);
+	}
+
+	/**
+	 * Returns the active session, creating and activating a new one if there is none.
+	 *
+	 * Reconnect attempts are paced by the endpoint's ReconnectBackoff. While it holds
+	 * attempts back this fails fast with Bad_ServerNotConnected.
+	 */
+	public synchronized SessionChannel getSession() throws ServiceResultException {
+		if (mySession != null) {
+			return mySession;
+		}
+
+		if (!backoff.tryBeginAttempt()) {
+			throw new ServiceResultException(StatusCodes.Bad_ServerNotConnected, 
+					"Reconnecting to " + url + " is backed off for another " + backoff.getRemainingDelay() + " ms");
+		}
+
+		// Any failure ends the attempt, otherwise the backoff stays probing and holds every later attempt back
+		SessionChannel newSession = null;
+		try {
+			newSession = connect();
+		} finally {
+			if (newSession == null) {
+				backoff.failed();
+			}
+		}
+		backoff.succeeded();
+
+		// Limits may change when the server restarts, so read them again for every session
+		try {
+			operationLimits = OperationLimits.read(newSession);
+		} catch (ServiceResultException e) {
+			operationLimits = OperationLimits.UNLIMITED;
+		}
+		batchSize.limit(operationLimits.getMaxNodesPerRead());
+
+		metrics.sessionOpened();
+		mySession = newSession;
+		sessionGeneration++;
+
+		if (connectedBefore && !subscriptions.isEmpty()) {
+			transferSubscriptions(newSession);
+		}
+		connectedBefore = true;
+		return mySession;
+	}
+
+	/**
+	 * Creates and activates a session, on the previous secure channel if that is still open.
+	 */
+	private SessionChannel connect() throws ServiceResultException {
+
+		// A session that timed out or was closed by the server leaves the secure channel usable
+		if (lastChannel != null) {
+			SecureChannel channel = lastChannel;
+			lastChannel = null;
+			if (channel.isOpen()) {
+				try {
+					Session session = myClient.createSession(channel);
+					SessionChannel sessionChannel = session.createSessionChannel(channel, myClient);
+					sessionChannel.activate();
+					return sessionChannel;
+				} catch (ServiceResultException e) {
+					// Fall back to a new secure channel
+				}
+			}
+			channel.close();
+		}
+
+		if (endpointDescription == null) {
+			endpointDescription = Utils.getEndpoint(myClient, url, securityPolicy, serverCert);
+		}
+
+		SessionChannel newSession = myClient.createSessionChannel(endpointDescription);
+		try {
+			newSession.activate();
+		} catch (ServiceResultException e) {
+			newSession.closeAsync();
+			throw e;
+		}
+		if (connectedBefore) {
+			metrics.secureChannelRenewed();
+		}
+		return newSession;
+	}
+
+	/**
+	 * Whether a session is open, so a call will not have to connect first.
+	 */
+	@Override
+	public boolean isReady() {
+		return mySession != null;
+	}
+
+	/**
+	 * Connects on the shared executor unless connected or already connecting, so callers
+	 * can check isReady and yield instead of blocking on a slow or unreachable server.
+	 * Attempts are paced by the endpoint's ReconnectBackoff like any other.
+	 */
+	@Override
+	public void warmUp() {
+		if (mySession != null || !warmingUp.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			OPCExecutors.shared().execute(() -> {
+				try {
+					getSession();
+				} catch (ServiceResultException e) {
+					warmUpFailure.set(e);
+				} finally {
+					warmingUp.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			warmingUp.set(false);
+		}
+	}
+
+	/**
+	 * Returns why the last warm up failed and forgets it, so each failure is reported once.
+	 */
+	@Override
+	public ServiceResultException takeWarmUpFailure() {
+		return warmUpFailure.getAndSet(null);
+	}
+
+	/**
+	 * Moves the subscriptions of the lost session to the new one, so data flow resumes
+	 * without creating the subscriptions and their monitored items again.
+	 */
+	private void transferSubscriptions(SessionChannel newSession) {
+		UnsignedInteger[] subscriptionIds = subscriptions.keySet().toArray(new UnsignedInteger[0]);
+		TransferResult[] results = null;
+		try {
+			results = newSession.TransferSubscriptions(new TransferSubscriptionsRequest(null, subscriptionIds, false)).getResults();
+		} catch (ServiceResultException e) {
+			// Handled below as lost subscriptions
+		}
+
+		for (int i = 0; i < subscriptionIds.length; i++) {
+			SubscriptionListener listener = subscriptions.get(subscriptionIds[i]);
+			if (results != null && i < results.length && results[i].getStatusCode().isGood()) {
+				listener.transferred(subscriptionIds[i], results[i].getAvailableSequenceNumbers());
+			} else {
+				subscriptions.remove(subscriptionIds[i]);
+				listener.lost(subscriptionIds[i]);
+			}
+		}
+	}
+
+	/**
+	 * Registers a subscription created on this connection so it follows the connection
+	 * to a new session.
+	 */
+	public void addSubscription(UnsignedInteger subscriptionId, SubscriptionListener listener) {
+		subscriptions.put(subscriptionId, listener);
+	}
+
+	public void removeSubscription(UnsignedInteger subscriptionId) {
+		subscriptions.remove(subscriptionId);
+	}
+
+	/**
+	 * Fetches a notification message the client missed, e.g. while the session was replaced.
+	 */
+	public NotificationMessage republish(UnsignedInteger subscriptionId, UnsignedInteger sequenceNumber) throws ServiceResultException {
+		return call(session -> session.Republish(new RepublishRequest(null, subscriptionId, sequenceNumber))).getNotificationMessage();
+	}
+
+	/**
+	 * A service call made on the current session.
+	 */
+	public interface ServiceCall<T> {
+		T call(SessionChannel session) throws ServiceResultException;
+	}
+
+	/**
+	 * Makes a service call. A failure drops the session. If the session was not new the
+	 * call is retried once on a new session, as the old one may just have timed out.
+	 */
+	public <T> T call(ServiceCall<T> serviceCall) throws ServiceResultException {
+		boolean fresh;
+		SessionChannel session;
+		synchronized (this) {
+			fresh = mySession == null;
+			session = getSession();
+		}
+
+		while (true) {
+			metrics.requestStarted();
+			try {
+				T result = serviceCall.call(session);
+				metrics.requestCompleted(false);
+				return result;
+			} catch (ServiceResultException e) {
+				metrics.requestCompleted(true);
+				// The server refused the size of the request or response, the session itself is fine
+				if (isStatus(e, StatusCodes.Bad_TooManyOperations) || isStatus(e, StatusCodes.Bad_ResponseTooLarge)) {
+					throw e;
+				}
+				invalidate(session);
+				if (fresh) {
+					throw e;
+				}
+				fresh = true;
+				session = getSession();
+			}
+		}
+	}
+
+	/**
+	 * Reads the values of the given nodes, split into as many requests as the
+	 * server's MaxNodesPerRead and the adaptive batch size require.
+	 */
+	public DataValue[] read(ReadValueId[] nodesToRead, double maxAge) throws ServiceResultException {
+		DataValue[] results = new DataValue[nodesToRead.length];
+		final NodeRegistrations registrations = this.registrations;
+
+		int offset = 0;
+		while (offset < nodesToRead.length) {
+			int count = Math.min(nodesToRead.length - offset, OperationLimits.cap(batchSize.get(), operationLimits.getMaxNodesPerRead()));
+			final ReadValueId[] batch = Arrays.copyOfRange(nodesToRead, offset, offset + count);
+
+			long start = System.nanoTime();
+			try {
+				// Handles are translated for the session the attempt runs on, a retry on a new session gets new ones
+				ReadResponse readResponse = call(session -> {
+					ReadRequest req = new ReadRequest();
+					req.setMaxAge(maxAge);
+					req.setTimestampsToReturn(TimestampsToReturn.Both);
+					req.setNodesToRead(registrations == null ? batch : translate(registrations, batch));
+					return session.Read(req);
+				});
+				batchSize.completed(count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				System.arraycopy(readResponse.getResults(), 0, results, offset, count);
+				offset += count;
+			} catch (ServiceResultException e) {
+				if (isStatus(e, StatusCodes.Bad_TooManyOperations) && count > 1) {
+					// Retry the remaining nodes in smaller requests
+					batchSize.rejected();
+					continue;
+				}
+				if (isStatus(e, StatusCodes.Bad_Timeout)) {
+					batchSize.rejected();
+				}
+				throw e;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Swaps in the handles of registered nodes, leaving the caller's array alone.
+	 */
+	private static ReadValueId[] translate(NodeRegistrations registrations, ReadValueId[] nodesToRead) throws ServiceResultException {
+		NodeId[] nodeIds = new NodeId[nodesToRead.length];
+		for (int i = 0; i < nodeIds.length; i++) {
+			nodeIds[i] = nodesToRead[i].getNodeId();
+		}
+		NodeId[] handles = registrations.translate(nodeIds);
+		ReadValueId[] translated = new ReadValueId[nodesToRead.length];
+		for (int i = 0; i < translated.length; i++) {
+			ReadValueId nodeToRead = nodesToRead[i];
+			translated[i] = handles[i] == nodeIds[i] ? nodeToRead : new ReadValueId(handles[i], nodeToRead.getAttributeId(),
+					nodeToRead.getIndexRange(), nodeToRead.getDataEncoding());
+		}
+		return translated;
+	}
+
+	/**
+	 * Counts the sessions created so far, so callers can tell when state tied to a
+	 * session (or to a restarted server) has to be refreshed.
+	 */
+	public long getSessionGeneration() {
+		return sessionGeneration;
+	}
+
+	/**
+	 * Registers nodes that were read the given number of times and reads them by
+	 * their handles from then on. 0 turns registration off.
+	 */
+	public void setRegisterAfterReads(int registerAfterReads, int capacity) {
+		registrations = registerAfterReads > 0 ? new NodeRegistrations(this, registerAfterReads, capacity) : null;
+	}
+
+	public OperationLimits getOperationLimits() {
+		return operationLimits;
+	}
+
+	static boolean isStatus(ServiceResultException e, UnsignedInteger statusCode) {
+		return e.getStatusCode() != null && statusCode.equals(e.getStatusCode().getValue());
+	}
+
+	/**
+	 * Drops the given session if it is still the current one. Its secure channel is kept
+	 * for the next session, and with subscriptions the session itself is left to time out
+	 * on the server so they can be transferred.
+	 */
+	public synchronized void invalidate(SessionChannel session) {
+		if (session != null && session == mySession) {
+			mySession = null;
+			metrics.sessionClosed();
+			lastChannel = session.getSecureChannel();
+			if (subscriptions.isEmpty() && lastChannel.isOpen()) {
+				session.CloseSessionAsync(new CloseSessionRequest(null, true));
+			}
+		}
+	}
+
+	/**
+	 * Closes the session. The connection can be used again afterwards.
+	 */
+	public void close() {
+		// Outside of the connection's lock, registrations lock the other way round
+		final NodeRegistrations registrations = this.registrations;
+		final SessionChannel session;
+		synchronized (this) {
+			session = mySession;
+		}
+		if (registrations != null && session != null) {
+			registrations.unregisterAll(session);
+		}
+		closeSession();
+	}
+
+	private synchronized void closeSession() {
+		if (lastChannel != null) {
+			lastChannel.close();
+			lastChannel = null;
+		}
+		if (mySession != null) {
+			try {
+				mySession.close();
+			} catch (ServiceResultException e) {
+				// The session is dropped either way
+			}
+			mySession = null;
+			metrics.sessionClosed();
+		}
+	}
+
+}
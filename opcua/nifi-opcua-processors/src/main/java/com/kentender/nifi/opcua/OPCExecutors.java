@@ -0,0 +1,192 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors shared by all OPC processors of this bundle for blocking service calls,
+ * so NiFi threads only hand work off and collect the results.
+ *
+ * Calls run either on a cached pool of platform threads or, on Java 21 and later,
+ * on virtual threads, which cost next to nothing while they wait for a server. Either
+ * way a processor bounds its own calls with a budget, see budgeted.
+ */
+public class OPCExecutors {
+
+	public static final String PLATFORM_THREADS = "Platform Threads";
+	public static final String VIRTUAL_THREADS = "Virtual Threads";
+
+	private static final ExecutorService SHARED = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "OPC UA Client " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Created through reflection as the bundle is built for Java 8
+	private static final ExecutorService VIRTUAL = createVirtualExecutor();
+
+	private OPCExecutors() {
+	}
+
+	public static ExecutorService shared() {
+		return SHARED;
+	}
+
+	public static boolean isVirtualThreadsAvailable() {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * Returns the shared executor of the given mode. Virtual threads fall back to the
+	 * platform pool on JVMs that do not have them.
+	 */
+	public static ExecutorService forMode(String mode) {
+		return VIRTUAL_THREADS.equals(mode) && VIRTUAL != null ? VIRTUAL : SHARED;
+	}
+
+	/**
+	 * Returns an executor that runs at most maxConcurrent calls at once on the shared
+	 * executor of the given mode. Calls over the budget wait in a queue without taking
+	 * a thread, and are handed to the shared executor as running calls complete.
+	 * Shutting it down leaves the shared executor running.
+	 */
+	public static ExecutorService budgeted(String mode, int maxConcurrent) {
+		return new BudgetedExecutor(forMode(mode), maxConcurrent);
+	}
+
+	private static ExecutorService createVirtualExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs tasks on a delegate, limited by a semaphore. A task only goes to the delegate
+	 * with a permit, the others wait in a queue until a running task completes.
+	 */
+	static class BudgetedExecutor extends AbstractExecutorService {
+
+		private final ExecutorService delegate;
+		private final Semaphore permits;
+		private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pending = new AtomicInteger();
+		private volatile boolean shutdown = false;
+
+		BudgetedExecutor(ExecutorService delegate, int maxConcurrent) {
+			this.delegate = delegate;
+			this.permits = new Semaphore(Math.max(1, maxConcurrent));
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Executor is shut down");
+			}
+			pending.incrementAndGet();
+			waiting.add(command);
+			dispatchWaiting();
+		}
+
+		/**
+		 * Hands waiting tasks to the delegate while there are permits. Called after every
+		 * add and after every release, so no task is left behind in the queue.
+		 */
+		private void dispatchWaiting() {
+			while (!waiting.isEmpty() && permits.tryAcquire()) {
+				final Runnable command = waiting.poll();
+				if (command == null) {
+					// Taken by another thread in the meantime
+					permits.release();
+					continue;
+				}
+				dispatch(command);
+			}
+		}
+
+		private void dispatch(final Runnable command) {
+			try {
+				delegate.execute(() -> {
+					try {
+						// A task cancelled while waiting returns at once
+						command.run();
+					} finally {
+						permits.release();
+						pending.decrementAndGet();
+						dispatchWaiting();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				pending.decrementAndGet();
+				if (command instanceof Future) {
+					((Future<?>) command).cancel(false);
+				}
+			}
+		}
+
+		/**
+		 * Number of calls running or waiting for the budget.
+		 */
+		public int getPending() {
+			return pending.get();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			List<Runnable> notRun = new ArrayList<>();
+			Runnable command;
+			while ((command = waiting.poll()) != null) {
+				pending.decrementAndGet();
+				notRun.add(command);
+			}
+			return notRun;
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown && pending.get() == 0;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (!isTerminated()) {
+				if (System.nanoTime() >= deadline) {
+					return false;
+				}
+				Thread.sleep(10);
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package com.kentender.nifi.opcua;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side health counters for one OPC UA endpoint.
+ *
+ * All OPC processors of this bundle share the same class loader, so the static
+ * registry below collects the counters of every processor running on the node.
+ * The OPCMetricsReportingTask exports them.
+ */
+public class OPCMetrics {
+
+	private static final ConcurrentMap<String, OPCMetrics> REGISTRY = new ConcurrentHashMap<>();
+
+	private final String endpoint;
+	private final AtomicLong openSessions = new AtomicLong();
+	private final AtomicLong inFlightRequests = new AtomicLong();
+	private final AtomicLong subscriptionQueueDepth = new AtomicLong();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder failedRequests = new LongAdder();
+	private final LongAdder droppedNotifications = new LongAdder();
+	private final LongAdder secureChannelRenewals = new LongAdder();
+
+	private OPCMetrics(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Returns the counters for the given endpoint url, creating them on first use.
+	 */
+	public static OPCMetrics forEndpoint(String endpoint) {
+		return REGISTRY.computeIfAbsent(endpoint, OPCMetrics::new);
+	}
+
+	/**
+	 * Returns all known endpoints ordered by url.
+	 */
+	public static Map<String, OPCMetrics> getAll() {
+		return Collections.unmodifiableMap(new TreeMap<>(REGISTRY));
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	// Sessions
+	public void sessionOpened() {
+		openSessions.incrementAndGet();
+	}
+
+	public void sessionClosed() {
+		openSessions.decrementAndGet();
+	}
+
+	// A session had to be recreated, which always opens a new secure channel
+	public void secureChannelRenewed() {
+		secureChannelRenewals.increment();
+	}
+
+	// Service calls
+	public void requestStarted() {
+		inFlightRequests.incrementAndGet();
+		requests.increment();
+	}
+
+	public void requestCompleted(boolean failed) {
+		inFlightRequests.decrementAndGet();
+		if (failed) {
+			failedRequests.increment();
+		}
+	}
+
+	// Subscriptions
+	public void queued(long count) {
+		subscriptionQueueDepth.addAndGet(count);
+	}
+
+	public void dequeued(long count) {
+		subscriptionQueueDepth.addAndGet(-count);
+	}
+
+	public void dropped(long count) {
+		droppedNotifications.add(count);
+	}
+
+	public long getOpenSessions() {
+		return openSessions.get();
+	}
+
+	public long getInFlightRequests() {
+		return inFlightRequests.get();
+	}
+
+	public long getSubscriptionQueueDepth() {
+		return subscriptionQueueDepth.get();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getFailedRequests() {
+		return failedRequests.sum();
+	}
+
+	public long getDroppedNotifications() {
+		return droppedNotifications.sum();
+	}
+
+	public long getSecureChannelRenewals() {
+		return secureChannelRenewals.sum();
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.kentender.nifi.opcua;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.record.sink.RecordSinkService;
+import org.apache.nifi.reporting.AbstractReportingTask;
+import org.apache.nifi.reporting.ReportingContext;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.ListRecordSet;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import com.sun.net.httpserver.HttpServer;
+
+@Tags({"OPC", "OPCUA", "UA", "metrics", "prometheus"})
+@CapabilityDescription("Reports the health of the OPC UA clients of all OPC processors on this node: open sessions, in-flight requests, "
+		+ "subscription queue depth, dropped notifications and secure channel renewals per endpoint. The metrics are either served "
+		+ "in Prometheus text format on a local port or sent as records to a Record Sink")
+public class OPCMetricsReportingTask extends AbstractReportingTask {
+
+	public static final String PROMETHEUS = "Prometheus";
+	public static final String RECORD_SINK_MODE = "Record Sink";
+
+	public static final PropertyDescriptor EXPORT_MODE = new PropertyDescriptor
+            .Builder().name("Export Mode")
+            .description("Serve the metrics to a Prometheus scraper or send them to a Record Sink on every run")
+            .required(true)
+            .allowableValues(PROMETHEUS, RECORD_SINK_MODE)
+            .defaultValue(PROMETHEUS)
+            .build();
+
+	public static final PropertyDescriptor PROMETHEUS_PORT = new PropertyDescriptor
+            .Builder().name("Prometheus Port")
+            .description("Local port the metrics are served on at /metrics")
+            .required(true)
+            .defaultValue("9193")
+            .addValidator(StandardValidators.PORT_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor RECORD_SINK = new PropertyDescriptor
+            .Builder().name("Record Sink")
+            .description("The Record Sink the metrics are sent to when the export mode is Record Sink")
+            .identifiesControllerService(RecordSinkService.class)
+            .build();
+
+	private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("hostname", RecordFieldType.STRING.getDataType()),
+			new RecordField("endpoint", RecordFieldType.STRING.getDataType()),
+			new RecordField("openSessions", RecordFieldType.LONG.getDataType()),
+			new RecordField("inFlightRequests", RecordFieldType.LONG.getDataType()),
+			new RecordField("requests", RecordFieldType.LONG.getDataType()),
+			new RecordField("failedRequests", RecordFieldType.LONG.getDataType()),
+			new RecordField("subscriptionQueueDepth", RecordFieldType.LONG.getDataType()),
+			new RecordField("droppedNotifications", RecordFieldType.LONG.getDataType()),
+			new RecordField("secureChannelRenewals", RecordFieldType.LONG.getDataType())));
+
+	private volatile HttpServer server;
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(EXPORT_MODE);
+		descriptors.add(PROMETHEUS_PORT);
+		descriptors.add(RECORD_SINK);
+		return Collections.unmodifiableList(descriptors);
+	}
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<>();
+		if (RECORD_SINK_MODE.equals(context.getProperty(EXPORT_MODE).getValue()) && !context.getProperty(RECORD_SINK).isSet()) {
+			results.add(new ValidationResult.Builder()
+					.subject(RECORD_SINK.getDisplayName())
+					.valid(false)
+					.explanation("a Record Sink is required when the export mode is " + RECORD_SINK_MODE)
+					.build());
+		}
+		return results;
+	}
+
+	@OnScheduled
+	public void onScheduled(final ConfigurationContext context) throws IOException {
+
+		if (!PROMETHEUS.equals(context.getProperty(EXPORT_MODE).getValue())) {
+			return;
+		}
+
+		// Serve the current counters on every scrape
+		server = HttpServer.create(new InetSocketAddress(context.getProperty(PROMETHEUS_PORT).asInteger()), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = toPrometheus(OPCMetrics.getAll().values()).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+	}
+
+	@OnStopped
+	public void onStopped() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	@Override
+	public void onTrigger(final ReportingContext context) {
+
+		final ComponentLog logger = getLogger();
+
+		// Prometheus pulls the metrics itself
+		if (!RECORD_SINK_MODE.equals(context.getProperty(EXPORT_MODE).getValue())) {
+			return;
+		}
+
+		final String hostname = getHostname();
+		final List<Record> records = new ArrayList<>();
+		for (OPCMetrics metrics : OPCMetrics.getAll().values()) {
+			final Map<String, Object> values = new HashMap<>();
+			values.put("hostname", hostname);
+			values.put("endpoint", metrics.getEndpoint());
+			values.put("openSessions", metrics.getOpenSessions());
+			values.put("inFlightRequests", metrics.getInFlightRequests());
+			values.put("requests", metrics.getRequests());
+			values.put("failedRequests", metrics.getFailedRequests());
+			values.put("subscriptionQueueDepth", metrics.getSubscriptionQueueDepth());
+			values.put("droppedNotifications", metrics.getDroppedNotifications());
+			values.put("secureChannelRenewals", metrics.getSecureChannelRenewals());
+			records.add(new MapRecord(SCHEMA, values));
+		}
+
+		final RecordSinkService recordSink = context.getProperty(RECORD_SINK).asControllerService(RecordSinkService.class);
+		try {
+			recordSink.sendData(new ListRecordSet(SCHEMA, records), Collections.emptyMap(), false);
+		} catch (IOException e) {
+			logger.error("Failed to send OPC metrics to the Record Sink: " + e.getMessage());
+		}
+	}
+
+	static String toPrometheus(Collection<OPCMetrics> endpoints) {
+		StringBuilder stringBuilder = new StringBuilder();
+
+		appendMetric(stringBuilder, endpoints, "opcua_open_sessions", "gauge", "Open OPC UA sessions", OPCMetrics::getOpenSessions);
+		appendMetric(stringBuilder, endpoints, "opcua_in_flight_requests", "gauge", "OPC UA service calls waiting for a response", OPCMetrics::getInFlightRequests);
+		appendMetric(stringBuilder, endpoints, "opcua_requests_total", "counter", "OPC UA service calls", OPCMetrics::getRequests);
+		appendMetric(stringBuilder, endpoints, "opcua_failed_requests_total", "counter", "Failed OPC UA service calls", OPCMetrics::getFailedRequests);
+		appendMetric(stringBuilder, endpoints, "opcua_subscription_queue_depth", "gauge", "Notifications waiting to be emitted", OPCMetrics::getSubscriptionQueueDepth);
+		appendMetric(stringBuilder, endpoints, "opcua_dropped_notifications_total", "counter", "Notifications dropped on overflow", OPCMetrics::getDroppedNotifications);
+		appendMetric(stringBuilder, endpoints, "opcua_secure_channel_renewals_total", "counter", "Secure channels re-established after the first", OPCMetrics::getSecureChannelRenewals);
+
+		return stringBuilder.toString();
+	}
+
+	private static void appendMetric(StringBuilder stringBuilder, Collection<OPCMetrics> endpoints, String name, String type, String help,
+			ToLongFunction<OPCMetrics> value) {
+
+		stringBuilder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		stringBuilder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		for (OPCMetrics metrics : endpoints) {
+			stringBuilder.append(name).append("{endpoint=\"").append(escapeLabel(metrics.getEndpoint())).append("\"} ")
+				.append(value.applyAsLong(metrics)).append('\n');
+		}
+	}
+
+	private static String escapeLabel(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String getHostname() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "unknown";
+		}
+	}
+
+}
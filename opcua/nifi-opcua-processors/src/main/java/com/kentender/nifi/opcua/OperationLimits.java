@@ -0,0 +1,108 @@
+package com.kentender.nifi.opcua;
+
+import org.opcfoundation.ua.application.SessionChannel;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.ReadRequest;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.TimestampsToReturn;
+
+/**
+ * The Server.ServerCapabilities.OperationLimits of a server, along with the
+ * MaxArrayLength and MaxByteStringLength of its ServerCapabilities.
+ *
+ * A limit of 0 means the server did not report one.
+ */
+public class OperationLimits {
+
+	public static final OperationLimits UNLIMITED = new OperationLimits(new long[9]);
+
+	private static final NodeId[] LIMIT_NODES = {
+			Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerRead,
+			Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerWrite,
+			Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerBrowse,
+			Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerRegisterNodes,
+			Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerTranslateBrowsePathsToNodeIds,
+			Identifiers.Server_ServerCapabilities_OperationLimits_MaxNodesPerMethodCall,
+			Identifiers.Server_ServerCapabilities_OperationLimits_MaxMonitoredItemsPerCall,
+			Identifiers.Server_ServerCapabilities_MaxArrayLength,
+			Identifiers.Server_ServerCapabilities_MaxByteStringLength
+	};
+
+	private final long[] limits;
+
+	private OperationLimits(long[] limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Reads all limits in one request. Limits the server does not expose are left at 0.
+	 */
+	public static OperationLimits read(SessionChannel session) throws ServiceResultException {
+		ReadValueId[] nodesToRead = new ReadValueId[LIMIT_NODES.length];
+		for (int i = 0; i < LIMIT_NODES.length; i++) {
+			nodesToRead[i] = new ReadValueId(LIMIT_NODES[i], Attributes.Value, null, null);
+		}
+
+		ReadRequest req = new ReadRequest();
+		req.setMaxAge(0.0);
+		req.setTimestampsToReturn(TimestampsToReturn.Neither);
+		req.setNodesToRead(nodesToRead);
+		DataValue[] values = session.Read(req).getResults();
+
+		long[] limits = new long[LIMIT_NODES.length];
+		for (int i = 0; i < limits.length && i < values.length; i++) {
+			if (values[i].getStatusCode().isGood() && values[i].getValue().getValue() instanceof Number) {
+				limits[i] = ((Number) values[i].getValue().getValue()).longValue();
+			}
+		}
+		return new OperationLimits(limits);
+	}
+
+	public long getMaxNodesPerRead() {
+		return limits[0];
+	}
+
+	public long getMaxNodesPerWrite() {
+		return limits[1];
+	}
+
+	public long getMaxNodesPerBrowse() {
+		return limits[2];
+	}
+
+	public long getMaxNodesPerRegisterNodes() {
+		return limits[3];
+	}
+
+	public long getMaxNodesPerTranslateBrowsePathsToNodeIds() {
+		return limits[4];
+	}
+
+	public long getMaxNodesPerMethodCall() {
+		return limits[5];
+	}
+
+	public long getMaxMonitoredItemsPerCall() {
+		return limits[6];
+	}
+
+	public long getMaxArrayLength() {
+		return limits[7];
+	}
+
+	public long getMaxByteStringLength() {
+		return limits[8];
+	}
+
+	/**
+	 * Caps a requested batch size by a limit, treating 0 as no limit.
+	 */
+	public static int cap(int size, long limit) {
+		return limit > 0 && limit < size ? (int) limit : size;
+	}
+
+}
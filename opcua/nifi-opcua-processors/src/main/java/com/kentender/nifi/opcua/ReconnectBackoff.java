@@ -0,0 +1,69 @@
+package com.kentender.nifi.opcua;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Paces reconnect attempts to one endpoint, shared by every connection of every
+ * processor on the node.
+ *
+ * After a failed attempt the next one is delayed by a random time between zero and
+ * an exponentially growing ceiling (full jitter), so processors that lost the same
+ * server do not retry in lock step. While the endpoint is failing only one caller at
+ * a time probes it, everybody else fails fast until the probe succeeds.
+ */
+public class ReconnectBackoff {
+
+	public static final long BASE_DELAY = 250;
+	public static final long MAX_DELAY = 30000;
+
+	private static final ConcurrentMap<String, ReconnectBackoff> REGISTRY = new ConcurrentHashMap<>();
+
+	private int failures = 0;
+	private long nextAttemptAt = 0;
+	private boolean probing = false;
+
+	ReconnectBackoff() {
+	}
+
+	public static ReconnectBackoff forEndpoint(String url) {
+		return REGISTRY.computeIfAbsent(url, key -> new ReconnectBackoff());
+	}
+
+	/**
+	 * Returns true if the caller may try to connect now. A caller that got true
+	 * must report the outcome with succeeded or failed.
+	 */
+	public synchronized boolean tryBeginAttempt() {
+		if (failures == 0) {
+			return true;
+		}
+		if (probing || System.currentTimeMillis() < nextAttemptAt) {
+			return false;
+		}
+		probing = true;
+		return true;
+	}
+
+	/**
+	 * Milliseconds until the next attempt is allowed.
+	 */
+	public synchronized long getRemainingDelay() {
+		return Math.max(0, nextAttemptAt - System.currentTimeMillis());
+	}
+
+	public synchronized void succeeded() {
+		failures = 0;
+		nextAttemptAt = 0;
+		probing = false;
+	}
+
+	public synchronized void failed() {
+		failures++;
+		probing = false;
+		long ceiling = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures - 1, 20));
+		nextAttemptAt = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+}
@@ -0,0 +1,488 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.ApplicationDescription;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.FindServersRequest;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.RedundancySupport;
+
+/**
+ * The servers of a redundant server set, each with a SessionPool kept warm, that
+ * reads are spread over according to their ServiceLevel.
+ *
+ * The set starts with the configured server and any endpoints configured for its
+ * partners. Once the configured server is connected its RedundancySupport is read
+ * and, for non-transparent redundancy, the partners listed in its ServerUriArray are
+ * added. URIs that are not endpoint URLs are looked up with FindServers.
+ *
+ * The ServiceLevel of every member is read in the background. Following the sub
+ * ranges of Part 4, healthy servers (200 and above) are preferred over degraded ones,
+ * which are preferred over servers without data (1) or in maintenance (0). With Hot
+ * redundancy reads go to all healthy servers, weighted by their ServiceLevel. With
+ * Cold and Warm redundancy, or when only degraded servers are left, they go to the
+ * server with the highest ServiceLevel, as the others may not be sampling. A member
+ * whose session is lost counts as having no data until its ServiceLevel is read again,
+ * so the next read fails over at once, without discovering the set again.
+ */
+public class RedundantServerSet implements WarmUp.Connectable {
+
+	public static final long DEFAULT_SERVICE_LEVEL_INTERVAL = 500;
+
+	private static final int HEALTHY = 200;
+	private static final int DEGRADED = 2;
+	private static final int NO_DATA = 1;
+	private static final int MAX_SERVICE_LEVEL = 255;
+
+	private static final String SERVER_URI_ARRAY = "Objects/Server/ServerRedundancy/ServerUriArray";
+
+	/**
+	 * Creates the session pool of one member, also for members discovered later.
+	 */
+	public interface PoolFactory {
+		SessionPool create(String url);
+	}
+
+	/**
+	 * Work done on the session of one member, e.g. a read or resolving browse paths.
+	 */
+	public interface Operation<T> {
+		T run(OPCConnection connection) throws ServiceResultException;
+	}
+
+	private static final class Member {
+		final String url;
+		final SessionPool pool;
+		volatile int serviceLevel;
+
+		Member(String url, SessionPool pool, int serviceLevel) {
+			this.url = url;
+			this.pool = pool;
+			this.serviceLevel = serviceLevel;
+		}
+	}
+
+	/**
+	 * The members reads go to, with the running sum of their weights.
+	 */
+	private static final class Selection {
+		final Member[] members;
+		final int[] cumulative;
+
+		Selection(Member[] members, int[] cumulative) {
+			this.members = members;
+			this.cumulative = cumulative;
+		}
+	}
+
+	private final PoolFactory poolFactory;
+	private final boolean discover;
+	private final long serviceLevelInterval;
+
+	private volatile Member[] members;
+	private volatile Selection selection;
+	private volatile RedundancySupport redundancySupport = null;
+	private volatile boolean running = false;
+	private Thread monitorThread = null;
+
+	/**
+	 * @param partnerUrls endpoints of the other servers of the set, used in addition to the discovered ones
+	 * @param discover whether to add the servers listed in the ServerUriArray of the configured server
+	 */
+	public RedundantServerSet(String url, List<String> partnerUrls, boolean discover, long serviceLevelInterval, PoolFactory poolFactory) {
+		this.poolFactory = poolFactory;
+		this.discover = discover;
+		this.serviceLevelInterval = serviceLevelInterval;
+
+		// The configured server is taken as healthy until told otherwise, a single server behaves as before
+		List<Member> initial = new ArrayList<>();
+		initial.add(new Member(url, poolFactory.create(url), MAX_SERVICE_LEVEL));
+		for (String partnerUrl : new LinkedHashSet<>(partnerUrls)) {
+			if (!partnerUrl.equals(url)) {
+				initial.add(new Member(partnerUrl, poolFactory.create(partnerUrl), NO_DATA));
+			}
+		}
+		members = initial.toArray(new Member[0]);
+		select();
+	}
+
+	/**
+	 * Splits a comma separated list of endpoint URLs.
+	 */
+	public static List<String> parseUrls(String urls) {
+		if (urls == null || urls.trim().isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<String> parsed = new ArrayList<>();
+		for (String url : urls.split(",")) {
+			if (!url.trim().isEmpty()) {
+				parsed.add(url.trim());
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Starts discovering the set and watching the ServiceLevel of its members on the shared executor.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		OPCExecutors.shared().execute(this::monitor);
+	}
+
+	public int size() {
+		return members.length;
+	}
+
+	public List<String> getUrls() {
+		List<String> urls = new ArrayList<>();
+		for (Member member : members) {
+			urls.add(member.url);
+		}
+		return urls;
+	}
+
+	/**
+	 * The RedundancySupport of the configured server, null until it was read.
+	 */
+	public RedundancySupport getRedundancySupport() {
+		return redundancySupport;
+	}
+
+	/**
+	 * Whether any member has a session open.
+	 */
+	@Override
+	public boolean isReady() {
+		for (Member member : members) {
+			if (member.pool.primary().isReady()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Connects the first session of every member in the background, unless it is open.
+	 * The other sessions are kept warm once there is more than one member.
+	 */
+	@Override
+	public void warmUp() {
+		for (Member member : members) {
+			member.pool.primary().warmUp();
+		}
+	}
+
+	/**
+	 * Returns why connecting to the configured server last failed and forgets it.
+	 */
+	@Override
+	public ServiceResultException takeWarmUpFailure() {
+		return members[0].pool.primary().takeWarmUpFailure();
+	}
+
+	/**
+	 * Claims a session on the member picked for this read. Must be paired with release.
+	 */
+	public OPCConnection acquire() {
+		return pick().pool.acquire();
+	}
+
+	public void release(OPCConnection connection) {
+		Member member = memberOf(connection);
+		if (member != null) {
+			member.pool.release(connection);
+		}
+	}
+
+	/**
+	 * Reads on the given session and, if that lost its session, once more on the
+	 * member that takes over.
+	 */
+	public DataValue[] read(OPCConnection connection, ReadValueId[] nodesToRead, double maxAge) throws ServiceResultException {
+		return call(connection, session -> session.read(nodesToRead, maxAge));
+	}
+
+	/**
+	 * Runs the operation on the given session and, if that lost its session, once more
+	 * on the member that takes over.
+	 */
+	public <T> T call(OPCConnection connection, Operation<T> operation) throws ServiceResultException {
+		try {
+			return operation.run(connection);
+		} catch (ServiceResultException e) {
+			if (connection.isReady() || !failed(connection)) {
+				throw e;
+			}
+			final OPCConnection other = acquire();
+			try {
+				return operation.run(other);
+			} finally {
+				release(other);
+			}
+		}
+	}
+
+	/**
+	 * Takes the member of a connection that lost its session out of rotation until its
+	 * ServiceLevel is read again.
+	 *
+	 * @return true if another member is there to take over
+	 */
+	public boolean failed(OPCConnection connection) {
+		Member member = memberOf(connection);
+		if (member == null || members.length == 1) {
+			return false;
+		}
+		member.serviceLevel = NO_DATA;
+		select();
+		return pick() != member;
+	}
+
+	private Member memberOf(OPCConnection connection) {
+		for (Member member : members) {
+			if (member.url.equals(connection.getUrl())) {
+				return member;
+			}
+		}
+		return null;
+	}
+
+	private Member pick() {
+		final Selection selection = this.selection;
+		if (selection.members.length == 1) {
+			return selection.members[0];
+		}
+		final int total = selection.cumulative[selection.cumulative.length - 1];
+		final int ticket = ThreadLocalRandom.current().nextInt(total);
+		for (int i = 0; i < selection.members.length; i++) {
+			if (ticket < selection.cumulative[i]) {
+				return selection.members[i];
+			}
+		}
+		return selection.members[selection.members.length - 1];
+	}
+
+	/**
+	 * Picks the members reads go to from the current ServiceLevels.
+	 */
+	private synchronized void select() {
+		final Member[] members = this.members;
+		Member best = members[0];
+		for (Member member : members) {
+			if (member.serviceLevel > best.serviceLevel) {
+				best = member;
+			}
+		}
+
+		final RedundancySupport redundancySupport = this.redundancySupport;
+		final boolean hot = redundancySupport == RedundancySupport.Hot || redundancySupport == RedundancySupport.HotAndMirrored;
+		if (!hot || best.serviceLevel < HEALTHY) {
+			selection = new Selection(new Member[] {best}, new int[] {1});
+			return;
+		}
+
+		List<Member> healthy = new ArrayList<>();
+		for (Member member : members) {
+			if (member.serviceLevel >= HEALTHY) {
+				healthy.add(member);
+			}
+		}
+		int[] cumulative = new int[healthy.size()];
+		int total = 0;
+		for (int i = 0; i < cumulative.length; i++) {
+			total += healthy.get(i).serviceLevel;
+			cumulative[i] = total;
+		}
+		selection = new Selection(healthy.toArray(new Member[0]), cumulative);
+	}
+
+	private void monitor() {
+		synchronized (this) {
+			monitorThread = Thread.currentThread();
+		}
+		try {
+			while (running) {
+				if (redundancySupport == null) {
+					discover();
+				}
+				if (members.length > 1) {
+					for (Member member : members) {
+						member.pool.warmUp();
+					}
+					refreshServiceLevels();
+				} else if (redundancySupport != null) {
+					// A single server, nothing to choose from
+					break;
+				}
+				try {
+					TimeUnit.MILLISECONDS.sleep(serviceLevelInterval);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				monitorThread = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the RedundancySupport of the configured server and adds the partners it lists.
+	 */
+	private void discover() {
+		final OPCConnection connection = members[0].pool.primary();
+		if (!connection.isReady()) {
+			return;
+		}
+		try {
+			DataValue[] values = connection.read(new ReadValueId[] {
+					new ReadValueId(Identifiers.Server_ServerRedundancy_RedundancySupport, Attributes.Value, null, null),
+					new ReadValueId(Identifiers.Server_ServerArray, Attributes.Value, null, null)}, 0);
+			Object support = values[0].getValue().getValue();
+			RedundancySupport redundancySupport = support instanceof Number ? RedundancySupport.valueOf(((Number) support).intValue()) : null;
+			if (redundancySupport == null) {
+				redundancySupport = RedundancySupport.None;
+			}
+
+			if (discover && redundancySupport != RedundancySupport.None && redundancySupport != RedundancySupport.Transparent) {
+				Object serverArray = values[1].getValue().getValue();
+				String ownUri = serverArray instanceof String[] && ((String[]) serverArray).length > 0 ? ((String[]) serverArray)[0] : null;
+				addPartners(connection, ownUri);
+			}
+			this.redundancySupport = redundancySupport;
+			select();
+		} catch (ServiceResultException | RuntimeException e) {
+			// Tried again on the next round
+		}
+	}
+
+	private void addPartners(OPCConnection connection, String ownUri) throws ServiceResultException {
+		NodeId[] nodeIds;
+		try {
+			nodeIds = new BrowsePathResolver(1).resolve(connection, Collections.singletonList(SERVER_URI_ARRAY));
+		} catch (ServiceResultException e) {
+			// Servers without a ServerUriArray leave the partners to the configuration
+			return;
+		}
+		DataValue[] values = connection.read(new ReadValueId[] {new ReadValueId(nodeIds[0], Attributes.Value, null, null)}, 0);
+		Object serverUris = values[0].getValue().getValue();
+		if (!(serverUris instanceof String[])) {
+			return;
+		}
+
+		Set<String> urls = new LinkedHashSet<>();
+		for (String serverUri : (String[]) serverUris) {
+			if (serverUri == null || serverUri.equals(ownUri)) {
+				continue;
+			}
+			String url = serverUri.startsWith("opc.") ? serverUri : findDiscoveryUrl(connection, serverUri);
+			if (url != null) {
+				urls.add(url);
+			}
+		}
+		addMembers(urls);
+	}
+
+	/**
+	 * Looks up where a server URI can be reached, null if the server does not know it.
+	 */
+	private static String findDiscoveryUrl(OPCConnection connection, String serverUri) throws ServiceResultException {
+		ApplicationDescription[] servers = connection.call(session -> session.FindServers(
+				new FindServersRequest(null, connection.getUrl(), null, new String[] {serverUri}))).getServers();
+		if (servers == null) {
+			return null;
+		}
+		for (ApplicationDescription server : servers) {
+			if (serverUri.equals(server.getApplicationUri()) && server.getDiscoveryUrls() != null) {
+				for (String discoveryUrl : server.getDiscoveryUrls()) {
+					if (discoveryUrl.startsWith("opc.tcp")) {
+						return discoveryUrl;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private synchronized void addMembers(Set<String> urls) {
+		List<Member> added = new ArrayList<>(Arrays.asList(members));
+		for (String url : urls) {
+			boolean known = false;
+			for (Member member : added) {
+				known |= member.url.equals(url);
+			}
+			if (!known) {
+				added.add(new Member(url, poolFactory.create(url), NO_DATA));
+			}
+		}
+		members = added.toArray(new Member[0]);
+	}
+
+	private void refreshServiceLevels() {
+		boolean changed = false;
+		for (Member member : members) {
+			int serviceLevel = readServiceLevel(member);
+			if (serviceLevel != member.serviceLevel) {
+				member.serviceLevel = serviceLevel;
+				changed = true;
+			}
+		}
+		if (changed) {
+			select();
+		}
+	}
+
+	private static int readServiceLevel(Member member) {
+		final OPCConnection connection = member.pool.primary();
+		if (!connection.isReady()) {
+			return NO_DATA;
+		}
+		try {
+			DataValue value = connection.read(new ReadValueId[] {
+					new ReadValueId(Identifiers.Server_ServiceLevel, Attributes.Value, null, null)}, 0)[0];
+			Object level = value.getValue().getValue();
+			return value.getStatusCode().isGood() && level instanceof Number ? ((Number) level).intValue() : DEGRADED;
+		} catch (ServiceResultException e) {
+			return NO_DATA;
+		}
+	}
+
+	/**
+	 * Stops watching the ServiceLevel, the sessions stay open for reads still running.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = monitorThread;
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public void close() {
+		stop();
+		for (Member member : members) {
+			member.pool.close();
+		}
+	}
+
+}
@@ -0,0 +1,343 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.nifi.util.FormatUtils;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ReadValueId;
+
+/**
+ * Reads groups of tags at their own scan rates on one session.
+ *
+ * One thread drives a TimingWheel. The tags of all groups due at the same tick are
+ * read together in one Read, split only as the server's limits and the adaptive
+ * batch size require. Scans are aligned to multiples of their rate, so a 1 sec and a
+ * 1 min group are read in one request at every full minute. A group is scanned once
+ * when the scheduler starts; a scan that comes too late skips the scans it missed
+ * rather than running them back to back.
+ *
+ * Every value goes into a NotificationBuffer as the DataValue read, with the position
+ * of its tag among the tags of all groups as handle, see groupOf. A drainer, if set,
+ * runs on the scan thread after every scan and before a value is offered to a full
+ * buffer, so it can move the values on, e.g. into a ValueSpool.
+ */
+public class ScanScheduler {
+
+	public static final long DEFAULT_TICK = 100;
+
+	private static final long RETRY_DELAY = 1000;
+
+	/**
+	 * A named list of tags read every rate milliseconds.
+	 */
+	public static final class ScanGroup {
+		final String name;
+		final long rateMillis;
+		final List<String> tags;
+		final ReadValueId[] nodesToRead;
+		int firstHandle;
+		long nextScan;
+
+		public ScanGroup(String name, long rateMillis, List<String> tags) {
+			if (rateMillis <= 0) {
+				throw new IllegalArgumentException("Scan rate of " + name + " must be positive");
+			}
+			this.name = name;
+			this.rateMillis = rateMillis;
+			this.tags = tags;
+			this.nodesToRead = new ReadValueId[tags.size()];
+			for (int i = 0; i < nodesToRead.length; i++) {
+				nodesToRead[i] = new ReadValueId(NodeId.parseNodeId(tags.get(i)), Attributes.Value, null, null);
+			}
+		}
+
+		/**
+		 * Parses a scan rate like 1 sec on the first line, followed by one node id per line.
+		 *
+		 * @throws IllegalArgumentException if the rate or a node id is malformed
+		 */
+		public static ScanGroup parse(String name, String definition) {
+			List<String> lines = new ArrayList<>();
+			for (String line : definition.split("\\r?\\n")) {
+				if (!line.trim().isEmpty()) {
+					lines.add(line.trim());
+				}
+			}
+			if (lines.size() < 2) {
+				throw new IllegalArgumentException("Scan group " + name + " needs a scan rate and at least one node id");
+			}
+			long rateMillis = FormatUtils.getTimeDuration(lines.get(0), TimeUnit.MILLISECONDS);
+			return new ScanGroup(name, rateMillis, lines.subList(1, lines.size()));
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getRateMillis() {
+			return rateMillis;
+		}
+
+		public List<String> getTags() {
+			return tags;
+		}
+	}
+
+	private final OPCConnection connection;
+	private final List<ScanGroup> groups;
+	private final int[] groupOfHandle;
+	private final TimingWheel<ScanGroup> wheel;
+	private final NotificationBuffer buffer;
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+	private final LongAdder missedScans = new LongAdder();
+	private volatile Runnable drainer = null;
+
+	private volatile boolean running = false;
+	private Thread scanThread = null;
+
+	public ScanScheduler(OPCConnection connection, List<ScanGroup> groups, long tickMillis, NotificationBuffer buffer) {
+		this.connection = connection;
+		this.groups = Collections.unmodifiableList(new ArrayList<>(groups));
+		this.buffer = buffer;
+
+		int handles = 0;
+		for (ScanGroup group : groups) {
+			group.firstHandle = handles;
+			handles += group.tags.size();
+		}
+		groupOfHandle = new int[handles];
+		for (int g = 0; g < groups.size(); g++) {
+			ScanGroup group = groups.get(g);
+			for (int i = 0; i < group.tags.size(); i++) {
+				groupOfHandle[group.firstHandle + i] = g;
+			}
+		}
+
+		// One turn of the wheel covers the longest rate unless that is very long, then groups wait for their round
+		long longest = tickMillis;
+		for (ScanGroup group : groups) {
+			longest = Math.max(longest, group.rateMillis);
+		}
+		wheel = new TimingWheel<>(tickMillis, (int) Math.min(TimingWheel.DEFAULT_WHEEL_SIZE, longest / tickMillis + 1));
+	}
+
+	/**
+	 * Starts scanning on the shared executor.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		OPCExecutors.shared().execute(this::scanLoop);
+	}
+
+	public List<ScanGroup> getGroups() {
+		return groups;
+	}
+
+	/**
+	 * The group the value with the given handle belongs to.
+	 */
+	public ScanGroup groupOf(int handle) {
+		return groups.get(groupOfHandle[handle]);
+	}
+
+	/**
+	 * The tag of the value with the given handle.
+	 */
+	public String tagOf(int handle) {
+		ScanGroup group = groupOf(handle);
+		return group.tags.get(handle - group.firstHandle);
+	}
+
+	public NotificationBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Sets what takes the values out of the buffer on the scan thread, before start.
+	 */
+	public void setDrainer(Runnable drainer) {
+		this.drainer = drainer;
+	}
+
+	public OPCConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Scans skipped because an earlier one took too long, since the scheduler started.
+	 */
+	public long getMissedScans() {
+		return missedScans.sum();
+	}
+
+	/**
+	 * Returns why a scan last failed and forgets it, so each failure is reported once.
+	 */
+	public Exception takeFailure() {
+		return failure.getAndSet(null);
+	}
+
+	private void scanLoop() {
+		synchronized (this) {
+			scanThread = Thread.currentThread();
+		}
+		try {
+			final long start = System.currentTimeMillis();
+			for (ScanGroup group : groups) {
+				group.nextScan = start;
+				wheel.schedule(group, start);
+			}
+
+			final List<ScanGroup> due = new ArrayList<>();
+			while (running) {
+				due.clear();
+				final long now = System.currentTimeMillis();
+				if (wheel.advance(now, due) > 0) {
+					if (!scan(due)) {
+						pause(RETRY_DELAY);
+					}
+					for (ScanGroup group : due) {
+						reschedule(group, System.currentTimeMillis());
+					}
+				}
+				pause(wheel.nextTickAt() - System.currentTimeMillis());
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		} finally {
+			synchronized (this) {
+				scanThread = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sleeps unless stopped, stop wakes it up.
+	 */
+	private synchronized void pause(long millis) throws InterruptedException {
+		if (running && millis > 0) {
+			wait(millis);
+		}
+	}
+
+	/**
+	 * Reads the tags of the given groups in one go and buffers the values.
+	 *
+	 * @return false if the read failed
+	 */
+	private boolean scan(final List<ScanGroup> due) {
+		int count = 0;
+		for (ScanGroup group : due) {
+			count += group.nodesToRead.length;
+		}
+		final ReadValueId[] nodesToRead = new ReadValueId[count];
+		int offset = 0;
+		for (ScanGroup group : due) {
+			System.arraycopy(group.nodesToRead, 0, nodesToRead, offset, group.nodesToRead.length);
+			offset += group.nodesToRead.length;
+		}
+
+		final DataValue[] values;
+		try {
+			values = connection.read(nodesToRead, 0);
+		} catch (ServiceResultException | RuntimeException e) {
+			if (running) {
+				failure.set(e);
+			}
+			return false;
+		}
+
+		offset = 0;
+		for (ScanGroup group : due) {
+			for (int i = 0; i < group.nodesToRead.length; i++) {
+				final DataValue value = values[offset + i];
+				final int statusCode = value.getStatusCode() == null ? 0 : value.getStatusCode().getValue().intValue();
+				if (drainer != null && buffer.size() >= buffer.getCapacity()) {
+					// Nobody else drains the buffer, blocking would wait forever
+					drainer.run();
+				}
+				buffer.offer(group.firstHandle + i, statusCode, millis(value.getSourceTimestamp()), millis(value.getServerTimestamp()), value);
+			}
+			offset += group.nodesToRead.length;
+		}
+		if (drainer != null) {
+			drainer.run();
+		}
+		return true;
+	}
+
+	/**
+	 * Schedules the next scan of a group, skipping the scans that are already over.
+	 */
+	private void reschedule(final ScanGroup group, final long now) {
+		// The first scan runs at start, the others on multiples of the rate
+		long next = group.nextScan + group.rateMillis;
+		next -= Math.floorMod(next, group.rateMillis);
+		if (next <= now) {
+			final long aligned = now - Math.floorMod(now, group.rateMillis) + group.rateMillis;
+			missedScans.add((aligned - next) / group.rateMillis);
+			next = aligned;
+		}
+		group.nextScan = next;
+		wheel.schedule(group, next);
+	}
+
+	private static long millis(DateTime time) {
+		return time == null ? -1 : time.getTimeInMillis();
+	}
+
+	/**
+	 * Stops scanning after the scan in progress, the buffered values stay.
+	 */
+	public synchronized void stop() {
+		running = false;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the scan in progress after stop has buffered its values.
+	 *
+	 * @return false if scanning is still going on after the timeout
+	 */
+	public synchronized boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (scanThread != null) {
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops scanning and closes the connection.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = scanThread;
+		}
+		buffer.close();
+		connection.close();
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+}
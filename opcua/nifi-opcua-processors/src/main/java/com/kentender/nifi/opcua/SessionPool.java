@@ -0,0 +1,89 @@
+package com.kentender.nifi.opcua;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.opcfoundation.ua.application.Client;
+
+/**
+ * A fixed set of sessions to one endpoint that concurrent tasks are striped over.
+ *
+ * Selection is lock free: a task starts at the next stripe in round robin order
+ * and claims the first idle one with a compare and set. If every stripe is busy
+ * it shares the stripe it started at, the stack multiplexes requests on a session.
+ */
+public class SessionPool {
+
+	private final OPCConnection[] stripes;
+	private final AtomicIntegerArray busy;
+	private final AtomicInteger next = new AtomicInteger();
+
+	public SessionPool(Client myClient, String url, String securityPolicy, String serverCert, int size, AdaptiveBatchSize batchSize) {
+		stripes = new OPCConnection[Math.max(1, size)];
+		for (int i = 0; i < stripes.length; i++) {
+			// All stripes talk to the same server, so they share one batch size
+			stripes[i] = new OPCConnection(myClient, url, securityPolicy, serverCert, batchSize);
+		}
+		busy = new AtomicIntegerArray(stripes.length);
+	}
+
+	public int size() {
+		return stripes.length;
+	}
+
+	/**
+	 * Claims a session for one task. Must be paired with release.
+	 */
+	public OPCConnection acquire() {
+		final int start = Math.floorMod(next.getAndIncrement(), stripes.length);
+		for (int i = 0; i < stripes.length; i++) {
+			final int stripe = (start + i) % stripes.length;
+			if (busy.compareAndSet(stripe, 0, 1)) {
+				return stripes[stripe];
+			}
+		}
+		busy.incrementAndGet(start);
+		return stripes[start];
+	}
+
+	public void release(OPCConnection connection) {
+		for (int i = 0; i < stripes.length; i++) {
+			if (stripes[i] == connection) {
+				busy.decrementAndGet(i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Lets every stripe register the nodes it reads often, see OPCConnection.setRegisterAfterReads.
+	 */
+	public void setRegisterAfterReads(int registerAfterReads, int capacity) {
+		for (OPCConnection connection : stripes) {
+			connection.setRegisterAfterReads(registerAfterReads, capacity);
+		}
+	}
+
+	/**
+	 * Connects every stripe that has no session yet, in the background.
+	 */
+	public void warmUp() {
+		for (OPCConnection connection : stripes) {
+			connection.warmUp();
+		}
+	}
+
+	/**
+	 * Returns the first stripe, used for calls that only need any session.
+	 */
+	public OPCConnection primary() {
+		return stripes[0];
+	}
+
+	public void close() {
+		for (OPCConnection connection : stripes) {
+			connection.close();
+		}
+	}
+
+}
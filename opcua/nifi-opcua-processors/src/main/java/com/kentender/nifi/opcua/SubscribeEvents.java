@@ -0,0 +1,719 @@
+package com.kentender.nifi.opcua;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.LocalizedText;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.Variant;
+
+@Tags({"OPC", "OPCUA", "UA", "events", "alarms", "subscription"})
+@CapabilityDescription("Subscribes to the events and alarms of OPC UA event notifiers and writes them as records. The server filters "
+		+ "the events on severity, event type and source name and only sends the selected fields. Events are buffered between runs "
+		+ "and every run writes the buffered events in one flow file. Events whose flow file could not be written or committed "
+		+ "are written again on the next run. When the processor stops, the events still buffered are written before the session "
+		+ "is closed. With a spool directory the events are written to disk as they arrive and the flow files are handed on "
+		+ "when the processor runs, so a backpressured downstream neither drops events nor stops publishing")
+@WritesAttributes({
+	@WritesAttribute(attribute="opcua.endpoint", description="The endpoint the events came from"),
+	@WritesAttribute(attribute="opcua.events.dropped", description="Events dropped by a full buffer since the processor was scheduled"),
+	@WritesAttribute(attribute="record.count", description="The number of events")})
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
+
+public class SubscribeEvents extends AbstractSessionFactoryProcessor {
+
+	private static final DataType FIELD_TYPE = RecordFieldType.CHOICE.getChoiceDataType(
+			RecordFieldType.LONG.getDataType(),
+			RecordFieldType.DOUBLE.getDataType(),
+			RecordFieldType.BOOLEAN.getDataType(),
+			RecordFieldType.TIMESTAMP.getDataType(),
+			RecordFieldType.STRING.getDataType());
+
+	private static final Validator NODE_IDS_VALIDATOR = new Validator() {
+		@Override
+		public ValidationResult validate(String subject, String input, ValidationContext context) {
+			try {
+				EventSubscription.parseNodeIds(input);
+				return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+			} catch (IllegalArgumentException e) {
+				return new ValidationResult.Builder().subject(subject).input(input).valid(false)
+						.explanation("not a comma separated list of node ids like i=2253 or ns=2;s=Line1").build();
+			}
+		}
+	};
+
+	// Built in the background when scheduled
+	private volatile WarmUp<EventSubscription> subscription = null;
+
+	// Kept to write the events buffered when the processor stops, the server already has their acknowledgements
+	private static final long STOP_TIMEOUT = 5000;
+	private volatile ProcessSessionFactory sessionFactory = null;
+	private volatile RecordSchema schema = null;
+	private volatile String[] fieldNames = null;
+
+	// Events taken from the buffer whose session did not commit, written before any newer ones
+	private final Deque<Map<String, Object>> unsent = new ArrayDeque<>();
+
+	// Written by the publish thread, handed on by onTrigger
+	private static final int MAX_SPOOL_SEGMENT = 16 * 1024 * 1024;
+	private static final int SPOOL_BATCH_SIZE = 1000;
+	private volatile ValueSpool spool = null;
+	private long reportedDropped = 0;
+
+	public static final PropertyDescriptor ENDPOINT = new PropertyDescriptor
+            .Builder().name("Endpoint URL")
+            .description("the opc.tcp address of the opc ua server")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+	public static final PropertyDescriptor SERVER_CERT = new PropertyDescriptor
+            .Builder().name("Certificate for Server application")
+            .description("Certificate in .der format for server Nifi will connect, if left blank Nifi will attempt to retreive the certificate from the server")
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SECURITY_POLICY = new PropertyDescriptor
+            .Builder().name("Security Policy")
+            .description("How should Nifi authenticate with the UA server")
+            .required(true)
+            .allowableValues("None", "Basic128Rsa15", "Basic256", "Basic256Rsa256")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor APPLICATION_NAME = new PropertyDescriptor
+    		.Builder().name("Application Name")
+            .description("The application name is used to label certificates identifying this application")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor EVENT_NOTIFIERS = new PropertyDescriptor
+            .Builder().name("Event Notifiers")
+            .description("Comma separated node ids of the objects whose events to receive. The Server object, i=2253, "
+            		+ "notifies all events of the server")
+            .required(true)
+            .defaultValue("i=2253")
+            .addValidator(NODE_IDS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SELECT_FIELDS = new PropertyDescriptor
+            .Builder().name("Select Fields")
+            .description("Comma separated browse paths of the event fields to write, relative to BaseEventType. Names of other "
+            		+ "namespaces are prefixed with the namespace index, e.g. 2:Counter, nested names are separated by slashes, "
+            		+ "e.g. ActiveState/Id, which becomes the record field activeStateId")
+            .required(true)
+            .defaultValue("EventId, EventType, SourceName, Time, ReceiveTime, Message, Severity")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MIN_SEVERITY = new PropertyDescriptor
+            .Builder().name("Minimum Severity")
+            .description("Only receive events of at least this severity, from 1 to 1000. 0 receives all events")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.createLongValidator(0, 1000, true))
+            .build();
+
+    public static final PropertyDescriptor EVENT_TYPES = new PropertyDescriptor
+            .Builder().name("Event Types")
+            .description("Comma separated node ids of the event types to receive, including their subtypes, "
+            		+ "e.g. i=2915 for alarms. Leave blank for all types")
+            .required(false)
+            .addValidator(NODE_IDS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SOURCE_NAMES = new PropertyDescriptor
+            .Builder().name("Source Names")
+            .description("Comma separated source names to receive events from. Leave blank for all sources")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PUBLISHING_INTERVAL = new PropertyDescriptor
+            .Builder().name("Publishing Interval")
+            .description("How often the server sends the events it collected")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor QUEUE_SIZE = new PropertyDescriptor
+            .Builder().name("Queue Size")
+            .description("Number of events the server keeps per notifier between publishes. The oldest are discarded first")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BUFFER_SIZE = new PropertyDescriptor
+            .Builder().name("Buffer Size")
+            .description("Number of events kept between runs, rounded up to a power of two")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final String BLOCK = "Block";
+    public static final String DROP_OLDEST = "Drop Oldest";
+    public static final String DROP_NEWEST = "Drop Newest";
+
+    public static final PropertyDescriptor BUFFER_FULL_STRATEGY = new PropertyDescriptor
+            .Builder().name("Buffer Full Strategy")
+            .description("What to do with events when the buffer is full. Block stops publishing, so the server queues "
+            		+ "and eventually discards them. With a spool directory the buffer is emptied into the spool before it fills up")
+            .required(true)
+            .allowableValues(BLOCK, DROP_OLDEST, DROP_NEWEST)
+            .defaultValue(BLOCK)
+            .build();
+
+    public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Max Batch Size")
+            .description("Largest number of events written to one flow file")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor
+            .Builder().name("Record Writer")
+            .description("Writes the events as records")
+            .required(true)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+
+    public static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor
+            .Builder().name("Spool Directory")
+            .description("Write the events as flow files to memory-mapped files in this directory as they arrive and keep them "
+            		+ "until the processor runs. Spooled flow files survive a restart. Every processor needs its own directory. "
+            		+ "Leave blank to keep the events in the buffer")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_SPOOL_SIZE = new PropertyDescriptor
+            .Builder().name("Max Spool Size")
+            .description("Disk space the spool may take")
+            .required(true)
+            .defaultValue("1 GB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPOOL_FULL_STRATEGY = new PropertyDescriptor
+            .Builder().name("Spool Full Strategy")
+            .description("Whether a full spool makes room by dropping its oldest flow files, a segment of them at a time, or drops new ones")
+            .required(true)
+            .allowableValues(DROP_OLDEST, DROP_NEWEST)
+            .defaultValue(DROP_OLDEST)
+            .build();
+
+    public static final Relationship SUCCESS = new Relationship.Builder()
+            .name("Success")
+            .description("Received events")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(ENDPOINT);
+        descriptors.add(SECURITY_POLICY);
+        descriptors.add(APPLICATION_NAME);
+        descriptors.add(SERVER_CERT);
+        descriptors.add(EVENT_NOTIFIERS);
+        descriptors.add(SELECT_FIELDS);
+        descriptors.add(MIN_SEVERITY);
+        descriptors.add(EVENT_TYPES);
+        descriptors.add(SOURCE_NAMES);
+        descriptors.add(PUBLISHING_INTERVAL);
+        descriptors.add(QUEUE_SIZE);
+        descriptors.add(BUFFER_SIZE);
+        descriptors.add(BUFFER_FULL_STRATEGY);
+        descriptors.add(MAX_BATCH_SIZE);
+        descriptors.add(RECORD_WRITER);
+        descriptors.add(SPOOL_DIRECTORY);
+        descriptors.add(MAX_SPOOL_SIZE);
+        descriptors.add(SPOOL_FULL_STRATEGY);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+
+    	final String applicationName = context.getProperty(APPLICATION_NAME).getValue();
+    	final String url = context.getProperty(ENDPOINT).getValue();
+    	final String securityPolicy = context.getProperty(SECURITY_POLICY).getValue();
+    	final String serverCert = context.getProperty(SERVER_CERT).getValue();
+
+    	final QualifiedName[][] selectFields = EventSubscription.parseSelectFields(context.getProperty(SELECT_FIELDS).getValue());
+    	final String sourceNames = context.getProperty(SOURCE_NAMES).getValue();
+    	final EventSubscription.Settings settings = new EventSubscription.Settings()
+    			.notifiers(EventSubscription.parseNodeIds(context.getProperty(EVENT_NOTIFIERS).getValue()))
+    			.selectFields(selectFields)
+    			.minSeverity(context.getProperty(MIN_SEVERITY).asInteger())
+    			.eventTypes(EventSubscription.parseNodeIds(context.getProperty(EVENT_TYPES).getValue()))
+    			.sourceNames(sourceNames == null ? new String[0] : splitNames(sourceNames))
+    			.publishingInterval(context.getProperty(PUBLISHING_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS))
+    			.queueSize(context.getProperty(QUEUE_SIZE).asInteger());
+
+    	final String[] names = new String[selectFields.length];
+    	final List<RecordField> fields = new ArrayList<>();
+    	fields.add(new RecordField("notifier", RecordFieldType.STRING.getDataType()));
+    	for (int i = 0; i < selectFields.length; i++) {
+    		names[i] = EventSubscription.fieldName(selectFields[i]);
+    		fields.add(new RecordField(names[i], FIELD_TYPE));
+    	}
+    	fieldNames = names;
+    	schema = new SimpleRecordSchema(fields);
+
+    	final int bufferSize = context.getProperty(BUFFER_SIZE).asInteger();
+    	final NotificationBuffer.OverflowPolicy overflowPolicy = NotificationBuffer.OverflowPolicy.valueOf(
+    			context.getProperty(BUFFER_FULL_STRATEGY).getValue().toUpperCase().replace(' ', '_'));
+
+    	spool = null;
+    	if (context.getProperty(SPOOL_DIRECTORY).isSet()) {
+    		final long maxBytes = context.getProperty(MAX_SPOOL_SIZE).asDataSize(DataUnit.B).longValue();
+    		final int segmentBytes = (int) Math.min(MAX_SPOOL_SEGMENT, Math.max(1024 * 1024, maxBytes / 4));
+    		try {
+    			spool = new ValueSpool(Paths.get(context.getProperty(SPOOL_DIRECTORY).getValue()), maxBytes, segmentBytes,
+    					DROP_OLDEST.equals(context.getProperty(SPOOL_FULL_STRATEGY).getValue()));
+    		} catch (IOException e) {
+    			throw new ProcessException("Failed to open the spool: " + e.getMessage(), e);
+    		}
+    		if (spool.getBacklog() > 0) {
+    			getLogger().info("Recovered " + spool.getBacklog() + " spooled flow files");
+    		}
+    		reportedDropped = 0;
+    	}
+    	final ValueSpool currentSpool = spool;
+
+		// Certificates, session and subscription are set up in the background, onTrigger yields until they are ready
+		subscription = new WarmUp<EventSubscription>(() -> {
+			OPCConnection connection = new OPCConnection(Utils.createClient(applicationName, securityPolicy), url, securityPolicy, serverCert);
+			EventSubscription newSubscription = new EventSubscription(connection, settings,
+					new NotificationBuffer(bufferSize, overflowPolicy, connection.getMetrics()));
+			if (currentSpool != null) {
+				// Spooled on the publish thread, before the events are acknowledged
+				newSubscription.setDrainer(() -> spoolEvents(context, newSubscription, currentSpool));
+			}
+			newSubscription.start();
+			return newSubscription;
+		}, EventSubscription::close).start();
+	}
+
+    @OnUnscheduled
+	public void onUnscheduled(final ProcessContext context){
+    	final WarmUp<EventSubscription> warmUp = subscription;
+    	final EventSubscription current = warmUp == null ? null : warmUp.get();
+    	if (current != null) {
+    		current.stop();
+    	}
+    }
+
+    @OnStopped
+	public void onStopped(final ProcessContext context){
+    	final WarmUp<EventSubscription> warmUp = subscription;
+    	final EventSubscription current = warmUp == null ? null : warmUp.get();
+    	if (current != null) {
+    		if (spool != null) {
+    			spoolRemaining(context, current, spool);
+    		} else {
+    			flush(context, current);
+    		}
+    	}
+    	if (subscription != null) {
+    		subscription.cancel();
+    		subscription = null;
+    	}
+    	if (spool != null) {
+    		spool.close();
+    		spool = null;
+    	}
+    }
+
+    /**
+     * Spools the events still buffered once publishing has stopped, they are handed on
+     * when the processor runs again.
+     */
+    private void spoolRemaining(final ProcessContext context, final EventSubscription current, final ValueSpool spool) {
+    	try {
+    		if (!current.awaitStopped(STOP_TIMEOUT)) {
+    			getLogger().warn("Publishing did not stop in time, events arriving from now on are dropped");
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	spoolEvents(context, current, spool);
+    }
+
+    /**
+     * Writes the buffered events and those whose session did not commit into the spool,
+     * a flow file of up to Max Batch Size events at a time.
+     */
+    private synchronized void spoolEvents(final ProcessContext context, final EventSubscription current, final ValueSpool spool) {
+    	final int maxBatchSize = context.getProperty(MAX_BATCH_SIZE).asInteger();
+    	final SpoolBuffer bytes = new SpoolBuffer();
+    	List<Map<String, Object>> events;
+    	while (!(events = takeEvents(context, current, maxBatchSize)).isEmpty()) {
+    		final Map<String, String> attributes = new HashMap<>();
+    		attributes.put("opcua.endpoint", current.getConnection().getUrl());
+    		attributes.put("opcua.events.dropped", String.valueOf(current.getBuffer().getDropped()));
+    		attributes.put("record.count", String.valueOf(events.size()));
+    		bytes.reset();
+    		try {
+    			writeRecords(context, events, bytes, Collections.<String, String>emptyMap(), attributes);
+    			spool.append(attributes, bytes.array(), 0, bytes.size());
+    		} catch (IOException | IllegalArgumentException e) {
+    			getLogger().error("Failed to spool " + events.size() + " events: " + e.getMessage());
+    		}
+    	}
+    }
+
+    private static class SpoolBuffer extends ByteArrayOutputStream {
+    	byte[] array() {
+    		return buf;
+    	}
+    }
+
+    /**
+     * Writes the events still buffered once publishing has stopped. A buffer that blocks
+     * when full is drained meanwhile so the last Publish can be handed over.
+     */
+    private void flush(final ProcessContext context, final EventSubscription current) {
+    	final ProcessSessionFactory factory = sessionFactory;
+    	final int maxBatchSize = context.getProperty(MAX_BATCH_SIZE).asInteger();
+    	if (factory == null) {
+    		if (current.getBuffer().size() > 0) {
+    			getLogger().warn("Dropping " + current.getBuffer().size() + " buffered events, the processor never ran");
+    		}
+    		return;
+    	}
+
+    	final ProcessSession session = factory.createSession();
+    	final List<Map<String, Object>> taken = new ArrayList<>();
+    	try {
+    		final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+    		boolean stopped;
+    		do {
+    			transferEvents(context, session, current, maxBatchSize, taken);
+    			stopped = current.awaitStopped(Math.min(100, Math.max(0, deadline - System.currentTimeMillis())));
+    		} while (!stopped && System.currentTimeMillis() < deadline);
+    		if (!stopped) {
+    			getLogger().warn("Publishing did not stop in time, events arriving from now on are dropped");
+    		}
+    		while (transferEvents(context, session, current, maxBatchSize, taken) > 0) {
+    			// Until the buffer is empty
+    		}
+    		session.commit();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		session.rollback();
+    		requeue(taken);
+    	} catch (RuntimeException e) {
+    		getLogger().error("Failed to write the buffered events: " + e.getMessage());
+    		session.rollback();
+    		requeue(taken);
+    	}
+    	synchronized (unsent) {
+    		if (!unsent.isEmpty()) {
+    			getLogger().warn("Keeping " + unsent.size() + " events that could not be written until the processor runs again");
+    		}
+    	}
+    }
+
+    /**
+     * Puts events back in front of the unsent ones, in their order.
+     */
+    private void requeue(final List<Map<String, Object>> events) {
+    	synchronized (unsent) {
+    		for (int i = events.size() - 1; i >= 0; i--) {
+    			unsent.addFirst(events.get(i));
+    		}
+    	}
+    	events.clear();
+    }
+
+	private static String[] splitNames(String names) {
+		List<String> split = new ArrayList<>();
+		for (String name : names.split(",")) {
+			if (!name.trim().isEmpty()) {
+				split.add(name.trim());
+			}
+		}
+		return split.toArray(new String[0]);
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+		this.sessionFactory = sessionFactory;
+		final ProcessSession session = sessionFactory.createSession();
+		final List<Map<String, Object>> taken = new ArrayList<>();
+		try {
+			onTrigger(context, session, taken);
+			session.commit();
+		} catch (final Throwable t) {
+			getLogger().error("{} failed to process due to {}; rolling back session", new Object[] {this, t});
+			session.rollback(true);
+			// The server will not send them again
+			requeue(taken);
+			throw t;
+		}
+	}
+
+	private void onTrigger(final ProcessContext context, final ProcessSession session, final List<Map<String, Object>> taken) throws ProcessException {
+
+		final ComponentLog logger = getLogger();
+		final ValueSpool spool = this.spool;
+		if (spool != null) {
+			// Also hands on what was recovered while the subscription is still set up
+			drainSpool(context, session, spool);
+		}
+		final EventSubscription current = subscription.readyOrYield(context, logger);
+		if (current == null) {
+			return;
+		}
+		Exception failure = current.takeFailure();
+		if (failure != null) {
+			// The subscription keeps retrying by itself
+			logger.error(failure.getMessage());
+		}
+
+		if (spool == null && transferEvents(context, session, current, context.getProperty(MAX_BATCH_SIZE).asInteger(), taken) == 0) {
+			context.yield();
+		}
+	}
+
+	/**
+	 * Hands spooled flow files on in order, and forgets them once the session is committed.
+	 */
+	private void drainSpool(final ProcessContext context, final ProcessSession session, final ValueSpool current) {
+		final long dropped = current.getDropped();
+		if (dropped > reportedDropped) {
+			getLogger().warn("The spool is full, " + (dropped - reportedDropped) + " flow files were dropped");
+			reportedDropped = dropped;
+		}
+
+		try {
+			final int count = current.read(SPOOL_BATCH_SIZE, (attributes, content) -> {
+				FlowFile flowFile = session.create();
+				flowFile = session.putAllAttributes(flowFile, attributes);
+				flowFile = session.write(flowFile, new OutputStreamCallback() {
+					@Override
+					public void process(OutputStream out) throws IOException {
+						final WritableByteChannel channel = Channels.newChannel(out);
+						while (content.hasRemaining()) {
+							channel.write(content);
+						}
+					}
+				});
+				session.transfer(flowFile, SUCCESS);
+			});
+			if (count == 0) {
+				context.yield();
+				return;
+			}
+			// A crash between the two commits hands the flow files on twice rather than never
+			session.commit();
+			current.commit();
+		} catch (IOException | ProcessException e) {
+			current.rollback();
+			session.rollback();
+			getLogger().error("Failed to hand on spooled flow files: " + e.getMessage());
+			context.yield();
+		}
+	}
+
+	/**
+	 * Takes up to maxEvents events, the unsent ones first, then from the buffer.
+	 */
+	private List<Map<String, Object>> takeEvents(final ProcessContext context, final EventSubscription current, final int maxEvents) {
+		final List<Map<String, Object>> events = new ArrayList<>();
+		synchronized (unsent) {
+			while (events.size() < maxEvents && !unsent.isEmpty()) {
+				events.add(unsent.pollFirst());
+			}
+		}
+		if (events.size() < maxEvents) {
+			drainEvents(context, current, maxEvents - events.size(), events);
+		}
+		return events;
+	}
+
+	/**
+	 * Takes up to maxEvents events from the buffer as record values.
+	 */
+	private void drainEvents(final ProcessContext context, final EventSubscription current, final int maxEvents, final List<Map<String, Object>> events) {
+		final String[] names = fieldNames;
+		final NodeId[] notifiers = EventSubscription.parseNodeIds(context.getProperty(EVENT_NOTIFIERS).getValue());
+		current.getBuffer().drain((handle, statusCode, sourceTime, serverTime, number, value) -> {
+			Variant[] eventFields = (Variant[]) value;
+			Map<String, Object> values = new HashMap<>();
+			values.put("notifier", handle < notifiers.length ? notifiers[handle].toString() : null);
+			for (int i = 0; i < names.length && eventFields != null && i < eventFields.length; i++) {
+				values.put(names[i], toFieldValue(eventFields[i] == null ? null : eventFields[i].getValue()));
+			}
+			events.add(values);
+		}, maxEvents);
+	}
+
+	/**
+	 * Writes the events as a record set and adds the writer's attributes.
+	 */
+	private void writeRecords(final ProcessContext context, final List<Map<String, Object>> events, final OutputStream out,
+			final Map<String, String> variables, final Map<String, String> attributes) throws IOException {
+		final RecordSchema recordSchema = schema;
+		final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+		try (RecordSetWriter writer = writerFactory.createWriter(getLogger(), writerFactory.getSchema(variables, recordSchema), out, variables)) {
+			writer.beginRecordSet();
+			for (Map<String, Object> values : events) {
+				writer.write(new MapRecord(recordSchema, values));
+			}
+			WriteResult result = writer.finishRecordSet();
+			attributes.putAll(result.getAttributes());
+			attributes.put("mime.type", writer.getMimeType());
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes up to maxEvents events into one flow file and adds them to taken, so they
+	 * can be put back if the session does not commit.
+	 *
+	 * @return the number of events written
+	 */
+	private int transferEvents(final ProcessContext context, final ProcessSession session, final EventSubscription current, final int maxEvents,
+			final List<Map<String, Object>> taken) {
+
+		final ComponentLog logger = getLogger();
+		final List<Map<String, Object>> events = takeEvents(context, current, maxEvents);
+		if (events.isEmpty()) {
+			return 0;
+		}
+
+		// Write the events out as records
+		final Map<String, String> attributes = new HashMap<>();
+		FlowFile flowFile = session.create();
+		final FlowFile original = flowFile;
+		try {
+			flowFile = session.write(flowFile, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					writeRecords(context, events, out, original.getAttributes(), attributes);
+				}
+			});
+		} catch (ProcessException e) {
+			// Written again on the next run, the server will not send them again
+			logger.error(e.getMessage());
+			session.remove(flowFile);
+			requeue(events);
+			context.yield();
+			return 0;
+		}
+
+		attributes.put("opcua.endpoint", current.getConnection().getUrl());
+		attributes.put("opcua.events.dropped", String.valueOf(current.getBuffer().getDropped()));
+		attributes.put("record.count", String.valueOf(events.size()));
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		session.transfer(flowFile, SUCCESS);
+		taken.addAll(events);
+		return events.size();
+	}
+
+	private static Object toFieldValue(Object value) {
+		if (value == null || value instanceof Boolean) {
+			return value;
+		}
+		if (value instanceof DateTime) {
+			return new Timestamp(((DateTime) value).getTimeInMillis());
+		}
+		if (value instanceof LocalizedText) {
+			return ((LocalizedText) value).getText();
+		}
+		if (value instanceof byte[]) {
+			// EventId
+			StringBuilder hex = new StringBuilder();
+			for (byte b : (byte[]) value) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		}
+		if (value instanceof Double || value instanceof Float) {
+			return ((Number) value).doubleValue();
+		}
+		if (value instanceof Number) {
+			// Also the unsigned types of the stack
+			return ((Number) value).longValue();
+		}
+		return value.toString();
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.kentender.nifi.opcua;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns tags to cluster members with a consistent hash ring.
+ *
+ * Every member is placed on the ring many times (virtual nodes) so the tags are
+ * spread evenly. A tag belongs to the first member clockwise from its own hash,
+ * so when a member joins or leaves only the tags next to its positions move.
+ */
+public class TagPartitioner {
+
+	public static final int VIRTUAL_NODES = 128;
+
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	private final Set<String> members;
+
+	public TagPartitioner(Collection<String> members) {
+		this(members, VIRTUAL_NODES);
+	}
+
+	public TagPartitioner(Collection<String> members, int virtualNodes) {
+		this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+		for (String member : this.members) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(member + "#" + i), member);
+			}
+		}
+	}
+
+	public Set<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Returns the member that owns the given key, or null if there are no members.
+	 */
+	public String ownerOf(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		SortedMap<Long, String> tail = ring.tailMap(hash(key));
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+	}
+
+	/**
+	 * Returns the keys owned by the given member, in their original order.
+	 */
+	public List<String> select(List<String> keys, String member, String prefix) {
+		List<String> selected = new ArrayList<>();
+		for (String key : keys) {
+			if (member.equals(ownerOf(prefix + key))) {
+				selected.add(key);
+			}
+		}
+		return selected;
+	}
+
+	static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM ships MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the members whose heartbeat in the given cluster state is not older than the timeout.
+	 */
+	public static Set<String> liveMembers(Map<String, String> state, String keyPrefix, long now, long timeoutMillis) {
+		Set<String> live = new TreeSet<>();
+		for (Map.Entry<String, String> entry : state.entrySet()) {
+			if (entry.getKey().startsWith(keyPrefix) && isAlive(entry.getValue(), now, timeoutMillis)) {
+				live.add(entry.getKey().substring(keyPrefix.length()));
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Returns true if the given heartbeat time is not older than the timeout.
+	 */
+	public static boolean isAlive(String heartbeat, long now, long timeoutMillis) {
+		try {
+			return now - Long.parseLong(heartbeat) <= timeoutMillis;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,463 @@
+package com.kentender.nifi.opcua;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a batch of tag values, after Facebook's Gorilla.
+ *
+ * A batch starts with the bytes OTS and the version 1, then the number of series.
+ * Every series is its tag (the dictionary entry, written once per batch), a type
+ * byte, the sample count and a bit stream: the first timestamp in 64 bits, then the
+ * delta of the deltas in 1, 9, 15, 24 or 68 bits, and for numeric series the first
+ * value in 64 bits, then each value XOR the previous one with its leading and
+ * trailing zeros left out. Regular polling gives a single bit per timestamp and
+ * values that do not change a single bit per value. Text series follow the bit
+ * stream with their values as length and UTF-8 bytes. Counts and lengths are
+ * unsigned LEB128 varints. Batches can be concatenated.
+ *
+ * Timestamps are epoch millis, a sample without one gets the timestamp of the
+ * previous sample. Numbers are stored as doubles; a series of only integers or only
+ * booleans is decoded as such. A missing value is NaN in a numeric series and
+ * decoded as null unless the series holds doubles. A tag with any value that is not
+ * a number or boolean is stored as text. Not thread safe.
+ */
+public class TimeSeriesCodec {
+
+	private static final byte[] MAGIC = {'O', 'T', 'S'};
+	private static final byte VERSION = 1;
+
+	static final byte DOUBLES = 0;
+	static final byte INTEGERS = 1;
+	static final byte BOOLEANS = 2;
+	static final byte TEXT = 3;
+
+	/**
+	 * Receives decoded samples in the order they were added, series by series.
+	 */
+	public interface Sink {
+		void accept(String tag, long time, Object value) throws IOException;
+	}
+
+	private static class Series {
+		String tag;
+		int count;
+		long[] times = new long[16];
+		double[] numbers = new double[16];
+		Object[] texts;
+		boolean integers;
+		boolean booleans;
+
+		void reset(String tag) {
+			this.tag = tag;
+			count = 0;
+			texts = null;
+			integers = true;
+			booleans = true;
+		}
+
+		byte type() {
+			return texts != null ? TEXT : booleans && count > 0 ? BOOLEANS : integers ? INTEGERS : DOUBLES;
+		}
+	}
+
+	private final Map<String, Series> dictionary = new HashMap<>();
+	private final List<Series> series = new ArrayList<>();
+	private final List<Series> pool = new ArrayList<>();
+	private final BitOutput bits = new BitOutput();
+	private int samples = 0;
+
+	/**
+	 * Empties the batch, keeping the arrays for the next one.
+	 */
+	public void reset() {
+		dictionary.clear();
+		series.clear();
+		samples = 0;
+	}
+
+	public int size() {
+		return samples;
+	}
+
+	/**
+	 * Adds a sample. Long.MIN_VALUE for time means none.
+	 */
+	public void add(CharSequence tag, Object value, long time) {
+		String key = tag.toString();
+		Series s = dictionary.get(key);
+		if (s == null) {
+			s = series.size() < pool.size() ? pool.get(series.size()) : null;
+			if (s == null) {
+				s = new Series();
+				pool.add(s);
+			}
+			s.reset(key);
+			dictionary.put(key, s);
+			series.add(s);
+		}
+		if (s.count == s.times.length) {
+			s.times = Arrays.copyOf(s.times, s.count * 2);
+			s.numbers = Arrays.copyOf(s.numbers, s.count * 2);
+			if (s.texts != null) {
+				s.texts = Arrays.copyOf(s.texts, s.count * 2);
+			}
+		}
+
+		int i = s.count++;
+		samples++;
+		s.times[i] = time != Long.MIN_VALUE ? time : i > 0 ? s.times[i - 1] : 0;
+		if (value instanceof Boolean) {
+			s.numbers[i] = (Boolean) value ? 1 : 0;
+		} else if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			s.numbers[i] = number;
+			s.booleans = false;
+			s.integers &= !(value instanceof Double || value instanceof Float) && number == Math.rint(number);
+		} else if (value == null) {
+			s.numbers[i] = Double.NaN;
+		} else {
+			s.booleans = false;
+			s.integers = false;
+		}
+
+		if (s.texts == null && value != null && !(value instanceof Number) && !(value instanceof Boolean)) {
+			// Keep what was added so far as text
+			s.texts = new Object[s.times.length];
+			for (int j = 0; j < i; j++) {
+				s.texts[j] = Double.isNaN(s.numbers[j]) ? null : s.numbers[j];
+			}
+		}
+		if (s.texts != null) {
+			s.texts[i] = value;
+		}
+	}
+
+	/**
+	 * Writes the batch.
+	 */
+	public void encode(OutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		writeVarint(out, series.size());
+		for (Series s : series) {
+			writeString(out, s.tag);
+			byte type = s.type();
+			out.write(type);
+			writeVarint(out, s.count);
+
+			bits.reset();
+			long previousTime = 0;
+			long previousDelta = 0;
+			long previousBits = 0;
+			int leading = -1;
+			int trailing = 0;
+			for (int i = 0; i < s.count; i++) {
+				// Timestamp
+				if (i == 0) {
+					bits.write(s.times[0], 64);
+				} else {
+					long delta = s.times[i] - previousTime;
+					writeDeltaOfDelta(delta - previousDelta);
+					previousDelta = delta;
+				}
+				previousTime = s.times[i];
+
+				// Value
+				if (type == TEXT) {
+					continue;
+				}
+				long valueBits = Double.doubleToRawLongBits(s.numbers[i]);
+				if (i == 0) {
+					bits.write(valueBits, 64);
+				} else {
+					long xor = valueBits ^ previousBits;
+					if (xor == 0) {
+						bits.write(0, 1);
+					} else {
+						int newLeading = Math.min(31, Long.numberOfLeadingZeros(xor));
+						int newTrailing = Long.numberOfTrailingZeros(xor);
+						if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+							// Fits the previous window
+							bits.write(0b10, 2);
+							bits.write(xor >>> trailing, 64 - leading - trailing);
+						} else {
+							int meaningful = 64 - newLeading - newTrailing;
+							bits.write(0b11, 2);
+							bits.write(newLeading, 5);
+							bits.write(meaningful - 1, 6);
+							bits.write(xor >>> newTrailing, meaningful);
+							leading = newLeading;
+							trailing = newTrailing;
+						}
+					}
+				}
+				previousBits = valueBits;
+			}
+			writeVarint(out, bits.length());
+			bits.writeTo(out);
+
+			if (type == TEXT) {
+				for (int i = 0; i < s.count; i++) {
+					Object text = s.texts[i];
+					if (text == null) {
+						writeVarint(out, 0);
+					} else {
+						byte[] utf8 = ValueWriter.toText(text).getBytes(StandardCharsets.UTF_8);
+						writeVarint(out, utf8.length + 1);
+						out.write(utf8);
+					}
+				}
+			}
+		}
+	}
+
+	private void writeDeltaOfDelta(long deltaOfDelta) {
+		if (deltaOfDelta == 0) {
+			bits.write(0, 1);
+		} else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+			bits.write(0b10, 2);
+			bits.write(deltaOfDelta, 7);
+		} else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+			bits.write(0b110, 3);
+			bits.write(deltaOfDelta, 12);
+		} else if (deltaOfDelta >= -524288 && deltaOfDelta < 524288) {
+			bits.write(0b1110, 4);
+			bits.write(deltaOfDelta, 20);
+		} else {
+			bits.write(0b1111, 4);
+			bits.write(deltaOfDelta, 64);
+		}
+	}
+
+	/**
+	 * Decodes all batches in the stream.
+	 *
+	 * @return the number of samples
+	 * @throws IOException also for data that is not an encoded batch
+	 */
+	public static long decode(InputStream in, Sink sink) throws IOException {
+		final DataInputStream data = new DataInputStream(in);
+		long samples = 0;
+		while (true) {
+			int first = data.read();
+			if (first < 0) {
+				return samples;
+			}
+			byte[] magic = new byte[MAGIC.length];
+			magic[0] = (byte) first;
+			data.readFully(magic, 1, magic.length - 1);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException("Not a time series batch");
+			}
+			int version = data.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported time series version " + version);
+			}
+
+			long seriesCount = readVarint(data);
+			for (long n = 0; n < seriesCount; n++) {
+				String tag = readString(data);
+				byte type = data.readByte();
+				int count = (int) readVarint(data);
+				byte[] block = new byte[(int) readVarint(data)];
+				data.readFully(block);
+				samples += decodeSeries(data, new BitInput(block), tag, type, count, sink);
+			}
+		}
+	}
+
+	private static int decodeSeries(DataInputStream data, BitInput bits, String tag, byte type, int count, Sink sink) throws IOException {
+		long time = 0;
+		long delta = 0;
+		long valueBits = 0;
+		int leading = 0;
+		int trailing = 0;
+		long[] times = type == TEXT ? new long[count] : null;
+		for (int i = 0; i < count; i++) {
+			if (i == 0) {
+				time = bits.read(64);
+			} else {
+				delta += readDeltaOfDelta(bits);
+				time += delta;
+			}
+			if (type == TEXT) {
+				times[i] = time;
+				continue;
+			}
+
+			if (i == 0) {
+				valueBits = bits.read(64);
+			} else if (bits.read(1) == 1) {
+				if (bits.read(1) == 1) {
+					leading = (int) bits.read(5);
+					int meaningful = (int) bits.read(6) + 1;
+					trailing = 64 - leading - meaningful;
+				}
+				valueBits ^= bits.read(64 - leading - trailing) << trailing;
+			}
+			double number = Double.longBitsToDouble(valueBits);
+			Object value;
+			if (type == DOUBLES) {
+				value = number;
+			} else if (Double.isNaN(number)) {
+				value = null;
+			} else if (type == BOOLEANS) {
+				value = number != 0;
+			} else {
+				value = (long) number;
+			}
+			sink.accept(tag, time, value);
+		}
+
+		if (type == TEXT) {
+			for (int i = 0; i < count; i++) {
+				int length = (int) readVarint(data);
+				String value = null;
+				if (length > 0) {
+					byte[] utf8 = new byte[length - 1];
+					data.readFully(utf8);
+					value = new String(utf8, StandardCharsets.UTF_8);
+				}
+				sink.accept(tag, times[i], value);
+			}
+		}
+		return count;
+	}
+
+	private static long readDeltaOfDelta(BitInput bits) throws IOException {
+		if (bits.read(1) == 0) {
+			return 0;
+		}
+		if (bits.read(1) == 0) {
+			return bits.readSigned(7);
+		}
+		if (bits.read(1) == 0) {
+			return bits.readSigned(12);
+		}
+		if (bits.read(1) == 0) {
+			return bits.readSigned(20);
+		}
+		return bits.read(64);
+	}
+
+	private static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static void writeString(OutputStream out, String value) throws IOException {
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, utf8.length);
+		out.write(utf8);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] utf8 = new byte[(int) readVarint(in)];
+		in.readFully(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Bits packed most significant first into a reused byte array.
+	 */
+	private static class BitOutput {
+		private byte[] buffer = new byte[1024];
+		private int position;
+		private int used;
+
+		void reset() {
+			Arrays.fill(buffer, 0, Math.min(buffer.length, position + 1), (byte) 0);
+			position = 0;
+			used = 0;
+		}
+
+		/**
+		 * Writes the lowest n bits of value.
+		 */
+		void write(long value, int n) {
+			while (n > 0) {
+				if (position == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				int free = 8 - used;
+				int take = Math.min(free, n);
+				int chunk = (int) (value >>> (n - take)) & ((1 << take) - 1);
+				buffer[position] |= chunk << (free - take);
+				used += take;
+				n -= take;
+				if (used == 8) {
+					position++;
+					used = 0;
+				}
+			}
+		}
+
+		int length() {
+			return used == 0 ? position : position + 1;
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(buffer, 0, length());
+		}
+	}
+
+	private static class BitInput {
+		private final byte[] buffer;
+		private int position;
+		private int used;
+
+		BitInput(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		long read(int n) throws IOException {
+			long value = 0;
+			while (n > 0) {
+				if (position == buffer.length) {
+					throw new EOFException("Time series bit stream ended early");
+				}
+				int available = 8 - used;
+				int take = Math.min(available, n);
+				int chunk = ((buffer[position] & 0xff) >>> (available - take)) & ((1 << take) - 1);
+				value = value << take | chunk;
+				used += take;
+				n -= take;
+				if (used == 8) {
+					position++;
+					used = 0;
+				}
+			}
+			return value;
+		}
+
+		long readSigned(int n) throws IOException {
+			return read(n) << (64 - n) >> (64 - n);
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A hashed timing wheel that tells which tasks are due, so tasks of many different
+ * periods are driven by one clock and everything due at the same tick is handed out
+ * together.
+ *
+ * Time is cut into ticks, aligned to the epoch. A task scheduled for a tick goes to
+ * slot tick modulo the wheel size, tasks more than one turn ahead share the slot and
+ * are skipped until their turn comes. Scheduling and finding the due tasks are O(1)
+ * per task whatever the number of tasks and periods. Deadlines are rounded up to the
+ * next tick. Not thread safe.
+ */
+public class TimingWheel<T> {
+
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final class Entry<T> {
+		final T task;
+		final long tick;
+
+		Entry(T task, long tick) {
+			this.task = task;
+			this.tick = tick;
+		}
+	}
+
+	private final long tickMillis;
+	private final int mask;
+	private final List<List<Entry<T>>> slots;
+
+	private long currentTick = Long.MIN_VALUE;
+	private int size = 0;
+
+	/**
+	 * @param wheelSize rounded up to the next power of two
+	 */
+	public TimingWheel(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("Tick must be positive");
+		}
+		int slotCount = wheelSize <= 2 ? 2 : Integer.highestOneBit(wheelSize - 1) << 1;
+		this.tickMillis = tickMillis;
+		this.mask = slotCount - 1;
+		this.slots = new ArrayList<>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new ArrayList<>());
+		}
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * The number of scheduled tasks.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules a task for the first tick at or after the deadline. A deadline that
+	 * has passed makes the task due at the next advance.
+	 */
+	public void schedule(T task, long deadlineMillis) {
+		long tick = Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis);
+		if (currentTick != Long.MIN_VALUE && tick <= currentTick) {
+			tick = currentTick + 1;
+		}
+		slots.get((int) tick & mask).add(new Entry<>(task, tick));
+		size++;
+	}
+
+	/**
+	 * Moves the wheel to the tick of now and adds every task due by then to the given
+	 * collection. Ticks that were missed are caught up at once, walking at most one turn.
+	 *
+	 * @return the number of due tasks
+	 */
+	public int advance(long nowMillis, Collection<? super T> due) {
+		final long nowTick = Math.floorDiv(nowMillis, tickMillis);
+		if (currentTick == Long.MIN_VALUE) {
+			// Tasks scheduled before the first advance may be due in any slot
+			currentTick = nowTick - 1 - mask;
+		}
+		if (nowTick <= currentTick) {
+			return 0;
+		}
+
+		// Past a whole turn every slot is visited once and the deadline check does the rest
+		final long from = Math.max(currentTick + 1, nowTick - mask);
+		int count = 0;
+		for (long tick = from; tick <= nowTick; tick++) {
+			final List<Entry<T>> slot = slots.get((int) tick & mask);
+			int kept = 0;
+			for (int i = 0; i < slot.size(); i++) {
+				final Entry<T> entry = slot.get(i);
+				if (entry.tick <= nowTick) {
+					due.add(entry.task);
+					count++;
+				} else {
+					slot.set(kept++, entry);
+				}
+			}
+			slot.subList(kept, slot.size()).clear();
+		}
+		currentTick = nowTick;
+		size -= count;
+		return count;
+	}
+
+	/**
+	 * When the tick after the last advance starts, the time to sleep until before advancing again.
+	 */
+	public long nextTickAt() {
+		return (currentTick + 1) * tickMillis;
+	}
+
+}
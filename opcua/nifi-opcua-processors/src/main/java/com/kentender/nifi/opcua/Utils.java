@@ -1,5 +1,8 @@
 package com.kentender.nifi.opcua;
 
+import static org.opcfoundation.ua.utils.EndpointUtil.selectByProtocol;
+import static org.opcfoundation.ua.utils.EndpointUtil.selectBySecurityPolicy;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -9,11 +12,18 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
+import java.util.Locale;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
+import org.opcfoundation.ua.application.Client;
+import org.opcfoundation.ua.builtintypes.LocalizedText;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.EndpointDescription;
+import org.opcfoundation.ua.core.MessageSecurityMode;
+import org.opcfoundation.ua.core.StatusCodes;
 import org.opcfoundation.ua.transport.security.Cert;
 import org.opcfoundation.ua.transport.security.KeyPair;
 import org.opcfoundation.ua.transport.security.PrivKey;
@@ -215,4 +225,77 @@ public class Utils {
 			return null;
 		}
 
+
+		/**
+		 * Maps the value of a Security Policy property to the stack's policy.
+		 */
+		public static SecurityPolicy getSecurityPolicy(String securityPolicy) {
+			switch (securityPolicy) {
+				case "Basic128Rsa15":
+					return SecurityPolicy.BASIC128RSA15;
+				case "Basic256":
+					return SecurityPolicy.BASIC256;
+				case "Basic256Rsa256":
+					return SecurityPolicy.BASIC256SHA256;
+				default:
+					return SecurityPolicy.NONE;
+			}
+		}
+		
+		/**
+		 * Creates an OPC client application, loading or creating its certificates when a security policy is used.
+		 */
+		public static Client createClient(String applicationName, String securityPolicy) {
+			
+			KeyPair myClientApplicationInstanceCertificate = null;
+			KeyPair myHttpsCertificate = null;
+			
+			// Load or create HTTP and Client's Application Instance Certificate and key
+			if (!"None".equals(securityPolicy)) {
+				myHttpsCertificate = getHttpsCert(applicationName);
+				myClientApplicationInstanceCertificate = getCert(applicationName, getSecurityPolicy(securityPolicy));
+			}
+			
+			Client myClient = Client.createClientApplication( myClientApplicationInstanceCertificate ); 
+			myClient.getApplication().getHttpsSettings().setKeyPair(myHttpsCertificate);
+			myClient.getApplication().addLocale( Locale.ENGLISH );
+			myClient.getApplication().setApplicationName( new LocalizedText(applicationName, Locale.ENGLISH) );
+			myClient.getApplication().setProductUri( "urn:" + applicationName );
+			return myClient;
+		}
+		
+		/**
+		 * Describes the endpoint to connect to. With a server certificate the endpoint is built locally,
+		 * otherwise it is discovered from the server and filtered by security policy and protocol.
+		 */
+		public static EndpointDescription getEndpoint(Client myClient, String url, String securityPolicy, String serverCert) throws ServiceResultException {
+			
+			if (serverCert != null) {
+				Cert myOwnCert;
+				try {
+					myOwnCert = Cert.load(new File(serverCert));
+				} catch (CertificateException | IOException e) {
+					throw new ServiceResultException(StatusCodes.Bad_CertificateInvalid, e);
+				}
+				
+				EndpointDescription endpointDescription = new EndpointDescription();
+				endpointDescription.setEndpointUrl(url);
+				endpointDescription.setServerCertificate(myOwnCert.getEncoded());
+				endpointDescription.setSecurityMode(MessageSecurityMode.Sign);
+				endpointDescription.setSecurityPolicyUri(getSecurityPolicy(securityPolicy).getPolicyUri());
+				return endpointDescription;
+			}
+			
+			EndpointDescription[] endpointDescriptions = myClient.discoverEndpoints(url);
+			endpointDescriptions = selectBySecurityPolicy(endpointDescriptions, getSecurityPolicy(securityPolicy));
+			
+			// For now only opc.tcp has been implemented
+			endpointDescriptions = selectByProtocol(endpointDescriptions, "opc.tcp");
+			if (endpointDescriptions.length == 0) {
+				throw new ServiceResultException(StatusCodes.Bad_SecurityPolicyRejected, 
+						"No opc.tcp endpoint with security policy " + securityPolicy + " found at " + url);
+			}
+			return endpointDescriptions[0].clone();
+		}
+
 }
@@ -0,0 +1,324 @@
+package com.kentender.nifi.opcua;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.StatusCodes;
+
+/**
+ * Read-through cache of current values with max age semantics.
+ *
+ * A value younger than the max age is served from the cache. Callers that miss put
+ * their node on a queue and whoever gets the read lock reads everything queued in one
+ * request, so concurrent lookups of the same node share one read and lookups of
+ * different nodes share a request. Nodes that were used recently and are past half
+ * their age are read along, which keeps a steady set of nodes fresh with a handful
+ * of requests instead of one per node.
+ *
+ * Values are read from the device, max age 0, so the age the cache goes by is the
+ * real age; letting the server answer from its own cache would add up to another
+ * max age. Bad values are handed to the callers waiting for them but not cached.
+ *
+ * All processors of this bundle share the same class loader, so acquire hands the
+ * GetValue processors reading the same endpoint with the same security policy and
+ * max age one cache between them. It reads through the first of their readers that
+ * can, and is dropped when the last of them releases it.
+ */
+public class ValueCache {
+
+	/**
+	 * Reads the values of many nodes, e.g. OPCConnection.read.
+	 */
+	public interface Reader {
+		DataValue[] read(ReadValueId[] nodesToRead, double maxAge) throws ServiceResultException;
+	}
+
+	private static final long RETRY_DISPATCH_MILLIS = 10;
+
+	// Guarded by itself
+	private static final Map<String, ValueCache> SHARED = new HashMap<>();
+
+	private final Reader reader;
+	private final long maxAgeMillis;
+	private volatile int maxSize;
+	private volatile int batchSize;
+	private String sharedKey = null;
+
+	private final ConcurrentHashMap<NodeId, Entry> entries = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<NodeId, CompletableFuture<DataValue>> inFlight = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<NodeId> pending = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock readLock = new ReentrantLock();
+
+	private static class Entry {
+		final DataValue value;
+		final long readAt;
+		volatile long lastUsed;
+
+		Entry(DataValue value, long readAt) {
+			this.value = value;
+			this.readAt = readAt;
+			this.lastUsed = readAt;
+		}
+	}
+
+	public ValueCache(Reader reader, long maxAgeMillis, int maxSize, int batchSize) {
+		this.reader = reader;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxSize = maxSize;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Reads through the first reader that can, so the cache keeps reading when the
+	 * processor whose sessions it used stops.
+	 */
+	private static class SharedReader implements Reader {
+		final List<Reader> readers = new CopyOnWriteArrayList<>();
+
+		@Override
+		public DataValue[] read(ReadValueId[] nodesToRead, double maxAge) throws ServiceResultException {
+			ServiceResultException failure = null;
+			for (Reader reader : readers) {
+				try {
+					return reader.read(nodesToRead, maxAge);
+				} catch (ServiceResultException e) {
+					failure = e;
+				}
+			}
+			throw failure != null ? failure : new ServiceResultException(StatusCodes.Bad_ServerNotConnected, "No processor reads for the cache");
+		}
+	}
+
+	/**
+	 * Returns the cache shared by everyone reading the endpoint with the security policy and
+	 * max age, creating it on first use, and adds the reader to the ones it reads through.
+	 * The cache keeps the largest size and the smallest batch size asked for. Every acquire
+	 * must be matched by a release with the same reader.
+	 */
+	public static ValueCache acquire(String url, String securityPolicy, Reader reader, long maxAgeMillis, int maxSize, int batchSize) {
+		final String key = url + "|" + securityPolicy + "|" + maxAgeMillis;
+		synchronized (SHARED) {
+			ValueCache cache = SHARED.get(key);
+			if (cache == null) {
+				cache = new ValueCache(new SharedReader(), maxAgeMillis, maxSize, batchSize);
+				cache.sharedKey = key;
+				SHARED.put(key, cache);
+			} else {
+				cache.maxSize = Math.max(cache.maxSize, maxSize);
+				cache.batchSize = Math.min(cache.batchSize, Math.max(1, batchSize));
+			}
+			((SharedReader) cache.reader).readers.add(reader);
+			return cache;
+		}
+	}
+
+	/**
+	 * Stops reading through the reader, and drops the cache once nobody reads through it.
+	 */
+	public static void release(ValueCache cache, Reader reader) {
+		synchronized (SHARED) {
+			final SharedReader shared = (SharedReader) cache.reader;
+			shared.readers.remove(reader);
+			if (shared.readers.isEmpty()) {
+				SHARED.remove(cache.sharedKey, cache);
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of one node, reading it if the cached value is too old.
+	 */
+	public DataValue get(NodeId nodeId, long timeoutMillis) throws ServiceResultException {
+		List<NodeId> nodeIds = new ArrayList<>(1);
+		nodeIds.add(nodeId);
+		return getAll(nodeIds, timeoutMillis).get(nodeId);
+	}
+
+	/**
+	 * Returns the values of the given nodes, reading the ones whose cached value is too old.
+	 */
+	public Map<NodeId, DataValue> getAll(Collection<NodeId> nodeIds, long timeoutMillis) throws ServiceResultException {
+		final long now = System.currentTimeMillis();
+		final Map<NodeId, DataValue> values = new LinkedHashMap<>();
+		final Map<NodeId, CompletableFuture<DataValue>> waiting = new LinkedHashMap<>();
+
+		for (NodeId nodeId : nodeIds) {
+			Entry entry = entries.get(nodeId);
+			if (entry != null && now - entry.readAt <= maxAgeMillis) {
+				entry.lastUsed = now;
+				values.put(nodeId, entry.value);
+				continue;
+			}
+			if (waiting.containsKey(nodeId)) {
+				continue;
+			}
+			CompletableFuture<DataValue> future = new CompletableFuture<>();
+			CompletableFuture<DataValue> existing = inFlight.putIfAbsent(nodeId, future);
+			if (existing == null) {
+				pending.add(nodeId);
+			} else {
+				// Somebody else already asked for this node
+				future = existing;
+			}
+			waiting.put(nodeId, future);
+		}
+
+		final long deadline = now + timeoutMillis;
+		for (Map.Entry<NodeId, CompletableFuture<DataValue>> entry : waiting.entrySet()) {
+			values.put(entry.getKey(), await(entry.getValue(), deadline));
+		}
+		return values;
+	}
+
+	private DataValue await(CompletableFuture<DataValue> future, long deadline) throws ServiceResultException {
+		while (true) {
+			dispatch();
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new ServiceResultException(StatusCodes.Bad_Timeout, "No value within the timeout");
+			}
+			try {
+				// Wake up now and then to read what was queued while another thread was reading
+				return future.get(Math.min(remaining, RETRY_DISPATCH_MILLIS), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				continue;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServiceResultException(StatusCodes.Bad_RequestCancelledByClient, "Interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof ServiceResultException) {
+					throw (ServiceResultException) e.getCause();
+				}
+				throw new ServiceResultException(StatusCodes.Bad_UnexpectedError, e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Reads the queued nodes if no other thread is reading.
+	 */
+	private void dispatch() {
+		while (!pending.isEmpty() && readLock.tryLock()) {
+			try {
+				readBatch();
+			} finally {
+				readLock.unlock();
+			}
+		}
+	}
+
+	private void readBatch() {
+		final long now = System.currentTimeMillis();
+		final Set<NodeId> batch = new LinkedHashSet<>();
+		NodeId nodeId;
+		while (batch.size() < batchSize && (nodeId = pending.poll()) != null) {
+			batch.add(nodeId);
+		}
+		final int requested = batch.size();
+
+		// Refresh ahead what is in use and getting old
+		for (Map.Entry<NodeId, Entry> entry : entries.entrySet()) {
+			if (batch.size() >= batchSize) {
+				break;
+			}
+			Entry cached = entry.getValue();
+			if (now - cached.readAt > maxAgeMillis / 2 && now - cached.lastUsed <= maxAgeMillis && !inFlight.containsKey(entry.getKey())) {
+				batch.add(entry.getKey());
+			}
+		}
+
+		final List<NodeId> nodeIds = new ArrayList<>(batch);
+		final ReadValueId[] nodesToRead = new ReadValueId[nodeIds.size()];
+		for (int i = 0; i < nodesToRead.length; i++) {
+			nodesToRead[i] = new ReadValueId(nodeIds.get(i), Attributes.Value, null, null);
+		}
+
+		try {
+			DataValue[] results = reader.read(nodesToRead, 0);
+			long readAt = System.currentTimeMillis();
+			for (int i = 0; i < nodeIds.size(); i++) {
+				if (results[i].getStatusCode() != null && results[i].getStatusCode().isBad()) {
+					entries.remove(nodeIds.get(i));
+					complete(nodeIds.get(i), results[i], null);
+					continue;
+				}
+				Entry previous = entries.get(nodeIds.get(i));
+				Entry entry = new Entry(results[i], readAt);
+				if (i >= requested && previous != null) {
+					// Read ahead, so not a use
+					entry.lastUsed = previous.lastUsed;
+				}
+				entries.put(nodeIds.get(i), entry);
+				complete(nodeIds.get(i), results[i], null);
+			}
+		} catch (ServiceResultException | RuntimeException e) {
+			for (int i = 0; i < requested; i++) {
+				complete(nodeIds.get(i), null, e);
+			}
+		}
+
+		if (entries.size() > maxSize) {
+			evict(now);
+		}
+	}
+
+	private void complete(NodeId nodeId, DataValue value, Exception failure) {
+		CompletableFuture<DataValue> future = inFlight.remove(nodeId);
+		if (future == null) {
+			return;
+		}
+		if (failure == null) {
+			future.complete(value);
+		} else {
+			future.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * Drops values nobody used for a while, then whatever is left over the size.
+	 */
+	private void evict(long now) {
+		entries.entrySet().removeIf(entry -> now - entry.getValue().lastUsed > maxAgeMillis * 4);
+		for (NodeId nodeId : entries.keySet()) {
+			if (entries.size() <= maxSize) {
+				break;
+			}
+			entries.remove(nodeId);
+		}
+	}
+
+	/**
+	 * Forgets a value, e.g. after writing the node.
+	 */
+	public void invalidate(NodeId nodeId) {
+		entries.remove(nodeId);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+}
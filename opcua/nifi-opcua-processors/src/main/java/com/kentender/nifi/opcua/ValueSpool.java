@@ -0,0 +1,455 @@
+package com.kentender.nifi.opcua;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store-and-forward spool of flow file contents in memory-mapped
+ * segment files, so values can be acquired at full rate while NiFi does not trigger
+ * the processor, and are handed on in order once it does again.
+ *
+ * Every entry is its length, a CRC32 and the attributes and content. Segments are
+ * created at full size and filled front to back, a length of -1 sends the reader to
+ * the next segment. What was read is only forgotten on commit, which writes the read
+ * position to a checkpoint file with an atomic rename and deletes the segments left
+ * behind; rollback reads the same entries again. On opening, the last segment is
+ * scanned and cut off at the first entry with a wrong checksum, so after a crash
+ * every committed entry is gone and every intact appended one is read, at least once.
+ * Entries sit in the page cache until the operating system writes them, segments
+ * are forced to disk when they are full.
+ *
+ * At most maxBytes of segments are kept. When a new segment would not fit either
+ * the oldest segment is deleted, read or not, or the new entry is dropped.
+ *
+ * Read copies the entries out and hands them to the sink after letting go of the
+ * spool, so appending goes on while the reader creates flow files. A read stops
+ * copying after READ_BYTES of content.
+ *
+ * The spool holds what GetEndpointValues polls in the background, and what
+ * SubscribeEvents and GetScanGroups drain from their NotificationBuffer on the
+ * publish or scan thread. GetValue reads on behalf of incoming flow files and has
+ * nothing to keep.
+ */
+public class ValueSpool implements Closeable {
+
+	/**
+	 * Receives entries in the order they were appended. The content is a copy the
+	 * sink may keep.
+	 */
+	public interface Sink {
+		void accept(Map<String, String> attributes, ByteBuffer content) throws IOException;
+	}
+
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT = "checkpoint";
+	private static final int HEADER = 8;
+	private static final int NEXT_SEGMENT = -1;
+	private static final long READ_BYTES = 8 << 20;
+
+	private static class Segment {
+		final long sequence;
+		final Path path;
+		final MappedByteBuffer buffer;
+
+		Segment(long sequence, Path path, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final int maxSegments;
+	private final boolean dropOldest;
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private final CRC32 crc = new CRC32();
+	private final Object readLock = new Object();
+
+	// Where the next entry goes
+	private Segment writeSegment;
+	private int writePosition;
+
+	// The position stored in the checkpoint, and how far read has got since
+	private long committedSegment;
+	private int committedPosition;
+	private long readSegment;
+	private int readPosition;
+	private long readEntries = 0;
+
+	private long backlog = 0;
+	private long dropped = 0;
+	private boolean closed = false;
+
+	/**
+	 * Opens the spool in the directory, recovering what a previous run left there.
+	 *
+	 * @param segmentBytes size of one segment file, the largest entry that fits
+	 * @param dropOldest when full, delete the oldest segment instead of dropping new entries
+	 */
+	public ValueSpool(Path directory, long maxBytes, int segmentBytes, boolean dropOldest) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+		this.dropOldest = dropOldest;
+		Files.createDirectories(directory);
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path path : files) {
+				String name = path.getFileName().toString();
+				long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(sequence, map(sequence, path));
+			}
+		}
+		if (segments.isEmpty()) {
+			writeSegment = createSegment(0);
+		} else {
+			writeSegment = segments.lastEntry().getValue();
+		}
+		writePosition = recover(writeSegment);
+
+		committedSegment = segments.firstKey();
+		committedPosition = 0;
+		Path checkpoint = directory.resolve(CHECKPOINT);
+		if (Files.exists(checkpoint)) {
+			ByteBuffer stored = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+			if (stored.remaining() >= 12) {
+				long sequence = stored.getLong();
+				int position = stored.getInt();
+				if (segments.containsKey(sequence)) {
+					committedSegment = sequence;
+					committedPosition = position;
+				}
+			}
+		}
+		readSegment = committedSegment;
+		readPosition = committedPosition;
+
+		// Count what is left to read
+		while (next(null)) {
+			backlog++;
+		}
+		rollback();
+	}
+
+	private Segment map(long sequence, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (channel.size() < segmentBytes) {
+				// Zero filled, which reads as no entry
+				channel.write(ByteBuffer.allocate(1), segmentBytes - 1);
+			}
+			return new Segment(sequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size())));
+		}
+	}
+
+	private Segment createSegment(long sequence) throws IOException {
+		Segment segment = map(sequence, directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX)));
+		segments.put(sequence, segment);
+		return segment;
+	}
+
+	/**
+	 * Finds the end of the intact entries of a segment and clears everything after it.
+	 */
+	private int recover(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + HEADER + length > buffer.capacity() || checksum(buffer, position + HEADER, length) != buffer.getInt(position + 4)) {
+				break;
+			}
+			position += HEADER + length;
+		}
+		for (int i = position; i < buffer.capacity(); i++) {
+			buffer.put(i, (byte) 0);
+		}
+		return position;
+	}
+
+	private int checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length).position(offset);
+		crc.reset();
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Appends an entry.
+	 *
+	 * @return false if the spool is full and drops new entries
+	 * @throws IllegalArgumentException if the entry is larger than a segment
+	 */
+	public synchronized boolean append(Map<String, String> attributes, byte[] content, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("The spool in " + directory + " is closed");
+		}
+		int attributesLength = 4;
+		byte[][] encoded = new byte[attributes.size() * 2][];
+		int i = 0;
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			encoded[i] = attribute.getKey().getBytes(StandardCharsets.UTF_8);
+			encoded[i + 1] = attribute.getValue().getBytes(StandardCharsets.UTF_8);
+			attributesLength += 8 + encoded[i].length + encoded[i + 1].length;
+			i += 2;
+		}
+		int entryLength = attributesLength + length;
+		if (HEADER + entryLength > segmentBytes - 4) {
+			throw new IllegalArgumentException("An entry of " + entryLength + " bytes does not fit a spool segment of " + segmentBytes + " bytes");
+		}
+
+		// Leave room for the end marker
+		if (writePosition + HEADER + entryLength > writeSegment.buffer.capacity() - 4) {
+			if (!roll()) {
+				dropped++;
+				return false;
+			}
+		}
+
+		ByteBuffer buffer = writeSegment.buffer;
+		int start = writePosition + HEADER;
+		int position = start;
+		buffer.putInt(position, attributes.size());
+		position += 4;
+		for (byte[] bytes : encoded) {
+			buffer.putInt(position, bytes.length);
+			position += 4;
+			for (byte b : bytes) {
+				buffer.put(position++, b);
+			}
+		}
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.put(content, offset, length);
+
+		buffer.putInt(writePosition + 4, checksum(buffer, start, entryLength));
+		// The length goes last, a torn entry reads as the end
+		buffer.putInt(writePosition, entryLength);
+		writePosition += HEADER + entryLength;
+		backlog++;
+		return true;
+	}
+
+	/**
+	 * Moves writing to a new segment, making room first if the spool is full.
+	 */
+	private boolean roll() throws IOException {
+		if (segments.size() >= maxSegments) {
+			if (!dropOldest || segments.size() < 2) {
+				return false;
+			}
+			dropSegment(segments.firstEntry().getValue());
+		}
+		writeSegment.buffer.putInt(writePosition, NEXT_SEGMENT);
+		writeSegment.buffer.force();
+		writeSegment = createSegment(writeSegment.sequence + 1);
+		writePosition = 0;
+		return true;
+	}
+
+	private void dropSegment(Segment oldest) throws IOException {
+		segments.remove(oldest.sequence);
+		Files.deleteIfExists(oldest.path);
+		if (committedSegment > oldest.sequence) {
+			// Read and committed already
+			return;
+		}
+
+		// The uncommitted entries of the segment are lost, also if they were read
+		long entries = countEntries(oldest, committedPosition);
+		dropped += entries;
+		backlog -= entries;
+		if (readSegment == oldest.sequence) {
+			readSegment = segments.firstKey();
+			readPosition = 0;
+			readEntries = 0;
+		} else {
+			readEntries = Math.max(0, readEntries - entries);
+		}
+		committedSegment = segments.firstKey();
+		committedPosition = 0;
+		writeCheckpoint();
+	}
+
+	private static long countEntries(Segment segment, int position) {
+		long entries = 0;
+		ByteBuffer buffer = segment.buffer;
+		while (position + HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0) {
+				break;
+			}
+			entries++;
+			position += HEADER + length;
+		}
+		return entries;
+	}
+
+	/**
+	 * Hands up to max unread entries to the sink and returns how many. They stay in
+	 * the spool until commit. Only one read runs at a time, appends are not held up
+	 * by the sink.
+	 */
+	public int read(int max, Sink sink) throws IOException {
+		synchronized (readLock) {
+			final List<Map<String, String>> attributes = new ArrayList<>();
+			final List<byte[]> contents = new ArrayList<>();
+			synchronized (this) {
+				if (closed) {
+					throw new IOException("The spool in " + directory + " is closed");
+				}
+				long bytes = 0;
+				while (attributes.size() < max && bytes < READ_BYTES && next((entryAttributes, content) -> {
+					byte[] copy = new byte[content.remaining()];
+					content.get(copy);
+					attributes.add(entryAttributes);
+					contents.add(copy);
+				})) {
+					bytes += contents.get(contents.size() - 1).length;
+				}
+				readEntries += attributes.size();
+			}
+
+			for (int i = 0; i < attributes.size(); i++) {
+				sink.accept(attributes.get(i), ByteBuffer.wrap(contents.get(i)));
+			}
+			return attributes.size();
+		}
+	}
+
+	/**
+	 * Reads the entry at the read position and moves past it, false if there is none.
+	 */
+	private boolean next(Sink sink) throws IOException {
+		while (true) {
+			Segment segment = segments.get(readSegment);
+			if (segment == null) {
+				return false;
+			}
+			boolean current = segment == writeSegment;
+			int end = current ? writePosition : segment.buffer.capacity();
+			int length = readPosition + HEADER <= end ? segment.buffer.getInt(readPosition) : 0;
+			if (length <= 0) {
+				if (current) {
+					return false;
+				}
+				// Either the end marker or a segment cut short by a crash
+				readSegment = segments.higherKey(readSegment);
+				readPosition = 0;
+				continue;
+			}
+
+			if (sink != null) {
+				ByteBuffer buffer = segment.buffer;
+				int position = readPosition + HEADER;
+				int count = buffer.getInt(position);
+				position += 4;
+				Map<String, String> attributes = new HashMap<>();
+				for (int i = 0; i < count; i++) {
+					String key = readString(buffer, position);
+					position += 4 + buffer.getInt(position);
+					String value = readString(buffer, position);
+					position += 4 + buffer.getInt(position);
+					attributes.put(key, value);
+				}
+				ByteBuffer content = buffer.duplicate();
+				content.limit(readPosition + HEADER + length).position(position);
+				sink.accept(attributes, content.slice());
+			}
+			readPosition += HEADER + length;
+			return true;
+		}
+	}
+
+	private static String readString(ByteBuffer buffer, int position) {
+		byte[] bytes = new byte[buffer.getInt(position)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(position + 4);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Forgets the entries read so far, once they are safely elsewhere.
+	 */
+	public synchronized void commit() throws IOException {
+		if (closed) {
+			throw new IOException("The spool in " + directory + " is closed");
+		}
+		if (readSegment == committedSegment && readPosition == committedPosition) {
+			return;
+		}
+		committedSegment = readSegment;
+		committedPosition = readPosition;
+		backlog -= readEntries;
+		readEntries = 0;
+		writeCheckpoint();
+
+		// Segments read to the end are not needed any more
+		while (segments.firstKey() < committedSegment) {
+			Segment segment = segments.remove(segments.firstKey());
+			Files.deleteIfExists(segment.path);
+		}
+	}
+
+	/**
+	 * Reads the entries read since the last commit again.
+	 */
+	public synchronized void rollback() {
+		readSegment = committedSegment;
+		readPosition = committedPosition;
+		readEntries = 0;
+	}
+
+	private void writeCheckpoint() throws IOException {
+		ByteBuffer checkpoint = ByteBuffer.allocate(12);
+		checkpoint.putLong(committedSegment).putInt(committedPosition);
+		Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+		Files.write(temporary, checkpoint.array());
+		Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Number of entries appended and not yet committed.
+	 */
+	public synchronized long getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * Number of entries lost to a full spool.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Writes the entries to disk. The segment files stay for the next run.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+		segments.clear();
+	}
+
+}
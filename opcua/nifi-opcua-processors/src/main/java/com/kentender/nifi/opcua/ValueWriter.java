@@ -0,0 +1,520 @@
+package com.kentender.nifi.opcua;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.UnsignedByte;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedLong;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+
+/**
+ * Serializes tag values as CSV (tag,value,timestamp) or JSON lines straight into a
+ * byte buffer that is reused by the thread.
+ *
+ * Integers, booleans and timestamps are written digit by digit and strings are
+ * UTF-8 encoded in place, so no intermediate Strings or byte arrays are created.
+ * Doubles go through a reused StringBuilder, whose append(double) does not allocate.
+ * Arrays are written element by element, as a JSON array or in CSV as one field like
+ * [1.0, 2.0]. Byte strings are written in base64. Other types fall back to toString().
+ *
+ * The Time Series format collects the values per tag instead and writes them as one
+ * compressed TimeSeriesCodec batch.
+ */
+public final class ValueWriter {
+
+	public static final String CSV = "CSV";
+	public static final String JSON = "JSON Lines";
+	public static final String TIME_SERIES = "Time Series";
+
+	private static final int MAX_RETAINED = 1 << 20;
+	private static final ThreadLocal<ValueWriter> WRITERS = ThreadLocal.withInitial(ValueWriter::new);
+
+	private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+	private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+	private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+	private static final byte[] JSON_TAG = "{\"tag\":".getBytes();
+	private static final byte[] JSON_VALUE = ",\"value\":".getBytes();
+	private static final byte[] JSON_TIMESTAMP = ",\"timestamp\":".getBytes();
+	private static final byte[] JSON_WINDOW_START = ",\"windowStart\":\"".getBytes();
+	private static final byte[] JSON_WINDOW_END = "\",\"windowEnd\":\"".getBytes();
+	private static final byte[] JSON_COUNT = "\",\"count\":".getBytes();
+	private static final byte[] JSON_MIN = ",\"min\":".getBytes();
+	private static final byte[] JSON_MAX = ",\"max\":".getBytes();
+	private static final byte[] JSON_AVG = ",\"avg\":".getBytes();
+	private static final byte[] JSON_LAST = ",\"last\":".getBytes();
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+
+	private final StringBuilder doubleBuilder = new StringBuilder(32);
+	private byte[] buffer = new byte[8192];
+	private int position;
+	private boolean json;
+	private boolean first;
+	private TimeSeriesCodec series;
+	private boolean compressed;
+
+	private ValueWriter() {
+	}
+
+	/**
+	 * Returns this thread's writer, emptied and set to the given format.
+	 */
+	public static ValueWriter get(String format) {
+		return WRITERS.get().reset(format);
+	}
+
+	/**
+	 * Returns a writer of its own, for values collected over several calls.
+	 */
+	public static ValueWriter create(String format) {
+		return new ValueWriter().reset(format);
+	}
+
+	/**
+	 * Empties the writer and sets it to the given format.
+	 */
+	public ValueWriter reset(String format) {
+		// Do not keep a buffer that grew for one huge batch
+		if (buffer.length > MAX_RETAINED) {
+			buffer = new byte[8192];
+		}
+		json = JSON.equals(format);
+		compressed = TIME_SERIES.equals(format);
+		if (compressed) {
+			if (series == null) {
+				series = new TimeSeriesCodec();
+			}
+			series.reset();
+		}
+		position = 0;
+		first = true;
+		return this;
+	}
+
+	/**
+	 * Appends one line for the given tag and value.
+	 */
+	public ValueWriter write(CharSequence tag, DataValue value) {
+		Object object = null;
+		if (value != null && value.getValue() != null) {
+			Variant variant = value.getValue();
+			object = variant.getValue();
+		}
+		DateTime timestamp = value == null ? null : value.getServerTimestamp();
+		return write(tag, object, timestamp == null ? Long.MIN_VALUE : timestamp.getTimeInMillis());
+	}
+
+	/**
+	 * Appends one line for the given tag, value and epoch millis, Long.MIN_VALUE for no timestamp.
+	 */
+	public ValueWriter write(CharSequence tag, Object object, long timestamp) {
+		if (compressed) {
+			series.add(tag, object, timestamp);
+			return this;
+		}
+		if (!first) {
+			writeBytes(LINE_SEPARATOR);
+		}
+		first = false;
+
+		if (json) {
+			writeBytes(JSON_TAG);
+			writeQuoted(tag);
+			writeBytes(JSON_VALUE);
+			writeJsonValue(object);
+			writeBytes(JSON_TIMESTAMP);
+			if (timestamp == Long.MIN_VALUE) {
+				writeBytes(NULL);
+			} else {
+				ensure(1);
+				buffer[position++] = '"';
+				writeTimestamp(timestamp);
+				ensure(1);
+				buffer[position++] = '"';
+			}
+			ensure(1);
+			buffer[position++] = '}';
+		} else {
+			writeCsvField(tag);
+			ensure(1);
+			buffer[position++] = ',';
+			if (!writePrimitive(object)) {
+				writeCsvField(toText(object));
+			}
+			ensure(1);
+			buffer[position++] = ',';
+			if (timestamp != Long.MIN_VALUE) {
+				writeTimestamp(timestamp);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends one line with the aggregate of a tag over a window, in CSV as
+	 * tag,windowStart,windowEnd,count,min,max,avg,last.
+	 */
+	public ValueWriter writeAggregate(CharSequence tag, long windowStart, long windowEnd, long count, double min, double max, double average, double last) {
+		if (compressed) {
+			throw new IllegalStateException("Aggregates cannot be written as " + TIME_SERIES);
+		}
+		if (!first) {
+			writeBytes(LINE_SEPARATOR);
+		}
+		first = false;
+
+		if (json) {
+			writeBytes(JSON_TAG);
+			writeQuoted(tag);
+			writeBytes(JSON_WINDOW_START);
+			writeTimestamp(windowStart);
+			writeBytes(JSON_WINDOW_END);
+			writeTimestamp(windowEnd);
+			writeBytes(JSON_COUNT);
+			writeLong(count);
+			writeBytes(JSON_MIN);
+			writeJsonDouble(min);
+			writeBytes(JSON_MAX);
+			writeJsonDouble(max);
+			writeBytes(JSON_AVG);
+			writeJsonDouble(average);
+			writeBytes(JSON_LAST);
+			writeJsonDouble(last);
+			ensure(1);
+			buffer[position++] = '}';
+		} else {
+			writeCsvField(tag);
+			ensure(1);
+			buffer[position++] = ',';
+			writeTimestamp(windowStart);
+			ensure(1);
+			buffer[position++] = ',';
+			writeTimestamp(windowEnd);
+			ensure(1);
+			buffer[position++] = ',';
+			writeLong(count);
+			writeCsvDouble(min);
+			writeCsvDouble(max);
+			writeCsvDouble(average);
+			writeCsvDouble(last);
+		}
+		return this;
+	}
+
+	/**
+	 * Number of bytes written so far, or of values collected for Time Series.
+	 */
+	public int size() {
+		return compressed ? series.size() : position;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		if (compressed) {
+			series.encode(out);
+			return;
+		}
+		out.write(buffer, 0, position);
+	}
+
+	/**
+	 * Writes what was written so far and starts over, keeping the format. The next
+	 * line starts with a line separator.
+	 */
+	public void flushTo(OutputStream out) throws IOException {
+		writeTo(out);
+		if (compressed) {
+			series.reset();
+		}
+		position = 0;
+	}
+
+	/**
+	 * The text of a value that is not a number or boolean, also used for the text
+	 * series of TimeSeriesCodec.
+	 */
+	static String toText(Object object) {
+		if (object instanceof Variant) {
+			object = ((Variant) object).getValue();
+		}
+		if (object == null) {
+			return "null";
+		}
+		if (object instanceof byte[]) {
+			return Base64.getEncoder().encodeToString((byte[]) object);
+		}
+		if (object.getClass().isArray()) {
+			StringBuilder text = new StringBuilder("[");
+			for (int i = 0; i < Array.getLength(object); i++) {
+				if (i > 0) {
+					text.append(", ");
+				}
+				text.append(toText(Array.get(object, i)));
+			}
+			return text.append(']').toString();
+		}
+		return object.toString();
+	}
+
+	private void writeJsonValue(Object object) {
+		if (object instanceof Variant) {
+			object = ((Variant) object).getValue();
+		}
+		if (object == null) {
+			writeBytes(NULL);
+		} else if (object instanceof Double && !isFinite((Double) object)
+				|| object instanceof Float && !isFinite((Float) object)) {
+			// JSON has no literal for NaN and infinity
+			writeQuoted(object.toString());
+		} else if (object instanceof byte[]) {
+			writeQuoted(toText(object));
+		} else if (object.getClass().isArray()) {
+			ensure(1);
+			buffer[position++] = '[';
+			for (int i = 0; i < Array.getLength(object); i++) {
+				if (i > 0) {
+					ensure(1);
+					buffer[position++] = ',';
+				}
+				writeJsonValue(Array.get(object, i));
+			}
+			ensure(1);
+			buffer[position++] = ']';
+		} else if (!writePrimitive(object)) {
+			writeQuoted(object.toString());
+		}
+	}
+
+	private void writeCsvDouble(double value) {
+		ensure(1);
+		buffer[position++] = ',';
+		writeDouble(value);
+	}
+
+	private void writeJsonDouble(double value) {
+		if (isFinite(value)) {
+			writeDouble(value);
+		} else {
+			// JSON has no literal for NaN and infinity
+			ensure(1);
+			buffer[position++] = '"';
+			writeDouble(value);
+			ensure(1);
+			buffer[position++] = '"';
+		}
+	}
+
+	/**
+	 * Writes numbers and booleans without allocating, returns false for any other type.
+	 */
+	private boolean writePrimitive(Object object) {
+		if (object instanceof Integer || object instanceof Long || object instanceof Short || object instanceof Byte) {
+			writeLong(((Number) object).longValue());
+		} else if (object instanceof UnsignedInteger || object instanceof UnsignedShort || object instanceof UnsignedByte) {
+			writeLong(((Number) object).longValue());
+		} else if (object instanceof UnsignedLong) {
+			UnsignedLong unsignedLong = (UnsignedLong) object;
+			if (unsignedLong.longValue() < 0) {
+				// Above Long.MAX_VALUE
+				return false;
+			}
+			writeLong(unsignedLong.longValue());
+		} else if (object instanceof Double) {
+			writeDouble((Double) object);
+		} else if (object instanceof Float) {
+			// Widened to double 0.1f would print as 0.10000000149011612
+			writeFloat((Float) object);
+		} else if (object instanceof Boolean) {
+			writeBytes((Boolean) object ? TRUE : FALSE);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAscii("-9223372036854775808");
+			return;
+		}
+		ensure(20);
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		for (int i = position + digits - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		position += digits;
+	}
+
+	private void writeDouble(double value) {
+		doubleBuilder.setLength(0);
+		doubleBuilder.append(value);
+		writeAscii(doubleBuilder);
+	}
+
+	private void writeFloat(float value) {
+		doubleBuilder.setLength(0);
+		doubleBuilder.append(value);
+		writeAscii(doubleBuilder);
+	}
+
+	/**
+	 * Writes epoch milliseconds as an ISO-8601 UTC timestamp, e.g. 2017-05-11T10:23:12.123Z.
+	 */
+	private void writeTimestamp(long millis) {
+		long days = Math.floorDiv(millis, 86400000L);
+		int millisOfDay = (int) Math.floorMod(millis, 86400000L);
+
+		// Civil date from days since 1970-01-01 (H. Hinnant's algorithm)
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		ensure(24);
+		writePadded(year, 4);
+		buffer[position++] = '-';
+		writePadded(month, 2);
+		buffer[position++] = '-';
+		writePadded(day, 2);
+		buffer[position++] = 'T';
+		writePadded(millisOfDay / 3600000, 2);
+		buffer[position++] = ':';
+		writePadded(millisOfDay / 60000 % 60, 2);
+		buffer[position++] = ':';
+		writePadded(millisOfDay / 1000 % 60, 2);
+		buffer[position++] = '.';
+		writePadded(millisOfDay % 1000, 3);
+		buffer[position++] = 'Z';
+	}
+
+	private void writePadded(long value, int width) {
+		for (int i = position + width - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		position += width;
+	}
+
+	private void writeCsvField(CharSequence value) {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			writeUtf8(value, false);
+			return;
+		}
+		ensure(1);
+		buffer[position++] = '"';
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				ensure(2);
+				buffer[position++] = '"';
+				buffer[position++] = '"';
+			} else {
+				writeChar(value, i, false);
+				if (Character.isHighSurrogate(c)) {
+					i++;
+				}
+			}
+		}
+		ensure(1);
+		buffer[position++] = '"';
+	}
+
+	private void writeQuoted(CharSequence value) {
+		ensure(1);
+		buffer[position++] = '"';
+		writeUtf8(value, true);
+		ensure(1);
+		buffer[position++] = '"';
+	}
+
+	private void writeUtf8(CharSequence value, boolean jsonEscape) {
+		for (int i = 0; i < value.length(); i++) {
+			writeChar(value, i, jsonEscape);
+			if (Character.isHighSurrogate(value.charAt(i)) && i + 1 < value.length()) {
+				i++;
+			}
+		}
+	}
+
+	private void writeChar(CharSequence value, int index, boolean jsonEscape) {
+		char c = value.charAt(index);
+		ensure(6);
+		if (jsonEscape && (c == '"' || c == '\\')) {
+			buffer[position++] = '\\';
+			buffer[position++] = (byte) c;
+		} else if (jsonEscape && c < 0x20) {
+			buffer[position++] = '\\';
+			buffer[position++] = 'u';
+			writeHex(c);
+		} else if (c < 0x80) {
+			buffer[position++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[position++] = (byte) (0xc0 | c >> 6);
+			buffer[position++] = (byte) (0x80 | c & 0x3f);
+		} else if (Character.isHighSurrogate(c) && index + 1 < value.length()) {
+			int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+			buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+			buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+			buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+			buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+		} else {
+			buffer[position++] = (byte) (0xe0 | c >> 12);
+			buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+			buffer[position++] = (byte) (0x80 | c & 0x3f);
+		}
+	}
+
+	private void writeHex(char c) {
+		for (int shift = 12; shift >= 0; shift -= 4) {
+			int digit = c >> shift & 0xf;
+			buffer[position++] = (byte) (digit < 10 ? '0' + digit : 'a' + digit - 10);
+		}
+	}
+
+	private void writeAscii(CharSequence value) {
+		ensure(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer[position++] = (byte) value.charAt(i);
+		}
+	}
+
+	private void writeBytes(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void ensure(int count) {
+		if (position + count > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + count));
+		}
+	}
+
+	private static boolean isFinite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.kentender.nifi.opcua;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessContext;
+
+/**
+ * Builds what a processor needs to talk to a server (the client with its
+ * certificates, the connection or session pool) on the shared executor, so
+ * scheduling a processor never waits on loading or generating keys. Connecting is
+ * left to OPCConnection.warmUp.
+ *
+ * Until the build is done get returns null and the processor yields. A failed build
+ * is started again by takeFailure. Something built after cancel is closed at once.
+ */
+public class WarmUp<T> {
+
+	public interface Builder<T> {
+		T build() throws Exception;
+	}
+
+	/**
+	 * Something built that is only ready once it has connected, like an OPCConnection.
+	 */
+	public interface Connectable {
+		boolean isReady();
+
+		/**
+		 * Connects in the background unless connected or already connecting.
+		 */
+		void warmUp();
+
+		/**
+		 * Returns why connecting last failed and forgets it.
+		 */
+		Exception takeWarmUpFailure();
+	}
+
+	private final Builder<T> builder;
+	private final Consumer<T> closer;
+
+	private T value = null;
+	private Exception failure = null;
+	private boolean running = false;
+	private boolean cancelled = false;
+
+	public WarmUp(Builder<T> builder, Consumer<T> closer) {
+		this.builder = builder;
+		this.closer = closer;
+	}
+
+	/**
+	 * Starts the build in the background.
+	 */
+	public synchronized WarmUp<T> start() {
+		if (running || value != null || cancelled) {
+			return this;
+		}
+		running = true;
+		failure = null;
+		try {
+			OPCExecutors.shared().execute(this::run);
+		} catch (RejectedExecutionException e) {
+			running = false;
+			failure = e;
+		}
+		return this;
+	}
+
+	private void run() {
+		T built = null;
+		Exception error = null;
+		try {
+			built = builder.build();
+		} catch (Exception e) {
+			error = e;
+		}
+		boolean close;
+		synchronized (this) {
+			running = false;
+			close = cancelled && built != null;
+			if (!close) {
+				value = built;
+				failure = error;
+			}
+		}
+		if (close) {
+			closer.accept(built);
+		}
+	}
+
+	/**
+	 * Returns what was built, or null while the build is running or after it failed.
+	 */
+	public synchronized T get() {
+		return value;
+	}
+
+	/**
+	 * Returns what was built once it is ready, otherwise reports why not, keeps
+	 * building or connecting in the background and yields.
+	 */
+	public T readyOrYield(ProcessContext context, ComponentLog logger) {
+		final T current = get();
+		final Connectable connectable = current instanceof Connectable ? (Connectable) current : null;
+		if (current != null && (connectable == null || connectable.isReady())) {
+			return current;
+		}
+
+		Exception failure;
+		if (current == null) {
+			failure = takeFailure();
+		} else {
+			failure = connectable.takeWarmUpFailure();
+			connectable.warmUp();
+		}
+		if (failure != null) {
+			logger.error(failure.getMessage());
+		}
+		context.yield();
+		return null;
+	}
+
+	/**
+	 * Returns why the last build failed and starts it again, so each failure is reported once.
+	 */
+	public synchronized Exception takeFailure() {
+		Exception e = failure;
+		failure = null;
+		if (e != null && value == null && !running) {
+			start();
+		}
+		return e;
+	}
+
+	/**
+	 * Closes what was built, or what the running build will return.
+	 */
+	public void cancel() {
+		T built;
+		synchronized (this) {
+			cancelled = true;
+			built = value;
+			value = null;
+		}
+		if (built != null) {
+			closer.accept(built);
+		}
+	}
+
+}
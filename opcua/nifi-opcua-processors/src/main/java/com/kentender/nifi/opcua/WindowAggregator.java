@@ -0,0 +1,191 @@
+package com.kentender.nifi.opcua;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the polled values of a fixed set of tags into count, min, max, average
+ * and last per time window, so one record per tag and window is written instead of
+ * every sample.
+ *
+ * Time is cut into buckets of the slide length, aligned to the epoch so all nodes of
+ * a cluster close the same windows. A window covers the last window / slide buckets,
+ * rounded up, and is emitted whenever a bucket closes; a slide equal to the window
+ * gives tumbling windows. The statistics live in primitive arrays indexed by bucket
+ * and tag, nothing is allocated per sample.
+ *
+ * Samples are assigned to the bucket open at their poll time. Booleans count as 1
+ * and 0, samples that are not numbers are left out. Not thread safe.
+ */
+public class WindowAggregator {
+
+	/**
+	 * Receives the aggregate of one tag over one window, only for tags with samples.
+	 */
+	public interface Sink {
+		void accept(int tag, long windowStart, long windowEnd, long count, double min, double max, double average, double last);
+	}
+
+	private final int tags;
+	private final long windowMillis;
+	private final long slideMillis;
+	private final int buckets;
+
+	// Indexed by bucket * tags + tag
+	private final long[] counts;
+	private final double[] sums;
+	private final double[] mins;
+	private final double[] maxs;
+	private final double[] lasts;
+	private final boolean[] used;
+
+	private long bucketStart = Long.MIN_VALUE;
+	private int current = 0;
+
+	/**
+	 * @param slideMillis how often windows are emitted, 0 or the window length for tumbling windows
+	 */
+	public WindowAggregator(int tags, long windowMillis, long slideMillis) {
+		if (windowMillis <= 0) {
+			throw new IllegalArgumentException("Window must be positive");
+		}
+		this.slideMillis = slideMillis <= 0 || slideMillis > windowMillis ? windowMillis : slideMillis;
+		this.buckets = (int) ((windowMillis + this.slideMillis - 1) / this.slideMillis);
+		this.windowMillis = buckets * this.slideMillis;
+		this.tags = tags;
+
+		int size = buckets * tags;
+		counts = new long[size];
+		sums = new double[size];
+		mins = new double[size];
+		maxs = new double[size];
+		lasts = new double[size];
+		used = new boolean[buckets];
+	}
+
+	public int getTags() {
+		return tags;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * Whether no open window holds a sample.
+	 */
+	public boolean isEmpty() {
+		return !anyUsed();
+	}
+
+	/**
+	 * Adds a sample to the open bucket. Call advance with the sample time first.
+	 */
+	public void add(int tag, double value) {
+		if (bucketStart == Long.MIN_VALUE || Double.isNaN(value)) {
+			return;
+		}
+		int i = current * tags + tag;
+		if (counts[i] == 0) {
+			mins[i] = value;
+			maxs[i] = value;
+		} else {
+			mins[i] = Math.min(mins[i], value);
+			maxs[i] = Math.max(maxs[i], value);
+		}
+		counts[i]++;
+		sums[i] += value;
+		lasts[i] = value;
+		used[current] = true;
+	}
+
+	/**
+	 * Adds a polled value, returns false if it is not numeric.
+	 */
+	public boolean add(int tag, Object value) {
+		if (value instanceof Number) {
+			add(tag, ((Number) value).doubleValue());
+			return true;
+		}
+		if (value instanceof Boolean) {
+			add(tag, (Boolean) value ? 1 : 0);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Closes every bucket that ended by now and emits the window ending with it.
+	 *
+	 * @return the number of windows closed
+	 */
+	public int advance(long now, Sink sink) {
+		if (bucketStart == Long.MIN_VALUE) {
+			bucketStart = align(now);
+			return 0;
+		}
+		int closed = 0;
+		while (now >= bucketStart + slideMillis) {
+			if (!anyUsed()) {
+				// Nothing left to emit, skip the idle time at once
+				bucketStart = align(now);
+				break;
+			}
+			long windowEnd = bucketStart + slideMillis;
+			emit(windowEnd, sink);
+			closed++;
+
+			current = (current + 1) % buckets;
+			clear(current);
+			bucketStart = windowEnd;
+		}
+		return closed;
+	}
+
+	private long align(long time) {
+		return time - Math.floorMod(time, slideMillis);
+	}
+
+	private boolean anyUsed() {
+		for (boolean bucketUsed : used) {
+			if (bucketUsed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void clear(int bucket) {
+		int from = bucket * tags;
+		int to = from + tags;
+		Arrays.fill(counts, from, to, 0);
+		Arrays.fill(sums, from, to, 0);
+		used[bucket] = false;
+	}
+
+	private void emit(long windowEnd, Sink sink) {
+		for (int tag = 0; tag < tags; tag++) {
+			long count = 0;
+			double sum = 0;
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			double last = Double.NaN;
+			// Oldest bucket first, so last ends up as the newest sample
+			for (int b = 1; b <= buckets; b++) {
+				int bucket = (current + b) % buckets;
+				int i = bucket * tags + tag;
+				if (!used[bucket] || counts[i] == 0) {
+					continue;
+				}
+				count += counts[i];
+				sum += sums[i];
+				min = Math.min(min, mins[i]);
+				max = Math.max(max, maxs[i]);
+				last = lasts[i];
+			}
+			if (count > 0) {
+				sink.accept(tag, windowEnd - windowMillis, windowEnd, count, min, max, sum / count, last);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class AddressSpaceIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AddressSpaceIndex writeAndOpen(List<AddressSpaceIndex.Entry> entries) throws IOException {
+        File file = folder.newFile("index.bin");
+        try (OutputStream out = new FileOutputStream(file)) {
+            AddressSpaceIndex.write(entries, out);
+        }
+        return AddressSpaceIndex.open(file);
+    }
+
+    @Test
+    public void testFindsEveryEntry() throws IOException {
+        List<AddressSpaceIndex.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new AddressSpaceIndex.Entry("ns=2;s=Tag" + i, "Objects/2:Line/Tag" + i, "Tag " + i, "Double", 2));
+        }
+        AddressSpaceIndex index = writeAndOpen(entries);
+
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i++) {
+            AddressSpaceIndex.Entry entry = index.find("ns=2;s=Tag" + i);
+            assertEquals("Objects/2:Line/Tag" + i, entry.getBrowsePath());
+            assertEquals("Tag " + i, entry.getDisplayName());
+            assertEquals("Double", entry.getDataType());
+            assertEquals(2, entry.getNodeClass());
+        }
+        assertNull(index.find("ns=2;s=Tag1000"));
+        assertNull(index.find(""));
+    }
+
+    @Test
+    public void testNonAsciiAndMissingDataType() throws IOException {
+        AddressSpaceIndex index = writeAndOpen(Arrays.asList(
+                new AddressSpaceIndex.Entry("ns=3;s=Temp\u00e9rature", "Objects/3:Ofen", "Temp\u00e9rature", null, 1),
+                new AddressSpaceIndex.Entry("i=85", "Objects", "Objects", null, 1)));
+
+        assertEquals("Temp\u00e9rature", index.find("ns=3;s=Temp\u00e9rature").getDisplayName());
+        assertNull(index.find("i=85").getDataType());
+    }
+
+    @Test
+    public void testDuplicatesAreWrittenOnce() throws IOException {
+        AddressSpaceIndex index = writeAndOpen(Arrays.asList(
+                new AddressSpaceIndex.Entry("i=85", "Objects", "Objects", null, 1),
+                new AddressSpaceIndex.Entry("i=85", "Objects", "Objects", null, 1)));
+
+        assertEquals(1, index.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.txt");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("ns=2;s=Tag1\nns=2;s=Tag2\n".getBytes());
+        }
+        AddressSpaceIndex.open(file);
+    }
+
+}
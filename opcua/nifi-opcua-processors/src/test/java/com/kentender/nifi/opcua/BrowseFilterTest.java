@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+
+public class BrowseFilterTest {
+
+    private static BitSet path(BrowseFilter filter, String... names) {
+        BitSet state = filter.start();
+        for (String name : names) {
+            state = filter.advance(state, name);
+        }
+        return state;
+    }
+
+    @Test
+    public void testNoPatternMatchesEverything() {
+        BrowseFilter filter = new BrowseFilter(0, null, null, null);
+        assertTrue(filter.matches(path(filter, "Objects", "Anything")));
+        assertTrue(filter.canDescend(path(filter, "Objects", "Anything")));
+    }
+
+    @Test
+    public void testGlobElements() {
+        BrowseFilter filter = new BrowseFilter(0, null, "Objects/Plant?", null);
+        assertFalse(filter.matches(path(filter, "Objects")));
+        assertTrue(filter.canDescend(path(filter, "Objects")));
+        assertTrue(filter.matches(path(filter, "Objects", "Plant1")));
+        assertFalse(filter.matches(path(filter, "Objects", "Plant12")));
+        // Nothing below a complete match can match
+        assertFalse(filter.canDescend(path(filter, "Objects", "Plant1")));
+        // Other subtrees are pruned
+        assertTrue(path(filter, "Types").isEmpty());
+    }
+
+    @Test
+    public void testAnyLevels() {
+        BrowseFilter filter = new BrowseFilter(0, null, "Objects/Plant*/**/Temperature", null);
+        assertTrue(filter.matches(path(filter, "Objects", "PlantA", "Temperature")));
+        assertTrue(filter.matches(path(filter, "Objects", "PlantA", "Line1", "Press", "Temperature")));
+        assertFalse(filter.matches(path(filter, "Objects", "PlantA", "Line1")));
+        assertTrue(filter.canDescend(path(filter, "Objects", "PlantA", "Line1")));
+        assertTrue(path(filter, "Objects", "Server").isEmpty());
+
+        BrowseFilter below = new BrowseFilter(0, null, "Objects/Plant*/**", null);
+        assertTrue(below.matches(path(below, "Objects", "PlantA")));
+        assertTrue(below.matches(path(below, "Objects", "PlantA", "Line1", "Speed")));
+    }
+
+    @Test
+    public void testGlobQuotesRegexCharacters() {
+        BrowseFilter filter = new BrowseFilter(0, null, "Line.1", null);
+        assertTrue(filter.matches(path(filter, "Line.1")));
+        assertFalse(filter.matches(path(filter, "Linex1")));
+    }
+
+    @Test
+    public void testExcludePrunesSubtree() {
+        BrowseFilter filter = new BrowseFilter(0, null, null, "_Hints|_Statistics");
+        assertTrue(path(filter, "Objects", "_Hints").isEmpty());
+        assertFalse(filter.canDescend(path(filter, "Objects", "_Statistics")));
+        assertTrue(filter.matches(path(filter, "Objects", "Plant")));
+    }
+
+    @Test
+    public void testNodeClassMask() {
+        BrowseFilter filter = new BrowseFilter(2, null, null, null);
+        assertTrue(filter.accepts(2));
+        assertFalse(filter.accepts(1));
+        assertTrue(new BrowseFilter(0, null, null, null).accepts(4));
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+
+public class ExclusiveCallTest {
+
+    @Test
+    public void testCancelledWhileQueuedIsPolledAgain() throws Exception {
+        ExecutorService delegate = Executors.newCachedThreadPool();
+        ExecutorService executor = new OPCExecutors.BudgetedExecutor(delegate, 1);
+        try {
+            // A slow endpoint takes the only permit
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicBoolean slow = new AtomicBoolean(true);
+            executor.execute(new ExclusiveCall<>(slow, () -> release.await(5, TimeUnit.SECONDS)));
+
+            // The next endpoint waits for the budget and times out there
+            AtomicBoolean running = new AtomicBoolean(true);
+            ExclusiveCall<String> queued = new ExclusiveCall<>(running, () -> "first");
+            executor.execute(queued);
+            queued.cancel(true);
+            assertFalse(running.get());
+
+            // So the next poll reads it again
+            release.countDown();
+            running.set(true);
+            ExclusiveCall<String> next = new ExclusiveCall<>(running, () -> "second");
+            executor.execute(next);
+            assertEquals("second", next.get(5, TimeUnit.SECONDS));
+            assertFalse(running.get());
+            assertFalse(slow.get());
+        } finally {
+            executor.shutdown();
+            delegate.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRejectedReleasesTheFlag() {
+        ExecutorService executor = new OPCExecutors.BudgetedExecutor(Executors.newSingleThreadExecutor(), 1);
+        executor.shutdown();
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExclusiveCall<String> call = new ExclusiveCall<>(running, () -> "value");
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            call.cancel(false);
+        }
+        assertFalse(running.get());
+    }
+
+    @Test
+    public void testCancelledWhileRunningHoldsTheFlagUntilItReturns() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicBoolean running = new AtomicBoolean(true);
+            ExclusiveCall<Boolean> call = new ExclusiveCall<>(running, () -> {
+                started.countDown();
+                // Blocking the way a read ignores interrupts
+                while (true) {
+                    try {
+                        return release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+            });
+            executor.execute(call);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            call.cancel(true);
+            assertTrue(running.get());
+            release.countDown();
+            for (int i = 0; i < 500 && running.get(); i++) {
+                Thread.sleep(10);
+            }
+            assertFalse(running.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class GetEndpointsTest {
+
+    @Test
+    public void testListIsSplit() {
+        assertEquals(Arrays.asList("opc.tcp://a:4840", "opc.tcp://b:4840", "opc.tcp://c:4840"),
+                GetEndpoints.expandUrls(" opc.tcp://a:4840, opc.tcp://b:4840\nopc.tcp://c:4840 "));
+    }
+
+    @Test
+    public void testRangesAreExpanded() {
+        List<String> urls = GetEndpoints.expandUrls("opc.tcp://10.0.[1-2].[8-10]:4840");
+        assertEquals(Arrays.asList(
+                "opc.tcp://10.0.1.8:4840", "opc.tcp://10.0.1.9:4840", "opc.tcp://10.0.1.10:4840",
+                "opc.tcp://10.0.2.8:4840", "opc.tcp://10.0.2.9:4840", "opc.tcp://10.0.2.10:4840"), urls);
+    }
+
+    @Test
+    public void testLeadingZerosArePadded() {
+        assertEquals(Arrays.asList("opc.tcp://plc08:4840", "opc.tcp://plc09:4840", "opc.tcp://plc10:4840"),
+                GetEndpoints.expandUrls("opc.tcp://plc[08-10]:4840"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHugeRangeIsRejected() {
+        GetEndpoints.expandUrls("opc.tcp://10.[0-255].[0-255].[0-255]:4840");
+    }
+
+}
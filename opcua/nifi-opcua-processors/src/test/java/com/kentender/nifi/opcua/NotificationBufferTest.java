@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.kentender.nifi.opcua.NotificationBuffer.OverflowPolicy;
+
+
+public class NotificationBufferTest {
+
+    private static List<Object> drainValues(NotificationBuffer buffer) {
+        List<Object> values = new ArrayList<>();
+        buffer.drain((handle, statusCode, sourceTime, serverTime, number, value) -> values.add(value == null ? number : value), Integer.MAX_VALUE);
+        return values;
+    }
+
+    @Test
+    public void testCapacityIsPowerOfTwo() {
+        assertEquals(8, new NotificationBuffer(8, OverflowPolicy.DROP_NEWEST, null).getCapacity());
+        assertEquals(16, new NotificationBuffer(9, OverflowPolicy.DROP_NEWEST, null).getCapacity());
+    }
+
+    @Test
+    public void testValuesComeOutInOrder() {
+        NotificationBuffer buffer = new NotificationBuffer(4, OverflowPolicy.DROP_NEWEST, null);
+        buffer.offer(1, 0, 10, 10, 1.5);
+        buffer.offer(2, 0, 11, 11, "text");
+        assertEquals(2, buffer.size());
+        assertEquals(Arrays.asList((Object) 1.5, "text"), drainValues(buffer));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testDropNewest() {
+        NotificationBuffer buffer = new NotificationBuffer(2, OverflowPolicy.DROP_NEWEST, null);
+        assertTrue(buffer.offer(0, 0, 0, 0, 1));
+        assertTrue(buffer.offer(0, 0, 0, 0, 2));
+        assertFalse(buffer.offer(0, 0, 0, 0, 3));
+        assertEquals(1, buffer.getDropped());
+        assertEquals(Arrays.asList((Object) 1.0, 2.0), drainValues(buffer));
+    }
+
+    @Test
+    public void testDropOldest() {
+        NotificationBuffer buffer = new NotificationBuffer(2, OverflowPolicy.DROP_OLDEST, null);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(buffer.offer(0, 0, 0, 0, i));
+        }
+        assertEquals(2, buffer.getDropped());
+        assertEquals(Arrays.asList((Object) 3.0, 4.0), drainValues(buffer));
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothingWhenBlocking() throws InterruptedException {
+        final NotificationBuffer buffer = new NotificationBuffer(64, OverflowPolicy.BLOCK, null);
+        final int producers = 4;
+        final int perProducer = 20000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int handle = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.offer(handle, 0, i, i, i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        final long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        final int[] received = new int[1];
+        NotificationBuffer.Sink sink = (handle, statusCode, sourceTime, serverTime, number, value) -> {
+            // Each producer's values stay in order
+            assertTrue(sourceTime > last[handle]);
+            last[handle] = sourceTime;
+            received[0]++;
+        };
+        while (received[0] < producers * perProducer) {
+            buffer.drain(sink, 1000);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, buffer.getDropped());
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class TagPartitionerTest {
+
+    private static List<String> tags(int count) {
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tags.add("ns=2;s=Tag" + i);
+        }
+        return tags;
+    }
+
+    @Test
+    public void testEveryTagHasExactlyOneOwner() {
+        TagPartitioner partitioner = new TagPartitioner(Arrays.asList("node1", "node2", "node3"));
+        List<String> tags = tags(3000);
+
+        int total = 0;
+        for (String member : partitioner.getMembers()) {
+            int share = partitioner.select(tags, member, "").size();
+            // Virtual nodes keep every share near a third
+            assertTrue(share > 600 && share < 1400);
+            total += share;
+        }
+        assertEquals(tags.size(), total);
+    }
+
+    @Test
+    public void testJoiningNodeOnlyTakesTags() {
+        TagPartitioner before = new TagPartitioner(Arrays.asList("node1", "node2"));
+        TagPartitioner after = new TagPartitioner(Arrays.asList("node1", "node2", "node3"));
+
+        for (String tag : tags(1000)) {
+            String owner = after.ownerOf(tag);
+            if (!owner.equals("node3")) {
+                assertEquals(before.ownerOf(tag), owner);
+            }
+        }
+    }
+
+    @Test
+    public void testNoMembers() {
+        assertNull(new TagPartitioner(new ArrayList<String>()).ownerOf("ns=2;s=Tag"));
+    }
+
+    @Test
+    public void testLiveMembers() {
+        Map<String, String> state = new HashMap<>();
+        state.put("member.node1", "1000");
+        state.put("member.node2", "500");
+        state.put("other", "1000");
+
+        assertEquals(Arrays.asList("node1"), new ArrayList<>(TagPartitioner.liveMembers(state, "member.", 1200, 300)));
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class TimeSeriesCodecTest {
+
+    private static byte[] encode(TimeSeriesCodec codec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(out);
+        return out.toByteArray();
+    }
+
+    private static List<String> decode(byte[] encoded) throws IOException {
+        List<String> samples = new ArrayList<>();
+        TimeSeriesCodec.decode(new ByteArrayInputStream(encoded), (tag, time, value) -> samples.add(tag + "," + time + "," + value));
+        return samples;
+    }
+
+    @Test
+    public void testDoublesRoundTrip() throws IOException {
+        TimeSeriesCodec codec = new TimeSeriesCodec();
+        List<String> expected = new ArrayList<>();
+        long time = 1494498192123L;
+        double value = 20.5;
+        for (int i = 0; i < 1000; i++) {
+            // Jittery polling and a wandering value
+            time += 1000 + (i % 7) - 3 + (i == 500 ? 3600000 : 0);
+            value += Math.sin(i) * 0.25;
+            codec.add("ns=2;s=Temperature", value, time);
+            expected.add("ns=2;s=Temperature," + time + "," + value);
+        }
+        codec.add("ns=2;s=Temperature", Double.NaN, time - 5);
+        expected.add("ns=2;s=Temperature," + (time - 5) + ",NaN");
+        codec.add("ns=2;s=Temperature", Double.MAX_VALUE, Long.MIN_VALUE);
+        expected.add("ns=2;s=Temperature," + (time - 5) + "," + Double.MAX_VALUE);
+
+        assertEquals(expected, decode(encode(codec)));
+    }
+
+    @Test
+    public void testRegularSeriesCompress() throws IOException {
+        TimeSeriesCodec codec = new TimeSeriesCodec();
+        for (int i = 0; i < 1000; i++) {
+            codec.add("ns=2;s=Setpoint", 42.0, 1494498192000L + i * 1000L);
+        }
+        // About two bits per sample
+        assertTrue(encode(codec).length < 300);
+    }
+
+    @Test
+    public void testTypesAndSeries() throws IOException {
+        TimeSeriesCodec codec = new TimeSeriesCodec();
+        codec.add("a", 1, 10);
+        codec.add("b", true, 10);
+        codec.add("c", 1.5, 10);
+        codec.add("a", null, 20);
+        codec.add("b", false, 20);
+        codec.add("c", "text", 20);
+        codec.add("a", 3L, 30);
+        assertEquals(7, codec.size());
+
+        List<String> decoded = decode(encode(codec));
+        assertEquals("[a,10,1, a,20,null, a,30,3, b,10,true, b,20,false, c,10,1.5, c,20,text]", decoded.toString());
+    }
+
+    @Test
+    public void testConcatenatedBatchesAndReset() throws IOException {
+        TimeSeriesCodec codec = new TimeSeriesCodec();
+        codec.add("a", 1.25, 10);
+        byte[] first = encode(codec);
+        codec.reset();
+        assertEquals(0, codec.size());
+        codec.add("b", 2.5, 20);
+        byte[] second = encode(codec);
+
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        assertEquals("[a,10,1.25, b,20,2.5]", decode(both).toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherContent() throws IOException {
+        decode("tag,1.0,2017-05-11T10:23:12.123Z".getBytes());
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class TimingWheelTest {
+
+    private static List<String> advance(TimingWheel<String> wheel, long now) {
+        List<String> due = new ArrayList<>();
+        wheel.advance(now, due);
+        return due;
+    }
+
+    @Test
+    public void testTasksDueAtTheSameTickComeTogether() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 16);
+        assertTrue(advance(wheel, 1000).isEmpty());
+        wheel.schedule("fast", 1100);
+        wheel.schedule("slow", 1150);
+        wheel.schedule("later", 1300);
+
+        assertTrue(advance(wheel, 1099).isEmpty());
+        // Deadlines are rounded up to the next tick
+        assertEquals(Arrays.asList("fast"), advance(wheel, 1100));
+        assertEquals(Arrays.asList("slow"), advance(wheel, 1200));
+        assertEquals(Arrays.asList("later"), advance(wheel, 1300));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testTasksMoreThanOneTurnAheadWaitForTheirRound() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4);
+        advance(wheel, 0);
+        wheel.schedule("a", 30);
+        wheel.schedule("b", 70);
+
+        assertEquals(Arrays.asList("a"), advance(wheel, 30));
+        assertTrue(advance(wheel, 60).isEmpty());
+        assertEquals(Arrays.asList("b"), advance(wheel, 70));
+    }
+
+    @Test
+    public void testMissedTicksAreCaughtUp() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4);
+        advance(wheel, 0);
+        wheel.schedule("a", 20);
+        wheel.schedule("b", 50);
+        wheel.schedule("c", 500);
+
+        // Far more than one turn late
+        List<String> due = advance(wheel, 400);
+        assertEquals(2, due.size());
+        assertTrue(due.containsAll(Arrays.asList("a", "b")));
+        assertEquals(1, wheel.size());
+        assertEquals(Arrays.asList("c"), advance(wheel, 500));
+    }
+
+    @Test
+    public void testTasksScheduledBeforeTheFirstAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8);
+        wheel.schedule("past", 5);
+        wheel.schedule("now", 1000);
+        wheel.schedule("future", 1010);
+
+        List<String> due = advance(wheel, 1000);
+        assertEquals(2, due.size());
+        assertTrue(due.containsAll(Arrays.asList("past", "now")));
+        assertEquals(1010, wheel.nextTickAt());
+        assertEquals(Arrays.asList("future"), advance(wheel, 1010));
+    }
+
+    @Test
+    public void testPastDeadlineIsDueAtTheNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8);
+        advance(wheel, 100);
+        wheel.schedule("late", 50);
+        assertTrue(advance(wheel, 105).isEmpty());
+        assertEquals(Arrays.asList("late"), advance(wheel, 110));
+    }
+
+}
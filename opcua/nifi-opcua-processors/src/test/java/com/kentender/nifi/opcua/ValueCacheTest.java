@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.common.ServiceResultException;
+import org.opcfoundation.ua.core.ReadValueId;
+import org.opcfoundation.ua.core.StatusCodes;
+
+
+public class ValueCacheTest {
+
+    private static class CountingReader implements ValueCache.Reader {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger nodes = new AtomicInteger();
+        volatile CountDownLatch gate = null;
+        volatile StatusCode status = null;
+        volatile double lastMaxAge = -1;
+
+        @Override
+        public DataValue[] read(ReadValueId[] nodesToRead, double maxAge) {
+            requests.incrementAndGet();
+            lastMaxAge = maxAge;
+            nodes.addAndGet(nodesToRead.length);
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            DataValue[] values = new DataValue[nodesToRead.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = new DataValue(new Variant(nodesToRead[i].getNodeId().toString()), status);
+            }
+            return values;
+        }
+    }
+
+    @Test
+    public void testValueIsServedFromCacheWithinMaxAge() throws Exception {
+        CountingReader reader = new CountingReader();
+        ValueCache cache = new ValueCache(reader, 60000, 100, 100);
+        NodeId nodeId = new NodeId(2, 1);
+        DataValue first = cache.get(nodeId, 1000);
+        assertSame(first, cache.get(nodeId, 1000));
+        assertEquals(1, reader.requests.get());
+        // The server's cache would make the value older than the max age
+        assertEquals(0.0, reader.lastMaxAge, 0.0);
+    }
+
+    @Test
+    public void testBadValueIsNotCached() throws Exception {
+        CountingReader reader = new CountingReader();
+        reader.status = new StatusCode(StatusCodes.Bad_NodeIdUnknown);
+        ValueCache cache = new ValueCache(reader, 60000, 100, 100);
+        NodeId nodeId = new NodeId(2, 1);
+        assertSame(reader.status, cache.get(nodeId, 1000).getStatusCode());
+        assertEquals(0, cache.size());
+        cache.get(nodeId, 1000);
+        assertEquals(2, reader.requests.get());
+    }
+
+    @Test
+    public void testValueIsReadAgainAfterMaxAge() throws Exception {
+        CountingReader reader = new CountingReader();
+        ValueCache cache = new ValueCache(reader, 0, 100, 100);
+        NodeId nodeId = new NodeId(2, 1);
+        cache.get(nodeId, 1000);
+        Thread.sleep(5);
+        cache.get(nodeId, 1000);
+        assertEquals(2, reader.requests.get());
+    }
+
+    @Test
+    public void testMissesAreReadTogether() throws Exception {
+        CountingReader reader = new CountingReader();
+        ValueCache cache = new ValueCache(reader, 60000, 100, 100);
+        List<NodeId> nodeIds = Arrays.asList(new NodeId(2, 1), new NodeId(2, 2), new NodeId(2, 3));
+        Map<NodeId, DataValue> values = cache.getAll(nodeIds, 1000);
+        assertEquals(3, values.size());
+        assertEquals(1, reader.requests.get());
+        assertEquals("ns=2;i=2", values.get(new NodeId(2, 2)).getValue().getValue());
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneRead() throws Exception {
+        final CountingReader reader = new CountingReader();
+        reader.gate = new CountDownLatch(1);
+        final ValueCache cache = new ValueCache(reader, 60000, 100, 100);
+        final NodeId nodeId = new NodeId(2, 1);
+
+        List<Thread> threads = new ArrayList<>();
+        final List<DataValue> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    DataValue value = cache.get(nodeId, 5000);
+                    synchronized (results) {
+                        results.add(value);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // Let the lookups pile up behind the first read
+        Thread.sleep(100);
+        reader.gate.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8, results.size());
+        assertEquals(1, reader.requests.get());
+        for (DataValue value : results) {
+            assertSame(results.get(0), value);
+        }
+    }
+
+    @Test
+    public void testProcessorsOfOneEndpointShareTheCache() throws Exception {
+        CountingReader first = new CountingReader();
+        CountingReader second = new CountingReader();
+        ValueCache cache = ValueCache.acquire("opc.tcp://shared:4840", "None", first, 60000, 100, 100);
+        assertSame(cache, ValueCache.acquire("opc.tcp://shared:4840", "None", second, 60000, 100, 100));
+        ValueCache other = ValueCache.acquire("opc.tcp://shared:4840", "None", second, 1000, 100, 100);
+        assertNotSame(cache, other);
+        ValueCache.release(other, second);
+
+        NodeId nodeId = new NodeId(2, 1);
+        DataValue value = cache.get(nodeId, 1000);
+        assertSame(value, cache.get(nodeId, 1000));
+        assertEquals(1, first.requests.get() + second.requests.get());
+
+        // The cache goes on reading through the processor still running
+        ValueCache.release(cache, first);
+        cache.get(new NodeId(2, 2), 1000);
+        assertEquals(1, second.requests.get());
+
+        ValueCache.release(cache, second);
+        ValueCache next = ValueCache.acquire("opc.tcp://shared:4840", "None", first, 60000, 100, 100);
+        assertNotSame(cache, next);
+        ValueCache.release(next, first);
+    }
+
+    @Test
+    public void testSharedCacheReadsThroughTheNextReader() throws Exception {
+        ValueCache.Reader stopped = (nodesToRead, maxAge) -> {
+            throw new ServiceResultException(StatusCodes.Bad_ServerNotConnected, "The processor is not scheduled");
+        };
+        CountingReader running = new CountingReader();
+        ValueCache cache = ValueCache.acquire("opc.tcp://failover:4840", "None", stopped, 60000, 100, 100);
+        ValueCache.acquire("opc.tcp://failover:4840", "None", running, 60000, 100, 100);
+        assertEquals("ns=2;i=1", cache.get(new NodeId(2, 1), 1000).getValue().getValue());
+        assertEquals(1, running.requests.get());
+        ValueCache.release(cache, stopped);
+        ValueCache.release(cache, running);
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class ValueSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void append(ValueSpool spool, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        spool.append(Collections.singletonMap("opcua.endpoint", "opc.tcp://plc:4840"), bytes, 0, bytes.length);
+    }
+
+    private static List<String> read(ValueSpool spool, int max) throws IOException {
+        List<String> contents = new ArrayList<>();
+        spool.read(max, (attributes, content) -> {
+            assertEquals("opc.tcp://plc:4840", attributes.get("opcua.endpoint"));
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            contents.add(new String(bytes, StandardCharsets.UTF_8));
+        });
+        return contents;
+    }
+
+    @Test
+    public void testReadsInOrderAcrossSegments() throws IOException {
+        ValueSpool spool = new ValueSpool(folder.newFolder("spool").toPath(), 1 << 20, 256, true);
+        for (int i = 0; i < 100; i++) {
+            append(spool, "value " + i);
+        }
+        assertEquals(100, spool.getBacklog());
+
+        List<String> contents = read(spool, 1000);
+        assertEquals(100, contents.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value " + i, contents.get(i));
+        }
+        spool.commit();
+        assertEquals(0, spool.getBacklog());
+        assertEquals(0, read(spool, 1000).size());
+        // Only the segment being written is left
+        assertEquals(2, folder.getRoot().toPath().resolve("spool").toFile().list().length);
+    }
+
+    @Test
+    public void testAppendsWhileSinkRuns() throws Exception {
+        ValueSpool spool = new ValueSpool(folder.newFolder("spool").toPath(), 1 << 20, 256, true);
+        append(spool, "a");
+        List<String> contents = new ArrayList<>();
+        spool.read(10, (attributes, content) -> {
+            Thread appender = new Thread(() -> {
+                try {
+                    append(spool, "b");
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            appender.start();
+            try {
+                appender.join(5000);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            assertFalse(appender.isAlive());
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            contents.add(new String(bytes, StandardCharsets.UTF_8));
+        });
+        assertEquals("[a]", contents.toString());
+        spool.commit();
+        assertEquals("[b]", read(spool, 10).toString());
+    }
+
+    @Test
+    public void testRollbackReadsAgain() throws IOException {
+        ValueSpool spool = new ValueSpool(folder.newFolder("spool").toPath(), 1 << 20, 256, true);
+        append(spool, "a");
+        append(spool, "b");
+        append(spool, "c");
+        assertEquals("[a, b]", read(spool, 2).toString());
+        spool.rollback();
+        assertEquals("[a]", read(spool, 1).toString());
+        spool.commit();
+        assertEquals("[b, c]", read(spool, 10).toString());
+    }
+
+    @Test
+    public void testRecoversAfterRestart() throws IOException {
+        File directory = folder.newFolder("spool");
+        ValueSpool spool = new ValueSpool(directory.toPath(), 1 << 20, 256, true);
+        for (int i = 0; i < 20; i++) {
+            append(spool, "value " + i);
+        }
+        read(spool, 5);
+        spool.commit();
+        read(spool, 5);
+        // Not committed, read again after the restart
+        spool.close();
+
+        spool = new ValueSpool(directory.toPath(), 1 << 20, 256, true);
+        assertEquals(15, spool.getBacklog());
+        List<String> contents = read(spool, 100);
+        assertEquals("value 5", contents.get(0));
+        assertEquals("value 19", contents.get(14));
+        append(spool, "after restart");
+        assertEquals("[after restart]", read(spool, 100).toString());
+    }
+
+    @Test
+    public void testTornEntryIsCutOff() throws IOException {
+        File directory = folder.newFolder("spool");
+        ValueSpool spool = new ValueSpool(directory.toPath(), 1 << 20, 4096, true);
+        append(spool, "first");
+        append(spool, "second");
+        spool.close();
+
+        // Damage the content of the second entry
+        File segment = new File(directory, "spool-0000000000000000.seg");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long length = file.length();
+            byte[] bytes = new byte[(int) length];
+            file.readFully(bytes);
+            String text = new String(bytes, StandardCharsets.ISO_8859_1);
+            file.seek(text.indexOf("second"));
+            file.write('X');
+        }
+
+        spool = new ValueSpool(directory.toPath(), 1 << 20, 4096, true);
+        assertEquals("[first]", read(spool, 10).toString());
+        append(spool, "third");
+        assertEquals("[third]", read(spool, 10).toString());
+    }
+
+    @Test
+    public void testFullSpool() throws IOException {
+        ValueSpool dropNewest = new ValueSpool(folder.newFolder("newest").toPath(), 512, 256, false);
+        int appended = 0;
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = ("value " + i).getBytes(StandardCharsets.UTF_8);
+            if (dropNewest.append(Collections.singletonMap("opcua.endpoint", "opc.tcp://plc:4840"), bytes, 0, bytes.length)) {
+                appended++;
+            }
+        }
+        assertTrue(appended < 100);
+        assertEquals(100 - appended, dropNewest.getDropped());
+        assertEquals("value 0", read(dropNewest, 1).get(0));
+
+        ValueSpool dropOldest = new ValueSpool(folder.newFolder("oldest").toPath(), 512, 256, true);
+        for (int i = 0; i < 100; i++) {
+            append(dropOldest, "value " + i);
+        }
+        assertTrue(dropOldest.getDropped() > 0);
+        assertEquals(100 - dropOldest.getDropped(), dropOldest.getBacklog());
+        List<String> contents = read(dropOldest, 1000);
+        assertEquals(dropOldest.getBacklog(), contents.size());
+        assertEquals("value 99", contents.get(contents.size() - 1));
+        assertFalse(contents.contains("value 0"));
+    }
+
+}
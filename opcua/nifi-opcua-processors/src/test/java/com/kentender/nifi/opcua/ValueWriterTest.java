@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.Variant;
+
+
+public class ValueWriterTest {
+
+    // 2017-05-11T10:23:12.123Z
+    private static final long TIME = 1494498192123L;
+
+    private static String write(String format, Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ValueWriter.get(format).write("tag", value, TIME).writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String csv(Object value) throws IOException {
+        return write(ValueWriter.CSV, value);
+    }
+
+    private static String json(Object value) throws IOException {
+        return write(ValueWriter.JSON, value);
+    }
+
+    @Test
+    public void testScalars() throws IOException {
+        assertEquals("tag,42,2017-05-11T10:23:12.123Z", csv(42));
+        assertEquals("tag,-7,2017-05-11T10:23:12.123Z", csv(-7L));
+        assertEquals("tag,4294967295,2017-05-11T10:23:12.123Z", csv(UnsignedInteger.valueOf(4294967295L)));
+        assertEquals("tag,20.5,2017-05-11T10:23:12.123Z", csv(20.5));
+        assertEquals("tag,true,2017-05-11T10:23:12.123Z", csv(true));
+        assertEquals("tag,\"a,\"\"b\"\"\",2017-05-11T10:23:12.123Z", csv("a,\"b\""));
+        assertEquals("tag,null,2017-05-11T10:23:12.123Z", csv(null));
+
+        assertEquals("{\"tag\":\"tag\",\"value\":42,\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(42));
+        assertEquals("{\"tag\":\"tag\",\"value\":\"a\\\"b\",\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json("a\"b"));
+        assertEquals("{\"tag\":\"tag\",\"value\":\"NaN\",\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(Double.NaN));
+        assertEquals("{\"tag\":\"tag\",\"value\":null,\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(null));
+    }
+
+    @Test
+    public void testFloatKeepsItsDigits() throws IOException {
+        assertEquals("tag,0.1,2017-05-11T10:23:12.123Z", csv(0.1f));
+        assertEquals("{\"tag\":\"tag\",\"value\":0.1,\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(0.1f));
+    }
+
+    @Test
+    public void testArrays() throws IOException {
+        assertEquals("tag,\"[1.5, 2.0]\",2017-05-11T10:23:12.123Z", csv(new Double[] {1.5, 2.0}));
+        assertEquals("tag,\"[1, 2, 3]\",2017-05-11T10:23:12.123Z", csv(new int[] {1, 2, 3}));
+        assertEquals("tag,\"[a, b]\",2017-05-11T10:23:12.123Z", csv(new String[] {"a", "b"}));
+        assertEquals("tag,\"[1, x]\",2017-05-11T10:23:12.123Z", csv(new Variant[] {new Variant(1), new Variant("x")}));
+
+        assertEquals("{\"tag\":\"tag\",\"value\":[1.5,2.0],\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(new Double[] {1.5, 2.0}));
+        assertEquals("{\"tag\":\"tag\",\"value\":[0.1,\"NaN\"],\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(new Float[] {0.1f, Float.NaN}));
+        assertEquals("{\"tag\":\"tag\",\"value\":[\"a\",null],\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(new String[] {"a", null}));
+        assertEquals("{\"tag\":\"tag\",\"value\":[[1,2],[3]],\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(new Integer[][] {{1, 2}, {3}}));
+        assertEquals("{\"tag\":\"tag\",\"value\":[1,\"x\"],\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(new Variant[] {new Variant(1), new Variant("x")}));
+    }
+
+    @Test
+    public void testByteStrings() throws IOException {
+        assertEquals("tag,AQL/,2017-05-11T10:23:12.123Z", csv(new byte[] {1, 2, -1}));
+        assertEquals("{\"tag\":\"tag\",\"value\":\"AQL/\",\"timestamp\":\"2017-05-11T10:23:12.123Z\"}", json(new byte[] {1, 2, -1}));
+        assertEquals("tag,\"[AQ==, Ag==]\",2017-05-11T10:23:12.123Z", csv(new byte[][] {{1}, {2}}));
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kentender.nifi.opcua;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class WindowAggregatorTest {
+
+    private static List<String> advance(WindowAggregator aggregator, long now) {
+        List<String> windows = new ArrayList<>();
+        aggregator.advance(now, (tag, windowStart, windowEnd, count, min, max, average, last) ->
+                windows.add(tag + ":" + windowStart + "-" + windowEnd + " n=" + count + " min=" + min + " max=" + max + " avg=" + average + " last=" + last));
+        return windows;
+    }
+
+    @Test
+    public void testTumblingWindows() {
+        WindowAggregator aggregator = new WindowAggregator(2, 10, 0);
+        assertEquals(0, advance(aggregator, 3).size());
+        aggregator.add(0, 1.0);
+        aggregator.add(0, 3.0);
+        aggregator.add(1, 5.0);
+        assertEquals(0, advance(aggregator, 9).size());
+        aggregator.add(0, 2.0);
+
+        List<String> windows = advance(aggregator, 12);
+        assertEquals(2, windows.size());
+        assertEquals("0:0-10 n=3 min=1.0 max=3.0 avg=2.0 last=2.0", windows.get(0));
+        assertEquals("1:0-10 n=1 min=5.0 max=5.0 avg=5.0 last=5.0", windows.get(1));
+
+        aggregator.add(1, 7.0);
+        assertEquals("[1:10-20 n=1 min=7.0 max=7.0 avg=7.0 last=7.0]", advance(aggregator, 20).toString());
+    }
+
+    @Test
+    public void testSlidingWindows() {
+        WindowAggregator aggregator = new WindowAggregator(1, 30, 10);
+        advance(aggregator, 0);
+        aggregator.add(0, 1.0);
+        assertEquals("[0:-20-10 n=1 min=1.0 max=1.0 avg=1.0 last=1.0]", advance(aggregator, 10).toString());
+        aggregator.add(0, 3.0);
+        assertEquals("[0:-10-20 n=2 min=1.0 max=3.0 avg=2.0 last=3.0]", advance(aggregator, 20).toString());
+        assertEquals("[0:0-30 n=2 min=1.0 max=3.0 avg=2.0 last=3.0]", advance(aggregator, 30).toString());
+        // The first sample leaves the window
+        assertEquals("[0:10-40 n=1 min=3.0 max=3.0 avg=3.0 last=3.0]", advance(aggregator, 40).toString());
+        assertEquals(0, advance(aggregator, 50).size());
+    }
+
+    @Test
+    public void testWindowIsRoundedUpToSlide() {
+        assertEquals(30, new WindowAggregator(1, 25, 10).getWindowMillis());
+        assertEquals(25, new WindowAggregator(1, 25, 0).getWindowMillis());
+    }
+
+    @Test
+    public void testIdleTimeIsSkipped() {
+        WindowAggregator aggregator = new WindowAggregator(1, 10, 0);
+        advance(aggregator, 5);
+        aggregator.add(0, 4.0);
+        assertEquals(1, advance(aggregator, 1000005).size());
+        aggregator.add(0, 6.0);
+        assertEquals("[0:1000000-1000010 n=1 min=6.0 max=6.0 avg=6.0 last=6.0]", advance(aggregator, 1000010).toString());
+    }
+
+    @Test
+    public void testBooleansAndNonNumbers() {
+        WindowAggregator aggregator = new WindowAggregator(1, 10, 0);
+        advance(aggregator, 0);
+        assertEquals(true, aggregator.add(0, (Object) Boolean.TRUE));
+        assertEquals(true, aggregator.add(0, (Object) Integer.valueOf(0)));
+        assertEquals(false, aggregator.add(0, (Object) "text"));
+        assertEquals("[0:0-10 n=2 min=0.0 max=1.0 avg=0.5 last=0.0]", advance(aggregator, 10).toString());
+    }
+
+    @Test
+    public void testEmptyUntilSampledAndAfterLastWindow() {
+        WindowAggregator aggregator = new WindowAggregator(1, 20, 10);
+        advance(aggregator, 0);
+        assertEquals(true, aggregator.isEmpty());
+        aggregator.add(0, 1.0);
+        assertEquals(false, aggregator.isEmpty());
+        advance(aggregator, 10);
+        // Still in the sliding window ending at 20
+        assertEquals(false, aggregator.isEmpty());
+        advance(aggregator, 20);
+        assertEquals(true, aggregator.isEmpty());
+    }
+
+}